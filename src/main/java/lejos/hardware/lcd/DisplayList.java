@@ -0,0 +1,550 @@
+package lejos.hardware.lcd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Records GraphicsLCD drawing operations into a compact command buffer so
+ * that they can be sent to a remote EV3 in a single message and replayed
+ * there. For example:
+ *
+ * <pre>
+ * DisplayList dl = new DisplayList();
+ * dl.clear();
+ * dl.drawString("Speed", 0, 0, 0);
+ * dl.fillRect(0, 20, speed, 10);
+ * remoteLCD.drawList(dl);
+ * </pre>
+ *
+ * Methods that return information about the screen contents (such as
+ * getPixel) can not be used while recording and throw an
+ * UnsupportedOperationException. The translation, stroke style and font set
+ * in the list are tracked locally.
+ */
+public class DisplayList implements GraphicsLCD
+{
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int OP_REFRESH = 1;
+    private static final int OP_CLEAR = 2;
+    private static final int OP_SET_PIXEL = 3;
+    private static final int OP_DRAW_STRING = 4;
+    private static final int OP_DRAW_STRING_INVERTED = 5;
+    private static final int OP_DRAW_CHAR = 6;
+    private static final int OP_SET_STROKE_STYLE = 7;
+    private static final int OP_DRAW_REGION_ROP = 8;
+    private static final int OP_DRAW_LINE = 9;
+    private static final int OP_DRAW_ARC = 10;
+    private static final int OP_FILL_ARC = 11;
+    private static final int OP_DRAW_ROUND_RECT = 12;
+    private static final int OP_DRAW_RECT = 13;
+    private static final int OP_FILL_RECT = 14;
+    private static final int OP_COPY_AREA = 15;
+    private static final int OP_SET_FONT = 16;
+    private static final int OP_TRANSLATE = 17;
+    private static final int OP_SET_COLOR = 18;
+    private static final int OP_BITBLT = 19;
+    private static final int OP_SET_AUTO_REFRESH = 20;
+    private static final int OP_SET_CONTRAST = 21;
+
+    private final int width;
+    private final int height;
+    private ByteArrayOutputStream out;
+    private int count;
+    private int transX, transY;
+    private int strokeStyle = SOLID;
+    private Font font = Font.getDefaultFont();
+
+    /**
+     * Create a display list for the EV3 screen.
+     */
+    public DisplayList()
+    {
+        this(LCD.SCREEN_WIDTH, LCD.SCREEN_HEIGHT);
+    }
+
+    /**
+     * Create a display list for a screen of the given size, the size is
+     * only used to answer getWidth and getHeight.
+     * @param width screen width
+     * @param height screen height
+     */
+    public DisplayList(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        reset();
+    }
+
+    /**
+     * Remove all of the operations from the list.
+     */
+    public void reset()
+    {
+        out = new ByteArrayOutputStream(256);
+        out.write(VERSION);
+        count = 0;
+        transX = transY = 0;
+        strokeStyle = SOLID;
+        font = Font.getDefaultFont();
+    }
+
+    /**
+     * Return the number of operations in the list.
+     * @return operation count
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Return the encoded list.
+     * @return the command buffer
+     */
+    public byte[] toByteArray()
+    {
+        return out.toByteArray();
+    }
+
+    /**
+     * Execute the operations held in a command buffer and then refresh the
+     * display once.
+     * @param data command buffer created by {@link #toByteArray()}
+     * @param g the display to draw on
+     */
+    public static void replay(byte[] data, GraphicsLCD g)
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try
+        {
+            if (in.readByte() != VERSION)
+                throw new IllegalArgumentException("Unsupported display list version");
+            int op;
+            while ((op = in.read()) >= 0)
+            {
+                switch(op)
+                {
+                case OP_REFRESH:
+                    g.refresh();
+                    break;
+                case OP_CLEAR:
+                    g.clear();
+                    break;
+                case OP_SET_PIXEL:
+                    g.setPixel(in.readShort(), in.readShort(), in.readInt());
+                    break;
+                case OP_DRAW_STRING:
+                    g.drawString(readString(in), in.readShort(), in.readShort(), in.readUnsignedByte());
+                    break;
+                case OP_DRAW_STRING_INVERTED:
+                    g.drawString(readString(in), in.readShort(), in.readShort(), in.readUnsignedByte(), in.readBoolean());
+                    break;
+                case OP_DRAW_CHAR:
+                    g.drawChar(in.readChar(), in.readShort(), in.readShort(), in.readUnsignedByte());
+                    break;
+                case OP_SET_STROKE_STYLE:
+                    g.setStrokeStyle(in.readByte());
+                    break;
+                case OP_DRAW_REGION_ROP:
+                    g.drawRegionRop(readImage(in), in.readShort(), in.readShort(), in.readShort(), in.readShort(),
+                            in.readByte(), in.readShort(), in.readShort(), in.readUnsignedByte(), in.readInt());
+                    break;
+                case OP_DRAW_LINE:
+                    g.drawLine(in.readShort(), in.readShort(), in.readShort(), in.readShort());
+                    break;
+                case OP_DRAW_ARC:
+                    g.drawArc(in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort());
+                    break;
+                case OP_FILL_ARC:
+                    g.fillArc(in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort());
+                    break;
+                case OP_DRAW_ROUND_RECT:
+                    g.drawRoundRect(in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort());
+                    break;
+                case OP_DRAW_RECT:
+                    g.drawRect(in.readShort(), in.readShort(), in.readShort(), in.readShort());
+                    break;
+                case OP_FILL_RECT:
+                    g.fillRect(in.readShort(), in.readShort(), in.readShort(), in.readShort());
+                    break;
+                case OP_COPY_AREA:
+                    g.copyArea(in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readUnsignedByte());
+                    break;
+                case OP_SET_FONT:
+                    g.setFont(Font.getFont(0, 0, in.readByte()));
+                    break;
+                case OP_TRANSLATE:
+                    g.translate(in.readShort(), in.readShort());
+                    break;
+                case OP_SET_COLOR:
+                    g.setColor(in.readInt());
+                    break;
+                case OP_BITBLT:
+                {
+                    byte[] src = new byte[in.readInt()];
+                    in.readFully(src);
+                    g.bitBlt(src, in.readShort(), in.readShort(), in.readShort(), in.readShort(), in.readShort(),
+                            in.readShort(), in.readShort(), in.readShort(), in.readInt());
+                    break;
+                }
+                case OP_SET_AUTO_REFRESH:
+                    g.setAutoRefresh(in.readBoolean());
+                    break;
+                case OP_SET_CONTRAST:
+                    g.setContrast(in.readByte() & 0xff);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid display list operation " + op);
+                }
+            }
+        } catch (IOException e)
+        {
+            throw new IllegalArgumentException("Invalid display list", e);
+        }
+        g.refresh();
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    private static Image readImage(DataInputStream in) throws IOException
+    {
+        int w = in.readShort();
+        int h = in.readShort();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new Image(w, h, data);
+    }
+
+    private void op(int op, int... args)
+    {
+        out.write(op);
+        args(args);
+        count++;
+    }
+
+    private void args(int... args)
+    {
+        for(int a : args)
+            out16(a);
+    }
+
+    private void out8(int v)
+    {
+        out.write(v);
+    }
+
+    private void out16(int v)
+    {
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private void out32(int v)
+    {
+        out16(v >> 16);
+        out16(v);
+    }
+
+    private void outBoolean(boolean v)
+    {
+        out.write(v ? 1 : 0);
+    }
+
+    private void outString(String str)
+    {
+        byte[] b = str.getBytes(UTF8);
+        out16(b.length);
+        out.write(b, 0, b.length);
+    }
+
+    private void outBytes(byte[] b)
+    {
+        out32(b.length);
+        out.write(b, 0, b.length);
+    }
+
+    @Override
+    public void refresh()
+    {
+        op(OP_REFRESH);
+    }
+
+    @Override
+    public void clear()
+    {
+        op(OP_CLEAR);
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public byte[] getDisplay()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getHWDisplay()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setContrast(int contrast)
+    {
+        op(OP_SET_CONTRAST);
+        out8(contrast);
+    }
+
+    @Override
+    public void bitBlt(byte[] src, int sw, int sh, int sx, int sy, int dx, int dy, int w, int h, int rop)
+    {
+        op(OP_BITBLT);
+        outBytes(src);
+        args(sw, sh, sx, sy, dx, dy, w, h);
+        out32(rop);
+    }
+
+    /**
+     * Not supported, the destination is a local array.
+     */
+    @Override
+    public void bitBlt(byte[] src, int sw, int sh, int sx, int sy, byte[] dst, int dw, int dh, int dx, int dy, int w, int h, int rop)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setAutoRefresh(boolean on)
+    {
+        op(OP_SET_AUTO_REFRESH);
+        outBoolean(on);
+    }
+
+    /**
+     * Not supported, the previous period can not be returned.
+     */
+    @Override
+    public int setAutoRefreshPeriod(int period)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setPixel(int x, int y, int color)
+    {
+        op(OP_SET_PIXEL, x, y);
+        out32(color);
+    }
+
+    @Override
+    public int getPixel(int x, int y)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void drawString(String str, int x, int y, int anchor, boolean inverted)
+    {
+        op(OP_DRAW_STRING_INVERTED);
+        outString(str);
+        args(x, y);
+        out8(anchor);
+        outBoolean(inverted);
+    }
+
+    @Override
+    public void drawString(String str, int x, int y, int anchor)
+    {
+        op(OP_DRAW_STRING);
+        outString(str);
+        args(x, y);
+        out8(anchor);
+    }
+
+    @Override
+    public void drawSubstring(String str, int offset, int len, int x, int y, int anchor)
+    {
+        drawString(str.substring(offset, offset + len), x, y, anchor);
+    }
+
+    @Override
+    public void drawChar(char character, int x, int y, int anchor)
+    {
+        op(OP_DRAW_CHAR, character, x, y);
+        out8(anchor);
+    }
+
+    @Override
+    public void drawChars(char[] data, int offset, int length, int x, int y, int anchor)
+    {
+        drawString(new String(data, offset, length), x, y, anchor);
+    }
+
+    @Override
+    public int getStrokeStyle()
+    {
+        return strokeStyle;
+    }
+
+    @Override
+    public void setStrokeStyle(int style)
+    {
+        strokeStyle = style;
+        op(OP_SET_STROKE_STYLE);
+        out8(style);
+    }
+
+    @Override
+    public void drawRegionRop(Image src, int sx, int sy, int w, int h, int x, int y, int anchor, int rop)
+    {
+        drawRegionRop(src, sx, sy, w, h, TRANS_NONE, x, y, anchor, rop);
+    }
+
+    @Override
+    public void drawRegionRop(Image src, int sx, int sy, int w, int h, int transform, int x, int y, int anchor, int rop)
+    {
+        op(OP_DRAW_REGION_ROP, src.getWidth(), src.getHeight());
+        outBytes(src.getData());
+        args(sx, sy, w, h);
+        out8(transform);
+        args(x, y);
+        out8(anchor);
+        out32(rop);
+    }
+
+    @Override
+    public void drawRegion(Image src, int sx, int sy, int w, int h, int transform, int x, int y, int anchor)
+    {
+        drawRegionRop(src, sx, sy, w, h, transform, x, y, anchor, ROP_COPY);
+    }
+
+    @Override
+    public void drawImage(Image src, int x, int y, int anchor)
+    {
+        drawRegionRop(src, 0, 0, src.getWidth(), src.getHeight(), TRANS_NONE, x, y, anchor, ROP_COPY);
+    }
+
+    @Override
+    public void drawLine(int x0, int y0, int x1, int y1)
+    {
+        op(OP_DRAW_LINE, x0, y0, x1, y1);
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle)
+    {
+        op(OP_DRAW_ARC, x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle)
+    {
+        op(OP_FILL_ARC, x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight)
+    {
+        op(OP_DRAW_ROUND_RECT, x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void drawRect(int x, int y, int width, int height)
+    {
+        op(OP_DRAW_RECT, x, y, width, height);
+    }
+
+    @Override
+    public void fillRect(int x, int y, int w, int h)
+    {
+        op(OP_FILL_RECT, x, y, w, h);
+    }
+
+    @Override
+    public void copyArea(int sx, int sy, int w, int h, int x, int y, int anchor)
+    {
+        op(OP_COPY_AREA, sx, sy, w, h, x, y);
+        out8(anchor);
+    }
+
+    @Override
+    public Font getFont()
+    {
+        return font;
+    }
+
+    /**
+     * Set the font, only the standard small, medium and large fonts can be
+     * used.
+     */
+    @Override
+    public void setFont(Font f)
+    {
+        int size;
+        if (f == Font.getSmallFont())
+            size = Font.SIZE_SMALL;
+        else if (f == Font.getLargeFont())
+            size = Font.SIZE_LARGE;
+        else if (f == Font.getDefaultFont())
+            size = Font.SIZE_MEDIUM;
+        else
+            throw new IllegalArgumentException("Only standard fonts can be used");
+        font = f;
+        op(OP_SET_FONT);
+        out8(size);
+    }
+
+    @Override
+    public void translate(int x, int y)
+    {
+        transX += x;
+        transY += y;
+        op(OP_TRANSLATE, x, y);
+    }
+
+    @Override
+    public int getTranslateX()
+    {
+        return transX;
+    }
+
+    @Override
+    public int getTranslateY()
+    {
+        return transY;
+    }
+
+    @Override
+    public void setColor(int rgb)
+    {
+        op(OP_SET_COLOR);
+        out32(rgb);
+    }
+
+    @Override
+    public void setColor(int red, int green, int blue)
+    {
+        setColor((red << 16) | (green << 8) | blue);
+    }
+}
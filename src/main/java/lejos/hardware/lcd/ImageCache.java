@@ -0,0 +1,212 @@
+package lejos.hardware.lcd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently used images and sprite atlases in memory so that they are
+ * only read and parsed once. Entries are keyed by name, which is either a
+ * file name or the name of a resource on the class path. When the total size
+ * of the cached image data goes over the limit the least recently used
+ * entries are discarded.
+ */
+public class ImageCache
+{
+    public static final int DEFAULT_SIZE = 32*1024;
+
+    private static ImageCache defaultCache;
+
+    private final LinkedHashMap<String, Object> cache = new LinkedHashMap<String, Object>(16, 0.75f, true);
+    private final int maxSize;
+    private int size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a cache.
+     * @param maxSize the maximum size of the cached image data in bytes
+     */
+    public ImageCache(int maxSize)
+    {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Invalid size " + maxSize);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the shared cache.
+     * @return the cache
+     */
+    public static synchronized ImageCache getDefault()
+    {
+        if (defaultCache == null)
+            defaultCache = new ImageCache(DEFAULT_SIZE);
+        return defaultCache;
+    }
+
+    /**
+     * Return an image in the {@link Image#createImage(InputStream)} format,
+     * loading it if it is not in the cache.
+     * @param name file or resource name
+     * @return the image
+     * @throws IOException if the image can not be loaded
+     */
+    public synchronized Image getImage(String name) throws IOException
+    {
+        Object o = lookup(name, Image.class);
+        if (o != null)
+            return (Image)o;
+        InputStream in = open(name);
+        try
+        {
+            Image img = Image.createImage(in);
+            add(name, img);
+            return img;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Return a sprite atlas, loading it if it is not in the cache.
+     * @param name file or resource name
+     * @return the atlas
+     * @throws IOException if the atlas can not be loaded
+     */
+    public synchronized SpriteAtlas getAtlas(String name) throws IOException
+    {
+        Object o = lookup(name, SpriteAtlas.class);
+        if (o != null)
+            return (SpriteAtlas)o;
+        SpriteAtlas atlas;
+        File f = new File(name);
+        if (f.isFile())
+            atlas = SpriteAtlas.load(f);
+        else
+        {
+            InputStream in = open(name);
+            try
+            {
+                atlas = SpriteAtlas.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        add(name, atlas);
+        return atlas;
+    }
+
+    private Object lookup(String name, Class<?> type)
+    {
+        Object o = cache.get(name);
+        if (o == null)
+        {
+            misses++;
+            return null;
+        }
+        if (!type.isInstance(o))
+            throw new IllegalArgumentException(name + " is not " + type.getSimpleName());
+        hits++;
+        return o;
+    }
+
+    private static InputStream open(String name) throws IOException
+    {
+        File f = new File(name);
+        if (f.isFile())
+            return new FileInputStream(f);
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        if (cl == null)
+            cl = ImageCache.class.getClassLoader();
+        InputStream in = cl.getResourceAsStream(name);
+        if (in == null)
+            throw new FileNotFoundException(name);
+        return in;
+    }
+
+    /**
+     * Add an entry and discard the least recently used ones until the cache
+     * is within its limit. The new entry is kept even if it is over the
+     * limit on its own.
+     */
+    private void add(String name, Object o)
+    {
+        cache.put(name, o);
+        size += sizeOf(o);
+        Iterator<Map.Entry<String, Object>> it = cache.entrySet().iterator();
+        while (size > maxSize && cache.size() > 1)
+        {
+            size -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static int sizeOf(Object o)
+    {
+        if (o instanceof Image)
+            return ((Image)o).getData().length;
+        return ((SpriteAtlas)o).getImage().getData().length;
+    }
+
+    /**
+     * Discard an entry.
+     * @param name file or resource name
+     */
+    public synchronized void remove(String name)
+    {
+        Object o = cache.remove(name);
+        if (o != null)
+            size -= sizeOf(o);
+    }
+
+    /**
+     * Discard all of the entries.
+     */
+    public synchronized void clear()
+    {
+        cache.clear();
+        size = 0;
+    }
+
+    /**
+     * Return the size of the cached image data.
+     * @return size in bytes
+     */
+    public synchronized int getSize()
+    {
+        return size;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Return the number of requests satisfied from the cache.
+     * @return hit count
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Return the number of requests that had to load the image.
+     * @return miss count
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+}
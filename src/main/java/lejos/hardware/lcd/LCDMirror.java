@@ -0,0 +1,240 @@
+package lejos.hardware.lcd;
+
+/**
+ * Maintains a copy of a remote display using compressed deltas.<br>
+ * The display end keeps a frame number and records the frame in which each
+ * row of the display last changed. A delta contains only the rows that have
+ * changed since a given frame, compressed using run length encoding. A
+ * mirror applies the deltas to its own copy of the display and remembers the
+ * frame number, so the next request only returns the rows that have changed
+ * since then. As most of a typical display is blank and little of it changes
+ * between frames, a delta is usually only a few bytes long.
+ * <p>
+ * Delta format (big endian): version byte, int frame number, short bytes per
+ * row, short number of rows, followed by a list of segments, each segment is
+ * a short first row, a short row count and the encoded rows. The list is
+ * terminated by a first row of -1. The row data is encoded using PackBits:
+ * a control byte n of 0..127 is followed by n+1 literal bytes, a control byte
+ * of -1..-127 is followed by a single byte to be repeated 1-n times.
+ */
+public class LCDMirror
+{
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 9;
+
+    private byte[] display;
+    private int rowBytes;
+    private int rows;
+    private int frame = 0;
+    private long bytesReceived = 0;
+
+    /**
+     * Return the frame number of the last delta applied to the mirror, this
+     * should be used when requesting the next delta.
+     * @return frame number
+     */
+    public synchronized int getFrame()
+    {
+        return frame;
+    }
+
+    /**
+     * Return the mirrored display in standard leJOS format, or null if no
+     * delta has been applied yet.
+     * @return the display
+     */
+    public synchronized byte[] getDisplay()
+    {
+        return display;
+    }
+
+    /**
+     * Return the width of a row of the display in bytes.
+     * @return bytes per row
+     */
+    public synchronized int getRowBytes()
+    {
+        return rowBytes;
+    }
+
+    /**
+     * Return the number of rows in the display
+     * @return rows
+     */
+    public synchronized int getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Return the total size of the deltas applied to the mirror.
+     * @return bytes received
+     */
+    public synchronized long getBytesReceived()
+    {
+        return bytesReceived;
+    }
+
+    /**
+     * Apply a delta to the mirror.
+     * @param delta the delta
+     * @return true if any part of the display has changed
+     */
+    public synchronized boolean apply(byte[] delta)
+    {
+        if (delta == null || delta.length < HEADER_LEN + 2 || delta[0] != VERSION)
+            throw new IllegalArgumentException("Invalid display delta");
+        bytesReceived += delta.length;
+        int newFrame = getInt(delta, 1);
+        int rb = getShort(delta, 5);
+        int r = getShort(delta, 7);
+        if (display == null || rb != rowBytes || r != rows)
+        {
+            rowBytes = rb;
+            rows = r;
+            display = new byte[rowBytes*rows];
+        }
+        int pos = HEADER_LEN;
+        boolean changed = false;
+        for(;;)
+        {
+            int first = (short)getShort(delta, pos);
+            pos += 2;
+            if (first < 0)
+                break;
+            int cnt = getShort(delta, pos);
+            pos += 2;
+            pos = unpack(delta, pos, display, first*rowBytes, cnt*rowBytes);
+            changed = true;
+        }
+        frame = newFrame;
+        return changed;
+    }
+
+    /**
+     * Create a delta containing the rows that have changed since a frame.
+     * @param display the display in standard leJOS format
+     * @param rowBytes the number of bytes per row
+     * @param rows the number of rows
+     * @param rowFrames the frame in which each row last changed
+     * @param since the frame held by the mirror, if this is zero or is
+     * after the current frame all rows are included
+     * @param frame the current frame
+     * @return the delta
+     */
+    public static byte[] encodeDelta(byte[] display, int rowBytes, int rows, int[] rowFrames, int since, int frame)
+    {
+        boolean all = since <= 0 || since > frame;
+        // worst case PackBits expands 128 bytes to 129
+        byte[] buf = new byte[HEADER_LEN + 2 + rows*(4 + rowBytes + (rowBytes + 127)/128)];
+        buf[0] = VERSION;
+        putInt(buf, 1, frame);
+        putShort(buf, 5, rowBytes);
+        putShort(buf, 7, rows);
+        int pos = HEADER_LEN;
+        int row = 0;
+        while (row < rows)
+        {
+            if (!all && rowFrames[row] <= since)
+            {
+                row++;
+                continue;
+            }
+            int first = row;
+            while (row < rows && (all || rowFrames[row] > since))
+                row++;
+            putShort(buf, pos, first);
+            putShort(buf, pos + 2, row - first);
+            pos = pack(display, first*rowBytes, (row - first)*rowBytes, buf, pos + 4);
+        }
+        putShort(buf, pos, -1);
+        pos += 2;
+        byte[] delta = new byte[pos];
+        System.arraycopy(buf, 0, delta, 0, pos);
+        return delta;
+    }
+
+    /**
+     * PackBits encode len bytes of src into dst.
+     * @return the new position in dst
+     */
+    private static int pack(byte[] src, int off, int len, byte[] dst, int pos)
+    {
+        int end = off + len;
+        while (off < end)
+        {
+            // look for a run of identical bytes
+            int run = 1;
+            while (off + run < end && run < 128 && src[off + run] == src[off])
+                run++;
+            if (run >= 3 || (run == 2 && off + run == end))
+            {
+                dst[pos++] = (byte)(1 - run);
+                dst[pos++] = src[off];
+                off += run;
+                continue;
+            }
+            // literal bytes, up to the start of the next run
+            int lit = 0;
+            while (off + lit < end && lit < 128)
+            {
+                if (off + lit + 2 < end && src[off + lit] == src[off + lit + 1] && src[off + lit] == src[off + lit + 2])
+                    break;
+                lit++;
+            }
+            dst[pos++] = (byte)(lit - 1);
+            System.arraycopy(src, off, dst, pos, lit);
+            pos += lit;
+            off += lit;
+        }
+        return pos;
+    }
+
+    /**
+     * Decode PackBits data to produce len bytes in dst.
+     * @return the new position in src
+     */
+    private static int unpack(byte[] src, int pos, byte[] dst, int off, int len)
+    {
+        int end = off + len;
+        while (off < end)
+        {
+            int n = src[pos++];
+            if (n >= 0)
+            {
+                System.arraycopy(src, pos, dst, off, n + 1);
+                pos += n + 1;
+                off += n + 1;
+            }
+            else
+            {
+                byte b = src[pos++];
+                for(int i = 0; i < 1 - n; i++)
+                    dst[off++] = b;
+            }
+        }
+        return pos;
+    }
+
+    private static void putShort(byte[] b, int pos, int v)
+    {
+        b[pos] = (byte)(v >> 8);
+        b[pos + 1] = (byte)v;
+    }
+
+    private static void putInt(byte[] b, int pos, int v)
+    {
+        putShort(b, pos, v >> 16);
+        putShort(b, pos + 2, v);
+    }
+
+    private static int getShort(byte[] b, int pos)
+    {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static int getInt(byte[] b, int pos)
+    {
+        return (getShort(b, pos) << 16) | getShort(b, pos + 2);
+    }
+}
@@ -0,0 +1,314 @@
+package lejos.hardware.lcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Holds many small images (sprites), such as menu icons, packed into a
+ * single image. An atlas file is loaded with one read, and sprites are drawn
+ * straight from the atlas without creating an Image for each one.<br>
+ * An atlas file has the following format, all values are big endian:
+ * <table border="1">
+ * <tr><td>int</td><td>header LNA0</td></tr>
+ * <tr><td>unsigned short</td><td>atlas width</td></tr>
+ * <tr><td>unsigned short</td><td>atlas height</td></tr>
+ * <tr><td>unsigned short</td><td>sprite count</td></tr>
+ * <tr><td colspan="2">for each sprite</td></tr>
+ * <tr><td>unsigned short</td><td>length of the name</td></tr>
+ * <tr><td>bytes</td><td>name in UTF-8</td></tr>
+ * <tr><td>4 unsigned shorts</td><td>x, y, width and height in the atlas</td></tr>
+ * <tr><td colspan="2">then</td></tr>
+ * <tr><td>bytes</td><td>the atlas image, in the same format as {@link Image#getData()}</td></tr>
+ * </table>
+ * For example, to draw an icon:
+ *
+ * <pre>
+ * SpriteAtlas icons = SpriteAtlas.load(new File("icons.lna"));
+ * icons.draw(g, icons.getIndex("wifi"), 10, 20, GraphicsLCD.TOP | GraphicsLCD.LEFT);
+ * </pre>
+ */
+public class SpriteAtlas
+{
+    // header is LNA0 => 0x4c4e4130 (big endian)
+    private static final int LNA0_HEADER = 0x4c4e4130;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Image image;
+    private final String[] names;
+    private final short[] bounds;
+    private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+    private SpriteAtlas(Image image, String[] names, short[] bounds)
+    {
+        this.image = image;
+        this.names = names;
+        this.bounds = bounds;
+        for (int i = 0; i < names.length; i++)
+            index.put(names[i], i);
+    }
+
+    /**
+     * Load an atlas from a file. The file is memory mapped and read in one
+     * operation.
+     * @param file the atlas file
+     * @return the atlas
+     * @throws IOException if the file can not be read or the format is not
+     * correct
+     */
+    public static SpriteAtlas load(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel ch = raf.getChannel();
+            return parse(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Load an atlas from a stream, for instance a resource in a jar file.
+     * @param s the stream
+     * @return the atlas
+     * @throws IOException if the stream can not be read or the format is not
+     * correct
+     */
+    public static SpriteAtlas load(InputStream s) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = s.read(buf)) > 0)
+            out.write(buf, 0, len);
+        return parse(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static SpriteAtlas parse(ByteBuffer buf) throws IOException
+    {
+        try
+        {
+            if (buf.getInt() != LNA0_HEADER)
+                throw new IOException("File format error!");
+            int w = buf.getShort() & 0xffff;
+            int h = buf.getShort() & 0xffff;
+            int cnt = buf.getShort() & 0xffff;
+            String[] names = new String[cnt];
+            short[] bounds = new short[cnt*4];
+            for (int i = 0; i < cnt; i++)
+            {
+                byte[] name = new byte[buf.getShort() & 0xffff];
+                buf.get(name);
+                names[i] = new String(name, UTF8);
+                for (int j = 0; j < 4; j++)
+                    bounds[i*4 + j] = buf.getShort();
+                int x = bounds[i*4] & 0xffff;
+                int y = bounds[i*4 + 1] & 0xffff;
+                if (x + (bounds[i*4 + 2] & 0xffff) > w || y + (bounds[i*4 + 3] & 0xffff) > h)
+                    throw new IOException("File format error!");
+            }
+            byte[] data = new byte[((w + 7)/8)*h];
+            buf.get(data);
+            return new SpriteAtlas(new Image(w, h, data), names, bounds);
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException("File format error!");
+        }
+    }
+
+    /**
+     * Create an atlas holding a set of images. The images are packed into
+     * rows, tallest first.
+     * @param names the names of the images
+     * @param images the images
+     * @return the atlas
+     */
+    public static SpriteAtlas create(String[] names, Image[] images)
+    {
+        int cnt = images.length;
+        if (names.length != cnt)
+            throw new IllegalArgumentException("Names and images do not match");
+        // sort by height, tallest first
+        Integer[] order = new Integer[cnt];
+        long area = 0;
+        int width = 8;
+        for (int i = 0; i < cnt; i++)
+        {
+            order[i] = i;
+            area += (long)images[i].getWidth()*images[i].getHeight();
+            width = Math.max(width, images[i].getWidth());
+        }
+        final Image[] imgs = images;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return imgs[b].getHeight() - imgs[a].getHeight();
+            }
+        });
+        // aim for a roughly square atlas
+        width = Math.max(width, (int)Math.sqrt(area));
+        width = (width + 7) & ~7;
+        short[] bounds = new short[cnt*4];
+        int x = 0, y = 0, rowHeight = 0;
+        for (int i : order)
+        {
+            int w = images[i].getWidth();
+            int h = images[i].getHeight();
+            if (x + w > width)
+            {
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+            bounds[i*4] = (short)x;
+            bounds[i*4 + 1] = (short)y;
+            bounds[i*4 + 2] = (short)w;
+            bounds[i*4 + 3] = (short)h;
+            x += w;
+            rowHeight = Math.max(rowHeight, h);
+        }
+        int height = y + rowHeight;
+        if (width > 0xffff || height > 0xffff)
+            throw new IllegalArgumentException("Images too large for an atlas");
+        Image atlas = new Image(width, height, new byte[((width + 7)/8)*height]);
+        GraphicsLCD g = atlas.getGraphics();
+        for (int i = 0; i < cnt; i++)
+            g.drawRegionRop(images[i], 0, 0, images[i].getWidth(), images[i].getHeight(),
+                    bounds[i*4], bounds[i*4 + 1], GraphicsLCD.TOP | GraphicsLCD.LEFT, CommonLCD.ROP_COPY);
+        return new SpriteAtlas(atlas, names.clone(), bounds);
+    }
+
+    /**
+     * Write the atlas to a stream in the atlas file format.
+     * @param s the stream
+     * @throws IOException
+     */
+    public void write(OutputStream s) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(s);
+        out.writeInt(LNA0_HEADER);
+        out.writeShort(image.getWidth());
+        out.writeShort(image.getHeight());
+        out.writeShort(names.length);
+        for (int i = 0; i < names.length; i++)
+        {
+            byte[] name = names[i].getBytes(UTF8);
+            out.writeShort(name.length);
+            out.write(name);
+            for (int j = 0; j < 4; j++)
+                out.writeShort(bounds[i*4 + j]);
+        }
+        out.write(image.getData());
+        out.flush();
+    }
+
+    /**
+     * Return the image that holds all of the sprites.
+     * @return the atlas image
+     */
+    public Image getImage()
+    {
+        return image;
+    }
+
+    /**
+     * Return the number of sprites in the atlas.
+     * @return sprite count
+     */
+    public int getCount()
+    {
+        return names.length;
+    }
+
+    /**
+     * Return the index of a sprite.
+     * @param name the sprite name
+     * @return the index or -1 if there is no sprite with the name
+     */
+    public int getIndex(String name)
+    {
+        Integer i = index.get(name);
+        return i == null ? -1 : i;
+    }
+
+    public String getName(int i)
+    {
+        return names[i];
+    }
+
+    public int getX(int i)
+    {
+        return bounds[i*4] & 0xffff;
+    }
+
+    public int getY(int i)
+    {
+        return bounds[i*4 + 1] & 0xffff;
+    }
+
+    public int getWidth(int i)
+    {
+        return bounds[i*4 + 2] & 0xffff;
+    }
+
+    public int getHeight(int i)
+    {
+        return bounds[i*4 + 3] & 0xffff;
+    }
+
+    /**
+     * Draw a sprite directly from the atlas.
+     * @param g the graphics surface
+     * @param i the sprite index
+     * @param x x coordinate of the anchor point
+     * @param y y coordinate of the anchor point
+     * @param anchor location of the anchor point
+     */
+    public void draw(GraphicsLCD g, int i, int x, int y, int anchor)
+    {
+        draw(g, i, x, y, anchor, CommonLCD.ROP_COPY);
+    }
+
+    /**
+     * Draw a sprite directly from the atlas using the supplied rop.
+     * @param g the graphics surface
+     * @param i the sprite index
+     * @param x x coordinate of the anchor point
+     * @param y y coordinate of the anchor point
+     * @param anchor location of the anchor point
+     * @param rop raster operation used to draw the sprite
+     */
+    public void draw(GraphicsLCD g, int i, int x, int y, int anchor, int rop)
+    {
+        g.drawRegionRop(image, getX(i), getY(i), getWidth(i), getHeight(i), x, y, anchor, rop);
+    }
+
+    /**
+     * Create a separate image holding a copy of a sprite.
+     * @param i the sprite index
+     * @return the new image
+     */
+    public Image createImage(int i)
+    {
+        int w = getWidth(i);
+        int h = getHeight(i);
+        Image img = new Image(w, h, new byte[((w + 7)/8)*h]);
+        draw(img.getGraphics(), i, 0, 0, GraphicsLCD.TOP | GraphicsLCD.LEFT);
+        return img;
+    }
+}
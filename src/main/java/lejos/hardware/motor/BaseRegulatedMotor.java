@@ -393,6 +393,42 @@ public abstract class BaseRegulatedMotor extends Device implements RegulatedMoto
         return LocalEV3.ev3.getPower().getVoltage() * MAX_SPEED_AT_9V/9.0f * 0.9f;
     }
 
+    /**
+     * Record the state of the motor regulator on every control tick into the
+     * supplied telemetry buffer. This can be used to help tune the control
+     * parameters. Set to null to stop recording.
+     * @param telemetry the buffer to record into, or null
+     */
+    public void setTelemetry(MotorTelemetry telemetry)
+    {
+        reg.setTelemetry(telemetry);
+    }
+
+    /**
+     * Set the motor model used by the regulator to add a feed-forward term to
+     * the feedback control. Set to null to use feedback control only.
+     * @param model the motor model, or null
+     */
+    public void setFeedForward(MotorModel model)
+    {
+        reg.setFeedForward(model);
+    }
+
+    /**
+     * Identify the model of this motor and use it for feed-forward control.
+     * The motor must be free to turn forward for a few seconds. Regulation is
+     * suspended while the model is identified.
+     * @return the identified model
+     * @see MotorModel#identify(TachoMotorPort)
+     */
+    public MotorModel calibrate()
+    {
+        suspendRegulation();
+        MotorModel model = MotorModel.identify(tachoPort);
+        reg.setFeedForward(model);
+        return model;
+    }
+
     /**
      * Specify a set of motors that should be kept in synchronization with this one.
      * The synchronization mechanism simply ensures that operations between a startSynchronization
@@ -1,6 +1,7 @@
 package lejos.hardware.motor;
 
 import lejos.hardware.port.TachoMotorPort;
+import lejos.hardware.port.TachoMotorPortGroup;
 import lejos.robotics.RegulatedMotor;
 import lejos.robotics.RegulatedMotorListener;
 import lejos.utility.Delay;
@@ -85,6 +86,8 @@ public class JavaMotorRegulator implements MotorRegulator
     boolean active = false;
     RegulatedMotorListener listener;
     RegulatedMotor motor;
+    MotorTelemetry telemetry;
+    MotorModel model;
     boolean stalled;
     int stallCnt = 0;
     protected int stallLimit = 50;
@@ -150,13 +153,11 @@ public class JavaMotorRegulator implements MotorRegulator
      */
     protected synchronized void updateState(int velocity, boolean hold, boolean stalled)
     {
-        if (listener != null)
-        {
-            if (velocity == 0)
-                listener.rotationStopped(motor, getTachoCount(), stalled, System.currentTimeMillis());
-            else
-                listener.rotationStarted(motor, getTachoCount(), false, System.currentTimeMillis());
-        }
+        // Listeners are called from the event dispatcher thread, so that they
+        // can not hold up the regulation process.
+        RegulatedMotorListener l = listener;
+        if (l != null)
+            MotorEventDispatcher.getDispatcher().post(l, motor, velocity != 0, tachoCnt, velocity == 0 && stalled, now);
     }
     
     @Override
@@ -214,6 +215,43 @@ public class JavaMotorRegulator implements MotorRegulator
     }
 
 
+    @Override
+    public void setTelemetry(MotorTelemetry telemetry)
+    {
+        this.telemetry = telemetry;
+    }
+
+
+    @Override
+    public void setFeedForward(MotorModel model)
+    {
+        this.model = model;
+    }
+
+
+    /**
+     * Helper method, record the current regulator state into the telemetry
+     * buffer (if any).
+     */
+    void recordTelemetry()
+    {
+        MotorTelemetry t = telemetry;
+        if (t != null)
+        {
+            int st;
+            if (stalled)
+                st = MotorTelemetry.ST_STALL;
+            else if (moving)
+                st = (now - baseTime < accTime ? MotorTelemetry.ST_ACCEL : MotorTelemetry.ST_MOVE);
+            else if (curHold)
+                st = MotorTelemetry.ST_HOLD;
+            else
+                st = MotorTelemetry.ST_IDLE;
+            t.record(now, curCnt, tachoCnt, curVelocity, power, st);
+        }
+    }
+
+
     /**
      * Reset the tachometer readings
      */
@@ -439,7 +477,10 @@ public class JavaMotorRegulator implements MotorRegulator
             {
                 stallCnt /= 2;
             }
-            calcPower(error, MOVE_P, MOVE_I, MOVE_D, (float)delta/Controller.UPDATE_PERIOD);
+            // Use the model (if any) to predict the power needed for this part of the move
+            MotorModel m = model;
+            float ff = (m == null ? 0 : m.feedForward(curVelocity, (elapsed < accTime ? curAcc : 0)));
+            calcPower(error, MOVE_P, MOVE_I, MOVE_D, (float)delta/Controller.UPDATE_PERIOD, ff);
             // If we have a move limit, check for time to start the deceleration stage
             if (checkLimit)
             {
@@ -451,7 +492,7 @@ public class JavaMotorRegulator implements MotorRegulator
         {
             // not moving, hold position
             error = curCnt - tachoCnt;
-            calcPower(error, HOLD_P, HOLD_I, HOLD_D, (float)delta/Controller.UPDATE_PERIOD);
+            calcPower(error, HOLD_P, HOLD_I, HOLD_D, (float)delta/Controller.UPDATE_PERIOD, 0);
         }
         else
         {
@@ -467,10 +508,12 @@ public class JavaMotorRegulator implements MotorRegulator
     /**
      * helper method for velocity regulation.
      * calculates power from error using double smoothing and PID like
-     * control
+     * control. The feed-forward term is added to the output but is not
+     * included in the integral term.
      * @param error
+     * @param ff feed-forward power
      */
-    private void calcPower(float error, float P, float I, float D, float time)
+    private void calcPower(float error, float P, float I, float D, float time, float ff)
     {
         // use smoothing to reduce the noise in frequent tacho count readings
         // New values
@@ -485,6 +528,7 @@ public class JavaMotorRegulator implements MotorRegulator
             basePower = TachoMotorPort.MAX_POWER;
         else if (basePower < -TachoMotorPort.MAX_POWER)
             basePower = -TachoMotorPort.MAX_POWER;
+        newPower += ff;
         //newPower = (float) (power*0.75 + newPower*0.25);
         power = (newPower > TachoMotorPort.MAX_POWER ? TachoMotorPort.MAX_POWER : newPower < -TachoMotorPort.MAX_POWER ? -TachoMotorPort.MAX_POWER : Math.round(newPower));
 
@@ -504,6 +548,13 @@ public class JavaMotorRegulator implements MotorRegulator
     {
         static final int UPDATE_PERIOD = 4;
         JavaMotorRegulator [] activeMotors = new JavaMotorRegulator[0];
+        // If all of the active motors use ports of the same group we can read
+        // and write all of them using a single device operation.
+        TachoMotorPortGroup group = null;
+        TachoMotorPort [] groupPorts = null;
+        int [] groupCounts = new int[0];
+        int [] groupPower = new int[0];
+        int [] groupMode = new int[0];
         boolean running = false;
     
         /**
@@ -516,7 +567,7 @@ public class JavaMotorRegulator implements MotorRegulator
             System.arraycopy(activeMotors, 0, newMotors, 0, activeMotors.length);
             newMotors[activeMotors.length] = m;
             m.reset();
-            activeMotors = newMotors;
+            setActiveMotors(newMotors);
         }
     
         /**
@@ -531,7 +582,39 @@ public class JavaMotorRegulator implements MotorRegulator
             for(int i = 0; i < activeMotors.length; i++)
                 if (activeMotors[i] != m)
                     newMotors[j++] = activeMotors[i];
-            activeMotors = newMotors;
+            setActiveMotors(newMotors);
+        }
+
+        /**
+         * Helper method, set the new list of active motors and work out if
+         * they can be handled as a single group of ports.
+         * @param motors
+         */
+        private void setActiveMotors(JavaMotorRegulator [] motors)
+        {
+            TachoMotorPortGroup g = null;
+            TachoMotorPort [] ports = null;
+            if (motors.length > 0 && motors[0].tachoPort instanceof TachoMotorPortGroup)
+            {
+                g = (TachoMotorPortGroup)motors[0].tachoPort;
+                ports = new TachoMotorPort[motors.length];
+                for(int i = 0; i < motors.length; i++)
+                {
+                    if (!g.isGroupedWith(motors[i].tachoPort) || i >= g.getMaxGroupSize())
+                    {
+                        g = null;
+                        ports = null;
+                        break;
+                    }
+                    ports[i] = motors[i].tachoPort;
+                }
+            }
+            group = g;
+            groupPorts = ports;
+            groupCounts = new int[motors.length];
+            groupPower = new int[motors.length];
+            groupMode = new int[motors.length];
+            activeMotors = motors;
         }
         
         synchronized void shutdown()
@@ -540,7 +623,7 @@ public class JavaMotorRegulator implements MotorRegulator
             running = false;
             for(JavaMotorRegulator m : activeMotors)
                 m.tachoPort.controlMotor(0, TachoMotorPort.FLOAT);
-            activeMotors = new JavaMotorRegulator[0];
+            setActiveMotors(new JavaMotorRegulator[0]);
         }
     
     
@@ -551,22 +634,53 @@ public class JavaMotorRegulator implements MotorRegulator
             long now = System.currentTimeMillis();
             while(running)
             {
-                long delta;
-                synchronized (this)
-                {
-                    delta = System.currentTimeMillis() - now;
-                    JavaMotorRegulator [] motors = activeMotors;
-                    now += delta;
-                    for(JavaMotorRegulator m : motors)
-                        m.tachoCnt = m.tachoPort.getTachoCount() - m.zeroTachoCnt;
-                    for(JavaMotorRegulator m : motors)
-                        m.regulateMotor(delta);
-                    for(JavaMotorRegulator m : motors)
-                        m.tachoPort.controlMotor(m.power, m.mode);
-                }
+                long delta = System.currentTimeMillis() - now;
+                now += delta;
+                tick(delta);
                 Delay.msDelay(now + UPDATE_PERIOD - System.currentTimeMillis());
             }   // end keep going loop
         }
+
+        /**
+         * Run a single update of all of the active motors.
+         * @param delta the time in ms since the last update
+         */
+        synchronized void tick(long delta)
+        {
+            JavaMotorRegulator [] motors = activeMotors;
+            // regulateMotor may change the active set, so take local
+            // copies of the group state for use in this tick
+            TachoMotorPortGroup g = group;
+            TachoMotorPort [] ports = groupPorts;
+            int [] counts = groupCounts;
+            int [] power = groupPower;
+            int [] mode = groupMode;
+            if (g != null)
+            {
+                g.getTachoCounts(ports, counts);
+                for(int i = 0; i < motors.length; i++)
+                    motors[i].tachoCnt = counts[i] - motors[i].zeroTachoCnt;
+            }
+            else
+                for(JavaMotorRegulator m : motors)
+                    m.tachoCnt = m.tachoPort.getTachoCount() - m.zeroTachoCnt;
+            for(JavaMotorRegulator m : motors)
+                m.regulateMotor(delta);
+            if (g != null)
+            {
+                for(int i = 0; i < motors.length; i++)
+                {
+                    power[i] = motors[i].power;
+                    mode[i] = motors[i].mode;
+                }
+                g.controlMotors(ports, power, mode);
+            }
+            else
+                for(JavaMotorRegulator m : motors)
+                    m.tachoPort.controlMotor(m.power, m.mode);
+            for(JavaMotorRegulator m : motors)
+                m.recordTelemetry();
+        }
     }
 
 
@@ -0,0 +1,231 @@
+package lejos.hardware.motor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import lejos.robotics.RegulatedMotor;
+import lejos.robotics.RegulatedMotorListener;
+
+/**
+ * Delivers motor start and stop events to {@link RegulatedMotorListener}
+ * objects. Regulators post events into a bounded lock-free queue and a single
+ * dispatcher thread (shared by all regulators) calls the listeners. This
+ * means that a slow listener can not hold up the motor regulation. Events are
+ * delivered in the order they were posted, so the events for any one motor
+ * are always ordered. The time stamp passed to the listener is the time of the
+ * control tick that generated the event, not the time of delivery.
+ * <p>
+ * If the queue is full new events are dropped and counted, see
+ * {@link #getDroppedCount()}.
+ */
+public class MotorEventDispatcher extends Thread
+{
+    static final int QUEUE_SIZE = 256;
+    static final int MASK = QUEUE_SIZE - 1;
+
+    private static MotorEventDispatcher dispatcher;
+
+    // Queue slots, each slot is claimed by a producer using the tail counter,
+    // the sequence array is used to publish the slot to the consumer
+    private final AtomicLongArray sequence = new AtomicLongArray(QUEUE_SIZE);
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+    private final RegulatedMotorListener[] listeners = new RegulatedMotorListener[QUEUE_SIZE];
+    private final RegulatedMotor[] motors = new RegulatedMotor[QUEUE_SIZE];
+    private final boolean[] started = new boolean[QUEUE_SIZE];
+    private final boolean[] stalled = new boolean[QUEUE_SIZE];
+    private final int[] tachoCounts = new int[QUEUE_SIZE];
+    private final long[] timeStamps = new long[QUEUE_SIZE];
+    private final long[] postTimes = new long[QUEUE_SIZE];
+
+    // metrics
+    private final AtomicInteger dropped = new AtomicInteger(0);
+    private volatile int maxDepth = 0;
+    private volatile long delivered = 0;
+    private volatile long totalLatency = 0;
+    private volatile long maxLatency = 0;
+
+    private MotorEventDispatcher()
+    {
+        for(int i = 0; i < QUEUE_SIZE; i++)
+            sequence.set(i, i);
+        setDaemon(true);
+        setPriority(Thread.NORM_PRIORITY + 1);
+    }
+
+    /**
+     * Return the dispatcher shared by all of the regulators, the dispatcher
+     * thread is started the first time this method is called.
+     * @return the dispatcher
+     */
+    public static synchronized MotorEventDispatcher getDispatcher()
+    {
+        if (dispatcher == null)
+        {
+            dispatcher = new MotorEventDispatcher();
+            dispatcher.start();
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Post a motor event. This method does not block.
+     * @param listener the listener to call
+     * @param motor the motor generating the event
+     * @param start true for rotationStarted, false for rotationStopped
+     * @param tachoCount the tacho count at the time of the event
+     * @param stall true if the motor has stalled
+     * @param timeStamp time of the event
+     * @return false if the queue was full and the event has been dropped
+     */
+    public boolean post(RegulatedMotorListener listener, RegulatedMotor motor, boolean start, int tachoCount, boolean stall, long timeStamp)
+    {
+        long pos;
+        int idx;
+        for(;;)
+        {
+            pos = tail.get();
+            idx = (int)(pos & MASK);
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0)
+            {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            }
+            else if (dif < 0)
+            {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        listeners[idx] = listener;
+        motors[idx] = motor;
+        started[idx] = start;
+        tachoCounts[idx] = tachoCount;
+        stalled[idx] = stall;
+        timeStamps[idx] = timeStamp;
+        postTimes[idx] = System.nanoTime();
+        sequence.set(idx, pos + 1);
+        int depth = (int)(pos + 1 - head);
+        if (depth > maxDepth)
+            maxDepth = depth;
+        LockSupport.unpark(this);
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        for(;;)
+        {
+            long pos = head;
+            int idx = (int)(pos & MASK);
+            if (sequence.get(idx) != pos + 1)
+            {
+                LockSupport.park(this);
+                continue;
+            }
+            RegulatedMotorListener listener = listeners[idx];
+            RegulatedMotor motor = motors[idx];
+            boolean start = started[idx];
+            int tachoCount = tachoCounts[idx];
+            boolean stall = stalled[idx];
+            long timeStamp = timeStamps[idx];
+            long postTime = postTimes[idx];
+            listeners[idx] = null;
+            motors[idx] = null;
+            // release the slot
+            sequence.set(idx, pos + QUEUE_SIZE);
+            head = pos + 1;
+            try
+            {
+                if (start)
+                    listener.rotationStarted(motor, tachoCount, stall, timeStamp);
+                else
+                    listener.rotationStopped(motor, tachoCount, stall, timeStamp);
+            }
+            catch (Throwable t)
+            {
+                // Don't let a faulty listener stop other events being delivered
+                t.printStackTrace();
+            }
+            long latency = System.nanoTime() - postTime;
+            totalLatency += latency;
+            if (latency > maxLatency)
+                maxLatency = latency;
+            delivered++;
+        }
+    }
+
+    /**
+     * Return the number of events currently waiting to be delivered.
+     * @return queue depth
+     */
+    public int getQueueDepth()
+    {
+        return (int)(tail.get() - head);
+    }
+
+    /**
+     * Return the largest number of events that have been waiting at any time.
+     * @return maximum queue depth
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Return the number of events that have been dropped because the queue
+     * was full.
+     * @return dropped events
+     */
+    public int getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Return the number of events delivered.
+     * @return delivered events
+     */
+    public long getDeliveredCount()
+    {
+        return delivered;
+    }
+
+    /**
+     * Return the average time between an event being posted and the listener
+     * returning.
+     * @return average latency in ns
+     */
+    public long getAverageLatency()
+    {
+        long cnt = delivered;
+        return (cnt == 0 ? 0 : totalLatency/cnt);
+    }
+
+    /**
+     * Return the largest time between an event being posted and the listener
+     * returning.
+     * @return maximum latency in ns
+     */
+    public long getMaxLatency()
+    {
+        return maxLatency;
+    }
+
+    /**
+     * Reset the queue depth and latency statistics.
+     */
+    public void resetStatistics()
+    {
+        maxDepth = 0;
+        delivered = 0;
+        totalLatency = 0;
+        maxLatency = 0;
+        dropped.set(0);
+    }
+}
@@ -0,0 +1,169 @@
+package lejos.hardware.motor;
+
+import lejos.hardware.port.BasicMotorPort;
+import lejos.hardware.port.TachoMotorPort;
+import lejos.utility.Delay;
+
+/**
+ * Simple model of a DC motor used to generate a feed-forward term for the
+ * motor regulator. The power required to run the motor at velocity v with
+ * acceleration a is modelled as:
+ * <code><pre>
+ *   power = staticFriction*sign(v) + backEMF*v + inertia*a
+ * </pre></code>
+ * All of the constants are in the same units as the power values passed to
+ * {@link BasicMotorPort#controlMotor(int, int)}, per degree/s and per degree/s/s
+ * respectively. Adding this term to the output of the PID controller means
+ * that the feedback part only has to correct for the error in the model,
+ * which allows faster moves for the same tracking error.<br>
+ * The model for a particular motor (and load) can be identified using
+ * {@link #identify(TachoMotorPort)}.
+ */
+public class MotorModel
+{
+    // Calibration settings
+    static final int STEP_TIME = 50;
+    static final int SETTLE_TIME = 500;
+    static final int MEASURE_TIME = 500;
+    static final int SAMPLE_TIME = 10;
+    static final int[] TEST_POWER = {40, 60, 80};
+
+    protected final float staticFriction;
+    protected final float backEMF;
+    protected final float inertia;
+
+    /**
+     * Create a new motor model.
+     * @param staticFriction power needed to overcome static friction
+     * @param backEMF power needed per degree/s of velocity
+     * @param inertia power needed per degree/s/s of acceleration
+     */
+    public MotorModel(float staticFriction, float backEMF, float inertia)
+    {
+        this.staticFriction = staticFriction;
+        this.backEMF = backEMF;
+        this.inertia = inertia;
+    }
+
+    /**
+     * Return the power needed to overcome static friction
+     * @return static friction term
+     */
+    public float getStaticFriction()
+    {
+        return staticFriction;
+    }
+
+    /**
+     * Return the power needed per degree/s of velocity
+     * @return back EMF term
+     */
+    public float getBackEMF()
+    {
+        return backEMF;
+    }
+
+    /**
+     * Return the power needed per degree/s/s of acceleration
+     * @return inertia term
+     */
+    public float getInertia()
+    {
+        return inertia;
+    }
+
+    /**
+     * Calculate the feed-forward power for the requested velocity and
+     * acceleration.
+     * @param velocity target velocity in degrees/s
+     * @param acceleration target acceleration in degrees/s/s
+     * @return the power predicted by the model
+     */
+    public float feedForward(float velocity, float acceleration)
+    {
+        float power = backEMF*velocity + inertia*acceleration;
+        if (velocity > 0)
+            power += staticFriction;
+        else if (velocity < 0)
+            power -= staticFriction;
+        return power;
+    }
+
+    /**
+     * Helper method, return the count after the given delay
+     */
+    private static int countAfter(TachoMotorPort port, int delay)
+    {
+        Delay.msDelay(delay);
+        return port.getTachoCount();
+    }
+
+    /**
+     * Identify the model parameters of the motor attached to the port. The
+     * motor must be free to turn in the forward direction for a few seconds.
+     * It must not be under regulation while this method runs (see
+     * {@link BaseRegulatedMotor#suspendRegulation()}). The motor is left
+     * floating when the method returns.
+     * <ul>
+     * <li>Static friction is the lowest power at which the motor starts to turn.</li>
+     * <li>Back EMF is obtained from a least squares fit of the steady state
+     * velocity at several power levels.</li>
+     * <li>Inertia is obtained from the time constant of the step response.</li>
+     * </ul>
+     * @param port the port the motor is attached to
+     * @return the identified model
+     */
+    public static MotorModel identify(TachoMotorPort port)
+    {
+        try
+        {
+            // Find the break away power
+            int staticFriction = BasicMotorPort.MAX_POWER;
+            for(int p = 0; p < BasicMotorPort.MAX_POWER; p++)
+            {
+                int start = port.getTachoCount();
+                port.controlMotor(p, BasicMotorPort.FORWARD);
+                if (countAfter(port, STEP_TIME) - start > 2)
+                {
+                    staticFriction = p;
+                    break;
+                }
+            }
+            port.controlMotor(0, BasicMotorPort.STOP);
+            Delay.msDelay(SETTLE_TIME);
+            // measure the steady state velocity at various power levels
+            float sxy = 0;
+            float sxx = 0;
+            float lastVelocity = 0;
+            for(int p : TEST_POWER)
+            {
+                port.controlMotor(p, BasicMotorPort.FORWARD);
+                int start = countAfter(port, SETTLE_TIME);
+                lastVelocity = (countAfter(port, MEASURE_TIME) - start)*1000f/MEASURE_TIME;
+                sxy += (p - staticFriction)*lastVelocity;
+                sxx += lastVelocity*lastVelocity;
+            }
+            float backEMF = (sxx > 0 ? sxy/sxx : 0);
+            // Now measure the step response time to reach 63% of the final velocity
+            port.controlMotor(0, BasicMotorPort.STOP);
+            Delay.msDelay(SETTLE_TIME);
+            float target = 0.63f*lastVelocity;
+            long start = System.currentTimeMillis();
+            int prev = port.getTachoCount();
+            port.controlMotor(TEST_POWER[TEST_POWER.length-1], BasicMotorPort.FORWARD);
+            long tau = 0;
+            while ((tau = System.currentTimeMillis() - start) < SETTLE_TIME)
+            {
+                int cur = countAfter(port, SAMPLE_TIME);
+                if ((cur - prev)*1000f/SAMPLE_TIME >= target)
+                    break;
+                prev = cur;
+            }
+            return new MotorModel(staticFriction, backEMF, backEMF*tau/1000f);
+        }
+        finally
+        {
+            port.controlMotor(0, BasicMotorPort.FLOAT);
+        }
+    }
+}
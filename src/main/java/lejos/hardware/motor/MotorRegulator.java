@@ -142,6 +142,21 @@ public interface MotorRegulator
      */
     public void synchronizeWith(MotorRegulator[] rl);
 
+    /**
+     * Record the state of the regulator into the supplied telemetry buffer.
+     * Set to null to stop recording.
+     * @param telemetry the buffer to record into, or null
+     */
+    public void setTelemetry(MotorTelemetry telemetry);
+
+    /**
+     * Set the motor model used to generate a feed-forward term that is added
+     * to the output of the feedback controller. Set to null to use feedback
+     * control only.
+     * @param model the motor model, or null
+     */
+    public void setFeedForward(MotorModel model);
+
 
 }
 
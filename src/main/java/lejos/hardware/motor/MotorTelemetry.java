@@ -0,0 +1,209 @@
+package lejos.hardware.motor;
+
+import java.io.PrintStream;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Records the internal state of a motor regulator on every control tick.
+ * The samples are held in a preallocated ring buffer of primitive arrays so
+ * that recording a tick does not create any garbage. Each entry holds the
+ * time stamp, the target position generated by the regulator's movement model,
+ * the actual tacho count, the current velocity, the power applied to the motor
+ * and the regulator state. Regulators that run inside the kernel module do
+ * not report the power, it is recorded as 0.<br>
+ * The most recent entry can be read using the normal {@link SampleProvider}
+ * interface, the complete buffer can be dumped for offline analysis (for
+ * instance when tuning the PID parameters passed to
+ * {@link MotorRegulator#setControlParamaters}).
+ * <p>
+ * Example:<p>
+ * <code><pre>
+ *   MotorTelemetry t = new MotorTelemetry(1000, 1);
+ *   motor.setTelemetry(t);
+ *   motor.rotate(720);
+ *   motor.setTelemetry(null);
+ *   t.dump(System.out);
+ * </pre></code>
+ *
+ */
+public class MotorTelemetry implements SampleProvider
+{
+    // Regulator states, these match the states used by the kernel module
+    public static final int ST_IDLE = 0;
+    public static final int ST_STALL = 1;
+    public static final int ST_HOLD = 2;
+    public static final int ST_START = 3;
+    public static final int ST_ACCEL = 4;
+    public static final int ST_MOVE = 5;
+    public static final int ST_DECEL = 6;
+
+    /** Number of elements in a sample: time, target, position, velocity, power, state */
+    public static final int SAMPLE_SIZE = 6;
+
+    protected final int capacity;
+    protected final int decimation;
+    protected final long[] time;
+    protected final float[] target;
+    protected final int[] position;
+    protected final float[] velocity;
+    protected final int[] power;
+    protected final int[] state;
+    protected int head = 0;
+    protected int count = 0;
+    protected int skip = 0;
+    protected long baseTime;
+
+    /**
+     * Create a new telemetry buffer.
+     * @param capacity the number of entries held in the buffer. Once full the
+     * oldest entries are overwritten.
+     * @param decimation only record every n'th control tick, use 1 to record
+     * every tick.
+     */
+    public MotorTelemetry(int capacity, int decimation)
+    {
+        if (capacity < 1 || decimation < 1)
+            throw new IllegalArgumentException("Invalid capacity or decimation");
+        this.capacity = capacity;
+        this.decimation = decimation;
+        time = new long[capacity];
+        target = new float[capacity];
+        position = new int[capacity];
+        velocity = new float[capacity];
+        power = new int[capacity];
+        state = new int[capacity];
+        clear();
+    }
+
+    /**
+     * Record the state of the regulator for a single control tick. This
+     * method is called by the regulator.
+     * @param now time stamp in ms
+     * @param targetPos position generated by the movement model
+     * @param actualPos current tacho count
+     * @param vel current velocity in degrees/second
+     * @param pwr power applied to the motor
+     * @param st regulator state
+     */
+    public synchronized void record(long now, float targetPos, int actualPos, float vel, int pwr, int st)
+    {
+        if (++skip < decimation)
+            return;
+        skip = 0;
+        time[head] = now;
+        target[head] = targetPos;
+        position[head] = actualPos;
+        velocity[head] = vel;
+        power[head] = pwr;
+        state[head] = st;
+        if (++head >= capacity)
+            head = 0;
+        if (count < capacity)
+            count++;
+    }
+
+    /**
+     * Discard all of the recorded entries. Time stamps reported after this
+     * call are relative to the time of the call.
+     */
+    public synchronized void clear()
+    {
+        head = 0;
+        count = 0;
+        skip = 0;
+        baseTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Return the number of entries currently held in the buffer.
+     * @return number of entries
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Return the maximum number of entries that can be held in the buffer.
+     * @return the buffer capacity
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Helper method, copy entry i (0 is the oldest) into the sample array.
+     */
+    private void copyEntry(int i, float[] sample, int offset)
+    {
+        int idx = head - count + i;
+        if (idx < 0)
+            idx += capacity;
+        sample[offset] = time[idx] - baseTime;
+        sample[offset + 1] = target[idx];
+        sample[offset + 2] = position[idx];
+        sample[offset + 3] = velocity[idx];
+        sample[offset + 4] = power[idx];
+        sample[offset + 5] = state[idx];
+    }
+
+    /**
+     * Copy the recorded entries, oldest first, into the supplied array. Each
+     * entry uses {@link #SAMPLE_SIZE} elements in the same order as
+     * {@link #fetchSample}. The buffer is not cleared.
+     * @param data array to hold the entries
+     * @param offset offset of the first entry in the array
+     * @return the number of entries copied
+     */
+    public synchronized int dump(float[] data, int offset)
+    {
+        int n = Math.min(count, (data.length - offset) / SAMPLE_SIZE);
+        for (int i = 0; i < n; i++)
+            copyEntry(i, data, offset + i*SAMPLE_SIZE);
+        return n;
+    }
+
+    /**
+     * Write the recorded entries, oldest first, as comma separated values.
+     * @param out stream to write to
+     */
+    public synchronized void dump(PrintStream out)
+    {
+        float[] sample = new float[SAMPLE_SIZE];
+        out.println("time,target,position,velocity,power,state");
+        for (int i = 0; i < count; i++)
+        {
+            copyEntry(i, sample, 0);
+            out.println((long)sample[0] + "," + sample[1] + "," + (int)sample[2] + "," + sample[3] + "," + (int)sample[4] + "," + (int)sample[5]);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int sampleSize()
+    {
+        return SAMPLE_SIZE;
+    }
+
+    /**
+     * Fetch the most recent entry. The elements are the time (ms since the
+     * buffer was cleared), target position, actual position, velocity, power
+     * and regulator state. If nothing has been recorded yet all elements are
+     * set to NaN.
+     */
+    @Override
+    public synchronized void fetchSample(float[] sample, int offset)
+    {
+        if (count == 0)
+        {
+            for (int i = 0; i < SAMPLE_SIZE; i++)
+                sample[offset + i] = Float.NaN;
+            return;
+        }
+        copyEntry(count - 1, sample, offset);
+    }
+}
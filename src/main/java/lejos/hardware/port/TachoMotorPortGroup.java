@@ -0,0 +1,40 @@
+package lejos.hardware.port;
+
+/**
+ * A tacho motor port that can be read and controlled together with other
+ * ports of the same kind in a single operation. This allows a regulator that
+ * drives several motors to gather all of the tachometer counts, and to set
+ * all of the power levels, with one device access per update.
+ */
+public interface TachoMotorPortGroup extends TachoMotorPort {
+    /**
+     * Return the largest number of ports that can be handled by a single
+     * group operation.
+     * @return the maximum group size
+     */
+    public int getMaxGroupSize();
+
+    /**
+     * Check if a port can be used in the same group operations as this one.
+     * @param port the port to check
+     * @return true if the port can be grouped with this port
+     */
+    public boolean isGroupedWith(TachoMotorPort port);
+
+    /**
+     * Read the tachometer counts of a group of ports. All of the ports must
+     * be grouped with this one.
+     * @param ports the ports to read
+     * @param counts array to hold the counts, counts[i] is the count for ports[i]
+     */
+    public void getTachoCounts(TachoMotorPort[] ports, int[] counts);
+
+    /**
+     * Control a group of motors. All of the ports must be grouped with this
+     * one.
+     * @param ports the ports to control
+     * @param power power setting for each port, from 0-100
+     * @param mode mode for each port as defined in <code>BasicMotorPort</code>
+     */
+    public void controlMotors(TachoMotorPort[] ports, int[] power, int[] mode);
+}
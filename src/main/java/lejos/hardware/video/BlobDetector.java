@@ -0,0 +1,288 @@
+package lejos.hardware.video;
+
+/**
+ * Finds the connected groups of set pixels (blobs) in a binary image, such as
+ * one produced by {@link YUYVUtils#colorMask} or {@link YUYVUtils#threshold}.
+ * Pixels are connected if they touch horizontally, vertically or diagonally.
+ * <br>
+ * The image is scanned one row at a time and split into runs of set pixels,
+ * runs that touch a run on the previous row are joined into the same blob.
+ * All working storage is allocated when the detector is created, so it can
+ * be used for every frame without creating garbage. The blobs found are held
+ * by the detector, largest first, until the next call to {@link #detect}.
+ */
+public class BlobDetector
+{
+    private final int width;
+    private final int height;
+    private final int maxBlobs;
+    private int minArea = 1;
+
+    // runs of set pixels, inclusive x range and row
+    private final int[] runStart;
+    private final int[] runEnd;
+    private final int[] runRow;
+    // union find forest of runs, the root of each blob is its first run
+    private final int[] parent;
+    // per label statistics
+    private final int[] lArea;
+    private final int[] lMinX;
+    private final int[] lMinY;
+    private final int[] lMaxX;
+    private final int[] lMaxY;
+    private final long[] lSumX;
+    private final long[] lSumY;
+
+    // the blobs found, largest first
+    private int count;
+    private final int[] area;
+    private final int[] minX;
+    private final int[] minY;
+    private final int[] maxX;
+    private final int[] maxY;
+    private final float[] centerX;
+    private final float[] centerY;
+
+    /**
+     * Create a detector for images of the given size.
+     * @param width image width
+     * @param height image height
+     * @param maxBlobs the maximum number of blobs to report, at least 1
+     */
+    public BlobDetector(int width, int height, int maxBlobs)
+    {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        if (maxBlobs <= 0)
+            throw new IllegalArgumentException("Invalid maximum blob count " + maxBlobs);
+        this.width = width;
+        this.height = height;
+        this.maxBlobs = maxBlobs;
+        int maxRuns = ((width + 1)/2)*height;
+        runStart = new int[maxRuns];
+        runEnd = new int[maxRuns];
+        runRow = new int[maxRuns];
+        parent = new int[maxRuns];
+        lArea = new int[maxRuns];
+        lMinX = new int[maxRuns];
+        lMinY = new int[maxRuns];
+        lMaxX = new int[maxRuns];
+        lMaxY = new int[maxRuns];
+        lSumX = new long[maxRuns];
+        lSumY = new long[maxRuns];
+        area = new int[maxBlobs];
+        minX = new int[maxBlobs];
+        minY = new int[maxBlobs];
+        maxX = new int[maxBlobs];
+        maxY = new int[maxBlobs];
+        centerX = new float[maxBlobs];
+        centerY = new float[maxBlobs];
+    }
+
+    /**
+     * Set the smallest blob that will be reported, smaller blobs are ignored.
+     * @param minArea the minimum area in pixels
+     */
+    public void setMinArea(int minArea)
+    {
+        this.minArea = minArea;
+    }
+
+    private int find(int l)
+    {
+        while (parent[l] != l)
+        {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return l;
+    }
+
+    private void union(int a, int b)
+    {
+        a = find(a);
+        b = find(b);
+        if (a < b)
+            parent[b] = a;
+        else if (b < a)
+            parent[a] = b;
+    }
+
+    /**
+     * Find the blobs in a binary image.
+     * @param packed the image, rows of (width + 7)/8 bytes with the least
+     * significant bit of each byte being the left most pixel
+     * @return the number of blobs found, at most the maximum given when the
+     * detector was created
+     */
+    public int detect(byte[] packed)
+    {
+        int rowBytes = (width + 7)/8;
+        int runs = 0;
+        int prevFirst = 0;
+        int prevEnd = 0;
+        for (int y = 0; y < height; y++)
+        {
+            int first = runs;
+            int p = prevFirst;
+            int base = y*rowBytes;
+            int x = 0;
+            while (x < width)
+            {
+                // skip clear pixels a byte at a time where possible
+                int b = packed[base + (x >> 3)] >> (x & 7);
+                if (b == 0 || (b & 0xff >> (x & 7)) == 0)
+                {
+                    x = (x | 7) + 1;
+                    continue;
+                }
+                if ((b & 1) == 0)
+                {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && (packed[base + (x >> 3)] & (1 << (x & 7))) != 0)
+                    x++;
+                int end = x - 1;
+                runStart[runs] = start;
+                runEnd[runs] = end;
+                runRow[runs] = y;
+                parent[runs] = runs;
+                // join with touching runs on the previous row
+                while (p < prevEnd && runEnd[p] < start - 1)
+                    p++;
+                for (int q = p; q < prevEnd && runStart[q] <= end + 1; q++)
+                    union(runs, q);
+                runs++;
+            }
+            prevFirst = first;
+            prevEnd = runs;
+        }
+        // gather the statistics of each blob at its root label
+        for (int r = 0; r < runs; r++)
+        {
+            int root = find(r);
+            int len = runEnd[r] - runStart[r] + 1;
+            int y = runRow[r];
+            if (root == r)
+            {
+                // the root is the first run of the blob so has the lowest row
+                lArea[r] = len;
+                lMinX[r] = runStart[r];
+                lMinY[r] = y;
+                lMaxX[r] = runEnd[r];
+                lMaxY[r] = y;
+                lSumX[r] = (long)(runStart[r] + runEnd[r])*len/2;
+                lSumY[r] = (long)y*len;
+            }
+            else
+            {
+                // the root is always an earlier run so has been initialised
+                lArea[root] += len;
+                if (runStart[r] < lMinX[root])
+                    lMinX[root] = runStart[r];
+                if (runEnd[r] > lMaxX[root])
+                    lMaxX[root] = runEnd[r];
+                if (y > lMaxY[root])
+                    lMaxY[root] = y;
+                lSumX[root] += (long)(runStart[r] + runEnd[r])*len/2;
+                lSumY[root] += (long)y*len;
+            }
+        }
+        // keep the largest blobs, in order of size
+        count = 0;
+        for (int r = 0; r < runs; r++)
+        {
+            if (parent[r] != r || lArea[r] < minArea)
+                continue;
+            int a = lArea[r];
+            if (count == maxBlobs && a <= area[count - 1])
+                continue;
+            int i = (count < maxBlobs ? count++ : count - 1);
+            while (i > 0 && area[i - 1] < a)
+            {
+                copy(i - 1, i);
+                i--;
+            }
+            area[i] = a;
+            minX[i] = lMinX[r];
+            minY[i] = lMinY[r];
+            maxX[i] = lMaxX[r];
+            maxY[i] = lMaxY[r];
+            centerX[i] = (float)lSumX[r]/a;
+            centerY[i] = (float)lSumY[r]/a;
+        }
+        return count;
+    }
+
+    private void copy(int from, int to)
+    {
+        area[to] = area[from];
+        minX[to] = minX[from];
+        minY[to] = minY[from];
+        maxX[to] = maxX[from];
+        maxY[to] = maxY[from];
+        centerX[to] = centerX[from];
+        centerY[to] = centerY[from];
+    }
+
+    /**
+     * Return the number of blobs found by the last call to detect.
+     * @return the blob count
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Return the area of a blob.
+     * @param i the blob index, 0 is the largest
+     * @return the area in pixels
+     */
+    public int getArea(int i)
+    {
+        return area[i];
+    }
+
+    public int getMinX(int i)
+    {
+        return minX[i];
+    }
+
+    public int getMinY(int i)
+    {
+        return minY[i];
+    }
+
+    public int getMaxX(int i)
+    {
+        return maxX[i];
+    }
+
+    public int getMaxY(int i)
+    {
+        return maxY[i];
+    }
+
+    /**
+     * Return the x coordinate of the center of mass of a blob.
+     * @param i the blob index, 0 is the largest
+     * @return the x coordinate
+     */
+    public float getCenterX(int i)
+    {
+        return centerX[i];
+    }
+
+    /**
+     * Return the y coordinate of the center of mass of a blob.
+     * @param i the blob index, 0 is the largest
+     * @return the y coordinate
+     */
+    public float getCenterY(int i)
+    {
+        return centerY[i];
+    }
+}
@@ -43,6 +43,54 @@ public interface Video {
      * @throws java.io.IOException
      */
     public void close() throws java.io.IOException;
+
+    /**
+     * Start capturing frames continuously into a ring of buffers shared with
+     * the device driver. Frames are obtained with {@link #dequeueFrame()} and
+     * must be returned with {@link #requeueFrame(VideoFrame)} once they have
+     * been processed. While streaming, {@link #grabFrame(byte[])} copies the
+     * next frame from the ring.
+     * @param bufferCount the number of buffers to request
+     * @throws java.io.IOException
+     */
+    public void startStreaming(int bufferCount) throws java.io.IOException;
+
+    /**
+     * Stop capturing frames and release the buffer ring. Frames obtained from
+     * the ring must not be used after this call.
+     * @throws java.io.IOException
+     */
+    public void stopStreaming() throws java.io.IOException;
+
+    /**
+     * Return true if frames are being captured into the buffer ring.
+     * @return true if streaming
+     */
+    public boolean isStreaming();
+
+    /**
+     * Wait for the next captured frame and return it. The frame data is not
+     * copied, the buffer holding it is not reused by the driver until the
+     * frame is requeued.
+     * @return the frame
+     * @throws java.io.IOException
+     */
+    public VideoFrame dequeueFrame() throws java.io.IOException;
+
+    /**
+     * Return a frame to the driver so its buffer can be used to capture
+     * another frame.
+     * @param frame the frame returned by {@link #dequeueFrame()}
+     * @throws java.io.IOException
+     */
+    public void requeueFrame(VideoFrame frame) throws java.io.IOException;
+
+    /**
+     * Return the number of frames dropped by the driver since streaming
+     * started, because no buffer was free to capture them.
+     * @return the dropped frame count
+     */
+    public long getDroppedFrames();
       
   
 
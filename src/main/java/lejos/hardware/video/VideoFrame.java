@@ -0,0 +1,80 @@
+package lejos.hardware.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame captured by a {@link Video} device in streaming mode. The pixel
+ * data is held in a buffer shared with the device driver, so it is only
+ * valid until the frame is returned using {@link Video#requeueFrame(VideoFrame)}.
+ */
+public class VideoFrame
+{
+    private final int index;
+    private final ByteBuffer data;
+    private final long timeStamp;
+    private final int sequence;
+
+    /**
+     * Create a frame.
+     * @param index the index of the driver buffer holding the frame
+     * @param data the frame data, the limit is the number of bytes captured
+     * @param timeStamp the capture time in microseconds
+     * @param sequence the frame sequence number
+     */
+    public VideoFrame(int index, ByteBuffer data, long timeStamp, int sequence)
+    {
+        this.index = index;
+        this.data = data;
+        this.timeStamp = timeStamp;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Return the index of the driver buffer that holds the frame.
+     * @return the buffer index
+     */
+    public int getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Return the frame data. The buffer is a direct buffer mapped onto the
+     * driver memory, its limit is the number of bytes captured.
+     * @return the frame data
+     */
+    public ByteBuffer getData()
+    {
+        return data;
+    }
+
+    /**
+     * Return the number of bytes captured.
+     * @return the frame length in bytes
+     */
+    public int getLength()
+    {
+        return data.limit();
+    }
+
+    /**
+     * Return the time at which the frame was captured, as reported by the
+     * driver.
+     * @return the time stamp in microseconds
+     */
+    public long getTimeStamp()
+    {
+        return timeStamp;
+    }
+
+    /**
+     * Return the sequence number of the frame. The sequence number counts
+     * every frame captured by the device, including those that have been
+     * dropped.
+     * @return the sequence number
+     */
+    public int getSequence()
+    {
+        return sequence;
+    }
+}
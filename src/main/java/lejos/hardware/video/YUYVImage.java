@@ -2,6 +2,7 @@ package lejos.hardware.video;
 
    
 
+import lejos.hardware.lcd.CommonLCD;
 import lejos.hardware.lcd.GraphicsLCD;
 
 
@@ -13,6 +14,7 @@ import lejos.hardware.lcd.GraphicsLCD;
  public class YUYVImage {  
      private byte[] pix;  
      private int width, height;  
+     private byte[] packed;
 
      /**
       * Create a YUYV image of the requested size using the byte array as the source of pixel information
@@ -97,11 +99,7 @@ import lejos.hardware.lcd.GraphicsLCD;
       * @return mean Y value
       */
      public int getMeanY() {  
-         int total = 0;  
-         for (int i = 0; i < pix.length; i += 2) {  
-             total += (int)pix[i] & 0xff;  
-         }  
-         return total / getNumPixels();  
+         return YUYVUtils.meanY(pix, width, height);
      }  
 
      /**
@@ -110,11 +108,10 @@ import lejos.hardware.lcd.GraphicsLCD;
       * @param threshold
       */
      public void display(GraphicsLCD device, int xDest, int yDest, int threshold) {  
-         for (int i = 0; i < pix.length; i += 2) {  
-             int x = (i / 2) % width;  
-             int y = (i / 2) / width;  
-             device.setPixel(xDest+x, yDest+y, ((int)pix[i] & 0xff) < threshold ? 1 : 0);  
-         }  
+         if (packed == null)
+             packed = new byte[YUYVUtils.packedSize(width, height)];
+         YUYVUtils.threshold(pix, width, height, threshold, packed);
+         device.bitBlt(packed, width, height, 0, 0, xDest, yDest, width, height, CommonLCD.ROP_COPY);
      }  
  }  
    
\ No newline at end of file
@@ -0,0 +1,428 @@
+package lejos.hardware.video;
+
+/**
+ * Image processing kernels that work directly on raw YUYV frames, as
+ * returned by {@link Video#grabFrame(byte[])}. In a YUYV frame each pair of
+ * pixels is held in four bytes Y0 U Y1 V, the two pixels share the U and V
+ * values.<br>
+ * None of the methods allocate memory, the caller provides the arrays that
+ * hold the results so they can be reused for every frame. Binary images are
+ * produced in the format used by the LCD and {@link lejos.hardware.lcd.Image},
+ * rows of (width + 7)/8 bytes with the least significant bit of each byte
+ * being the left most pixel, so they can be drawn using bitBlt.
+ */
+public class YUYVUtils
+{
+    private YUYVUtils()
+    {
+    }
+
+    /**
+     * Return the number of bytes needed to hold a binary image.
+     * @param width image width
+     * @param height image height
+     * @return size of the image in bytes
+     */
+    public static int packedSize(int width, int height)
+    {
+        return ((width + 7)/8)*height;
+    }
+
+    /**
+     * Extract the luma (Y) values of a frame.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param luma array of at least width*height bytes to hold the result
+     */
+    public static void extractY(byte[] yuyv, int width, int height, byte[] luma)
+    {
+        int n = width*height;
+        for (int i = 0, j = 0; i < n; i++, j += 2)
+            luma[i] = yuyv[j];
+    }
+
+    /**
+     * Downscale the luma of a frame by averaging square blocks of pixels.
+     * Pixels beyond the last whole block are ignored.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param factor the size of the blocks
+     * @param luma array of at least (width/factor)*(height/factor) bytes to
+     * hold the result
+     */
+    public static void downscaleY(byte[] yuyv, int width, int height, int factor, byte[] luma)
+    {
+        int ow = width/factor;
+        int oh = height/factor;
+        int area = factor*factor;
+        int rowBytes = width*2;
+        int out = 0;
+        for (int oy = 0; oy < oh; oy++)
+        {
+            int rowBase = oy*factor*rowBytes;
+            for (int ox = 0; ox < ow; ox++)
+            {
+                int sum = 0;
+                int base = rowBase + ox*factor*2;
+                for (int y = 0; y < factor; y++, base += rowBytes)
+                    for (int x = 0; x < factor*2; x += 2)
+                        sum += yuyv[base + x] & 0xff;
+                luma[out++] = (byte)(sum/area);
+            }
+        }
+    }
+
+    /**
+     * Downscale a frame by averaging square blocks of pixels, producing a
+     * YUYV frame. The width of the result must be even.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param factor the size of the blocks
+     * @param out array of at least (width/factor)*(height/factor)*2 bytes to
+     * hold the result
+     */
+    public static void downscale(byte[] yuyv, int width, int height, int factor, byte[] out)
+    {
+        int ow = width/factor;
+        int oh = height/factor;
+        if ((ow & 1) != 0)
+            throw new IllegalArgumentException("Result width must be even");
+        int area = factor*factor;
+        int rowBytes = width*2;
+        int o = 0;
+        for (int oy = 0; oy < oh; oy++)
+        {
+            int rowBase = oy*factor*rowBytes;
+            for (int ox = 0; ox < ow; ox += 2)
+            {
+                // each pair of output pixels covers 2*factor input pixels
+                int y0 = 0, y1 = 0, u = 0, v = 0;
+                int base = rowBase + ox*factor*2;
+                // with an odd factor one input pair straddles the two blocks
+                int mid = (factor & ~1)*2;
+                for (int y = 0; y < factor; y++, base += rowBytes)
+                {
+                    for (int x = 0; x < mid; x += 4)
+                    {
+                        y0 += (yuyv[base + x] & 0xff) + (yuyv[base + x + 2] & 0xff);
+                        u += yuyv[base + x + 1] & 0xff;
+                        v += yuyv[base + x + 3] & 0xff;
+                    }
+                    int x = mid;
+                    if ((factor & 1) != 0)
+                    {
+                        y0 += yuyv[base + x] & 0xff;
+                        y1 += yuyv[base + x + 2] & 0xff;
+                        u += yuyv[base + x + 1] & 0xff;
+                        v += yuyv[base + x + 3] & 0xff;
+                        x += 4;
+                    }
+                    for (; x < factor*4; x += 4)
+                    {
+                        y1 += (yuyv[base + x] & 0xff) + (yuyv[base + x + 2] & 0xff);
+                        u += yuyv[base + x + 1] & 0xff;
+                        v += yuyv[base + x + 3] & 0xff;
+                    }
+                }
+                out[o++] = (byte)(y0/area);
+                out[o++] = (byte)(u/area);
+                out[o++] = (byte)(y1/area);
+                out[o++] = (byte)(v/area);
+            }
+        }
+    }
+
+    /**
+     * Threshold the luma of a frame producing a binary image. Pixels with a
+     * Y value below the threshold are set (black), the others are clear.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param threshold the threshold
+     * @param packed array of at least {@link #packedSize(int, int)} bytes to
+     * hold the result
+     * @return the number of pixels set
+     */
+    public static int threshold(byte[] yuyv, int width, int height, int threshold, byte[] packed)
+    {
+        int rowBytes = (width + 7)/8;
+        int cnt = 0;
+        int in = 0;
+        for (int y = 0; y < height; y++)
+        {
+            int out = y*rowBytes;
+            for (int x = 0; x < width; x += 8)
+            {
+                int bits = 0;
+                int n = Math.min(8, width - x);
+                for (int b = 0; b < n; b++, in += 2)
+                    if ((yuyv[in] & 0xff) < threshold)
+                        bits |= 1 << b;
+                packed[out++] = (byte)bits;
+                cnt += Integer.bitCount(bits);
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Build a binary image of the pixels that fall within a range of colors.
+     * A pixel is set if its Y, U and V values all lie within the given
+     * inclusive ranges.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param yMin minimum Y
+     * @param yMax maximum Y
+     * @param uMin minimum U
+     * @param uMax maximum U
+     * @param vMin minimum V
+     * @param vMax maximum V
+     * @param packed array of at least {@link #packedSize(int, int)} bytes to
+     * hold the result
+     * @return the number of pixels set
+     */
+    public static int colorMask(byte[] yuyv, int width, int height, int yMin, int yMax,
+            int uMin, int uMax, int vMin, int vMax, byte[] packed)
+    {
+        int rowBytes = (width + 7)/8;
+        int cnt = 0;
+        for (int y = 0; y < height; y++)
+        {
+            int out = y*rowBytes;
+            int in = y*width*2;
+            int bits = 0;
+            for (int x = 0; x < width; x++, in += 2)
+            {
+                // U is held with the even pixel and V with the odd one
+                int pair = in & ~3;
+                int u = yuyv[pair + 1] & 0xff;
+                int v = yuyv[pair + 3] & 0xff;
+                int l = yuyv[in] & 0xff;
+                if (l >= yMin && l <= yMax && u >= uMin && u <= uMax && v >= vMin && v <= vMax)
+                    bits |= 1 << (x & 7);
+                if ((x & 7) == 7 || x == width - 1)
+                {
+                    packed[out++] = (byte)bits;
+                    cnt += Integer.bitCount(bits);
+                    bits = 0;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    // 4x4 Bayer matrix used for ordered dithering, scaled to 0..255
+    private static final int[] BAYER = {
+          8, 136,  40, 168,
+        200,  72, 232, 104,
+         56, 184,  24, 152,
+        248, 120, 216,  88
+    };
+
+    /**
+     * Scale the luma of a frame to a new size and convert it to a binary
+     * image using ordered (Bayer) dithering. The result is drawn into a
+     * rectangle of a larger binary image, such as an LCD layer, parts of the
+     * rectangle outside the destination are not drawn. Pixels are sampled
+     * from the nearest source pixel.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param dst the destination binary image
+     * @param dw the width of the destination
+     * @param dh the height of the destination
+     * @param dx x position of the result in the destination
+     * @param dy y position of the result in the destination
+     * @param w width of the result
+     * @param h height of the result
+     */
+    public static void ditherOrdered(byte[] yuyv, int width, int height,
+            byte[] dst, int dw, int dh, int dx, int dy, int w, int h)
+    {
+        int ox0 = Math.max(0, -dx);
+        int ox1 = Math.min(w, dw - dx);
+        int oy0 = Math.max(0, -dy);
+        int oy1 = Math.min(h, dh - dy);
+        if (ox0 >= ox1 || oy0 >= oy1)
+            return;
+        int dwb = (dw + 7)/8;
+        int xStep = (width << 16)/w;
+        int yStep = (height << 16)/h;
+        for (int oy = oy0; oy < oy1; oy++)
+        {
+            int in = ((oy*yStep + (yStep >> 1)) >> 16)*width*2;
+            int py = dy + oy;
+            int out = py*dwb;
+            int row = (py & 3) << 2;
+            int sx = ox0*xStep + (xStep >> 1);
+            int px = dx + ox0;
+            int bits = 0;
+            int mask = 0;
+            for (int ox = ox0; ox < ox1; ox++, px++, sx += xStep)
+            {
+                int bit = 1 << (px & 7);
+                if ((yuyv[in + ((sx >> 16) << 1)] & 0xff) < BAYER[row + (px & 3)])
+                    bits |= bit;
+                mask |= bit;
+                if ((px & 7) == 7 || ox == ox1 - 1)
+                {
+                    int i = out + (px >> 3);
+                    dst[i] = (byte)((dst[i] & ~mask) | bits);
+                    bits = 0;
+                    mask = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Scale the luma of a frame to a new size and convert it to a binary
+     * image using Floyd-Steinberg error diffusion. This gives a better
+     * picture than ordered dithering at a higher cost. The result is drawn
+     * in the same way as {@link #ditherOrdered}.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param dst the destination binary image
+     * @param dw the width of the destination
+     * @param dh the height of the destination
+     * @param dx x position of the result in the destination
+     * @param dy y position of the result in the destination
+     * @param w width of the result
+     * @param h height of the result
+     * @param err work array of at least 2*(w + 2) values
+     */
+    public static void ditherFloydSteinberg(byte[] yuyv, int width, int height,
+            byte[] dst, int dw, int dh, int dx, int dy, int w, int h, int[] err)
+    {
+        int ox0 = Math.max(0, -dx);
+        int ox1 = Math.min(w, dw - dx);
+        int oy0 = Math.max(0, -dy);
+        int oy1 = Math.min(h, dh - dy);
+        if (ox0 >= ox1 || oy0 >= oy1)
+            return;
+        int dwb = (dw + 7)/8;
+        int xStep = (width << 16)/w;
+        int yStep = (height << 16)/h;
+        // errors for the current and next rows, scaled by 16 and offset by
+        // one so the pixels either side of the row can be written
+        int n = ox1 - ox0 + 2;
+        int cur = 0;
+        int next = n;
+        for (int i = 0; i < 2*n; i++)
+            err[i] = 0;
+        for (int oy = oy0; oy < oy1; oy++)
+        {
+            int in = ((oy*yStep + (yStep >> 1)) >> 16)*width*2;
+            int out = (dy + oy)*dwb;
+            int sx = ox0*xStep + (xStep >> 1);
+            int px = dx + ox0;
+            int bits = 0;
+            int mask = 0;
+            for (int i = 1; i < n - 1; i++, px++, sx += xStep)
+            {
+                int v = (yuyv[in + ((sx >> 16) << 1)] & 0xff) + ((err[cur + i] + 8) >> 4);
+                err[cur + i] = 0;
+                int bit = 1 << (px & 7);
+                if (v < 128)
+                    bits |= bit;
+                else
+                    v -= 255;
+                mask |= bit;
+                err[cur + i + 1] += v*7;
+                err[next + i - 1] += v*3;
+                err[next + i] += v*5;
+                err[next + i + 1] += v;
+                if ((px & 7) == 7 || i == n - 2)
+                {
+                    int j = out + (px >> 3);
+                    dst[j] = (byte)((dst[j] & ~mask) | bits);
+                    bits = 0;
+                    mask = 0;
+                }
+            }
+            err[cur] = 0;
+            err[cur + n - 1] = 0;
+            int t = cur;
+            cur = next;
+            next = t;
+        }
+    }
+
+    /**
+     * Calculate the histogram of the luma values of a frame.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @param hist array of 256 counts to hold the result
+     */
+    public static void histogramY(byte[] yuyv, int width, int height, int[] hist)
+    {
+        for (int i = 0; i < 256; i++)
+            hist[i] = 0;
+        int n = width*height*2;
+        for (int i = 0; i < n; i += 2)
+            hist[yuyv[i] & 0xff]++;
+    }
+
+    /**
+     * Calculate the mean luma value of a frame.
+     * @param yuyv the frame
+     * @param width frame width
+     * @param height frame height
+     * @return the mean Y value
+     */
+    public static int meanY(byte[] yuyv, int width, int height)
+    {
+        int n = width*height*2;
+        long total = 0;
+        for (int i = 0; i < n; i += 2)
+            total += yuyv[i] & 0xff;
+        return (int)(total/(width*height));
+    }
+
+    /**
+     * Choose a threshold that separates the two classes of a histogram,
+     * using Otsu's method. This can be used with {@link #threshold} to
+     * separate a line from the background in varying light.
+     * @param hist the histogram
+     * @return the threshold
+     */
+    public static int otsuThreshold(int[] hist)
+    {
+        long total = 0;
+        long sum = 0;
+        for (int i = 0; i < 256; i++)
+        {
+            total += hist[i];
+            sum += (long)i*hist[i];
+        }
+        long sumB = 0;
+        long wB = 0;
+        double best = -1;
+        int threshold = 0;
+        for (int i = 0; i < 256; i++)
+        {
+            wB += hist[i];
+            if (wB == 0)
+                continue;
+            long wF = total - wB;
+            if (wF == 0)
+                break;
+            sumB += (long)i*hist[i];
+            double mB = (double)sumB/wB;
+            double mF = (double)(sum - sumB)/wF;
+            double between = (double)wB*wF*(mB - mF)*(mB - mF);
+            if (between > best)
+            {
+                best = between;
+                threshold = i + 1;
+            }
+        }
+        return threshold;
+    }
+}
@@ -139,6 +139,21 @@ public class EV3GraphicsLCD extends EV3LCD implements GraphicsLCD
      * @param inverted true to invert the text display.
      */
     public void drawString(String str, int x, int y, int anchor, boolean inverted)
+    {
+        drawText(str.toCharArray(), 0, str.length(), x, y, anchor, inverted);
+    }
+
+    /**
+     * Draw a run of characters using the current font and color.
+     * @param data the characters
+     * @param offset the first character to draw
+     * @param length the number of characters to draw
+     * @param x the x coordinate of the anchor point
+     * @param y the y coordinate of the anchor point
+     * @param anchor the anchor point for positioning the text
+     * @param inverted true to invert the text display.
+     */
+    private void drawText(char[] data, int offset, int length, int x, int y, int anchor, boolean inverted)
     {
         x += transX;
         y += transY;
@@ -146,7 +161,7 @@ public class EV3GraphicsLCD extends EV3LCD implements GraphicsLCD
             anchor = TOP | LEFT;
         if ((anchor & LEFT) == 0)
         {
-            int strWidth = font.stringWidth(str);
+            int strWidth = length * font.width;
             if ((anchor & RIGHT) != 0)
                 x -= strWidth;
             else if ((anchor & HCENTER) != 0)
@@ -160,22 +175,15 @@ public class EV3GraphicsLCD extends EV3LCD implements GraphicsLCD
             else if ((anchor & BOTTOM) != 0)
                 y -= font.getHeight();
         }
-        int gw = font.glyphWidth;
-        int gh = font.height;
         int rop = textRop;
         int cellWidth = font.width;
-        byte[] glyphs = font.glyphs;
-        int span = gw * font.glyphCount;
-        int first = font.firstChar;
-        char[] strData = str.toCharArray();
         if (inverted)
         {
             // draw background and use inverted rop...
-            bitBlt(null, width, height, 0, 0, imageBuf, width, height, x, y, cellWidth * strData.length, gh, pixelRop);
+            bitBlt(null, width, height, 0, 0, imageBuf, width, height, x, y, cellWidth * length, font.height, pixelRop);
             rop = (rgbColor == WHITE ? ROP_OR : ROP_ANDINVERTED);
         }
-        for (int i = 0; i < strData.length; i++)
-            bitBlt(glyphs, span, gh, gw * (strData[i] - first), 0, imageBuf, width, height, x + i * cellWidth, y, gw, gh, rop);
+        drawGlyphs(font, data, offset, length, imageBuf, width, height, x, y, cellWidth, rop);
     }
 
     /**
@@ -483,10 +491,10 @@ public class EV3GraphicsLCD extends EV3LCD implements GraphicsLCD
      */
     public void drawChar(char character, int x, int y, int anchor)
     {
-        drawString(new String(new char[]
+        drawText(new char[]
                 {
                     character
-                }), x, y, anchor);
+                }, 0, 1, x, y, anchor, false);
     }
 
     /**
@@ -513,7 +521,7 @@ public class EV3GraphicsLCD extends EV3LCD implements GraphicsLCD
             throw new ArrayIndexOutOfBoundsException();
         }
 
-        drawString(new String(data, offset, length), x, y, anchor);
+        drawText(data, offset, length, x, y, anchor, false);
 
     }
 
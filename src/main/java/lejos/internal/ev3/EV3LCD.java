@@ -1,8 +1,11 @@
 package lejos.internal.ev3;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import lejos.hardware.lcd.CommonLCD;
+import lejos.hardware.lcd.Font;
 import lejos.internal.io.NativeDevice;
-import lejos.utility.Delay;
 
 import com.sun.jna.Pointer;
 
@@ -20,11 +23,11 @@ public class EV3LCD implements CommonLCD
     protected final static int LCD_BUFFER_LENGTH = SCREEN_MEM_WIDTH*SCREEN_HEIGHT;
     protected byte[] displayBuf;
     protected EV3LCDManager.LCDLayer layer;
-    static EV3LCDManager lcdMan = EV3LCDManager.getLocalLCDManager();
+    protected Future<Void> refreshFuture;
 
     public EV3LCD(String layerName) 
     {
-        layer = lcdMan.getLayer(layerName);
+        layer = EV3LCDManager.getLocalLCDManager().getLayer(layerName);
         layer.open();
         displayBuf = layer.getDisplay();
     }
@@ -66,7 +69,7 @@ public class EV3LCD implements CommonLCD
      */
     public void asyncRefresh()
     {
-        layer.refresh();
+        refreshFuture = layer.refreshAsync();
     }
 
     /**
@@ -84,9 +87,16 @@ public class EV3LCD implements CommonLCD
      */
     public void asyncRefreshWait()
     {
-        long waitTime = getRefreshCompleteTime() -  System.currentTimeMillis();
-        if (waitTime > 0)
-            Delay.msDelay(waitTime);
+        Future<Void> f = refreshFuture;
+        if (f == null)
+            return;
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // can not happen
+        }
     }
 
     /**
@@ -109,23 +119,26 @@ public class EV3LCD implements CommonLCD
     
     /**
      * Provide access to the LCD display frame buffer. Allows both the firmware
-     * and Java to make changes.
+     * and Java to make changes. The whole layer is marked as changed, so it
+     * will be redrawn by the next refresh.
      * @return byte array that is the frame buffer.
      */
     public byte[] getDisplay()
     {
+        if (layer != null)
+            layer.invalidate();
         return displayBuf;
     }
 
     /**
      * Set the period used to perform automatic refreshing of the display.
-     * A period of 0 disables the refresh.
+     * A period of 0 disables the refresh. The period applies to all layers.
      * @param period time in ms
      * @return the previous refresh period.
      */
     public int setAutoRefreshPeriod(int period)
     {
-        return 0;
+        return EV3LCDManager.getLocalLCDManager().setRefreshPeriod(period);
     }
 
     /**
@@ -182,32 +195,31 @@ public class EV3LCD implements CommonLCD
      */
     public void bitBlt(byte[] src, int sw, int sh, int sx, int sy, byte dst[], int dw, int dh, int dx, int dy, int w, int h, int rop)
     {
-        /* This is a partial implementation of the BitBlt algorithm. It provides a
-         * complete set of raster operations and handles partial and fully aligned
-         * images correctly. Overlapping source and destination images is also 
-         * supported. It does not performing mirroring. The code was converted
-         * from an initial Java implementation and has not been optimized for C.
-         * The general mechanism is to perform the block copy with Y as the inner
-         * loop (because on the display the bits are packed y-wise into a byte). We
-         * perform the various rop cases by reducing the operation to a series of
-         * AND and XOR operations. Each step is controlled by a byte in the rop code.
+        /* The copy is performed a destination byte at a time. Source bits are
+         * shifted into line with the destination byte using a 16 bit window,
+         * the partial bytes at each end of a row are merged using a mask. The
+         * most common raster operations and the solid fills have their own
+         * inner loops, the others reduce the operation to a series of AND and
+         * XOR operations. Each step is controlled by a byte in the rop code.
          * This mechanism is based upon that used in the X Windows system server.
+         * Overlapping source and destination images are supported, it does
+         * not perform mirroring.
          */
         // Clip to source and destination
         int trim;
         if (dx < 0)
         {
-          trim = -dx;
-          dx = 0;
-          sx += trim;
-          w -= trim;
+            trim = -dx;
+            dx = 0;
+            sx += trim;
+            w -= trim;
         }
         if (dy < 0)
         {
-          trim = -dy;
-          dy = 0;
-          sy += trim;
-          h -= trim;
+            trim = -dy;
+            dy = 0;
+            sy += trim;
+            h -= trim;
         }
         if (sx < 0 || sy < 0) return;
         if (dx + w > dw) w = dw - dx;
@@ -216,151 +228,227 @@ public class EV3LCD implements CommonLCD
         if (dy + h > dh) h = dh - dy;
         if (sy + h > sh) h = sh - sy;
         if (h <= 0) return;
-        // Setup initial parameters and check for overlapping copy
-        int xinc = 1;
-        int yinc = 1;
-        byte firstBit = 1;
-        if (src == dst)
-        {
-          // If copy overlaps we use reverse direction
-          if (dy > sy)
-          {
-            sy = sy + h - 1;
-            dy = dy + h - 1;
-            yinc = -1;
-          }
-          if (dx > sx)
-          {
-            firstBit = (byte)0x80;
-            xinc = -1;
-            sx = sx + w - 1;
-            dx = dx + w - 1;
-          }
-        }
-        if (src == null)
-            src = dst;
+        // Rows of the layer that will be changed
+        int dirtyY = dy;
+        int dirtyH = (dst == displayBuf && layer != null ? h : 0);
         int swb = (sw+7)/8;
         int dwb = (dw+7)/8;
-        //if (src == displayBuf)
-            //swb = HW_MEM_WIDTH;
-        //if (dst == displayBuf)
-            //dwb = HW_MEM_WIDTH;
         int inStart = sy*swb;
         int outStart = dy*dwb;
-        byte inStartBit = (byte)(1 << (sx & 0x7));
-        byte outStartBit = (byte)(1 << (dx & 0x7));
-        dwb *= yinc;
-        swb *= yinc;
-        // Extract rop sub-fields
-        byte ca1 = (byte)(rop >> 24);
-        byte cx1 = (byte)(rop >> 16);
-        byte ca2 = (byte)(rop >> 8);
-        byte cx2 = (byte) rop;
-        boolean noDst = (ca1 == 0 && cx1 == 0);
-        int ycnt;
-        // Check for byte aligned case and optimise for it
-        if (w >= 8 && inStartBit == firstBit && outStartBit == firstBit)
+        byte[] rowBuf = null;
+        if (src == dst)
         {
-          int ix = sx/8;
-          int ox = dx/8;
-          int byteCnt = w/8;
-          ycnt = h;
-          while (ycnt-- > 0)
-          {
-            int inIndex = inStart + ix;
-            int outIndex = outStart + ox;
-            int cnt = byteCnt;
-            while(cnt-- > 0)
+            // If the copy overlaps work from the bottom up, or via a copy of
+            // the row when the source and destination are on the same row
+            if (dy > sy)
             {
-              if (noDst)
-                dst[outIndex] = (byte)((src[inIndex] & ca2)^cx2);            
-              else
-              {
-                byte inVal = src[inIndex];
-                dst[outIndex] = (byte)((dst[outIndex] & ((inVal & ca1)^cx1)) ^ ((inVal & ca2)^cx2));
-              }
-              outIndex += xinc;
-              inIndex += xinc;
+                inStart += (h - 1)*swb;
+                outStart += (h - 1)*dwb;
+                swb = -swb;
+                dwb = -dwb;
             }
-            ix += swb;
-            ox += dwb;
-          }
-          // Do we have a final non byte multiple to do?
-          w &= 0x7;
-          if (w == 0) 
-          {
-              //if (dst == displayBuf)
-                  //update(displayBuf);
-              return;
-          }
-          //inStart = sy*swb;
-          //outStart = dy*dwb;
-          sx += byteCnt*8;
-          dx += byteCnt*8;
+            else if (dy == sy && dx > sx)
+                rowBuf = new byte[swb];
         }
-        // General non byte aligned case
-        int ix = sx/8;
-        int ox = dx/8;
-        ycnt = h;
-        while(ycnt-- > 0)
+        if (src == null)
+            src = dst;
+        int op = blitOp(rop);
+        while (h-- > 0)
         {
-          int inIndex = inStart + ix;
-          byte inBit = inStartBit;
-          byte inVal = src[inIndex];
-          byte inAnd = (byte)((inVal & ca1)^cx1);
-          byte inXor = (byte)((inVal & ca2)^cx2);
-          int outIndex = outStart + ox;
-          byte outBit = outStartBit;
-          byte outPixels = dst[outIndex];
-          int cnt = w;
-          while(true)
-          {
-            if (noDst)
+            if (rowBuf != null)
             {
-              if ((inXor & inBit) != 0)
-                outPixels |= outBit;
-              else
-                outPixels &= ~outBit;
+                System.arraycopy(src, inStart, rowBuf, 0, rowBuf.length);
+                blitRow(rowBuf, 0, rowBuf.length, sx, dst, outStart, dx, w, rop, op);
             }
             else
-            {
-              byte resBit = (byte)((outPixels & ((inAnd & inBit) != 0 ? outBit : 0))^((inXor & inBit) != 0 ? outBit : 0));
-              outPixels = (byte)((outPixels & ~outBit) | resBit);
-            }
-            if (--cnt <= 0) break;
-            if (xinc > 0)
-            {
-              inBit <<= 1;
-              outBit <<= 1;
-            }
+                blitRow(src, inStart, Math.abs(swb), sx, dst, outStart, dx, w, rop, op);
+            inStart += swb;
+            outStart += dwb;
+        }
+        if (dirtyH > 0)
+            layer.markDirty(dirtyY, dirtyH);
+    }
+
+    /**
+     * Draw a run of characters using the glyph cache for the font. Each
+     * glyph is combined with the destination using the raster operation,
+     * characters that are not in the font are not drawn.
+     * @param font the font
+     * @param chars the characters
+     * @param offset the first character to draw
+     * @param len the number of characters to draw
+     * @param dst byte array containing the destination image
+     * @param dw Width of the destination image
+     * @param dh Height of the destination image
+     * @param x x position of the first character
+     * @param y y position of the top of the characters
+     * @param cellWidth the distance between the characters
+     * @param rop raster operation.
+     */
+    protected void drawGlyphs(Font font, char[] chars, int offset, int len, byte[] dst, int dw, int dh, int x, int y, int cellWidth, int rop)
+    {
+        if (cellWidth < font.glyphWidth)
+        {
+            // glyphs overlap so must be drawn one at a time
+            int span = font.glyphWidth * font.glyphCount;
+            for (int i = 0; i < len; i++)
+                bitBlt(font.glyphs, span, font.height, font.glyphWidth * (chars[offset + i] - font.firstChar), 0, dst, dw, dh, x + i * cellWidth, y, font.glyphWidth, font.height, rop);
+            return;
+        }
+        GlyphCache.getCache(font).draw(font, chars, offset, len, cellWidth, dst, dw, dh, x, y, rop);
+        if (dst == displayBuf && layer != null)
+            layer.markDirty(y, font.height);
+    }
+
+    // Raster operations with their own inner loops
+    private static final int OP_GENERAL = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_OR = 2;
+    private static final int OP_ANDINVERTED = 3;
+    private static final int OP_XOR = 4;
+    private static final int OP_FILL = 5;
+
+    private static int blitOp(int rop)
+    {
+        switch (rop)
+        {
+            case ROP_COPY:
+                return OP_COPY;
+            case ROP_OR:
+                return OP_OR;
+            case ROP_ANDINVERTED:
+                return OP_ANDINVERTED;
+            case ROP_XOR:
+                return OP_XOR;
+            default:
+                // operations that do not use the source
+                if ((rop & 0xff00ff00) == 0)
+                    return OP_FILL;
+                return OP_GENERAL;
+        }
+    }
+
+    /**
+     * Return the 8 source bits starting at the given bit of a row, bits
+     * outside of the row are returned as 0.
+     */
+    private static int srcBits(byte[] src, int row, int rowBytes, int bit)
+    {
+        int i = bit >> 3;
+        int off = bit & 7;
+        int v = (i >= 0 && i < rowBytes ? (src[row + i] & 0xff) >>> off : 0);
+        if (off != 0 && i + 1 >= 0 && i + 1 < rowBytes)
+            v |= (src[row + i + 1] & 0xff) << (8 - off);
+        return v;
+    }
+
+    /**
+     * Combine the source bits with a destination byte using the raster
+     * operation, only the bits in the mask are changed.
+     */
+    private static void merge(byte[] dst, int index, int s, int mask, int rop)
+    {
+        int d = dst[index];
+        int r = (d & ((s & (rop >> 24)) ^ (rop >> 16))) ^ ((s & (rop >> 8)) ^ rop);
+        dst[index] = (byte)((d & ~mask) | (r & mask));
+    }
+
+    /**
+     * Perform the raster operation on a single row.
+     */
+    private static void blitRow(byte[] src, int inRow, int rowBytes, int sx, byte[] dst, int outRow, int dx, int w, int rop, int op)
+    {
+        int first = dx >> 3;
+        int last = (dx + w - 1) >> 3;
+        int firstMask = (0xff << (dx & 7)) & 0xff;
+        int lastMask = 0xff >>> (7 - ((dx + w - 1) & 7));
+        // source bit that lines up with the first bit of the first byte
+        int bit = sx - (dx & 7);
+        if (first == last)
+        {
+            merge(dst, outRow + first, (op == OP_FILL ? 0 : srcBits(src, inRow, rowBytes, bit)), firstMask & lastMask, rop);
+            return;
+        }
+        if (op != OP_FILL)
+            merge(dst, outRow + first, srcBits(src, inRow, rowBytes, bit), firstMask, rop);
+        else
+            merge(dst, outRow + first, 0, firstMask, rop);
+        // whole bytes
+        bit += 8;
+        int o = outRow + first + 1;
+        int end = outRow + last;
+        int i = inRow + (bit >> 3);
+        int off = bit & 7;
+        if (op == OP_FILL)
+        {
+            int and = (rop >> 16) & 0xff;
+            byte xor = (byte) rop;
+            if (and == 0)
+                for (; o < end; o++)
+                    dst[o] = xor;
             else
+                for (; o < end; o++)
+                    dst[o] = (byte)((dst[o] & and) ^ xor);
+        }
+        else if (off == 0)
+        {
+            switch (op)
             {
-              inBit >>= 1;
-              outBit >>= 1;
-            }
-            if (inBit == 0)
-            {
-              inBit = firstBit;
-              inIndex += xinc;
-              inVal = src[inIndex];
-              inAnd = (byte)((inVal & ca1)^cx1);
-              inXor = (byte)((inVal & ca2)^cx2);
+                case OP_COPY:
+                    System.arraycopy(src, i, dst, o, end - o);
+                    break;
+                case OP_OR:
+                    for (; o < end; o++, i++)
+                        dst[o] |= src[i];
+                    break;
+                case OP_ANDINVERTED:
+                    for (; o < end; o++, i++)
+                        dst[o] &= ~src[i];
+                    break;
+                case OP_XOR:
+                    for (; o < end; o++, i++)
+                        dst[o] ^= src[i];
+                    break;
+                default:
+                    for (; o < end; o++, i++)
+                    {
+                        int s = src[i];
+                        dst[o] = (byte)((dst[o] & ((s & (rop >> 24)) ^ (rop >> 16))) ^ ((s & (rop >> 8)) ^ rop));
+                    }
             }
-            if (outBit == 0)
+        }
+        else
+        {
+            int left = 8 - off;
+            switch (op)
             {
-              dst[outIndex] = outPixels;
-              outBit = firstBit;
-              outIndex += xinc;
-              outPixels = dst[outIndex];
+                case OP_COPY:
+                    for (; o < end; o++, i++)
+                        dst[o] = (byte)(((src[i] & 0xff) >>> off) | (src[i + 1] << left));
+                    break;
+                case OP_OR:
+                    for (; o < end; o++, i++)
+                        dst[o] |= (byte)(((src[i] & 0xff) >>> off) | (src[i + 1] << left));
+                    break;
+                case OP_ANDINVERTED:
+                    for (; o < end; o++, i++)
+                        dst[o] &= (byte)~(((src[i] & 0xff) >>> off) | (src[i + 1] << left));
+                    break;
+                case OP_XOR:
+                    for (; o < end; o++, i++)
+                        dst[o] ^= (byte)(((src[i] & 0xff) >>> off) | (src[i + 1] << left));
+                    break;
+                default:
+                    for (; o < end; o++, i++)
+                    {
+                        int s = ((src[i] & 0xff) >>> off) | (src[i + 1] << left);
+                        dst[o] = (byte)((dst[o] & ((s & (rop >> 24)) ^ (rop >> 16))) ^ ((s & (rop >> 8)) ^ rop));
+                    }
             }
-          }
-          dst[outIndex] = outPixels;
-          inStart += swb;
-          outStart += dwb;
         }
-        //if (dst == displayBuf)
-            //update(displayBuf);
-      }        
+        bit += (last - first - 1)*8;
+        merge(dst, end, (op == OP_FILL ? 0 : srcBits(src, inRow, rowBytes, bit)), lastMask, rop);
+    }
 
     /**
      * Set the LCD contrast.
@@ -372,7 +460,7 @@ public class EV3LCD implements CommonLCD
     }
 
     public byte[] getHWDisplay() {
-    	return lcdMan.getHWDisplay();
+    	return EV3LCDManager.getLocalLCDManager().getHWDisplay();
     }
     
 	@Override
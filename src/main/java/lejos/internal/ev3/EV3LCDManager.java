@@ -2,9 +2,13 @@ package lejos.internal.ev3;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import lejos.hardware.lcd.LCDMirror;
 import lejos.internal.io.NativeDevice;
-import lejos.utility.Delay;
 
 import com.sun.jna.Pointer;
 
@@ -13,21 +17,54 @@ import com.sun.jna.Pointer;
  * Each layer can be used as the frame buffer for text/graphics output. Layers can be
  * made visible or invisible. If more than one layer is visible the layers will be
  * combined and will overlay each other on the display. Layers are named and this
- * name can be used to access the layer. 
+ * name can be used to access the layer. <br>
+ * The manager keeps a frame number that is incremented each time a refresh
+ * changes the screen, and records the frame in which each row last changed.
+ * This allows a remote client to mirror the screen by fetching only the rows
+ * that have changed, see {@link #getDisplayDelta(int)}.<br>
+ * Each layer records the range of rows that have been drawn to since the last
+ * refresh. A refresh only combines and writes the rows that are damaged in one
+ * of the visible layers, and does nothing at all if none are.<br>
+ * The display is drawn in frames by a single thread. Each layer is double
+ * buffered, calling {@link LCDLayer#refresh()} copies the changed rows of the
+ * layer to its front buffer and asks for a frame. The frames are drawn from
+ * the front buffers, so a layer with auto refresh off never shows a partly
+ * drawn screen. Layers with auto refresh on are also copied at each frame.
+ * Requests made before a frame starts are combined into that frame, frames
+ * are drawn at most at the frame rate and at least every refresh period
+ * while auto refresh is on.
  * @author andy
  *
  */
 public class EV3LCDManager
 {
     public static final int DEFAULT_REFRESH_PERIOD = 250;
+    public static final int DEFAULT_FRAME_RATE = 50;
     protected final static int HW_MEM_WIDTH = ((EV3LCD.SCREEN_WIDTH + 31)/32)*4; // width of HW Buffer in bytes
     protected final static int LCD_HW_BUFFER_LENGTH = HW_MEM_WIDTH*EV3LCD.SCREEN_HEIGHT;
     protected NativeDevice dev = new NativeDevice("/dev/fb0");
     protected Pointer lcd = dev.mmap(LCD_HW_BUFFER_LENGTH);
     protected boolean autoRefresh = true;
-    protected long refreshTime = 0;
+    protected int refreshPeriod = DEFAULT_REFRESH_PERIOD;
+    protected int framePeriod = 1000/DEFAULT_FRAME_RATE;
+    protected long lastFrameTime = 0;
+    // number of frames completed and whether a frame has been requested
+    protected long frameCnt = 0;
+    protected boolean frameRequested = true;
+    protected long requestCnt = 0;
         
     protected byte [] hwBuffer = new byte[LCD_HW_BUFFER_LENGTH];
+    // Copy of the screen contents used to detect changed rows
+    protected byte [] frameBuffer = new byte[EV3LCD.LCD_BUFFER_LENGTH];
+    protected int [] rowFrames = new int[EV3LCD.SCREEN_HEIGHT];
+    protected int frame = 1;
+    // set when the visible layers change and the whole screen must be rebuilt
+    protected boolean fullUpdate = true;
+    // refresh cost counters
+    protected long refreshCnt = 0;
+    protected long skippedCnt = 0;
+    protected long rowCnt = 0;
+    protected long updateTime = 0;
     private static LCDUpdate updateThread;
     protected static EV3LCDManager localLCDManager = new EV3LCDManager();
     protected ArrayList<LCDLayer> layers = new ArrayList<LCDLayer>();
@@ -52,6 +89,15 @@ public class EV3LCDManager
         protected boolean autoRefresh = true;
         protected String name;
         protected int openCnt = 0;
+        // copy of the layer used to draw the display
+        protected byte [] frontBuf = null;
+        // range of rows changed since the last refresh, top inclusive, bottom exclusive
+        protected int dirtyTop = 0;
+        protected int dirtyBottom = EV3LCD.SCREEN_HEIGHT;
+        // range of rows of the front buffer not yet drawn
+        protected int frontTop = 0;
+        protected int frontBottom = EV3LCD.SCREEN_HEIGHT;
+        protected final Object damageLock = new Object();
 
         /**
          * Create the layer and give it a name
@@ -70,6 +116,7 @@ public class EV3LCDManager
             if (openCnt++ == 0)
             {
                 displayBuf = new byte[EV3LCD.LCD_BUFFER_LENGTH];
+                frontBuf = new byte[EV3LCD.LCD_BUFFER_LENGTH];
                 setVisible(true);
             }
         }
@@ -86,6 +133,7 @@ public class EV3LCDManager
             {
                 setVisible(false);
                 displayBuf = null;
+                frontBuf = null;
             }
             openCnt--;
         }
@@ -141,15 +189,162 @@ public class EV3LCDManager
         }
 
         /**
-         * Update the hardware display.
+         * Record that rows of the frame buffer have been changed. Drawing
+         * operations on an {@link EV3LCD} call this automatically.
+         * @param y the first row changed
+         * @param h the number of rows changed
+         */
+        public void markDirty(int y, int h)
+        {
+            if (y < 0)
+            {
+                h += y;
+                y = 0;
+            }
+            if (y + h > EV3LCD.SCREEN_HEIGHT)
+                h = EV3LCD.SCREEN_HEIGHT - y;
+            if (h <= 0)
+                return;
+            synchronized(damageLock)
+            {
+                if (y < dirtyTop)
+                    dirtyTop = y;
+                if (y + h > dirtyBottom)
+                    dirtyBottom = y + h;
+            }
+        }
+
+        /**
+         * Mark the whole layer as changed. Code that writes directly to the
+         * array returned by {@link #getDisplay()} must call this before the
+         * display is refreshed.
+         */
+        public void invalidate()
+        {
+            markDirty(0, EV3LCD.SCREEN_HEIGHT);
+        }
+
+        /**
+         * Copy the rows that have changed since the last swap to the front
+         * buffer, ready to be drawn by the next frame. The manager is locked
+         * so the front buffer is never changed while a frame is being
+         * composed from it, the locks are taken in the same order as
+         * update().
+         */
+        protected void swap()
+        {
+            synchronized(localLCDManager)
+            {
+                synchronized(damageLock)
+                {
+                    if (dirtyTop >= dirtyBottom || displayBuf == null)
+                        return;
+                    System.arraycopy(displayBuf, dirtyTop*EV3LCD.SCREEN_MEM_WIDTH, frontBuf, dirtyTop*EV3LCD.SCREEN_MEM_WIDTH,
+                            (dirtyBottom - dirtyTop)*EV3LCD.SCREEN_MEM_WIDTH);
+                    if (dirtyTop < frontTop)
+                        frontTop = dirtyTop;
+                    if (dirtyBottom > frontBottom)
+                        frontBottom = dirtyBottom;
+                    dirtyTop = EV3LCD.SCREEN_HEIGHT;
+                    dirtyBottom = 0;
+                }
+            }
+        }
+
+        /**
+         * Swap the layer buffers and ask for the display to be updated by
+         * the next frame.
+         * @return a future that completes when the frame has been drawn
+         */
+        public Future<Void> refreshAsync()
+        {
+            swap();
+            return localLCDManager.requestFrame();
+        }
+
+        /**
+         * Update the hardware display. If auto refresh is off for the layer
+         * wait for the frame to be drawn, otherwise return immediately.
          */
         public void refresh()
         {
-            localLCDManager.update();
+            Future<Void> f = refreshAsync();
+            if (!autoRefresh)
+            {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // can not happen
+                }
+            }
         }
         
     }
 
+    /**
+     * Future that completes when a frame has been drawn.
+     */
+    protected class FrameFuture implements Future<Void>
+    {
+        private final long target;
+
+        FrameFuture(long target)
+        {
+            this.target = target;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            synchronized(EV3LCDManager.this)
+            {
+                return frameCnt >= target;
+            }
+        }
+
+        @Override
+        public Void get() throws InterruptedException
+        {
+            synchronized(EV3LCDManager.this)
+            {
+                while (frameCnt < target)
+                    EV3LCDManager.this.wait();
+            }
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException
+        {
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            synchronized(EV3LCDManager.this)
+            {
+                while (frameCnt < target)
+                {
+                    long wait = end - System.currentTimeMillis();
+                    if (wait <= 0)
+                        throw new TimeoutException();
+                    EV3LCDManager.this.wait(wait);
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Iternal class to manage the hardware update
      * @author andy
@@ -162,22 +357,41 @@ public class EV3LCDManager
             setDaemon(true);            
         }
         /**
-         * Background thread which provides automatic screen updates
+         * Background thread which draws the frames. A frame is drawn when
+         * one has been requested, no sooner than the frame period after the
+         * previous frame, or when the refresh period has passed with auto
+         * refresh on.
          */
         public void run()
         {
-            for(;;)
+            synchronized(EV3LCDManager.this)
             {
-                long now = System.currentTimeMillis();
-                if (now >= refreshTime)
+                for(;;)
                 {
-                    if (autoRefresh)
-                        update();
+                    long now = System.currentTimeMillis();
+                    long next;
+                    if (frameRequested)
+                        next = lastFrameTime + framePeriod;
+                    else if (autoRefresh && refreshPeriod > 0)
+                        next = lastFrameTime + refreshPeriod;
                     else
-                        refreshTime = now + DEFAULT_REFRESH_PERIOD;
+                        next = Long.MAX_VALUE;
+                    if (now < next)
+                    {
+                        try {
+                            EV3LCDManager.this.wait(next == Long.MAX_VALUE ? 0 : next - now);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                    frameRequested = false;
+                    lastFrameTime = now;
+                    update();
+                    frameCnt++;
+                    EV3LCDManager.this.notifyAll();
                 }
-                Delay.msDelay(refreshTime - now);
-           }
+            }
         }
     }
 
@@ -269,35 +483,253 @@ public class EV3LCDManager
             }
         // Make the new list active
         visibleLayers = vis; 
-        update();
+        fullUpdate = true;
+        requestFrame();
+    }
+
+    /**
+     * Ask for the display to be updated. Requests made before the next frame
+     * starts are all satisfied by that frame.
+     * @return a future that completes when the frame has been drawn
+     */
+    public synchronized Future<Void> requestFrame()
+    {
+        requestCnt++;
+        if (!frameRequested)
+        {
+            frameRequested = true;
+            notifyAll();
+        }
+        return new FrameFuture(frameCnt + 1);
+    }
+
+    /**
+     * Set the maximum rate at which frames are drawn.
+     * @param rate frames per second
+     * @return the previous rate
+     */
+    public synchronized int setFrameRate(int rate)
+    {
+        if (rate <= 0)
+            throw new IllegalArgumentException("Invalid frame rate " + rate);
+        int old = 1000/framePeriod;
+        framePeriod = Math.max(1000/rate, 1);
+        notifyAll();
+        return old;
+    }
+
+    public synchronized int getFrameRate()
+    {
+        return 1000/framePeriod;
+    }
+
+    /**
+     * Set the period at which the display is refreshed while auto refresh is
+     * on. A period of 0 disables the automatic refresh.
+     * @param period time in ms
+     * @return the previous period
+     */
+    public synchronized int setRefreshPeriod(int period)
+    {
+        if (period < 0)
+            throw new IllegalArgumentException("Invalid period " + period);
+        int old = refreshPeriod;
+        refreshPeriod = period;
+        notifyAll();
+        return old;
+    }
+
+    public synchronized int getRefreshPeriod()
+    {
+        return refreshPeriod;
     }
 
     /**
-     * Helper method. Copy all of the visible layers to the HW screen
+     * Helper method. Copy the damaged rows of the visible layers to the HW
+     * screen. If no rows are damaged the screen is left alone. Called by the
+     * update thread for each frame.
      */
     synchronized protected void update()
     {
+        long start = System.nanoTime();
         LCDLayer[] vis = visibleLayers;
+        int top = EV3LCD.SCREEN_HEIGHT;
+        int bottom = 0;
+        if (fullUpdate)
+        {
+            top = 0;
+            bottom = EV3LCD.SCREEN_HEIGHT;
+            fullUpdate = false;
+        }
+        for(LCDLayer l : vis)
+        {
+            // layers without auto refresh are only swapped by refresh()
+            if (l.autoRefresh)
+                l.swap();
+            synchronized(l.damageLock)
+            {
+                if (l.frontTop < top)
+                    top = l.frontTop;
+                if (l.frontBottom > bottom)
+                    bottom = l.frontBottom;
+                l.frontTop = EV3LCD.SCREEN_HEIGHT;
+                l.frontBottom = 0;
+            }
+        }
+        refreshCnt++;
+        if (top >= bottom)
+        {
+            skippedCnt++;
+            updateTime += System.nanoTime() - start;
+            return;
+        }
         if (vis.length > 0)
         {
             // copy first layer to the display
-            for(int row = 0; row < EV3LCD.SCREEN_HEIGHT; row++)
-                System.arraycopy(vis[0].displayBuf, row*EV3LCD.SCREEN_MEM_WIDTH, hwBuffer, row*HW_MEM_WIDTH, EV3LCD.SCREEN_MEM_WIDTH);
+            for(int row = top; row < bottom; row++)
+                System.arraycopy(vis[0].frontBuf, row*EV3LCD.SCREEN_MEM_WIDTH, hwBuffer, row*HW_MEM_WIDTH, EV3LCD.SCREEN_MEM_WIDTH);
             // now or in any other layers
             for(int i = 1; i < vis.length; i++)
-                for(int row = 0; row < EV3LCD.SCREEN_HEIGHT; row++)
+            {
+                byte[] buf = vis[i].frontBuf;
+                for(int row = top; row < bottom; row++)
+                {
+                    int hw = row*HW_MEM_WIDTH;
+                    int fb = row*EV3LCD.SCREEN_MEM_WIDTH;
                     for(int col = 0; col < EV3LCD.SCREEN_MEM_WIDTH; col++)
-                        hwBuffer[row*HW_MEM_WIDTH + col] |= vis[i].displayBuf[row*EV3LCD.SCREEN_MEM_WIDTH + col];
-            lcd.write(0, hwBuffer, 0, hwBuffer.length);            
+                        hwBuffer[hw + col] |= buf[fb + col];
+                }
+            }
         }
         else
         {
             // nothing to display, clear the screen
-            for(int i = 0; i < hwBuffer.length; i++)
+            for(int i = top*HW_MEM_WIDTH; i < bottom*HW_MEM_WIDTH; i++)
                 hwBuffer[i] = 0;
         }
-        lcd.write(0, hwBuffer, 0, hwBuffer.length);
-        refreshTime = System.currentTimeMillis() + DEFAULT_REFRESH_PERIOD;
+        lcd.write(top*HW_MEM_WIDTH, hwBuffer, top*HW_MEM_WIDTH, (bottom - top)*HW_MEM_WIDTH);
+        trackChanges(top, bottom);
+        rowCnt += bottom - top;
+        updateTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Helper method. Compare the new screen contents with the previous
+     * frame and record which rows have changed.
+     * @param top the first row that may have changed
+     * @param bottom the row after the last one that may have changed
+     */
+    protected void trackChanges(int top, int bottom)
+    {
+        boolean changed = false;
+        for(int row = top; row < bottom; row++)
+        {
+            int hw = row*HW_MEM_WIDTH;
+            int fb = row*EV3LCD.SCREEN_MEM_WIDTH;
+            for(int col = 0; col < EV3LCD.SCREEN_MEM_WIDTH; col++)
+                if (hwBuffer[hw + col] != frameBuffer[fb + col])
+                {
+                    System.arraycopy(hwBuffer, hw, frameBuffer, fb, EV3LCD.SCREEN_MEM_WIDTH);
+                    rowFrames[row] = frame + 1;
+                    changed = true;
+                    break;
+                }
+        }
+        if (changed)
+            frame++;
+    }
+
+    /**
+     * Return the number of frames drawn, not including those skipped because
+     * nothing had changed.
+     * @return the frame count
+     */
+    public synchronized long getFramesDrawn()
+    {
+        return refreshCnt - skippedCnt;
+    }
+
+    /**
+     * Return the number of times a frame has been requested. Requests made
+     * while a frame is pending are combined, so this may be more than the
+     * number of frames.
+     * @return the request count
+     */
+    public synchronized long getFrameRequestCount()
+    {
+        return requestCnt;
+    }
+
+    /**
+     * Return the number of refreshes performed, including those skipped
+     * because nothing had changed.
+     * @return the refresh count
+     */
+    public synchronized long getRefreshCount()
+    {
+        return refreshCnt;
+    }
+
+    /**
+     * Return the number of refreshes skipped because no visible layer had
+     * changed.
+     * @return the skipped refresh count
+     */
+    public synchronized long getSkippedRefreshCount()
+    {
+        return skippedCnt;
+    }
+
+    /**
+     * Return the total number of rows combined and written to the display.
+     * A full screen is {@link EV3LCD#SCREEN_HEIGHT} rows.
+     * @return the row count
+     */
+    public synchronized long getRowsWritten()
+    {
+        return rowCnt;
+    }
+
+    /**
+     * Return the total time spent refreshing the display.
+     * @return the time in nanoseconds
+     */
+    public synchronized long getRefreshTime()
+    {
+        return updateTime;
+    }
+
+    /**
+     * Reset the refresh cost counters.
+     */
+    public synchronized void resetCounters()
+    {
+        refreshCnt = 0;
+        skippedCnt = 0;
+        rowCnt = 0;
+        updateTime = 0;
+        requestCnt = 0;
+    }
+
+    /**
+     * Return the current frame number. The frame number is incremented each
+     * time the screen contents change.
+     * @return the frame number
+     */
+    public synchronized int getFrameNumber()
+    {
+        return frame;
+    }
+
+    /**
+     * Return the rows of the screen that have changed since the given frame,
+     * compressed using the {@link LCDMirror} delta format.
+     * @param since frame number held by the client, or 0 for the whole screen
+     * @return the delta
+     */
+    public synchronized byte[] getDisplayDelta(int since)
+    {
+        return LCDMirror.encodeDelta(frameBuffer, EV3LCD.SCREEN_MEM_WIDTH, EV3LCD.SCREEN_HEIGHT, rowFrames, since, frame);
     }
 
     /**
@@ -308,6 +740,16 @@ public class EV3LCDManager
         for(LCDLayer l : layers)
             while (l.isOpen())
                 l.close(); 
+        // make sure the cleared screen is drawn before exit
+        try {
+            requestFrame().get(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // give up
+        } catch (ExecutionException e) {
+            // can not happen
+        } catch (TimeoutException e) {
+            // give up
+        }
     }
 
     /**
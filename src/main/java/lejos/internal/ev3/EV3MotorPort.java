@@ -3,9 +3,13 @@ package lejos.internal.ev3;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 
+import lejos.hardware.motor.MotorEventDispatcher;
+import lejos.hardware.motor.MotorModel;
 import lejos.hardware.motor.MotorRegulator;
+import lejos.hardware.motor.MotorTelemetry;
 import lejos.hardware.port.BasicMotorPort;
 import lejos.hardware.port.TachoMotorPort;
+import lejos.hardware.port.TachoMotorPortGroup;
 import lejos.internal.io.NativeDevice;
 import lejos.robotics.RegulatedMotor;
 import lejos.robotics.RegulatedMotorListener;
@@ -17,7 +21,7 @@ import lejos.utility.Delay;
  * TODO: Sort out a better way to do this, or least clean up the magic numbers.
  *
  */
-public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
+public class EV3MotorPort extends EV3IOPort implements TachoMotorPortGroup {
     static final byte OUTPUT_CONNECT = (byte)1;
     static final byte OUTPUT_DISCONNECT = (byte)2;
     static final byte OUTPUT_START = (byte)4;
@@ -28,6 +32,7 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
 
         
     protected static byte[] regCmd2 = new byte[55*4];
+    protected static byte[] groupCmd = new byte[3*PORTS];
     protected static NativeDevice tacho;
     protected static ByteBuffer bbuf;
     protected static IntBuffer ibuf;
@@ -86,6 +91,17 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
         boolean started = false;
         RegulatedMotorListener listener;
         RegulatedMotor motor;
+        // telemetry recording
+        MotorTelemetry telemetry;
+        int lastTelemetryTime;
+        int lastTelemetryPos;
+        int lastTelemetryState = -1;
+        // current control parameters
+        int ctlType;
+        float ctlMoveP, ctlMoveI, ctlMoveD, ctlHoldP, ctlHoldI, ctlHoldD, ctlDeadBand;
+        int ctlOffset;
+        // PWM offset derived from the feed-forward model, -1 if none is set
+        int ffOffset = -1;
 
         public EV3MotorRegulatorKernelModule(TachoMotorPort p)
         {
@@ -160,19 +176,38 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
          */
         public synchronized void setControlParams(int typ, float moveP, float moveI, float moveD, float holdP, float holdI, float holdD, int offset, float deadBand)
         {
+            ctlType = typ;
+            ctlMoveP = moveP;
+            ctlMoveI = moveI;
+            ctlMoveD = moveD;
+            ctlHoldP = holdP;
+            ctlHoldI = holdI;
+            ctlHoldD = holdD;
+            ctlOffset = offset;
+            ctlDeadBand = deadBand;
+            writeControlParams();
+        }
+
+        /**
+         * Write the current control parameters to the kernel module. If a
+         * feed-forward model is set its offset is used in place of the one
+         * given in the control parameters.
+         */
+        protected void writeControlParams()
+        {
+            int offset = (ffOffset >= 0 ? ffOffset : ctlOffset);
             regCmd[0] = OUTPUT_SET_TYPE;
             regCmd[1] = (byte)port;
-            regCmd[2] = (byte)typ;
-            setVal(regCmd, 3, floatToFix(moveP));
-            setVal(regCmd, 7, floatToFix(moveI));
-            setVal(regCmd, 11, floatToFix(moveD));
-            setVal(regCmd, 15, floatToFix(holdP));
-            setVal(regCmd, 19, floatToFix(holdI));
-            setVal(regCmd, 23, floatToFix(holdD));
+            regCmd[2] = (byte)ctlType;
+            setVal(regCmd, 3, floatToFix(ctlMoveP));
+            setVal(regCmd, 7, floatToFix(ctlMoveI));
+            setVal(regCmd, 11, floatToFix(ctlMoveD));
+            setVal(regCmd, 15, floatToFix(ctlHoldP));
+            setVal(regCmd, 19, floatToFix(ctlHoldI));
+            setVal(regCmd, 23, floatToFix(ctlHoldD));
             setVal(regCmd, 27, offset);
-            setVal(regCmd, 31, floatToFix(deadBand));
+            setVal(regCmd, 31, floatToFix(ctlDeadBand));
             pwm.write(regCmd, 35);
-            
         }
 
 
@@ -185,8 +220,9 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
             if (started && !isMoving())
             {
                 started = false;
-                if (listener != null)
-                    listener.rotationStopped(motor, getTachoCount(), isStalled(), System.currentTimeMillis());
+                RegulatedMotorListener l = listener;
+                if (l != null)
+                    MotorEventDispatcher.getDispatcher().post(l, motor, false, getTachoCount(), isStalled(), System.currentTimeMillis());
             }
         }
 
@@ -200,16 +236,40 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
             if (started)
                 throw new IllegalStateException("Motor must be stopped");
             started = true;
-            if (listener != null)
-            {
-                listener.rotationStarted(motor, getTachoCount(), false, System.currentTimeMillis());
-                notifyAll();
-            }
+            RegulatedMotorListener l = listener;
+            if (l != null)
+                MotorEventDispatcher.getDispatcher().post(l, motor, true, getTachoCount(), false, System.currentTimeMillis());
+            // wake the listener thread, it may be needed for telemetry
+            notifyAll();
                 
         }
 
         /**
-         * Thread to handle listeners.
+         * Record the current regulator state into the telemetry buffer. The
+         * regulation loop runs inside the kernel module so we can only sample
+         * the shared memory state. A new entry is only recorded when the
+         * regulator time has moved on since the last one, so the decimation
+         * set for the buffer counts regulator ticks, and idle samples that
+         * are the same as the last one are skipped. The kernel module does
+         * not export the power applied to the motor, so it is recorded as 0.
+         */
+        protected void recordTelemetry()
+        {
+            MotorTelemetry t = telemetry;
+            if (t == null || syncActive.length <= 0) return;
+            updateRegulatorInformation();
+            if (curTime == lastTelemetryTime && curState == lastTelemetryState) return;
+            if (curState < ST_START && curState == lastTelemetryState && curTachoCnt == lastTelemetryPos) return;
+            lastTelemetryTime = curTime;
+            lastTelemetryState = curState;
+            lastTelemetryPos = curTachoCnt;
+            t.record(System.currentTimeMillis(), curPosition - zeroTachoCnt, curTachoCnt, curVelocity, 0, curState);
+        }
+
+        /**
+         * Thread to handle listeners and telemetry. The thread only polls the
+         * regulator while a move is in progress, the state at the end of the
+         * move is recorded before it goes back to waiting.
          */
         public synchronized void run()
         {
@@ -221,8 +281,11 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
                         wait();
                     } catch (InterruptedException e){}
                 checkComplete();
+                recordTelemetry();
+                if (!started)
+                    continue;
                 try {
-                    wait(5);
+                    wait(telemetry != null ? 1 : 5);
                 } catch (InterruptedException e){}
             }
         }
@@ -642,6 +705,35 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
         {
             return limitAngle;
         }
+
+        /**
+         * The regulation loop runs inside the kernel module, so only the
+         * static friction part of the model can be used. This is passed to
+         * the kernel as the PWM offset. Setting the model to null restores
+         * the original offset.
+         */
+        @Override
+        public synchronized void setFeedForward(MotorModel model)
+        {
+            if (model != null)
+                ffOffset = Math.max(0, Math.min(10000, Math.round(model.getStaticFriction()*100)));
+            else
+                ffOffset = -1;
+            writeControlParams();
+        }
+
+        @Override
+        public synchronized void setTelemetry(MotorTelemetry telemetry)
+        {
+            this.telemetry = telemetry;
+            lastTelemetryState = -1;
+            if (telemetry != null)
+            {
+                if (getState() == Thread.State.NEW)
+                    start();
+                notifyAll();
+            }
+        }
         
         public synchronized void synchronizeWith(MotorRegulator[] syncList)
         {
@@ -785,6 +877,79 @@ public class EV3MotorPort extends EV3IOPort implements TachoMotorPort {
     }
     
     
+    /**
+     * Return the largest number of ports that can be handled by a single
+     * group operation.
+     */
+    public int getMaxGroupSize()
+    {
+        return PORTS;
+    }
+
+    /**
+     * All of the EV3 motor ports share the same devices, so any of them can
+     * be grouped together.
+     */
+    public boolean isGroupedWith(TachoMotorPort port)
+    {
+        return port instanceof EV3MotorPort;
+    }
+
+    /**
+     * Read the tachometer counts of a group of ports. All of the counts are
+     * taken from a single snapshot of the shared memory state, so they are
+     * consistent with each other and only require a single lock.
+     * @param ports the ports to read
+     * @param counts array to hold the counts, counts[i] is the count for ports[i]
+     */
+    public void getTachoCounts(TachoMotorPort[] ports, int[] counts)
+    {
+        synchronized(ibuf)
+        {
+            for(int i = 0; i < ports.length; i++)
+                counts[i] = ibuf.get(((EV3MotorPort)ports[i]).port*8 + 3);
+        }
+    }
+
+    /**
+     * Low-level method to control a group of motors. The power and mode
+     * settings for all of the ports are packed into a single command buffer
+     * and written to the device in one operation.
+     * @param ports the ports to control
+     * @param power power setting for each port, from 0-100
+     * @param mode mode for each port as defined in <code>BasicMotorPort</code>
+     * @see #controlMotor(int, int)
+     */
+    public void controlMotors(TachoMotorPort[] ports, int[] power, int[] mode)
+    {
+        if (ports.length > PORTS)
+            throw new IllegalArgumentException("Too many ports");
+        synchronized(pwm)
+        {
+            int cnt = 0;
+            for(int i = 0; i < ports.length; i++)
+            {
+                EV3MotorPort p = (EV3MotorPort)ports[i];
+                int m = mode[i];
+                if (m >= STOP)
+                {
+                    groupCmd[cnt++] = OUTPUT_STOP;
+                    groupCmd[cnt++] = (byte) p.port;
+                    groupCmd[cnt++] = (byte) (m == FLOAT ? 0 : 1);
+                }
+                else
+                {
+                    groupCmd[cnt++] = OUTPUT_POWER;
+                    groupCmd[cnt++] = (byte) p.port;
+                    groupCmd[cnt++] = (byte) (m == BACKWARD ? -power[i] : power[i]);
+                }
+                p.curMode = m;
+            }
+            if (cnt > 0)
+                pwm.write(groupCmd, cnt);
+        }
+    }
+
     /**
      *resets the tachometer count to 0;
      */ 
@@ -23,7 +23,7 @@ public class EV3TextLCD extends EV3LCD implements TextLCD {
      */
     public void drawChar(char c, int x, int y)
     {
-        bitBlt(font.glyphs, font.width * font.glyphCount, font.height, font.width * (c-32), 0, x * font.glyphWidth, y * font.height, font.width, font.height, ROP_COPY);
+        drawGlyphs(font, new char[] {c}, 0, 1, displayBuf, SCREEN_WIDTH, SCREEN_HEIGHT, x * font.glyphWidth, y * font.height, font.glyphWidth, ROP_COPY);
     }
 
     /**
@@ -39,8 +39,7 @@ public class EV3TextLCD extends EV3LCD implements TextLCD {
         // Draw the background rect
         bitBlt(null, SCREEN_WIDTH, SCREEN_HEIGHT, 0, 0, x * font.glyphWidth, y * font.height, strData.length * font.glyphWidth, font.height, ROP_CLEAR);
         // and the characters
-        for (int i = 0; (i < strData.length); i++)
-            bitBlt(font.glyphs, font.width * font.glyphCount, font.height, font.width * (strData[i]-32), 0, (x + i) * font.glyphWidth, y * font.height, font.width, font.height, ROP_COPY);
+        drawGlyphs(font, strData, 0, strData.length, displayBuf, SCREEN_WIDTH, SCREEN_HEIGHT, x * font.glyphWidth, y * font.height, font.glyphWidth, ROP_COPY);
     }
     
 
@@ -86,8 +85,7 @@ public class EV3TextLCD extends EV3LCD implements TextLCD {
             // Draw the background rect
             bitBlt(null, SCREEN_WIDTH, SCREEN_HEIGHT, 0, 0, x * font.glyphWidth, y * font.height, strData.length * font.glyphWidth, font.height, ROP_SET);
             // and the characters
-            for (int i = 0; (i < strData.length); i++)
-                bitBlt(font.glyphs, font.width * font.glyphCount, font.height, font.width * (strData[i]-32), 0, (x + i) * font.glyphWidth, y * font.height, font.width, font.height, ROP_COPYINVERTED);
+            drawGlyphs(font, strData, 0, strData.length, displayBuf, SCREEN_WIDTH, SCREEN_HEIGHT, x * font.glyphWidth, y * font.height, font.glyphWidth, ROP_COPYINVERTED);
         } else
             drawString(str, x, y);
     }
@@ -1,9 +1,23 @@
 package lejos.internal.ev3;
 
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
 import lejos.hardware.video.Video;
+import lejos.hardware.video.VideoFrame;
+import lejos.internal.io.NativeDevice;
 
 /**
- * Class to provide access to a Webcam attached to the EV3 
+ * Class to provide access to a Webcam attached to the EV3 <br>
+ * Single frames are grabbed using the native library. In streaming mode the
+ * device is driven directly using the V4L2 streaming interface: a ring of
+ * driver buffers is mapped into memory and frames are handed to the caller
+ * without being copied.
  * @author Gabriel Ferrer, Andy
  *
  */
@@ -49,6 +63,13 @@ public class EV3Video implements Video {
       * @throws java.io.IOException
       */
      public int grabFrame(byte[] frame) throws java.io.IOException {  
+         if (streaming) {
+             VideoFrame f = dequeueFrame();
+             int len = Math.min(f.getLength(), frame.length);
+             f.getData().get(frame, 0, len);
+             requeueFrame(f);
+             return len;
+         }
          return grab(frame);  
      }  
    
@@ -57,8 +78,228 @@ public class EV3Video implements Video {
       * @throws java.io.IOException
       */
      public void close() throws java.io.IOException {  
-         dispose();  
+         if (streaming)
+             closeStream();
+         else
+             dispose();  
      }  
+
+     /**
+      * Start capturing frames into a ring of memory mapped driver buffers.
+      * The device must have been opened, the frame size, format and rate
+      * requested by open are used.
+      * @param bufferCount the number of buffers to request
+      * @throws java.io.IOException
+      */
+     public synchronized void startStreaming(int bufferCount) throws java.io.IOException {
+         if (streaming)
+             return;
+         if (bufferCount < 2)
+             throw new IllegalArgumentException("Invalid buffer count " + bufferCount);
+         // the native library holds the device, release it
+         dispose();
+         try {
+             dev = new NativeDevice(DEVICE);
+         } catch (IOError e) {
+             bufferSize = setup();
+             throw new IOException("Unable to open " + DEVICE, e);
+         }
+         try {
+             setFormat();
+             requestBuffers(bufferCount);
+             byte[] streamType = typeArg();
+             ioctl(VIDIOC_STREAMON, streamType, "VIDIOC_STREAMON");
+         } catch (IOException e) {
+             releaseBuffers();
+             dev.close();
+             dev = null;
+             bufferSize = setup();
+             throw e;
+         }
+         lastSequence = -1;
+         dropped = 0;
+         streaming = true;
+     }
+
+     /**
+      * Stop capturing frames and return to single frame capture using the
+      * native library. Frames obtained from the ring must not be used after
+      * this call.
+      * @throws java.io.IOException
+      */
+     public synchronized void stopStreaming() throws java.io.IOException {
+         if (!streaming)
+             return;
+         closeStream();
+         bufferSize = setup();
+     }
+
+     public boolean isStreaming() {
+         return streaming;
+     }
+
+     /**
+      * Wait for the next frame to be captured and return it without copying
+      * the data. The frame must be returned using requeueFrame.
+      * @return the frame
+      * @throws java.io.IOException
+      */
+     public VideoFrame dequeueFrame() throws java.io.IOException {
+         if (!streaming)
+             throw new IllegalStateException("Not streaming");
+         // dequeue without holding the lock, the ioctl blocks until a frame is ready
+         byte[] b = new byte[V4L2_BUFFER_SIZE];
+         ByteBuffer buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+         buf.putInt(BUF_TYPE, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+         buf.putInt(BUF_MEMORY, V4L2_MEMORY_MMAP);
+         ioctl(VIDIOC_DQBUF, b, "VIDIOC_DQBUF");
+         int index = buf.getInt(BUF_INDEX);
+         int used = buf.getInt(BUF_BYTESUSED);
+         long timeStamp = (buf.getInt(BUF_TIMESTAMP) & 0xffffffffL)*1000000L + (buf.getInt(BUF_TIMESTAMP + 4) & 0xffffffffL);
+         int sequence = buf.getInt(BUF_SEQUENCE);
+         synchronized (this) {
+             if (!streaming)
+                 throw new IOException("Streaming stopped");
+             if (lastSequence >= 0 && sequence - lastSequence > 1)
+                 dropped += sequence - lastSequence - 1;
+             lastSequence = sequence;
+             dequeued[index] = true;
+             ByteBuffer data = buffers[index];
+             data.clear();
+             data.limit(Math.min(used, data.capacity()));
+             return new VideoFrame(index, data, timeStamp, sequence);
+         }
+     }
+
+     /**
+      * Return a frame to the driver so the buffer can be reused.
+      * @param frame the frame
+      * @throws java.io.IOException
+      */
+     public synchronized void requeueFrame(VideoFrame frame) throws java.io.IOException {
+         if (!streaming)
+             return;
+         int index = frame.getIndex();
+         if (index < 0 || index >= buffers.length || !dequeued[index])
+             throw new IllegalArgumentException("Frame is not dequeued");
+         queueBuffer(index);
+         dequeued[index] = false;
+     }
+
+     /**
+      * Return the number of frames dropped by the driver since streaming
+      * started, detected from gaps in the frame sequence numbers.
+      * @return the dropped frame count
+      */
+     public synchronized long getDroppedFrames() {
+         return dropped;
+     }
+
+     private void closeStream() throws IOException {
+         streaming = false;
+         try {
+             ioctl(VIDIOC_STREAMOFF, typeArg(), "VIDIOC_STREAMOFF");
+         } finally {
+             releaseBuffers();
+             dev.close();
+             dev = null;
+         }
+     }
+
+     // Set the frame size, format and rate, and read back the values used
+     private void setFormat() throws IOException {
+         byte[] b = new byte[V4L2_FORMAT_SIZE];
+         ByteBuffer buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+         buf.putInt(0, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+         buf.putInt(FMT_WIDTH, width);
+         buf.putInt(FMT_HEIGHT, height);
+         buf.putInt(FMT_PIXELFORMAT, format);
+         buf.putInt(FMT_FIELD, field);
+         ioctl(VIDIOC_S_FMT, b, "VIDIOC_S_FMT");
+         width = buf.getInt(FMT_WIDTH);
+         height = buf.getInt(FMT_HEIGHT);
+         bufferSize = buf.getInt(FMT_SIZEIMAGE);
+         if (fps > 0) {
+             b = new byte[V4L2_FORMAT_SIZE];
+             buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+             buf.putInt(0, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+             buf.putInt(PARM_NUMERATOR, 1);
+             buf.putInt(PARM_DENOMINATOR, fps);
+             // not all devices allow the rate to be set, so ignore errors
+             dev.ioctl(VIDIOC_S_PARM, b);
+         }
+     }
+
+     // Request the buffers, map them and queue them ready for capture
+     private void requestBuffers(int count) throws IOException {
+         byte[] b = new byte[V4L2_REQBUFS_SIZE];
+         ByteBuffer buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+         buf.putInt(0, count);
+         buf.putInt(4, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+         buf.putInt(8, V4L2_MEMORY_MMAP);
+         ioctl(VIDIOC_REQBUFS, b, "VIDIOC_REQBUFS");
+         count = buf.getInt(0);
+         if (count < 2)
+             throw new IOException("Insufficient buffer memory");
+         buffers = new ByteBuffer[count];
+         mapped = new Pointer[count];
+         mappedLen = new int[count];
+         dequeued = new boolean[count];
+         for (int i = 0; i < count; i++) {
+             b = new byte[V4L2_BUFFER_SIZE];
+             buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+             buf.putInt(BUF_INDEX, i);
+             buf.putInt(BUF_TYPE, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+             buf.putInt(BUF_MEMORY, V4L2_MEMORY_MMAP);
+             ioctl(VIDIOC_QUERYBUF, b, "VIDIOC_QUERYBUF");
+             int len = buf.getInt(BUF_LENGTH);
+             Pointer p = dev.mmap(len, buf.getInt(BUF_OFFSET) & 0xffffffffL);
+             long addr = Pointer.nativeValue(p);
+             if (p == null || addr == -1 || addr == 0xffffffffL)
+                 throw new IOException("Unable to map buffer " + i);
+             mapped[i] = p;
+             mappedLen[i] = len;
+             buffers[i] = p.getByteBuffer(0, len);
+             queueBuffer(i);
+         }
+     }
+
+     private void queueBuffer(int index) throws IOException {
+         byte[] b = new byte[V4L2_BUFFER_SIZE];
+         ByteBuffer buf = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+         buf.putInt(BUF_INDEX, index);
+         buf.putInt(BUF_TYPE, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+         buf.putInt(BUF_MEMORY, V4L2_MEMORY_MMAP);
+         ioctl(VIDIOC_QBUF, b, "VIDIOC_QBUF");
+     }
+
+     private void releaseBuffers() {
+         if (mapped != null)
+             for (int i = 0; i < mapped.length; i++)
+                 if (mapped[i] != null)
+                     dev.munmap(mapped[i], mappedLen[i]);
+         mapped = null;
+         buffers = null;
+         dequeued = null;
+     }
+
+     private static byte[] typeArg() {
+         byte[] b = new byte[4];
+         ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).putInt(0, V4L2_BUF_TYPE_VIDEO_CAPTURE);
+         return b;
+     }
+
+     private void ioctl(int req, byte[] arg, String name) throws IOException {
+         NativeDevice d = dev;
+         if (d == null)
+             throw new IOException("Device is closed");
+         int ret;
+         do {
+             ret = d.ioctl(req, arg);
+         } while (ret < 0 && Native.getLastError() == EINTR);
+         if (ret < 0)
+             throw new IOException(name + " failed errno " + Native.getLastError());
+     }
        
      // Three native method stubs, all private:  
    
@@ -76,6 +317,51 @@ public class EV3Video implements Video {
      private int format, field;
      private int bufferSize;
      private int fps;
+
+     // V4L2 streaming interface, structure layouts are those of the 32 bit
+     // ARM kernel used by the EV3
+     private static final String DEVICE = "/dev/video0";
+     private static final int EINTR = 4;
+     private static final int V4L2_BUF_TYPE_VIDEO_CAPTURE = 1;
+     private static final int V4L2_MEMORY_MMAP = 1;
+     private static final int V4L2_FORMAT_SIZE = 204;
+     private static final int V4L2_REQBUFS_SIZE = 20;
+     private static final int V4L2_BUFFER_SIZE = 68;
+     private static final int VIDIOC_S_FMT = 0xc0cc5605;
+     private static final int VIDIOC_REQBUFS = 0xc0145608;
+     private static final int VIDIOC_QUERYBUF = 0xc0445609;
+     private static final int VIDIOC_QBUF = 0xc044560f;
+     private static final int VIDIOC_DQBUF = 0xc0445611;
+     private static final int VIDIOC_STREAMON = 0x40045612;
+     private static final int VIDIOC_STREAMOFF = 0x40045613;
+     private static final int VIDIOC_S_PARM = 0xc0cc5616;
+     // struct v4l2_format offsets
+     private static final int FMT_WIDTH = 4;
+     private static final int FMT_HEIGHT = 8;
+     private static final int FMT_PIXELFORMAT = 12;
+     private static final int FMT_FIELD = 16;
+     private static final int FMT_SIZEIMAGE = 24;
+     // struct v4l2_streamparm offsets
+     private static final int PARM_NUMERATOR = 12;
+     private static final int PARM_DENOMINATOR = 16;
+     // struct v4l2_buffer offsets
+     private static final int BUF_INDEX = 0;
+     private static final int BUF_TYPE = 4;
+     private static final int BUF_BYTESUSED = 8;
+     private static final int BUF_TIMESTAMP = 20;
+     private static final int BUF_SEQUENCE = 44;
+     private static final int BUF_MEMORY = 48;
+     private static final int BUF_OFFSET = 52;
+     private static final int BUF_LENGTH = 56;
+
+     private NativeDevice dev;
+     private volatile boolean streaming = false;
+     private ByteBuffer[] buffers;
+     private Pointer[] mapped;
+     private int[] mappedLen;
+     private boolean[] dequeued;
+     private int lastSequence;
+     private long dropped;
    
      // Utility methods  
      private int getBufferSize() {return bufferSize;}  
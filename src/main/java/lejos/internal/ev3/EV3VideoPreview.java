@@ -0,0 +1,337 @@
+package lejos.internal.ev3;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import lejos.hardware.video.Video;
+import lejos.hardware.video.YUYVUtils;
+import lejos.internal.ev3.EV3LCDManager.LCDLayer;
+
+/**
+ * Shows a live preview of a YUYV video device on the LCD.<br>
+ * Frames are scaled and dithered straight into the frame buffer of an LCD
+ * layer, and only the rows covered by the preview are refreshed. Capture
+ * and drawing run on separate threads, the drawing thread always uses the
+ * most recent frame so if drawing falls behind the camera older frames are
+ * dropped rather than queued. Other layers are drawn over the preview, so
+ * text or markers can be shown on top of it.<br>
+ * For the best frame rate the device should be put into streaming mode
+ * using {@link Video#startStreaming(int)} before the preview is started.
+ */
+public class EV3VideoPreview
+{
+    public static final int DITHER_ORDERED = 0;
+    public static final int DITHER_FLOYD_STEINBERG = 1;
+
+    private final Video video;
+    private final LCDLayer layer;
+    private final int width;
+    private final int height;
+    private int dither = DITHER_ORDERED;
+    private int winX, winY, winW, winH;
+    private int[] err;
+
+    // frame being captured, most recent frame and frame being drawn
+    private byte[] capture;
+    private byte[] latest;
+    private byte[] drawing;
+    private boolean fresh = false;
+    private volatile boolean running = false;
+    private IOException failure;
+    private Thread capturer;
+    private Thread drawer;
+
+    private long captured = 0;
+    private long drawn = 0;
+    private long dropped = 0;
+    private long rateStart;
+    private long rateFrames;
+    private float frameRate = 0;
+
+    /**
+     * Create a preview of a video device. The device must be open and use
+     * the YUYV pixel format. The preview is scaled to fit the screen.
+     * @param video the video device
+     * @param layer the LCD layer to draw into
+     */
+    public EV3VideoPreview(Video video, LCDLayer layer)
+    {
+        this.video = video;
+        this.layer = layer;
+        width = video.getWidth();
+        height = video.getHeight();
+        // fit the screen keeping the aspect ratio
+        int w = EV3LCD.SCREEN_WIDTH;
+        int h = height*w/width;
+        if (h > EV3LCD.SCREEN_HEIGHT)
+        {
+            h = EV3LCD.SCREEN_HEIGHT;
+            w = width*h/height;
+        }
+        setWindow((EV3LCD.SCREEN_WIDTH - w)/2, (EV3LCD.SCREEN_HEIGHT - h)/2, w, h);
+    }
+
+    /**
+     * Set the area of the screen used for the preview.
+     * @param x x position of the preview
+     * @param y y position of the preview
+     * @param w width of the preview
+     * @param h height of the preview
+     */
+    public synchronized void setWindow(int x, int y, int w, int h)
+    {
+        if (w <= 0 || h <= 0)
+            throw new IllegalArgumentException("Invalid size " + w + "x" + h);
+        winX = x;
+        winY = y;
+        winW = w;
+        winH = h;
+        err = new int[2*(w + 2)];
+    }
+
+    /**
+     * Set the dithering method used to draw the preview.
+     * @param dither {@link #DITHER_ORDERED} or {@link #DITHER_FLOYD_STEINBERG}
+     */
+    public synchronized void setDither(int dither)
+    {
+        if (dither != DITHER_ORDERED && dither != DITHER_FLOYD_STEINBERG)
+            throw new IllegalArgumentException("Invalid dither " + dither);
+        this.dither = dither;
+    }
+
+    public synchronized int getDither()
+    {
+        return dither;
+    }
+
+    /**
+     * Open the layer and start the preview.
+     */
+    public synchronized void start()
+    {
+        if (running)
+            return;
+        layer.open();
+        capture = video.createFrame();
+        latest = video.createFrame();
+        drawing = video.createFrame();
+        fresh = false;
+        failure = null;
+        captured = drawn = dropped = 0;
+        rateStart = System.currentTimeMillis();
+        rateFrames = 0;
+        frameRate = 0;
+        running = true;
+        capturer = new Capturer();
+        drawer = new Drawer();
+        capturer.start();
+        drawer.start();
+    }
+
+    /**
+     * Stop the preview and close the layer. The video device is left open.
+     * @throws IOException if capturing frames failed
+     */
+    public void stop() throws IOException
+    {
+        Thread c, d;
+        synchronized (this)
+        {
+            if (capturer == null)
+                return;
+            running = false;
+            c = capturer;
+            d = drawer;
+            capturer = null;
+            drawer = null;
+            notifyAll();
+        }
+        try
+        {
+            // the capture thread may be blocked in the driver, let it finish
+            c.join();
+            d.interrupt();
+            d.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        layer.close();
+        synchronized (this)
+        {
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Return the number of frames drawn each second, measured over the last
+     * second.
+     * @return frames per second
+     */
+    public synchronized float getFrameRate()
+    {
+        return frameRate;
+    }
+
+    /**
+     * Return the number of frames captured since the preview was started.
+     * @return frame count
+     */
+    public synchronized long getFramesCaptured()
+    {
+        return captured;
+    }
+
+    /**
+     * Return the number of frames drawn since the preview was started.
+     * @return frame count
+     */
+    public synchronized long getFramesDrawn()
+    {
+        return drawn;
+    }
+
+    /**
+     * Return the number of captured frames that were not drawn because a
+     * newer frame arrived first.
+     * @return frame count
+     */
+    public synchronized long getFramesDropped()
+    {
+        return dropped;
+    }
+
+    /**
+     * Capture a frame and make it the most recent one.
+     */
+    private void captureFrame() throws IOException
+    {
+        video.grabFrame(capture);
+        synchronized (this)
+        {
+            byte[] t = latest;
+            latest = capture;
+            capture = t;
+            captured++;
+            if (fresh)
+                dropped++;
+            fresh = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for a new frame and draw it into the layer.
+     * @return a future that completes when the frame is on the screen
+     */
+    private Future<Void> drawFrame() throws InterruptedException
+    {
+        int x, y, w, h, d;
+        int[] e;
+        synchronized (this)
+        {
+            while (!fresh && running)
+                wait();
+            if (!running)
+                return null;
+            byte[] t = drawing;
+            drawing = latest;
+            latest = t;
+            fresh = false;
+            x = winX; y = winY; w = winW; h = winH; d = dither; e = err;
+        }
+        byte[] buf = layer.getDisplay();
+        // hold the damage lock so the frame is not swapped half drawn
+        synchronized (layer.damageLock)
+        {
+            if (d == DITHER_FLOYD_STEINBERG)
+                YUYVUtils.ditherFloydSteinberg(drawing, width, height, buf, EV3LCD.SCREEN_WIDTH,
+                        EV3LCD.SCREEN_HEIGHT, x, y, w, h, e);
+            else
+                YUYVUtils.ditherOrdered(drawing, width, height, buf, EV3LCD.SCREEN_WIDTH,
+                        EV3LCD.SCREEN_HEIGHT, x, y, w, h);
+        }
+        layer.markDirty(y, h);
+        Future<Void> f = layer.refreshAsync();
+        synchronized (this)
+        {
+            drawn++;
+            rateFrames++;
+            long now = System.currentTimeMillis();
+            if (now - rateStart >= 1000)
+            {
+                frameRate = rateFrames*1000f/(now - rateStart);
+                rateStart = now;
+                rateFrames = 0;
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Thread used to capture frames as fast as the device delivers them.
+     */
+    private class Capturer extends Thread
+    {
+        Capturer()
+        {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (running)
+                    captureFrame();
+            } catch (IOException e)
+            {
+                synchronized (EV3VideoPreview.this)
+                {
+                    failure = e;
+                    running = false;
+                    EV3VideoPreview.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread used to draw the most recent frame. Each frame is drawn once
+     * the previous one is on the screen, so the preview never runs ahead of
+     * the display.
+     */
+    private class Drawer extends Thread
+    {
+        Drawer()
+        {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Future<Void> f;
+                while ((f = drawFrame()) != null)
+                    f.get();
+            } catch (InterruptedException e)
+            {
+                // stopped
+            } catch (ExecutionException e)
+            {
+                // can not happen
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package lejos.internal.ev3;
+
+import java.util.WeakHashMap;
+
+import lejos.hardware.lcd.CommonLCD;
+import lejos.hardware.lcd.Font;
+
+/**
+ * Holds the glyphs of a font pre-shifted for each of the 8 bit alignments,
+ * and draws runs of text using them.<br>
+ * A run is drawn by OR'ing the shifted glyphs into a line buffer, then
+ * combining the buffer with the destination using the raster operation, so
+ * each destination byte is written once per scan line however many glyphs
+ * it holds. The shifted glyphs are created the first time each character
+ * is drawn at each alignment.<br>
+ * The caches are held in a WeakHashMap keyed by the font, so a cache must
+ * not refer to its font or the font could never be discarded. The font is
+ * passed to each call instead.
+ */
+class GlyphCache
+{
+    private static final WeakHashMap<Font, GlyphCache> caches = new WeakHashMap<Font, GlyphCache>();
+
+    private final int gw;
+    private final int gh;
+    private final int span;
+    // shifted glyphs indexed by (char - first)*8 + shift
+    private final byte[][] shifted;
+    // line buffer and coverage mask used while drawing
+    private byte[] runBuf = new byte[0];
+    private byte[] covBuf = new byte[0];
+
+    private GlyphCache(Font font)
+    {
+        gw = font.glyphWidth;
+        gh = font.height;
+        span = (gw*font.glyphCount + 7)/8;
+        shifted = new byte[font.glyphCount*8][];
+    }
+
+    /**
+     * Return the glyph cache for a font, creating it if needed.
+     * @param font the font
+     * @return the cache
+     */
+    static GlyphCache getCache(Font font)
+    {
+        synchronized (caches)
+        {
+            GlyphCache c = caches.get(font);
+            if (c == null)
+            {
+                c = new GlyphCache(font);
+                caches.put(font, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Return a glyph moved right by the given number of pixels. Each scan line
+     * of the result is (shift + glyphWidth + 7)/8 bytes.
+     */
+    private byte[] getGlyph(Font font, int index, int shift)
+    {
+        byte[] g = shifted[index*8 + shift];
+        if (g == null)
+        {
+            int nb = (shift + gw + 7) >> 3;
+            g = new byte[nb*gh];
+            int sx = index*gw;
+            for (int row = 0; row < gh; row++)
+                for (int px = 0; px < gw; px++)
+                {
+                    int bit = sx + px;
+                    if ((font.glyphs[row*span + (bit >> 3)] & (1 << (bit & 7))) != 0)
+                    {
+                        int out = shift + px;
+                        g[row*nb + (out >> 3)] |= (byte)(1 << (out & 7));
+                    }
+                }
+            shifted[index*8 + shift] = g;
+        }
+        return g;
+    }
+
+    /**
+     * Set a range of bits in a mask.
+     */
+    private static void setBits(byte[] mask, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+            mask[i >> 3] |= (byte)(1 << (i & 7));
+    }
+
+    /**
+     * Draw a run of characters. Characters that are not in the font are not
+     * drawn. The result is the same as drawing each glyph in turn using
+     * bitBlt, as long as the cell width is not less than the glyph width.
+     * @param font the font the cache was created for
+     * @param chars the characters
+     * @param offset the first character to draw
+     * @param len the number of characters to draw
+     * @param cellWidth the distance between the characters
+     * @param dst the destination image
+     * @param dw the width of the destination
+     * @param dh the height of the destination
+     * @param x x position of the first character
+     * @param y y position of the top of the characters
+     * @param rop raster operation
+     */
+    synchronized void draw(Font font, char[] chars, int offset, int len, int cellWidth,
+            byte[] dst, int dw, int dh, int x, int y, int rop)
+    {
+        if (len <= 0)
+            return;
+        // Clip to the destination
+        int x0 = Math.max(x, 0);
+        int x1 = Math.min(x + (len - 1)*cellWidth + gw, dw);
+        int y0 = Math.max(y, 0);
+        int y1 = Math.min(y + gh, dh);
+        if (x0 >= x1 || y0 >= y1)
+            return;
+        int base = x0 & ~7;
+        int nb = ((x1 - base) + 7) >> 3;
+        int rows = y1 - y0;
+        if (runBuf.length < nb*rows)
+            runBuf = new byte[nb*rows];
+        if (covBuf.length < nb)
+            covBuf = new byte[nb];
+        byte[] run = runBuf;
+        byte[] cov = covBuf;
+        for (int i = 0; i < nb*rows; i++)
+            run[i] = 0;
+        for (int i = 0; i < nb; i++)
+            cov[i] = 0;
+        // OR the glyphs into the line buffer
+        int first = font.firstChar;
+        for (int i = 0; i < len; i++)
+        {
+            int index = chars[offset + i] - first;
+            int gx = x + i*cellWidth;
+            if (index < 0 || index >= font.glyphCount || gx + gw <= x0 || gx >= x1)
+                continue;
+            setBits(cov, Math.max(gx, x0) - base, Math.min(gx + gw, x1) - base);
+            int p = gx - base;
+            int shift = p & 7;
+            int bo = p >> 3;
+            byte[] g = getGlyph(font, index, shift);
+            int gnb = (shift + gw + 7) >> 3;
+            int kStart = Math.max(0, -bo);
+            int kEnd = Math.min(gnb, nb - bo);
+            for (int row = 0; row < rows; row++)
+            {
+                int gi = (row + y0 - y)*gnb;
+                int ri = row*nb + bo;
+                for (int k = kStart; k < kEnd; k++)
+                    run[ri + k] |= g[gi + k];
+            }
+        }
+        // Combine the line buffer with the destination
+        int dwb = (dw + 7)/8;
+        int ca1 = rop >> 24;
+        int cx1 = rop >> 16;
+        int ca2 = rop >> 8;
+        int cx2 = rop;
+        for (int row = 0; row < rows; row++)
+        {
+            int ri = row*nb;
+            int di = (y0 + row)*dwb + (base >> 3);
+            if (rop == CommonLCD.ROP_OR)
+            {
+                for (int k = 0; k < nb; k++)
+                    dst[di + k] |= run[ri + k] & cov[k];
+            }
+            else
+                for (int k = 0; k < nb; k++)
+                {
+                    int m = cov[k];
+                    if (m == 0)
+                        continue;
+                    int s = run[ri + k];
+                    int d = dst[di + k];
+                    int r = (d & ((s & ca1) ^ cx1)) ^ ((s & ca2) ^ cx2);
+                    dst[di + k] = (byte)((d & ~m) | (r & m));
+                }
+        }
+    }
+}
@@ -39,4 +39,16 @@ public class NativeDevice extends NativeFile
     {
         return super.mmap(len, PROT_READ | PROT_WRITE, MAP_SHARED, 0);
     }
+
+    /**
+     * Map a portion of the device starting at the given offset into memory
+     * and return a pointer which can be used to read/write the device.
+     * @param len number of bytes to map
+     * @param off offset of the region within the device
+     * @return a pointer that can be used to access the device memory
+     */
+    public Pointer mmap(long len, long off)
+    {
+        return super.mmap(len, PROT_READ | PROT_WRITE, MAP_SHARED, off);
+    }
 }
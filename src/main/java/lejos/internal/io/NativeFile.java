@@ -63,6 +63,7 @@ public class NativeFile
         
         native public Pointer mmap(Pointer addr, NativeLong len, int prot, int flags, int fd,
                 NativeLong off);
+        native public int munmap(Pointer addr, NativeLong len);
 
         static {
             try {
@@ -241,4 +242,15 @@ public class NativeFile
         return p;
     }
 
+    /**
+     * Remove a memory mapping created by mmap.
+     * @param p pointer returned by mmap
+     * @param len size of the mapped region
+     * @return Linux style return
+     */
+    public int munmap(Pointer p, long len)
+    {
+        return clib.munmap(p, new NativeLong(len));
+    }
+
 }
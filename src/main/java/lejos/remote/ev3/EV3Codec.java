@@ -0,0 +1,707 @@
+package lejos.remote.ev3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import lejos.hardware.lcd.Image;
+
+/**
+ * Compact binary encoding of {@link EV3Request} and {@link EV3Reply} objects.
+ * This is an alternative to sending the objects using Java serialization,
+ * which resends the class descriptors and every field (most of which are
+ * unused) for each request.
+ * <p>
+ * Each message is sent as a frame:
+ * <code><pre>
+ *   length (int, bytes following)
+ *   version (byte)
+ *   kind (byte, request or reply)
+ *   request type (short, requests only)
+ *   fields...
+ * </pre></code>
+ * Fields are encoded as tag, length, value. Only fields that do not have
+ * their default value are sent. Unknown tags are skipped, so new fields can
+ * be added without breaking older readers. The encoder and decoder reuse
+ * their buffers, so once they have grown to the size of the largest message
+ * no further allocation takes place (other than for array and string
+ * payloads).
+ * <p>
+ * Requests and replies may optionally carry a stream id and a sequence
+ * number, these are used to multiplex several independent streams of
+ * requests over a single connection (see {@link RemoteRequestMultiplexer}).
+ * A reply carries the ids of the request it answers.
+ * <p>
+ * One codec should be used for each connection; the read and write sides
+ * may be used by different threads, but each side must only be used by one
+ * thread at a time.
+ */
+public class EV3Codec {
+	public static final int VERSION = 1;
+
+	static final int KIND_REQUEST = 1;
+	static final int KIND_REPLY = 2;
+
+	// Request field tags
+	static final int T_REPLY_REQUIRED = 1;
+	static final int T_INT_VALUE = 2; // intValue .. intValue11 use tags 2-12
+	static final int T_FILE = 13;
+	static final int T_BYTE_DATA = 14;
+	static final int T_BYTE_DATA2 = 15;
+	static final int T_INT_DATA = 16;
+	static final int T_FLAG = 17;
+	static final int T_STR = 18; // str .. str4 use tags 18-21
+	static final int T_CH = 22;
+	static final int T_CHARS = 23;
+	static final int T_IMAGE = 24;
+	static final int T_DOUBLE_VALUE = 25;
+	static final int T_DOUBLE_VALUE2 = 26;
+	static final int T_FLOAT_VALUE = 27;
+	static final int T_STREAM_ID = 28;
+	static final int T_SEQUENCE = 29;
+
+	// Reply field tags
+	static final int T_NAMES = 1;
+	static final int T_VALUE = 2;
+	static final int T_RESULT = 3;
+	static final int T_REPLY = 4;
+	static final int T_FLOAT_REPLY = 5;
+	static final int T_CONTENTS = 6;
+	static final int T_NAME = 7;
+	static final int T_FLOATS = 8;
+	static final int T_SHORTS = 9;
+	static final int T_DOUBLE_REPLY = 10;
+	static final int T_EXCEPTION = 11;
+	static final int T_REPLY_STREAM_ID = 12;
+	static final int T_REPLY_SEQUENCE = 13;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	// largest frame accepted, protects against corrupt length headers
+	static final int MAX_FRAME_LENGTH = 8*1024*1024;
+	static final EV3Request.Request[] REQUESTS = EV3Request.Request.values();
+
+	private final InputStream in;
+	private final OutputStream out;
+	// encoder state
+	private byte[] wbuf = new byte[256];
+	private int wpos;
+	// decoder state
+	private byte[] rbuf = new byte[256];
+	private int rpos;
+	private int rend;
+	private int rstream;
+	private int rsequence;
+	// statistics
+	private long bytesWritten;
+	private long bytesRead;
+
+	public EV3Codec(InputStream in, OutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	/**
+	 * Write a request to the output stream.
+	 * @param req the request
+	 * @throws IOException
+	 */
+	public void writeRequest(EV3Request req) throws IOException {
+		writeRequest(req, 0, 0);
+	}
+
+	/**
+	 * Write a request tagged with a stream id and sequence number to the
+	 * output stream.
+	 * @param req the request
+	 * @param stream the stream id
+	 * @param sequence the sequence number
+	 * @throws IOException
+	 */
+	public void writeRequest(EV3Request req, int stream, int sequence) throws IOException {
+		startFrame(KIND_REQUEST);
+		putShort(req.request.ordinal());
+		putIntField(T_STREAM_ID, stream);
+		putIntField(T_SEQUENCE, sequence);
+		if (req.replyRequired) putBooleanField(T_REPLY_REQUIRED, true);
+		putIntField(T_INT_VALUE, req.intValue);
+		putIntField(T_INT_VALUE + 1, req.intValue2);
+		putIntField(T_INT_VALUE + 2, req.intValue3);
+		putIntField(T_INT_VALUE + 3, req.intValue4);
+		putIntField(T_INT_VALUE + 4, req.intValue5);
+		putIntField(T_INT_VALUE + 5, req.intValue6);
+		putIntField(T_INT_VALUE + 6, req.intValue7);
+		putIntField(T_INT_VALUE + 7, req.intValue8);
+		putIntField(T_INT_VALUE + 8, req.intValue9);
+		putIntField(T_INT_VALUE + 9, req.intValue10);
+		putIntField(T_INT_VALUE + 10, req.intValue11);
+		if (req.file != null) putStringField(T_FILE, req.file.getPath());
+		putBytesField(T_BYTE_DATA, req.byteData);
+		putBytesField(T_BYTE_DATA2, req.byteData2);
+		if (req.intData != null) {
+			putHeader(T_INT_DATA, req.intData.length*4);
+			for(int v : req.intData) putInt(v);
+		}
+		if (req.flag) putBooleanField(T_FLAG, true);
+		putStringField(T_STR, req.str);
+		putStringField(T_STR + 1, req.str2);
+		putStringField(T_STR + 2, req.str3);
+		putStringField(T_STR + 3, req.str4);
+		if (req.ch != 0) {
+			putHeader(T_CH, 2);
+			putShort(req.ch);
+		}
+		if (req.chars != null) {
+			putHeader(T_CHARS, req.chars.length*2);
+			for(char c : req.chars) putShort(c);
+		}
+		if (req.image != null) {
+			byte[] data = req.image.getData();
+			putHeader(T_IMAGE, 8 + data.length);
+			putInt(req.image.getWidth());
+			putInt(req.image.getHeight());
+			putBytes(data, data.length);
+		}
+		putDoubleField(T_DOUBLE_VALUE, req.doubleValue);
+		putDoubleField(T_DOUBLE_VALUE2, req.doubleValue2);
+		if (req.floatValue != 0) {
+			putHeader(T_FLOAT_VALUE, 4);
+			putInt(Float.floatToIntBits(req.floatValue));
+		}
+		endFrame();
+	}
+
+	/**
+	 * Read a request from the input stream.
+	 * @param req request object to fill in, or null to allocate a new one.
+	 * All of the fields are reset before the request is decoded.
+	 * @return the request
+	 * @throws IOException
+	 */
+	public EV3Request readRequest(EV3Request req) throws IOException {
+		readFrame(KIND_REQUEST);
+		if (req == null)
+			req = new EV3Request();
+		else
+			clear(req);
+		int type = getShort();
+		if (type >= REQUESTS.length)
+			throw new IOException("Unknown request type " + type);
+		req.request = REQUESTS[type];
+		rstream = 0;
+		rsequence = 0;
+		while (rpos < rend) {
+			int tag = getByte();
+			int len = getLength();
+			need(len);
+			int end = rpos + len;
+			switch(tag) {
+			case T_REPLY_REQUIRED: req.replyRequired = getBoolean(len); break;
+			case T_INT_VALUE: req.intValue = getInt(len); break;
+			case T_INT_VALUE + 1: req.intValue2 = getInt(len); break;
+			case T_INT_VALUE + 2: req.intValue3 = getInt(len); break;
+			case T_INT_VALUE + 3: req.intValue4 = getInt(len); break;
+			case T_INT_VALUE + 4: req.intValue5 = getInt(len); break;
+			case T_INT_VALUE + 5: req.intValue6 = getInt(len); break;
+			case T_INT_VALUE + 6: req.intValue7 = getInt(len); break;
+			case T_INT_VALUE + 7: req.intValue8 = getInt(len); break;
+			case T_INT_VALUE + 8: req.intValue9 = getInt(len); break;
+			case T_INT_VALUE + 9: req.intValue10 = getInt(len); break;
+			case T_INT_VALUE + 10: req.intValue11 = getInt(len); break;
+			case T_FILE: req.file = new File(getString(len)); break;
+			case T_BYTE_DATA: req.byteData = getBytes(len); break;
+			case T_BYTE_DATA2: req.byteData2 = getBytes(len); break;
+			case T_INT_DATA:
+				checkMultiple(len, 4);
+				req.intData = new int[len/4];
+				for(int i = 0; i < req.intData.length; i++) req.intData[i] = getInt();
+				break;
+			case T_FLAG: req.flag = getBoolean(len); break;
+			case T_STR: req.str = getString(len); break;
+			case T_STR + 1: req.str2 = getString(len); break;
+			case T_STR + 2: req.str3 = getString(len); break;
+			case T_STR + 3: req.str4 = getString(len); break;
+			case T_CH:
+				checkLength(len, 2);
+				req.ch = (char)getShort();
+				break;
+			case T_CHARS:
+				checkMultiple(len, 2);
+				req.chars = new char[len/2];
+				for(int i = 0; i < req.chars.length; i++) req.chars[i] = (char)getShort();
+				break;
+			case T_IMAGE:
+				if (len < 8)
+					throw new IOException("Invalid image field");
+				int w = getInt();
+				int h = getInt();
+				// the data must match the size, or the image would fail when drawn
+				if (w < 0 || h < 0 || (w + 7L)/8*h != len - 8)
+					throw new IOException("Invalid image size " + w + "x" + h);
+				req.image = new Image(w, h, getBytes(len - 8));
+				break;
+			case T_DOUBLE_VALUE: req.doubleValue = getDouble(len); break;
+			case T_DOUBLE_VALUE2: req.doubleValue2 = getDouble(len); break;
+			case T_FLOAT_VALUE: req.floatValue = getFloat(len); break;
+			case T_STREAM_ID: rstream = getInt(len); break;
+			case T_SEQUENCE: rsequence = getInt(len); break;
+			default:
+				// unknown field, skip it
+				break;
+			}
+			rpos = end;
+		}
+		return req;
+	}
+
+	/**
+	 * Write a reply to the output stream.
+	 * @param reply the reply
+	 * @throws IOException
+	 */
+	public void writeReply(EV3Reply reply) throws IOException {
+		writeReply(reply, 0, 0);
+	}
+
+	/**
+	 * Write a reply tagged with the stream id and sequence number of the
+	 * request it answers.
+	 * @param reply the reply
+	 * @param stream the stream id
+	 * @param sequence the sequence number
+	 * @throws IOException
+	 */
+	public void writeReply(EV3Reply reply, int stream, int sequence) throws IOException {
+		startFrame(KIND_REPLY);
+		putIntField(T_REPLY_STREAM_ID, stream);
+		putIntField(T_REPLY_SEQUENCE, sequence);
+		if (reply.names != null) {
+			int start = putHeaderPlaceholder(T_NAMES);
+			putInt(reply.names.length);
+			for(String n : reply.names) {
+				byte[] b = n.getBytes(UTF8);
+				putInt(b.length);
+				putBytes(b, b.length);
+			}
+			patchLength(start);
+		}
+		putStringField(T_VALUE, reply.value);
+		if (reply.result) putBooleanField(T_RESULT, true);
+		putIntField(T_REPLY, reply.reply);
+		if (reply.floatReply != 0) {
+			putHeader(T_FLOAT_REPLY, 4);
+			putInt(Float.floatToIntBits(reply.floatReply));
+		}
+		putBytesField(T_CONTENTS, reply.contents);
+		putStringField(T_NAME, reply.name);
+		if (reply.floats != null) {
+			putHeader(T_FLOATS, reply.floats.length*4);
+			for(float f : reply.floats) putInt(Float.floatToIntBits(f));
+		}
+		if (reply.shorts != null) {
+			putHeader(T_SHORTS, reply.shorts.length*2);
+			for(short v : reply.shorts) putShort(v);
+		}
+		putDoubleField(T_DOUBLE_REPLY, reply.doubleReply);
+		if (reply.e != null) {
+			// Exceptions are rare, so simply use Java serialization for them
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bos);
+			oos.writeObject(reply.e);
+			oos.close();
+			putBytesField(T_EXCEPTION, bos.toByteArray());
+		}
+		endFrame();
+	}
+
+	/**
+	 * Read a reply from the input stream.
+	 * @param reply reply object to fill in, or null to allocate a new one.
+	 * All of the fields are reset before the reply is decoded.
+	 * @return the reply
+	 * @throws IOException
+	 */
+	public EV3Reply readReply(EV3Reply reply) throws IOException {
+		readFrame(KIND_REPLY);
+		if (reply == null)
+			reply = new EV3Reply();
+		else
+			clear(reply);
+		rstream = 0;
+		rsequence = 0;
+		while (rpos < rend) {
+			int tag = getByte();
+			int len = getLength();
+			need(len);
+			int end = rpos + len;
+			switch(tag) {
+			case T_NAMES:
+				int cnt = getInt();
+				// each name has at least a 4 byte length
+				if (cnt < 0 || cnt > (rend - rpos)/4)
+					throw new IOException("Invalid name count " + cnt);
+				reply.names = new String[cnt];
+				for(int i = 0; i < reply.names.length; i++) reply.names[i] = getString(getInt());
+				if (rpos != end)
+					throw new IOException("Invalid names field");
+				break;
+			case T_VALUE: reply.value = getString(len); break;
+			case T_RESULT: reply.result = getBoolean(len); break;
+			case T_REPLY: reply.reply = getInt(len); break;
+			case T_FLOAT_REPLY: reply.floatReply = getFloat(len); break;
+			case T_CONTENTS: reply.contents = getBytes(len); break;
+			case T_NAME: reply.name = getString(len); break;
+			case T_FLOATS:
+				checkMultiple(len, 4);
+				reply.floats = new float[len/4];
+				for(int i = 0; i < reply.floats.length; i++) reply.floats[i] = Float.intBitsToFloat(getInt());
+				break;
+			case T_SHORTS:
+				checkMultiple(len, 2);
+				reply.shorts = new short[len/2];
+				for(int i = 0; i < reply.shorts.length; i++) reply.shorts[i] = (short)getShort();
+				break;
+			case T_DOUBLE_REPLY: reply.doubleReply = getDouble(len); break;
+			case T_REPLY_STREAM_ID: rstream = getInt(len); break;
+			case T_REPLY_SEQUENCE: rsequence = getInt(len); break;
+			case T_EXCEPTION:
+				try {
+					ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(rbuf, rpos, len));
+					reply.e = (Exception) ois.readObject();
+				} catch (ClassNotFoundException e) {
+					reply.e = new RemoteRequestException("Remote exception", e);
+				}
+				break;
+			default:
+				break;
+			}
+			rpos = end;
+		}
+		return reply;
+	}
+
+	/**
+	 * Return the stream id of the last request or reply read.
+	 * @return stream id
+	 */
+	public int getStream() {
+		return rstream;
+	}
+
+	/**
+	 * Return the sequence number of the last request or reply read.
+	 * @return sequence number
+	 */
+	public int getSequence() {
+		return rsequence;
+	}
+
+	/**
+	 * Return the total number of bytes written by this codec.
+	 * @return bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Return the total number of bytes read by this codec.
+	 * @return bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Reset all of the fields of a request to their default values.
+	 */
+	static void clear(EV3Request req) {
+		req.request = null;
+		req.replyRequired = false;
+		req.intValue = req.intValue2 = req.intValue3 = req.intValue4 = req.intValue5 = req.intValue6 = 0;
+		req.intValue7 = req.intValue8 = req.intValue9 = req.intValue10 = req.intValue11 = 0;
+		req.file = null;
+		req.byteData = req.byteData2 = null;
+		req.intData = null;
+		req.flag = false;
+		req.str = req.str2 = req.str3 = req.str4 = null;
+		req.ch = 0;
+		req.chars = null;
+		req.image = null;
+		req.doubleValue = req.doubleValue2 = 0;
+		req.floatValue = 0;
+	}
+
+	/**
+	 * Reset all of the fields of a reply to their default values.
+	 */
+	static void clear(EV3Reply reply) {
+		reply.names = null;
+		reply.value = null;
+		reply.result = false;
+		reply.reply = 0;
+		reply.floatReply = 0;
+		reply.contents = null;
+		reply.name = null;
+		reply.floats = null;
+		reply.shorts = null;
+		reply.doubleReply = 0;
+		reply.e = null;
+	}
+
+	// Encoder helpers
+
+	private void ensure(int n) {
+		if (wpos + n > wbuf.length) {
+			byte[] nb = new byte[Math.max(wbuf.length*2, wpos + n)];
+			System.arraycopy(wbuf, 0, nb, 0, wpos);
+			wbuf = nb;
+		}
+	}
+
+	private void startFrame(int kind) {
+		// leave space for the frame length
+		wpos = 4;
+		putByte(VERSION);
+		putByte(kind);
+	}
+
+	private void endFrame() throws IOException {
+		int len = wpos - 4;
+		if (len > MAX_FRAME_LENGTH)
+			throw new IOException("Frame too large " + len);
+		wbuf[0] = (byte)(len >> 24);
+		wbuf[1] = (byte)(len >> 16);
+		wbuf[2] = (byte)(len >> 8);
+		wbuf[3] = (byte)len;
+		out.write(wbuf, 0, wpos);
+		out.flush();
+		bytesWritten += wpos;
+	}
+
+	private void putByte(int v) {
+		ensure(1);
+		wbuf[wpos++] = (byte)v;
+	}
+
+	private void putShort(int v) {
+		ensure(2);
+		wbuf[wpos++] = (byte)(v >> 8);
+		wbuf[wpos++] = (byte)v;
+	}
+
+	private void putInt(int v) {
+		ensure(4);
+		wbuf[wpos++] = (byte)(v >> 24);
+		wbuf[wpos++] = (byte)(v >> 16);
+		wbuf[wpos++] = (byte)(v >> 8);
+		wbuf[wpos++] = (byte)v;
+	}
+
+	private void putLong(long v) {
+		putInt((int)(v >> 32));
+		putInt((int)v);
+	}
+
+	private void putBytes(byte[] b, int len) {
+		ensure(len);
+		System.arraycopy(b, 0, wbuf, wpos, len);
+		wpos += len;
+	}
+
+	/**
+	 * Write a field header, the length is encoded using 7 bits per byte.
+	 */
+	private void putHeader(int tag, int len) {
+		putByte(tag);
+		while (len >= 0x80) {
+			putByte((len & 0x7f) | 0x80);
+			len >>>= 7;
+		}
+		putByte(len);
+	}
+
+	/**
+	 * Write a field header with a fixed size length, for fields where the
+	 * length is not known in advance.
+	 */
+	private int putHeaderPlaceholder(int tag) {
+		putByte(tag);
+		putByte(0x80);
+		putByte(0x80);
+		putByte(0x80);
+		putByte(0);
+		return wpos;
+	}
+
+	private void patchLength(int start) {
+		int len = wpos - start;
+		wbuf[start - 4] = (byte)((len & 0x7f) | 0x80);
+		wbuf[start - 3] = (byte)(((len >> 7) & 0x7f) | 0x80);
+		wbuf[start - 2] = (byte)(((len >> 14) & 0x7f) | 0x80);
+		wbuf[start - 1] = (byte)(len >> 21);
+	}
+
+	private void putIntField(int tag, int v) {
+		if (v == 0) return;
+		putHeader(tag, 4);
+		putInt(v);
+	}
+
+	private void putBooleanField(int tag, boolean v) {
+		putHeader(tag, 1);
+		putByte(v ? 1 : 0);
+	}
+
+	private void putDoubleField(int tag, double v) {
+		if (v == 0) return;
+		putHeader(tag, 8);
+		putLong(Double.doubleToLongBits(v));
+	}
+
+	private void putStringField(int tag, String s) {
+		if (s == null) return;
+		byte[] b = s.getBytes(UTF8);
+		putHeader(tag, b.length);
+		putBytes(b, b.length);
+	}
+
+	private void putBytesField(int tag, byte[] b) {
+		if (b == null) return;
+		putHeader(tag, b.length);
+		putBytes(b, b.length);
+	}
+
+	// Decoder helpers
+
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0) throw new EOFException();
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void readFrame(int kind) throws IOException {
+		readFully(rbuf, 0, 4);
+		int len = ((rbuf[0] & 0xff) << 24) | ((rbuf[1] & 0xff) << 16) | ((rbuf[2] & 0xff) << 8) | (rbuf[3] & 0xff);
+		if (len < 2 || len > MAX_FRAME_LENGTH)
+			throw new IOException("Invalid frame length " + len);
+		if (len > rbuf.length)
+			rbuf = new byte[Math.max(len, rbuf.length*2)];
+		readFully(rbuf, 0, len);
+		bytesRead += len + 4;
+		rpos = 0;
+		rend = len;
+		int version = getByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported protocol version " + version);
+		int k = getByte();
+		if (k != kind)
+			throw new IOException("Unexpected message kind " + k);
+	}
+
+	/**
+	 * Check that the frame holds at least the given number of bytes after
+	 * the current position.
+	 */
+	private void need(int n) throws IOException {
+		if (n < 0 || n > rend - rpos)
+			throw new IOException("Truncated frame");
+	}
+
+	private int getByte() throws IOException {
+		need(1);
+		return rbuf[rpos++] & 0xff;
+	}
+
+	private int getShort() throws IOException {
+		need(2);
+		int v = ((rbuf[rpos] & 0xff) << 8) | (rbuf[rpos+1] & 0xff);
+		rpos += 2;
+		return v;
+	}
+
+	private int getInt() throws IOException {
+		need(4);
+		int v = ((rbuf[rpos] & 0xff) << 24) | ((rbuf[rpos+1] & 0xff) << 16) | ((rbuf[rpos+2] & 0xff) << 8) | (rbuf[rpos+3] & 0xff);
+		rpos += 4;
+		return v;
+	}
+
+	private long getLong() throws IOException {
+		long hi = getInt();
+		return (hi << 32) | (getInt() & 0xffffffffL);
+	}
+
+	private int getLength() throws IOException {
+		int len = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift > 28)
+				throw new IOException("Invalid field length");
+			b = getByte();
+			len |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return len;
+	}
+
+	/**
+	 * Check the length of a fixed size field.
+	 */
+	private static void checkLength(int len, int size) throws IOException {
+		if (len != size)
+			throw new IOException("Invalid field length " + len + ", expected " + size);
+	}
+
+	/**
+	 * Check the length of an array field is a whole number of elements.
+	 */
+	private static void checkMultiple(int len, int size) throws IOException {
+		if (len % size != 0)
+			throw new IOException("Invalid field length " + len + ", expected a multiple of " + size);
+	}
+
+	private boolean getBoolean(int len) throws IOException {
+		checkLength(len, 1);
+		return getByte() != 0;
+	}
+
+	private int getInt(int len) throws IOException {
+		checkLength(len, 4);
+		return getInt();
+	}
+
+	private float getFloat(int len) throws IOException {
+		return Float.intBitsToFloat(getInt(len));
+	}
+
+	private double getDouble(int len) throws IOException {
+		checkLength(len, 8);
+		return Double.longBitsToDouble(getLong());
+	}
+
+	private byte[] getBytes(int len) throws IOException {
+		need(len);
+		byte[] b = new byte[len];
+		System.arraycopy(rbuf, rpos, b, 0, len);
+		rpos += len;
+		return b;
+	}
+
+	private String getString(int len) throws IOException {
+		need(len);
+		String s = new String(rbuf, rpos, len, UTF8);
+		rpos += len;
+		return s;
+	}
+}
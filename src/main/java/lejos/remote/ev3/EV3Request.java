@@ -161,7 +161,12 @@ public class EV3Request implements Serializable {
 		UART_RAW_READ,
 		UART_RAW_WRITE,
 		UART_SET_BIT_RATE,
-		UART_WRITE
+		UART_WRITE,
+		SUBSCRIBE_SAMPLES,
+		UNSUBSCRIBE_SAMPLES,
+		SET_FILTER_CHAIN,
+		LCD_GET_DISPLAY_DELTA,
+		LCD_G_DRAW_LIST
 	}
 	
 	public Request request;
@@ -0,0 +1,409 @@
+package lejos.remote.ev3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import lejos.robotics.SampleProvider;
+import lejos.robotics.filter.FilterChain;
+import lejos.robotics.filter.FilteredSampler;
+
+/**
+ * Server side of the binary request protocol. Requests are read from the
+ * connection using an {@link EV3Codec}, passed to a handler, and if the client
+ * has asked for a reply the result is sent back. Replies carry the stream id
+ * and sequence number of the request, so they can be matched to the request
+ * by {@link RemoteRequestMultiplexer}.
+ * <p>
+ * By default requests are executed one at a time by the thread calling
+ * {@link #dispatch()}, and the request and reply objects are reused for every
+ * call. In concurrent mode each stream has its own worker thread, requests on
+ * one stream are executed in order, but a slow request (e.g. waiting for a key
+ * press) does not delay requests on the other streams. In this mode the
+ * handler must be thread safe.
+ * <p>
+ * If the handler implements {@link SampleSource} the dispatcher serves
+ * SUBSCRIBE_SAMPLES requests itself: the sensor is sampled at the requested
+ * rate by a thread on the EV3 and batches of samples are pushed to the client
+ * as further replies to the subscribe request. It also serves
+ * SET_FILTER_CHAIN requests: the {@link FilterChain} is run next to the
+ * sensor and FETCH_SAMPLE and subscriptions for the port then return the
+ * filtered output.
+ */
+public class EV3RequestDispatcher {
+
+	/**
+	 * Interface implemented by the code that actually executes requests.
+	 */
+	public interface Handler {
+		/**
+		 * Execute a request.
+		 * @param req the request
+		 * @param reply reply object to fill in, all fields are reset before each call
+		 * @throws Exception any exception is returned to the client
+		 */
+		public void handleRequest(EV3Request req, EV3Reply reply) throws Exception;
+	}
+
+	/**
+	 * Optional interface implemented by a handler that allows the dispatcher
+	 * to access the sample providers that the handler has created.
+	 */
+	public interface SampleSource {
+		/**
+		 * Return the sample provider open on a sensor port.
+		 * @param portNum the port number
+		 * @return the sample provider or null if none is open
+		 */
+		public SampleProvider getSampleProvider(int portNum);
+	}
+
+	private final EV3Codec codec;
+	private final Handler handler;
+	private final EV3Request req = new EV3Request();
+	private final EV3Reply reply = new EV3Reply();
+	private final Worker[] workers;
+	private final HashMap<Integer, Streamer> streamers = new HashMap<Integer, Streamer>();
+	private final HashMap<Integer, FilteredSampler> samplers = new HashMap<Integer, FilteredSampler>();
+	private volatile long requests = 0;
+
+	public EV3RequestDispatcher(InputStream in, OutputStream out, Handler handler) {
+		this(in, out, handler, false);
+	}
+
+	/**
+	 * Create a dispatcher.
+	 * @param in stream to read requests from
+	 * @param out stream to write replies to
+	 * @param handler handler used to execute the requests
+	 * @param concurrent true to execute requests on different streams
+	 * concurrently
+	 */
+	public EV3RequestDispatcher(InputStream in, OutputStream out, Handler handler, boolean concurrent) {
+		this.codec = new EV3Codec(in, out);
+		this.handler = handler;
+		workers = concurrent ? new Worker[RemoteRequestConnection.STREAMS] : null;
+	}
+
+	/**
+	 * Read and execute a single request.
+	 * @return false if the connection has been closed
+	 * @throws IOException
+	 */
+	public boolean dispatch() throws IOException {
+		if (workers != null)
+			return queue();
+		try {
+			codec.readRequest(req);
+		} catch (EOFException e) {
+			stopStreamers();
+			return false;
+		}
+		execute(req, reply, codec.getStream(), codec.getSequence());
+		return true;
+	}
+
+	/**
+	 * Read a request and pass it to the worker for its stream.
+	 */
+	private boolean queue() throws IOException {
+		EV3Request r;
+		try {
+			r = codec.readRequest(null);
+		} catch (EOFException e) {
+			for(Worker w : workers)
+				if (w != null)
+					w.interrupt();
+			stopStreamers();
+			return false;
+		}
+		int stream = codec.getStream();
+		if (stream < 0 || stream >= workers.length)
+			stream = RemoteRequestConnection.STREAM_CONTROL;
+		if (workers[stream] == null) {
+			workers[stream] = new Worker(stream);
+			workers[stream].start();
+		}
+		workers[stream].jobs.add(new Job(r, codec.getSequence()));
+		return true;
+	}
+
+	private void execute(EV3Request r, EV3Reply rep, int stream, int seq) throws IOException {
+		Streamer streamer = null;
+		EV3Codec.clear(rep);
+		try {
+			if (!(handler instanceof SampleSource))
+				handler.handleRequest(r, rep);
+			else if (r.request == EV3Request.Request.SUBSCRIBE_SAMPLES)
+				streamer = subscribe(r, rep, stream, seq);
+			else if (!handleSampleRequest(r, rep))
+				handler.handleRequest(r, rep);
+		} catch (Exception e) {
+			EV3Codec.clear(rep);
+			rep.e = e;
+			streamer = null;
+		}
+		synchronized(codec) {
+			if (r.replyRequired)
+				codec.writeReply(rep, stream, seq);
+			requests++;
+		}
+		// Only start pushing samples once the client has the first reply
+		if (streamer != null)
+			streamer.start();
+	}
+
+	/**
+	 * Handle the requests for a sensor that has a filter chain.
+	 * @return true if the request has been handled
+	 */
+	private boolean handleSampleRequest(EV3Request r, EV3Reply rep) {
+		FilteredSampler fs;
+		switch (r.request) {
+		case UNSUBSCRIBE_SAMPLES:
+			stopStreamer(r.intValue);
+			return true;
+		case SET_FILTER_CHAIN:
+			stopStreamer(r.intValue);
+			closeSampler(r.intValue);
+			if (r.byteData != null && r.byteData.length > 0) {
+				SampleProvider sp = ((SampleSource) handler).getSampleProvider(r.intValue);
+				if (sp == null)
+					throw new IllegalStateException("No sample provider open on port " + r.intValue);
+				fs = new FilteredSampler(sp, FilterChain.fromByteArray(r.byteData));
+				synchronized(samplers) {
+					samplers.put(r.intValue, fs);
+				}
+			}
+			return true;
+		case FETCH_SAMPLE:
+			if ((fs = getSampler(r.intValue)) == null)
+				return false;
+			rep.floats = new float[fs.sampleSize()];
+			fs.fetchSample(rep.floats, 0);
+			return true;
+		case SAMPLE_SIZE:
+			if ((fs = getSampler(r.intValue)) == null)
+				return false;
+			rep.reply = fs.sampleSize();
+			return true;
+		case CLOSE_SENSOR:
+			stopStreamer(r.intValue);
+			closeSampler(r.intValue);
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	private FilteredSampler getSampler(int portNum) {
+		synchronized(samplers) {
+			return samplers.get(portNum);
+		}
+	}
+
+	private void closeSampler(int portNum) {
+		FilteredSampler fs;
+		synchronized(samplers) {
+			fs = samplers.remove(portNum);
+		}
+		if (fs != null)
+			fs.close();
+	}
+
+	private Streamer subscribe(EV3Request r, EV3Reply rep, int stream, int seq) {
+		SampleProvider sp = getSampler(r.intValue);
+		if (sp == null)
+			sp = ((SampleSource) handler).getSampleProvider(r.intValue);
+		if (sp == null)
+			throw new IllegalStateException("No sample provider open on port " + r.intValue);
+		if (r.floatValue <= 0)
+			throw new IllegalArgumentException("Invalid sample rate " + r.floatValue);
+		stopStreamer(r.intValue);
+		Streamer s = new Streamer(sp, stream, seq, r.floatValue, r.intValue2);
+		synchronized(streamers) {
+			streamers.put(r.intValue, s);
+		}
+		rep.reply = s.size;
+		return s;
+	}
+
+	private void stopStreamer(int portNum) {
+		Streamer s;
+		synchronized(streamers) {
+			s = streamers.remove(portNum);
+		}
+		if (s != null)
+			s.running = false;
+	}
+
+	private void stopStreamers() {
+		synchronized(streamers) {
+			for(Streamer s : streamers.values())
+				s.running = false;
+			streamers.clear();
+		}
+		synchronized(samplers) {
+			for(FilteredSampler fs : samplers.values())
+				fs.close();
+			samplers.clear();
+		}
+	}
+
+	/**
+	 * Execute requests until the connection is closed.
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		while (dispatch())
+			;
+	}
+
+	/**
+	 * Return the number of requests executed.
+	 * @return request count
+	 */
+	public long getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Return the codec used by this dispatcher, this can be used to obtain
+	 * the number of bytes transferred.
+	 * @return the codec
+	 */
+	public EV3Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * A request waiting to be executed
+	 */
+	private static class Job {
+		final EV3Request req;
+		final int seq;
+
+		Job(EV3Request req, int seq) {
+			this.req = req;
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * Thread used to sample a sensor and push batches of samples to the
+	 * client. Each batch holds the sample size in reply, the samples in
+	 * floats, the time of the first sample (ms) in doubleReply and the
+	 * average interval between samples (ms) in floatReply. If the sensor has
+	 * a filter chain with its own sample rate, the filtered output is sent as
+	 * it is produced and the requested rate is ignored.
+	 */
+	private class Streamer extends Thread {
+		final SampleProvider sp;
+		final int stream;
+		final int seq;
+		final int size;
+		final int batch;
+		final long period;
+		final boolean paced;
+		volatile boolean running = true;
+
+		Streamer(SampleProvider sp, int stream, int seq, float rate, int batch) {
+			this.sp = sp;
+			this.stream = stream;
+			this.seq = seq;
+			this.size = sp.sampleSize();
+			paced = (sp instanceof FilteredSampler && ((FilteredSampler) sp).getChain().getSampleRate() > 0);
+			if (paced)
+				rate = ((FilteredSampler) sp).getChain().getOutputRate();
+			// By default send a batch roughly every 10ms
+			this.batch = (batch > 0 ? batch : Math.max(1, (int)(rate/100)));
+			this.period = (long)(1000000000L/rate);
+			setDaemon(true);
+			setPriority(Thread.MAX_PRIORITY - 1);
+		}
+
+		@Override
+		public void run() {
+			EV3Reply rep = new EV3Reply();
+			float[] buf = new float[batch*size];
+			long epoch = System.currentTimeMillis()*1000000L - System.nanoTime();
+			long next = System.nanoTime();
+			try {
+				while (running) {
+					int n = 0;
+					long first = 0, last = 0;
+					while (n < batch && running) {
+						if (paced) {
+							// The filter chain sets the rate
+							if (!((FilteredSampler) sp).waitSample(buf, n*size))
+								break;
+							last = System.nanoTime();
+							if (n++ == 0) first = last;
+							continue;
+						}
+						long now = System.nanoTime();
+						if (now < next) {
+							LockSupport.parkNanos(next - now);
+							continue;
+						}
+						sp.fetchSample(buf, n*size);
+						if (n == 0) first = now;
+						last = now;
+						n++;
+						// If we have fallen behind don't try to catch up
+						next = (now - next > period ? now : next) + period;
+					}
+					if (n == 0)
+						break;
+					EV3Codec.clear(rep);
+					rep.reply = size;
+					rep.floats = (n == batch ? buf : Arrays.copyOf(buf, n*size));
+					rep.doubleReply = (epoch + first)/1000000.0;
+					rep.floatReply = (n > 1 ? (last - first)/1000000f/(n - 1) : 0);
+					synchronized(codec) {
+						codec.writeReply(rep, stream, seq);
+					}
+				}
+			} catch (IOException e) {
+				// connection closed
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (RuntimeException e) {
+				// sensor closed or failed
+			}
+		}
+	}
+
+	/**
+	 * Thread used to execute the requests for one stream in concurrent mode.
+	 */
+	private class Worker extends Thread {
+		final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+		final EV3Reply rep = new EV3Reply();
+		final int stream;
+
+		Worker(int stream) {
+			this.stream = stream;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				for(;;) {
+					Job job = jobs.take();
+					execute(job.req, rep, stream, job.seq);
+				}
+			} catch (InterruptedException e) {
+				// connection closed
+			} catch (IOException e) {
+				// connection failed, the reader will see this as well
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package lejos.remote.ev3;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the state of a remote EV3, returned by
+ * {@link RMIEV3#getState()}. It holds the state of all the regulated motors
+ * and sample providers that are open, the battery and the buttons, read at
+ * the same time on the EV3, so the client can obtain all of them with a
+ * single remote call.
+ */
+public class EV3State implements Serializable {
+	private static final long serialVersionUID = 6041784466718832301L;
+
+	/** Time on the EV3 at which the state was read, in milliseconds */
+	public long timeStamp;
+
+	/** Names of the ports with an open regulated motor */
+	public String[] motorPorts;
+	public int[] tachoCount;
+	public int[] rotationSpeed;
+	public int[] speed;
+	public boolean[] moving;
+	public boolean[] stalled;
+
+	/** Names of the ports with an open sample provider */
+	public String[] sensorPorts;
+	public float[][] samples;
+
+	public int voltageMilliVolt;
+	public float batteryCurrent;
+	public float motorCurrent;
+
+	/** The button state, as returned by {@link lejos.hardware.Keys#getButtons()} */
+	public int buttons;
+
+	/**
+	 * Return the index of the motor on a port.
+	 * @param portName the port name
+	 * @return the index or -1 if there is no open motor on the port
+	 */
+	public int getMotorIndex(String portName) {
+		return indexOf(motorPorts, portName);
+	}
+
+	/**
+	 * Return the index of the sample provider on a port.
+	 * @param portName the port name
+	 * @return the index or -1 if there is no open sample provider on the port
+	 */
+	public int getSensorIndex(String portName) {
+		return indexOf(sensorPorts, portName);
+	}
+
+	private static int indexOf(String[] names, String name) {
+		if (names != null)
+			for(int i = 0; i < names.length; i++)
+				if (names[i].equals(name))
+					return i;
+		return -1;
+	}
+}
@@ -41,4 +41,12 @@ public interface RMIEV3 extends Remote {
 
 	public RMIKeys getKeys()  throws RemoteException;
 	
+	/**
+	 * Read the state of all open regulated motors and sample providers, the
+	 * battery and the buttons in a single call.
+	 * @return the state
+	 * @throws RemoteException
+	 */
+	public EV3State getState() throws RemoteException;
+	
 }
@@ -83,6 +83,22 @@ public interface RMIGraphicsLCD extends Remote {
     
     public byte[] getHWDisplay() throws RemoteException;
     
+    /**
+     * Return the rows of the screen that have changed since a frame, in
+     * {@link lejos.hardware.lcd.LCDMirror} delta format.
+     * @param since the frame held by the client, or 0 for the whole screen
+     * @return the delta
+     * @throws RemoteException
+     */
+    public byte[] getDisplayDelta(int since) throws RemoteException;
+    
+    /**
+     * Execute a list of drawing operations and refresh the screen.
+     * @param list the command buffer from {@link lejos.hardware.lcd.DisplayList#toByteArray()}
+     * @throws RemoteException
+     */
+    public void drawList(byte[] list) throws RemoteException;
+    
     public void setContrast(int contrast) throws RemoteException;
     
     public void bitBlt(byte[] src, int sw, int sh, int sx, int sy, int dx, int dy, int w, int h, int rop) throws RemoteException;
@@ -1,7 +1,12 @@
 package lejos.remote.ev3;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.rmi.server.UnicastRemoteObject;
 
+import lejos.hardware.Power;
 import lejos.hardware.ev3.LocalEV3;
 import lejos.hardware.lcd.Font;
 import lejos.internal.ev3.EV3Key;
@@ -11,11 +16,14 @@ import lejos.remote.ev3.RMIEV3;
 import lejos.remote.ev3.RMII2CPort;
 import lejos.remote.ev3.RMIMotorPort;
 import lejos.remote.ev3.RMIUARTPort;
+import lejos.robotics.RegulatedMotor;
 
 
 public class RMIRemoteEV3 extends UnicastRemoteObject implements RMIEV3 {
 
 	private static final long serialVersionUID = -6637513883001761328L;
+	private final LinkedHashMap<String, RMIRemoteRegulatedMotor> motors = new LinkedHashMap<String, RMIRemoteRegulatedMotor>();
+	private final LinkedHashMap<String, RMIRemoteSampleProvider> providers = new LinkedHashMap<String, RMIRemoteSampleProvider>();
 
 	public RMIRemoteEV3() throws RemoteException {
 		super(0);
@@ -49,13 +57,21 @@ public class RMIRemoteEV3 extends UnicastRemoteObject implements RMIEV3 {
 	@Override
 	public RMISampleProvider createSampleProvider(String portName,
 			String sensorName, String modeName) throws RemoteException {
-		return new RMIRemoteSampleProvider(portName, sensorName, modeName);
+		RMIRemoteSampleProvider provider = new RMIRemoteSampleProvider(portName, sensorName, modeName);
+		synchronized(this) {
+			providers.put(portName, provider);
+		}
+		return provider;
 	}
 
 	@Override
 	public RMIRegulatedMotor createRegulatedMotor(String portName, char motorType)
 			throws RemoteException {
-		return new RMIRemoteRegulatedMotor(portName, motorType);
+		RMIRemoteRegulatedMotor motor = new RMIRemoteRegulatedMotor(portName, motorType);
+		synchronized(this) {
+			motors.put(portName, motor);
+		}
+		return motor;
 	}
 
 	@Override
@@ -111,4 +127,68 @@ public class RMIRemoteEV3 extends UnicastRemoteObject implements RMIEV3 {
 	public RMIKeys getKeys() throws RemoteException {
 		return new RMIRemoteKeys();
 	}
+
+	@Override
+	public synchronized EV3State getState() throws RemoteException {
+		EV3State state = new EV3State();
+		state.timeStamp = System.currentTimeMillis();
+		
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<RegulatedMotor> open = new ArrayList<RegulatedMotor>();
+		for(Iterator<Map.Entry<String, RMIRemoteRegulatedMotor>> it = motors.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, RMIRemoteRegulatedMotor> e = it.next();
+			RegulatedMotor m = e.getValue().getMotor();
+			if (m == null)
+				it.remove();
+			else {
+				names.add(e.getKey());
+				open.add(m);
+			}
+		}
+		int cnt = open.size();
+		state.motorPorts = names.toArray(new String[cnt]);
+		state.tachoCount = new int[cnt];
+		state.rotationSpeed = new int[cnt];
+		state.speed = new int[cnt];
+		state.moving = new boolean[cnt];
+		state.stalled = new boolean[cnt];
+		for(int i = 0; i < cnt; i++) {
+			RegulatedMotor m = open.get(i);
+			state.tachoCount[i] = m.getTachoCount();
+			state.rotationSpeed[i] = m.getRotationSpeed();
+			state.speed[i] = m.getSpeed();
+			state.moving[i] = m.isMoving();
+			state.stalled[i] = m.isStalled();
+		}
+		
+		names.clear();
+		ArrayList<float[]> samples = new ArrayList<float[]>();
+		for(Iterator<Map.Entry<String, RMIRemoteSampleProvider>> it = providers.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, RMIRemoteSampleProvider> e = it.next();
+			RMIRemoteSampleProvider p = e.getValue();
+			float[] sample = null;
+			if (!p.isClosed()) {
+				try {
+					sample = p.fetchSample();
+				} catch (RuntimeException ex) {
+					// sensor has been closed or has failed
+				}
+			}
+			if (sample == null)
+				it.remove();
+			else {
+				names.add(e.getKey());
+				samples.add(sample);
+			}
+		}
+		state.sensorPorts = names.toArray(new String[names.size()]);
+		state.samples = samples.toArray(new float[samples.size()][]);
+		
+		Power power = LocalEV3.get().getPower();
+		state.voltageMilliVolt = power.getVoltageMilliVolt();
+		state.batteryCurrent = power.getBatteryCurrent();
+		state.motorCurrent = power.getMotorCurrent();
+		state.buttons = LocalEV3.get().getKeys().getButtons();
+		return state;
+	}
 }
@@ -4,9 +4,11 @@ import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
 import lejos.hardware.ev3.LocalEV3;
+import lejos.hardware.lcd.DisplayList;
 import lejos.hardware.lcd.Font;
 import lejos.hardware.lcd.GraphicsLCD;
 import lejos.hardware.lcd.Image;
+import lejos.internal.ev3.EV3LCDManager;
 
 public class RMIRemoteGraphicsLCD  extends UnicastRemoteObject implements RMIGraphicsLCD {
 
@@ -197,6 +199,16 @@ public class RMIRemoteGraphicsLCD  extends UnicastRemoteObject implements RMIGra
 		return g.getHWDisplay();
 	}
 
+	@Override
+	public void drawList(byte[] list) throws RemoteException {
+		DisplayList.replay(list, g);
+	}
+
+	@Override
+	public byte[] getDisplayDelta(int since) throws RemoteException {
+		return EV3LCDManager.getLocalLCDManager().getDisplayDelta(since);
+	}
+
 	@Override
 	public void setContrast(int contrast) throws RemoteException {
 		g.setContrast(contrast);
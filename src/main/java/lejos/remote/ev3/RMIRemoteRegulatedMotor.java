@@ -16,6 +16,7 @@ import lejos.robotics.RegulatedMotorListener;
 public class RMIRemoteRegulatedMotor extends UnicastRemoteObject implements RMIRegulatedMotor {
 	private static final long serialVersionUID = 224060987071610845L;
 	private RegulatedMotor motor;
+	private volatile boolean closed = false;
 	
 	protected RMIRemoteRegulatedMotor(String portName, char motorType) throws RemoteException {
 		super(0);
@@ -120,9 +121,17 @@ public class RMIRemoteRegulatedMotor extends UnicastRemoteObject implements RMIR
 
 	@Override
 	public void close() throws RemoteException {
+		closed = true;
 		motor.close();
 	}
 
+	/**
+	 * Return the local motor, or null if the motor has been closed.
+	 */
+	RegulatedMotor getMotor() {
+		return (closed ? null : motor);
+	}
+
 	@Override
 	public void forward() throws RemoteException {
 		motor.forward();	
@@ -9,13 +9,17 @@ import lejos.hardware.ev3.LocalEV3;
 import lejos.hardware.port.Port;
 import lejos.hardware.sensor.BaseSensor;
 import lejos.robotics.SampleProvider;
+import lejos.robotics.filter.FilterChain;
+import lejos.robotics.filter.FilteredSampler;
 
 public class RMIRemoteSampleProvider extends UnicastRemoteObject implements RMISampleProvider {
 
 	private static final long serialVersionUID = -8432755905878519147L;
 	private SampleProvider provider;
+	private volatile FilteredSampler sampler;
 	private BaseSensor sensor;
 	private int sampleSize;
+	private volatile boolean closed = false;
 
 	protected RMIRemoteSampleProvider(String portName, String sensorName, String modeName) throws RemoteException {
 		super(0);
@@ -39,12 +43,27 @@ public class RMIRemoteSampleProvider extends UnicastRemoteObject implements RMIS
 	@Override
 	public float[] fetchSample() throws RemoteException {
 		float[] sample = new float[sampleSize];
-		provider.fetchSample(sample, 0);
+		FilteredSampler fs = sampler;
+		if (fs != null) fs.fetchSample(sample, 0);
+		else provider.fetchSample(sample, 0);
 		return sample;
 	}
 
+	boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void setFilterChain(FilterChain chain) throws RemoteException {
+		if (sampler != null) sampler.close();
+		sampler = (chain == null ? null : new FilteredSampler(provider, chain));
+		sampleSize = (sampler == null ? provider.sampleSize() : sampler.sampleSize());
+	}
+
 	@Override
 	public void close() throws RemoteException {
+		closed = true;
+		if (sampler != null) sampler.close();
 		if (sensor != null) sensor.close();
 	}
 }
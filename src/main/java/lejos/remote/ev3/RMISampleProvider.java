@@ -3,8 +3,18 @@ package lejos.remote.ev3;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
+import lejos.robotics.filter.FilterChain;
+
 public interface RMISampleProvider extends Remote {
 	public float[] fetchSample() throws RemoteException;
 	
+	/**
+	 * Run a chain of filters on the EV3, fetchSample will then return the
+	 * filtered output. Pass null to remove the filters.
+	 * @param chain the filters
+	 * @throws RemoteException
+	 */
+	public void setFilterChain(FilterChain chain) throws RemoteException;
+	
 	public void close() throws RemoteException;
 }
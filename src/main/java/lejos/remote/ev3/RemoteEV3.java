@@ -85,6 +85,30 @@ public class RemoteEV3 implements EV3 {
 		}
 	}
 	
+	/**
+	 * Read the state of all open regulated motors and sample providers, the
+	 * battery and the buttons with a single remote call.
+	 * @return the state
+	 */
+	public EV3State getState() {
+		try {
+			return rmiEV3.getState();
+		} catch (RemoteException e) {
+			throw new PortException(e);
+		}
+	}
+	
+	/**
+	 * Create a monitor that reads the state of the EV3 at a fixed rate.
+	 * @param period the time between reads in milliseconds
+	 * @return the monitor, which has been started
+	 */
+	public RemoteEV3Monitor createMonitor(int period) {
+		RemoteEV3Monitor monitor = new RemoteEV3Monitor(this, period);
+		monitor.start();
+		return monitor;
+	}
+	
     public Audio getAudio() {
         try {
             return new RemoteAudio(rmiEV3.getAudio());
@@ -195,5 +219,5 @@ public class RemoteEV3 implements EV3 {
 	@Override
 	public Keys getKeys() {
 		return keys;
-	}
+	}
 }
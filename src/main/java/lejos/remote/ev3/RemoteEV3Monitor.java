@@ -0,0 +1,205 @@
+package lejos.remote.ev3;
+
+import lejos.hardware.port.PortException;
+
+/**
+ * Reads the state of a {@link RemoteEV3} at a fixed rate using a single
+ * {@link RMIEV3#getState()} call, and provides local access to the most
+ * recent state. Reading a value from the monitor does not involve any
+ * remote calls, so control loops can read all of the motors and sensors as
+ * often as they like at the cost of one round trip per period.
+ * <p>
+ * Only motors created with {@link RemoteEV3#createRegulatedMotor(String, char)}
+ * and sample providers created with
+ * {@link RemoteEV3#createSampleProvider(String, String, String)} are included.
+ */
+public class RemoteEV3Monitor {
+	private final RemoteEV3 ev3;
+	private final int period;
+	private volatile EV3State state;
+	private volatile boolean running = false;
+	private PortException failure;
+	private long updates = 0;
+	private volatile Reader reader;
+
+	/**
+	 * Create a monitor, the monitor must be started before it can be used.
+	 * @param ev3 the EV3
+	 * @param period the time between reads in milliseconds
+	 */
+	public RemoteEV3Monitor(RemoteEV3 ev3, int period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Invalid period " + period);
+		this.ev3 = ev3;
+		this.period = period;
+	}
+
+	/**
+	 * Read the state for the first time and start reading it at the fixed rate.
+	 */
+	public synchronized void start() {
+		if (running) return;
+		setState(ev3.getState());
+		failure = null;
+		running = true;
+		reader = new Reader();
+		reader.start();
+	}
+
+	/**
+	 * Stop reading the state.
+	 */
+	public void close() {
+		Reader r;
+		synchronized(this) {
+			running = false;
+			notifyAll();
+			r = reader;
+			reader = null;
+		}
+		if (r != null)
+			r.interrupt();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Return the most recent state.
+	 * @return the state
+	 */
+	public EV3State getState() {
+		EV3State s = state;
+		if (s == null)
+			throw new IllegalStateException("Monitor has not been started");
+		return s;
+	}
+
+	/**
+	 * Wait for the next state to be read.
+	 * @return the new state
+	 * @throws InterruptedException
+	 */
+	public synchronized EV3State waitForUpdate() throws InterruptedException {
+		long cnt = updates;
+		while (cnt == updates && running)
+			wait();
+		if (cnt == updates) {
+			if (failure != null)
+				throw failure;
+			throw new IllegalStateException("Monitor has been stopped");
+		}
+		return state;
+	}
+
+	public int getTachoCount(String portName) {
+		EV3State s = getState();
+		return s.tachoCount[motorIndex(s, portName)];
+	}
+
+	public int getRotationSpeed(String portName) {
+		EV3State s = getState();
+		return s.rotationSpeed[motorIndex(s, portName)];
+	}
+
+	public int getSpeed(String portName) {
+		EV3State s = getState();
+		return s.speed[motorIndex(s, portName)];
+	}
+
+	public boolean isMoving(String portName) {
+		EV3State s = getState();
+		return s.moving[motorIndex(s, portName)];
+	}
+
+	public boolean isStalled(String portName) {
+		EV3State s = getState();
+		return s.stalled[motorIndex(s, portName)];
+	}
+
+	/**
+	 * Copy the most recent sample of the sample provider on a port.
+	 * @param portName the port name
+	 * @param sample the array to hold the sample
+	 * @param offset the offset of the sample in the array
+	 */
+	public void fetchSample(String portName, float[] sample, int offset) {
+		EV3State s = getState();
+		int i = s.getSensorIndex(portName);
+		if (i < 0)
+			throw new IllegalArgumentException("No sample provider on port " + portName);
+		System.arraycopy(s.samples[i], 0, sample, offset, s.samples[i].length);
+	}
+
+	public int getVoltageMilliVolt() {
+		return getState().voltageMilliVolt;
+	}
+
+	public float getBatteryCurrent() {
+		return getState().batteryCurrent;
+	}
+
+	public float getMotorCurrent() {
+		return getState().motorCurrent;
+	}
+
+	public int getButtons() {
+		return getState().buttons;
+	}
+
+	private static int motorIndex(EV3State s, String portName) {
+		int i = s.getMotorIndex(portName);
+		if (i < 0)
+			throw new IllegalArgumentException("No regulated motor on port " + portName);
+		return i;
+	}
+
+	private synchronized void setState(EV3State s) {
+		state = s;
+		updates++;
+		notifyAll();
+	}
+
+	private synchronized void setFailure(PortException e) {
+		failure = e;
+		running = false;
+		notifyAll();
+	}
+
+	/**
+	 * Thread used to read the state at a fixed rate.
+	 */
+	private class Reader extends Thread {
+		Reader() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long next = System.currentTimeMillis();
+			try {
+				while (running && reader == this) {
+					next += period;
+					long wait = next - System.currentTimeMillis();
+					if (wait > 0)
+						sleep(wait);
+					else
+						next -= wait;
+					EV3State s = ev3.getState();
+					if (running && reader == this)
+						setState(s);
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (PortException e) {
+				if (reader == this)
+					setFailure(e);
+			}
+		}
+	}
+}
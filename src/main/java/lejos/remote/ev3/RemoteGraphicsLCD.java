@@ -2,9 +2,11 @@ package lejos.remote.ev3;
 
 import java.rmi.RemoteException;
 
+import lejos.hardware.lcd.DisplayList;
 import lejos.hardware.lcd.Font;
 import lejos.hardware.lcd.GraphicsLCD;
 import lejos.hardware.lcd.Image;
+import lejos.hardware.lcd.LCDMirror;
 import lejos.hardware.port.PortException;
 
 public class RemoteGraphicsLCD implements GraphicsLCD {
@@ -68,6 +70,42 @@ public class RemoteGraphicsLCD implements GraphicsLCD {
 		}
 	}
 
+	/**
+	 * Execute all of the operations recorded in a display list with a single
+	 * call and refresh the screen once.
+	 * @param list the display list
+	 */
+	public void drawList(DisplayList list) {
+		try {
+			g.drawList(list.toByteArray());
+		} catch (RemoteException e) {
+			throw new PortException(e);
+		}
+	}
+
+	/**
+	 * Return the rows of the screen that have changed since a frame.
+	 * @param since the frame held by the client, or 0 for the whole screen
+	 * @return the delta in {@link LCDMirror} format
+	 */
+	public byte[] getDisplayDelta(int since) {
+		try {
+			return g.getDisplayDelta(since);
+		} catch (RemoteException e) {
+			throw new PortException(e);
+		}
+	}
+
+	/**
+	 * Bring a local mirror of the screen up to date, only the rows that have
+	 * changed since the last update are transferred.
+	 * @param mirror the mirror
+	 * @return true if the screen has changed
+	 */
+	public boolean updateMirror(LCDMirror mirror) {
+		return mirror.apply(getDisplayDelta(mirror.getFrame()));
+	}
+
 	@Override
 	public void setContrast(int contrast) {
 		try {
@@ -0,0 +1,26 @@
+package lejos.remote.ev3;
+
+import lejos.robotics.RegulatedMotor;
+
+/**
+ * Listener used to receive the state of a remote motor at a fixed rate.
+ * @see RemoteRequestRegulatedMotor#subscribe(RemoteMotorStateListener, int)
+ */
+public interface RemoteMotorStateListener {
+	/**
+	 * Called each time a new state has been received from the EV3.
+	 * @param motor the motor
+	 * @param tachoCount the current tacho count
+	 * @param rotationSpeed the current rotation speed in degrees/s
+	 * @param timeStamp local time at which the state was received
+	 */
+	public void stateUpdated(RegulatedMotor motor, int tachoCount, int rotationSpeed, long timeStamp);
+
+	/**
+	 * Called if the state can no longer be read, for instance because the
+	 * connection to the EV3 has failed. No further updates are delivered.
+	 * @param motor the motor
+	 * @param e the error
+	 */
+	public void stateFailed(RegulatedMotor motor, RemoteRequestException e);
+}
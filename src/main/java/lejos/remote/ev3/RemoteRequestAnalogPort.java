@@ -6,13 +6,15 @@ import java.io.ObjectOutputStream;
 import lejos.hardware.port.AnalogPort;
 
 public class RemoteRequestAnalogPort extends RemoteRequestIOPort implements AnalogPort {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	private int portNum;
 	
 	public RemoteRequestAnalogPort(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestAnalogPort(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 	
 	@Override
@@ -98,19 +100,7 @@ public class RemoteRequestAnalogPort extends RemoteRequestIOPort implements Anal
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
 		req.intValue = portNum;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_SENSOR, req, replyRequired);
 	}
 }
@@ -1,19 +1,20 @@
 package lejos.remote.ev3;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 import lejos.hardware.Audio;
 
 public class RemoteRequestAudio implements Audio {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	
 	public RemoteRequestAudio(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestAudio(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 	
 	@Override
@@ -32,8 +33,8 @@ public class RemoteRequestAudio implements Audio {
 		req.intValue2 = aDuration;
 		req.intValue3 = aVolume;
 		try {
-			os.writeObject(req);
-		} catch (IOException e) {
+			sendRequest(req, false);
+		} catch (RemoteRequestException e) {
 			e.printStackTrace();
 		}
 	}
@@ -86,19 +87,7 @@ public class RemoteRequestAudio implements Audio {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_BULK, req, replyRequired);
 	}
 
 	@Override
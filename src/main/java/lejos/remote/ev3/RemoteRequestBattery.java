@@ -6,12 +6,14 @@ import java.io.ObjectOutputStream;
 import lejos.hardware.Power;
 
 public class RemoteRequestBattery implements Power {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	
 	public RemoteRequestBattery(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestBattery(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 
 	@Override
@@ -44,18 +46,6 @@ public class RemoteRequestBattery implements Power {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_CONTROL, req, replyRequired);
 	}
 }
@@ -0,0 +1,246 @@
+package lejos.remote.ev3;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A connection to an EV3 that is used by the RemoteRequest proxy classes to
+ * send {@link EV3Request} objects and receive the {@link EV3Reply} objects.
+ * Requests are sent on one of a number of streams. The stream is used to
+ * indicate the type of traffic, an implementation may use it to give priority
+ * to latency sensitive requests (such as motor commands) over bulk requests
+ * (such as LCD updates), and to allow requests on different streams to be
+ * in flight at the same time.
+ */
+public abstract class RemoteRequestConnection {
+	/** Motor commands, highest priority */
+	public static final int STREAM_MOTOR = 0;
+	/** Sensor and port access */
+	public static final int STREAM_SENSOR = 1;
+	/** Battery, LED, keys and other short requests */
+	public static final int STREAM_CONTROL = 2;
+	/** Requests that wait for events (e.g. key presses) */
+	public static final int STREAM_EVENT = 3;
+	/** LCD, audio and other bulk data, lowest priority */
+	public static final int STREAM_BULK = 4;
+	public static final int STREAMS = 5;
+
+	/**
+	 * Listener for replies pushed by the EV3 for a subscription.
+	 */
+	public interface ReplyListener {
+		/**
+		 * Called by the connection thread when a reply arrives, this
+		 * method should return quickly.
+		 * @param reply the reply
+		 */
+		public void replyReceived(EV3Reply reply);
+	}
+
+	/**
+	 * Send a request that requires a reply, without waiting for the reply.
+	 * @param stream the stream to use
+	 * @param req the request
+	 * @return Future that will hold the reply
+	 */
+	public abstract Future<EV3Reply> submit(int stream, EV3Request req);
+
+	/**
+	 * Send a request that does not require a reply.
+	 * @param stream the stream to use
+	 * @param req the request
+	 */
+	public abstract void send(int stream, EV3Request req);
+
+	/**
+	 * Return true if the connection supports replies pushed by the EV3, see
+	 * {@link #subscribe(int, EV3Request, ReplyListener)}.
+	 * @return true if subscriptions are supported
+	 */
+	public boolean isPushSupported() {
+		return false;
+	}
+
+	/**
+	 * Send a request that starts a subscription. The first reply is returned
+	 * using the Future, any further replies to the same request are passed to
+	 * the listener until {@link #unsubscribe(ReplyListener)} is called.
+	 * @param stream the stream to use
+	 * @param req the request
+	 * @param listener the listener for pushed replies
+	 * @return Future that will hold the first reply
+	 * @throws UnsupportedOperationException if the connection does not support
+	 * pushed replies
+	 */
+	public Future<EV3Reply> subscribe(int stream, EV3Request req, ReplyListener listener) {
+		throw new UnsupportedOperationException("Push not supported by this connection");
+	}
+
+	/**
+	 * Stop passing pushed replies to a listener. Replies that arrive after
+	 * this call are discarded.
+	 * @param listener the listener
+	 */
+	public void unsubscribe(ReplyListener listener) {
+	}
+
+	/**
+	 * Return false if the link used by the connection has failed or the
+	 * connection has been closed. A connection that is not connected can not
+	 * be used again.
+	 * @return true if the connection can be used
+	 */
+	public boolean isConnected() {
+		return true;
+	}
+
+	/**
+	 * Close the connection.
+	 * @throws IOException
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * Wait for a reply to arrive.
+	 * @param pending the reply
+	 * @throws InterruptedException
+	 */
+	protected abstract void awaitReply(PendingReply pending) throws InterruptedException;
+
+	/**
+	 * Wait for a reply to arrive for at most the given time. This version
+	 * waits for the reply to be completed by another thread, connections
+	 * that read replies on the waiting thread must override it.
+	 * @param pending the reply
+	 * @param timeout the maximum time to wait in nanoseconds
+	 * @throws InterruptedException
+	 * @throws TimeoutException if the reply did not arrive in time
+	 */
+	protected void awaitReply(PendingReply pending, long timeout) throws InterruptedException, TimeoutException {
+		pending.waitDone(timeout);
+	}
+
+	/**
+	 * Send a request and optionally wait for the reply.
+	 * @param stream the stream to use
+	 * @param req the request
+	 * @param replyRequired true if a reply is needed
+	 * @return the reply or null if no reply is required
+	 * @throws RemoteRequestException if there is an error sending the request
+	 * or if the request failed on the EV3.
+	 */
+	public EV3Reply sendRequest(int stream, EV3Request req, boolean replyRequired) {
+		req.replyRequired = replyRequired;
+		if (!replyRequired) {
+			send(stream, req);
+			return null;
+		}
+		return getReply(submit(stream, req));
+	}
+
+	/**
+	 * Wait for a reply and convert any error to a RemoteRequestException.
+	 * @param f the pending reply
+	 * @return the reply
+	 */
+	public static EV3Reply getReply(Future<EV3Reply> f) {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			throw new RemoteRequestException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new RemoteRequestException(e);
+		}
+	}
+
+	/**
+	 * A reply that has not yet been received.
+	 */
+	protected class PendingReply implements Future<EV3Reply> {
+		final int stream;
+		final int seq;
+		private EV3Reply reply;
+		private Exception error;
+		private volatile boolean done;
+
+		protected PendingReply(int stream, int seq) {
+			this.stream = stream;
+			this.seq = seq;
+		}
+
+		/**
+		 * Mark the request as complete.
+		 * @param reply the reply or null if an error occurred
+		 * @param error the error or null
+		 */
+		protected synchronized void complete(EV3Reply reply, Exception error) {
+			this.reply = reply;
+			if (error == null && reply != null && reply.e != null)
+				error = reply.e;
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait until the request is complete.
+		 * @throws InterruptedException
+		 */
+		protected synchronized void waitDone() throws InterruptedException {
+			while (!done)
+				wait();
+		}
+
+		/**
+		 * Wait for at most the given time for the request to complete.
+		 * @param timeout the maximum time to wait in nanoseconds
+		 * @throws InterruptedException
+		 * @throws TimeoutException if the request did not complete in time
+		 */
+		protected synchronized void waitDone(long timeout) throws InterruptedException, TimeoutException {
+			long end = System.nanoTime() + timeout;
+			while (!done) {
+				long left = end - System.nanoTime();
+				if (left <= 0)
+					throw new TimeoutException();
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public EV3Reply get() throws InterruptedException, ExecutionException {
+			if (!done)
+				awaitReply(this);
+			if (error != null)
+				throw new ExecutionException(error);
+			return reply;
+		}
+
+		@Override
+		public EV3Reply get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done)
+				awaitReply(this, unit.toNanos(timeout));
+			if (error != null)
+				throw new ExecutionException(error);
+			return reply;
+		}
+	}
+}
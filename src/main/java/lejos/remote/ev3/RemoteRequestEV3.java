@@ -28,33 +28,102 @@ import lejos.robotics.navigation.ArcRotateMoveController;
 
 public class RemoteRequestEV3 implements EV3, Serializable {
 	private static final long serialVersionUID = -7784568187751439269L;
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
-	private Socket socket;
+	private RemoteRequestConnection conn;
 	private ArrayList<RemoteRequestPort> ports = new ArrayList<RemoteRequestPort>();
 	private RemoteRequestKeys keys;
+	private RemoteRequestMotorChannel motorChannel;
 	
 	private static final int PORT = 8002;
+	private static final int MULTIPLEXED_PORT = 8003;
 	
 	public RemoteRequestEV3(String host) throws IOException {
-		socket = new Socket(host,PORT);
-		socket.setTcpNoDelay(true);
-		is = new ObjectInputStream(socket.getInputStream());
-		os = new ObjectOutputStream(socket.getOutputStream());
+		this(host, false);
+	}
+	
+	/**
+	 * Connect to an EV3.
+	 * @param host the name or address of the EV3
+	 * @param multiplexed if true use the multiplexed binary protocol, which
+	 * allows requests from different threads (e.g. motor control and LCD
+	 * updates) to be in flight at the same time, otherwise use the standard
+	 * object stream protocol
+	 * @throws IOException
+	 */
+	public RemoteRequestEV3(String host, boolean multiplexed) throws IOException {
+		this(connect(host, multiplexed));
+	}
+	
+	/**
+	 * Connect to an EV3 using a {@link RemoteRequestSession}, which
+	 * re-establishes the connection if the link fails and keeps separate
+	 * connections for bulk requests.
+	 * @param host the name or address of the EV3
+	 * @param multiplexed if true use the multiplexed binary protocol
+	 * @param bulkConnections the number of extra connections used for LCD,
+	 * audio and other bulk requests
+	 * @throws IOException
+	 */
+	public RemoteRequestEV3(final String host, final boolean multiplexed, int bulkConnections) throws IOException {
+		this(new RemoteRequestSession(new RemoteRequestSession.Connector() {
+			@Override
+			public RemoteRequestConnection connect() throws IOException {
+				return RemoteRequestEV3.connect(host, multiplexed);
+			}
+		}, bulkConnections));
+	}
+	
+	/**
+	 * Create an EV3 that uses an existing connection.
+	 * @param conn the connection
+	 */
+	public RemoteRequestEV3(RemoteRequestConnection conn) {
+		this.conn = conn;
 		createPorts();
-		keys = new RemoteRequestKeys(is, os);
+		keys = new RemoteRequestKeys(conn);
+		motorChannel = new RemoteRequestMotorChannel(conn);
+	}
+	
+	/**
+	 * Open a connection to an EV3, the socket is closed when the connection
+	 * is closed.
+	 * @param host the name or address of the EV3
+	 * @param multiplexed if true use the multiplexed binary protocol
+	 * @return the connection
+	 * @throws IOException
+	 */
+	public static RemoteRequestConnection connect(String host, boolean multiplexed) throws IOException {
+		Socket socket = new Socket(host, multiplexed ? MULTIPLEXED_PORT : PORT);
+		try {
+			socket.setTcpNoDelay(true);
+			if (multiplexed)
+				return new RemoteRequestMultiplexer(socket.getInputStream(), socket.getOutputStream());
+			ObjectInputStream is = new ObjectInputStream(socket.getInputStream());
+			ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream());
+			return RemoteRequestObjectConnection.getConnection(is, os);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Return the connection used to talk to the EV3.
+	 * @return the connection
+	 */
+	public RemoteRequestConnection getConnection() {
+		return conn;
 	}
 	
 	private void createPorts() {
         // Create the port objects
-        ports.add(new RemoteRequestPort("S1", RemoteRequestPort.SENSOR_PORT, 0, is, os));
-        ports.add(new RemoteRequestPort("S2", RemoteRequestPort.SENSOR_PORT, 1, is, os));
-        ports.add(new RemoteRequestPort("S3", RemoteRequestPort.SENSOR_PORT, 2, is, os));
-        ports.add(new RemoteRequestPort("S4", RemoteRequestPort.SENSOR_PORT, 3, is, os));
-        ports.add(new RemoteRequestPort("A", RemoteRequestPort.MOTOR_PORT, 0, is, os));
-        ports.add(new RemoteRequestPort("B", RemoteRequestPort.MOTOR_PORT, 1, is, os));
-        ports.add(new RemoteRequestPort("C", RemoteRequestPort.MOTOR_PORT, 2, is, os));
-        ports.add(new RemoteRequestPort("D", RemoteRequestPort.MOTOR_PORT, 3, is, os));
+        ports.add(new RemoteRequestPort("S1", RemoteRequestPort.SENSOR_PORT, 0, conn));
+        ports.add(new RemoteRequestPort("S2", RemoteRequestPort.SENSOR_PORT, 1, conn));
+        ports.add(new RemoteRequestPort("S3", RemoteRequestPort.SENSOR_PORT, 2, conn));
+        ports.add(new RemoteRequestPort("S4", RemoteRequestPort.SENSOR_PORT, 3, conn));
+        ports.add(new RemoteRequestPort("A", RemoteRequestPort.MOTOR_PORT, 0, conn));
+        ports.add(new RemoteRequestPort("B", RemoteRequestPort.MOTOR_PORT, 1, conn));
+        ports.add(new RemoteRequestPort("C", RemoteRequestPort.MOTOR_PORT, 2, conn));
+        ports.add(new RemoteRequestPort("D", RemoteRequestPort.MOTOR_PORT, 3, conn));
 	}
 	
 	@Override
@@ -67,12 +136,12 @@ public class RemoteRequestEV3 implements EV3, Serializable {
 
 	@Override
 	public Power getPower() {
-		return new RemoteRequestBattery(is, os);
+		return new RemoteRequestBattery(conn);
 	}
 
     @Override
     public Audio getAudio() {
-        return new RemoteRequestAudio(is, os);
+        return new RemoteRequestAudio(conn);
     }
     
     @Override
@@ -82,17 +151,17 @@ public class RemoteRequestEV3 implements EV3, Serializable {
     
 	@Override
 	public TextLCD getTextLCD() {
-		return new RemoteRequestTextLCD(is, os);
+		return new RemoteRequestTextLCD(conn);
 	}
 
 	@Override
 	public TextLCD getTextLCD(Font f) {
-		return new RemoteRequestTextLCD(is, os, f);
+		return new RemoteRequestTextLCD(conn, f);
 	}
 
 	@Override
 	public GraphicsLCD getGraphicsLCD() {
-		return new RemoteRequestGraphicsLCD(is, os);
+		return new RemoteRequestGraphicsLCD(conn);
 	}
 
 	@Override
@@ -109,12 +178,9 @@ public class RemoteRequestEV3 implements EV3, Serializable {
 	public String getName() {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.GET_NAME;
-		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.name;
-		} catch (Exception e) {
+			return conn.sendRequest(RemoteRequestConnection.STREAM_CONTROL, req, true).name;
+		} catch (RemoteRequestException e) {
 			return "Not knon";
 		}
 	}
@@ -141,38 +207,35 @@ public class RemoteRequestEV3 implements EV3, Serializable {
 
 	@Override
 	public Key getKey(String name) {
-		return new RemoteRequestKey(is, os, keys, name);
+		return new RemoteRequestKey(conn, keys, name);
 	}
 
 	@Override
 	public LED getLED() {
-		return new RemoteRequestLED(is,os);
+		return new RemoteRequestLED(conn);
 	}
 	
 	public SampleProvider createSampleProvider(String portName, String sensorName, String modeName) {
-		return new RemoteRequestSampleProvider(is,os, portName, sensorName, modeName);
+		return new RemoteRequestSampleProvider(conn, portName, sensorName, modeName);
 	}
 	
 	public SampleProvider createSampleProvider(String portName,
 			String sensorName, String modeName, String topic, float frequency) throws RemoteException {
-		return new RemoteRequestSampleProvider(is, os, portName, sensorName, modeName, topic, frequency);
+		return new RemoteRequestSampleProvider(conn, portName, sensorName, modeName, topic, frequency);
 	}
 	
 	public RegulatedMotor createRegulatedMotor(String portName, char motorType) {
-		return new RemoteRequestRegulatedMotor(is, os, portName, motorType);
+		return new RemoteRequestRegulatedMotor(motorChannel, portName, motorType);
 	}
 	
 	
 	public ArcRotateMoveController createPilot(double wheelDiameter, double trackWidth, String leftMotor, String rightMotor) {
-		return new RemoteRequestPilot(is, os, leftMotor, rightMotor, wheelDiameter, trackWidth);
+		return new RemoteRequestPilot(conn, leftMotor, rightMotor, wheelDiameter, trackWidth);
 	}
 	
 	public void disConnect() {
 		try {
-		    os.flush();
-			is.close();
-			os.close();
-			socket.close();
+			conn.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
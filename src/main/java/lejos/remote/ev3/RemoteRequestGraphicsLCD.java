@@ -1,20 +1,23 @@
 package lejos.remote.ev3;
 
-import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
+import lejos.hardware.lcd.DisplayList;
 import lejos.hardware.lcd.Font;
 import lejos.hardware.lcd.GraphicsLCD;
 import lejos.hardware.lcd.Image;
+import lejos.hardware.lcd.LCDMirror;
 
 public class RemoteRequestGraphicsLCD implements GraphicsLCD {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 
 	public RemoteRequestGraphicsLCD(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestGraphicsLCD(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 
 	@Override
@@ -37,9 +40,7 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_GET_WIDTH;
 		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.reply;
+			return sendRequest(req, true).reply;
 		} catch (Exception e) {
 			return 0;
 		}
@@ -51,9 +52,7 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_GET_HEIGHT;
 		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.reply;
+			return sendRequest(req, true).reply;
 		} catch (Exception e) {
 			return 0;
 		}
@@ -65,9 +64,7 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_GET_DISPLAY;
 		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.contents;
+			return sendRequest(req, true).contents;
 		} catch (Exception e) {
 			return null;
 		}
@@ -79,14 +76,47 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_GET_HW_DISPLAY;
 		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.contents;
+			return sendRequest(req, true).contents;
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Execute all of the operations recorded in a display list using a
+	 * single request, the EV3 refreshes the screen once when the list has
+	 * been drawn.
+	 * @param list the display list
+	 */
+	public void drawList(DisplayList list) {
+		EV3Request req = new EV3Request();
+		req.request = EV3Request.Request.LCD_G_DRAW_LIST;
+		req.byteData = list.toByteArray();
+		sendRequest(req, false);
+	}
+
+	/**
+	 * Return the rows of the screen that have changed since a frame.
+	 * @param since the frame held by the client, or 0 for the whole screen
+	 * @return the delta in {@link LCDMirror} format
+	 */
+	public byte[] getDisplayDelta(int since) {
+		EV3Request req = new EV3Request();
+		req.request = EV3Request.Request.LCD_GET_DISPLAY_DELTA;
+		req.intValue = since;
+		return sendRequest(req, true).contents;
+	}
+
+	/**
+	 * Bring a local mirror of the screen up to date, only the rows that have
+	 * changed since the last update are transferred.
+	 * @param mirror the mirror
+	 * @return true if the screen has changed
+	 */
+	public boolean updateMirror(LCDMirror mirror) {
+		return mirror.apply(getDisplayDelta(mirror.getFrame()));
+	}
+
 	@Override
 	public void setContrast(int contrast) {
 		// Not implemented
@@ -145,9 +175,9 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_SET_AUTO_REFRESH;
 		req.intValue = period;
 		try {
-			os.writeObject(req);
+			sendRequest(req, false);
 			return 0;
-		} catch (IOException e) {
+		} catch (RemoteRequestException e) {
 			return 0;
 		}
 	}
@@ -422,9 +452,7 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_G_GET_TRANSLATE_X;
 		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.reply;
+			return sendRequest(req, true).reply;
 		} catch (Exception e) {
 			return 0;
 		}
@@ -436,9 +464,7 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 		req.request = EV3Request.Request.LCD_G_GET_TRANSLATE_Y;
 		req.replyRequired = true;
 		try {
-			os.writeObject(req);
-			EV3Reply reply = (EV3Reply) is.readObject();
-			return reply.reply;
+			return sendRequest(req, true).reply;
 		} catch (Exception e) {
 			return 0;
 		}
@@ -455,18 +481,6 @@ public class RemoteRequestGraphicsLCD implements GraphicsLCD {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_BULK, req, replyRequired);
 	}
 }
@@ -12,14 +12,16 @@ public class RemoteRequestKey implements Key {
 	private RemoteRequestKeys keys;
 	private int iCode;
 	private String name;
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	
 	private ArrayList<KeyListener> listeners;
 	
 	public RemoteRequestKey(ObjectInputStream is, ObjectOutputStream os, RemoteRequestKeys keys, String name) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os), keys, name);
+	}
+
+	public RemoteRequestKey(RemoteRequestConnection conn, RemoteRequestKeys keys, String name) {
+		this.conn = conn;
 		this.keys = keys;
 		this.name = name;
 		this.iCode = EV3Key.getKeyId(name);
@@ -48,7 +50,7 @@ public class RemoteRequestKey implements Key {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.KEY_WAIT_FOR_PRESS;
 		req.str = name;
-		sendRequest(req, true);
+		conn.sendRequest(RemoteRequestConnection.STREAM_EVENT, req, true);
 	}
 
 	@Override
@@ -56,7 +58,7 @@ public class RemoteRequestKey implements Key {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.KEY_WAIT_FOR_PRESS_AND_RELEASE;
 		req.str = name;
-		sendRequest(req, true);
+		conn.sendRequest(RemoteRequestConnection.STREAM_EVENT, req, true);
 	}
 
 	@Override
@@ -78,19 +80,7 @@ public class RemoteRequestKey implements Key {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_CONTROL, req, replyRequired);
 	}
 
 	@Override
@@ -8,8 +8,7 @@ import java.util.Map;
 import lejos.hardware.Keys;
 
 public class RemoteRequestKeys implements Keys {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	
 	private Map<Integer,RemoteRequestKey> listeners;
 	
@@ -17,8 +16,11 @@ public class RemoteRequestKeys implements Keys {
 	private static final int RELEASE_EVENT_SHIFT = 8;
 	
 	public RemoteRequestKeys(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestKeys(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 
 	@Override
@@ -38,7 +40,7 @@ public class RemoteRequestKeys implements Keys {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.WAIT_FOR_ANY_EVENT;
 		req.intValue= timeout;
-		return sendRequest(req, true).reply;
+		return conn.sendRequest(RemoteRequestConnection.STREAM_EVENT, req, true).reply;
 	}
 
 	@Override
@@ -46,7 +48,7 @@ public class RemoteRequestKeys implements Keys {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.WAIT_FOR_ANY_PRESS;
 		req.intValue = timeout;
-		return sendRequest(req, true).reply;
+		return conn.sendRequest(RemoteRequestConnection.STREAM_EVENT, req, true).reply;
 	}
 
 	@Override
@@ -105,19 +107,7 @@ public class RemoteRequestKeys implements Keys {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_CONTROL, req, replyRequired);
 	}
 	
 	class KeysListenThread extends Thread {
@@ -6,12 +6,14 @@ import java.io.ObjectOutputStream;
 import lejos.hardware.LED;
 
 public class RemoteRequestLED implements LED {
-	private ObjectOutputStream os;
-	private ObjectInputStream is;
+	private RemoteRequestConnection conn;
 	
 	public RemoteRequestLED(ObjectInputStream is, ObjectOutputStream os) {
-		this.os = os;
-		this.is = is;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestLED(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 
 	@Override
@@ -23,18 +25,6 @@ public class RemoteRequestLED implements LED {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_CONTROL, req, replyRequired);
 	}
 }
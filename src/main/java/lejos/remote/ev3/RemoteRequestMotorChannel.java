@@ -0,0 +1,171 @@
+package lejos.remote.ev3;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Command channel used by {@link RemoteRequestRegulatedMotor} to talk to the
+ * EV3. It provides three ways of sending a request:
+ * <ul>
+ * <li>Fire and forget requests are posted to a per motor slot and sent by a
+ * background thread. If a newer request for the same slot is posted before the
+ * old one has been sent, the old one is dropped. This allows a stream of
+ * speed updates (e.g. from a joystick) to run at the rate the link can
+ * sustain without building up a backlog.</li>
+ * <li>Pipelined requests are written immediately and return a Future for the
+ * reply. Several requests can be in flight at once, matching the replies to
+ * the requests is handled by the underlying {@link RemoteRequestConnection}.</li>
+ * <li>Synchronous requests simply wait for the reply.</li>
+ * </ul>
+ * Any pending fire and forget requests are always sent before a pipelined or
+ * synchronous request, so the order of operations on a motor is preserved.
+ * All requests are sent on the {@link RemoteRequestConnection#STREAM_MOTOR}
+ * stream.
+ */
+public class RemoteRequestMotorChannel {
+	// Coalescing slots used for fire and forget requests
+	static final int SLOT_MOTION = 0;
+	static final int SLOT_SPEED = 1;
+	static final int SLOT_ACCELERATION = 2;
+	static final int SLOT_OTHER = 3;
+	static final int SLOTS = 4;
+
+	private final RemoteRequestConnection conn;
+	// Held while writing, keeps posted requests ahead of later requests
+	private final Object writeLock = new Object();
+	private final LinkedHashMap<Integer, EV3Request> posted = new LinkedHashMap<Integer, EV3Request>();
+	private int dropped = 0;
+	private Sender sender;
+
+	public RemoteRequestMotorChannel(RemoteRequestConnection conn) {
+		this.conn = conn;
+	}
+
+	public RemoteRequestMotorChannel(ObjectInputStream is, ObjectOutputStream os) {
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	/**
+	 * Post a fire and forget request. The request replaces any request for the
+	 * same motor and slot that has not yet been sent.
+	 * @param portNum the motor port
+	 * @param slot the coalescing slot
+	 * @param req the request
+	 */
+	synchronized void post(int portNum, int slot, EV3Request req) {
+		req.replyRequired = false;
+		req.intValue = portNum;
+		if (posted.put(portNum*SLOTS + slot, req) != null)
+			dropped++;
+		if (sender == null) {
+			sender = new Sender();
+			sender.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Send a request without waiting for the reply.
+	 * @param portNum the motor port
+	 * @param req the request
+	 * @return a Future that can be used to obtain the reply
+	 */
+	Future<EV3Reply> submit(int portNum, EV3Request req) {
+		req.intValue = portNum;
+		synchronized(writeLock) {
+			flushPosted();
+			return conn.submit(RemoteRequestConnection.STREAM_MOTOR, req);
+		}
+	}
+
+	/**
+	 * Send a request and optionally wait for the reply.
+	 * @param portNum the motor port
+	 * @param req the request
+	 * @param replyRequired true if we should wait for the reply
+	 * @return the reply or null if not required
+	 */
+	EV3Reply send(int portNum, EV3Request req, boolean replyRequired) {
+		if (replyRequired)
+			return getReply(submit(portNum, req));
+		req.intValue = portNum;
+		synchronized(writeLock) {
+			flushPosted();
+			conn.send(RemoteRequestConnection.STREAM_MOTOR, req);
+		}
+		return null;
+	}
+
+	/**
+	 * Return the number of fire and forget requests that have been dropped
+	 * because they were replaced by a newer request.
+	 * @return number of dropped requests
+	 */
+	public synchronized int getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Return the connection used by the channel.
+	 * @return the connection
+	 */
+	public RemoteRequestConnection getConnection() {
+		return conn;
+	}
+
+	/**
+	 * Helper method, wait for a reply and convert any error to a
+	 * RemoteRequestException.
+	 */
+	static EV3Reply getReply(Future<EV3Reply> f) {
+		return RemoteRequestConnection.getReply(f);
+	}
+
+	/**
+	 * Send all of the posted requests. Must be called with the write lock
+	 * held.
+	 */
+	private void flushPosted() {
+		EV3Request[] reqs;
+		synchronized(this) {
+			reqs = posted.values().toArray(new EV3Request[posted.size()]);
+			posted.clear();
+		}
+		for(EV3Request r : reqs)
+			conn.send(RemoteRequestConnection.STREAM_MOTOR, r);
+	}
+
+	/**
+	 * Background thread used to send fire and forget requests.
+	 */
+	private class Sender extends Thread {
+		Sender() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			for(;;) {
+				synchronized(RemoteRequestMotorChannel.this) {
+					try {
+						while (posted.isEmpty())
+							RemoteRequestMotorChannel.this.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				// Other requests may be added while we wait for the lock,
+				// they will replace older ones and be sent in this batch.
+				synchronized(writeLock) {
+					try {
+						flushPosted();
+					} catch (RemoteRequestException e) {
+						// Nobody is waiting for these, just drop them
+					}
+				}
+			}
+		}
+	}
+}
@@ -7,13 +7,15 @@ import lejos.hardware.motor.MotorRegulator;
 import lejos.hardware.port.TachoMotorPort;
 
 public class RemoteRequestMotorPort extends RemoteRequestIOPort implements TachoMotorPort {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	private int portNum;
 
 	public RemoteRequestMotorPort(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestMotorPort(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 	
 	@Override
@@ -69,19 +71,7 @@ public class RemoteRequestMotorPort extends RemoteRequestIOPort implements Tacho
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
 		req.intValue = portNum;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_MOTOR, req, replyRequired);
 	}
 }
@@ -0,0 +1,264 @@
+package lejos.remote.ev3;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Connection that multiplexes several streams of requests over a single
+ * link using the binary {@link EV3Codec} protocol. Every request is tagged
+ * with its stream and a sequence number. Any number of requests may be in
+ * flight at once, and the reply is routed back to the caller using the
+ * sequence number, so replies do not need to arrive in the order the
+ * requests were sent.
+ * <p>
+ * Requests are queued per stream and written by a single writer thread that
+ * always services the lowest numbered stream first, so motor commands are
+ * never stuck behind a queue of LCD updates. A reader thread receives the
+ * replies and completes the matching request. Replies pushed by the EV3 for
+ * a subscription are passed to the subscription's listener.
+ * <p>
+ * The server end of the link is provided by {@link EV3RequestDispatcher}.
+ */
+public class RemoteRequestMultiplexer extends RemoteRequestConnection {
+	private final EV3Codec codec;
+	private final InputStream in;
+	private final OutputStream out;
+	private final ArrayDeque<Queued>[] queues;
+	private final HashMap<Integer, PendingReply> pending = new HashMap<Integer, PendingReply>();
+	private final HashMap<Integer, ReplyListener> subscriptions = new HashMap<Integer, ReplyListener>();
+	private int nextSeq = 1;
+	private int queued = 0;
+	private IOException failure;
+	private boolean closed = false;
+	private final Writer writer;
+	private final Reader reader;
+
+	/**
+	 * A request waiting to be written.
+	 */
+	private static class Queued {
+		final EV3Request req;
+		final int stream;
+		final int seq;
+
+		Queued(EV3Request req, int stream, int seq) {
+			this.req = req;
+			this.stream = stream;
+			this.seq = seq;
+		}
+	}
+
+	public RemoteRequestMultiplexer(InputStream in, OutputStream out) {
+		this.in = in;
+		this.out = out;
+		codec = new EV3Codec(new BufferedInputStream(in), out);
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ArrayDeque<Queued>[] q = new ArrayDeque[STREAMS];
+		queues = q;
+		for(int i = 0; i < STREAMS; i++)
+			queues[i] = new ArrayDeque<Queued>();
+		writer = new Writer();
+		reader = new Reader();
+		writer.start();
+		reader.start();
+	}
+
+	@Override
+	public Future<EV3Reply> submit(int stream, EV3Request req) {
+		req.replyRequired = true;
+		synchronized(this) {
+			checkOpen();
+			int seq = nextSeq++;
+			PendingReply p = new PendingReply(stream, seq);
+			pending.put(seq, p);
+			queue(new Queued(req, stream, seq));
+			return p;
+		}
+	}
+
+	@Override
+	public boolean isPushSupported() {
+		return true;
+	}
+
+	@Override
+	public Future<EV3Reply> subscribe(int stream, EV3Request req, ReplyListener listener) {
+		req.replyRequired = true;
+		synchronized(this) {
+			checkOpen();
+			int seq = nextSeq++;
+			PendingReply p = new PendingReply(stream, seq);
+			pending.put(seq, p);
+			subscriptions.put(seq, listener);
+			queue(new Queued(req, stream, seq));
+			return p;
+		}
+	}
+
+	@Override
+	public synchronized void unsubscribe(ReplyListener listener) {
+		subscriptions.values().remove(listener);
+	}
+
+	@Override
+	public synchronized void send(int stream, EV3Request req) {
+		req.replyRequired = false;
+		checkOpen();
+		queue(new Queued(req, stream, nextSeq++));
+	}
+
+	/**
+	 * Return the number of requests waiting for a reply.
+	 * @return requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return pending.size();
+	}
+
+	/**
+	 * Return the number of requests waiting to be written.
+	 * @return queued requests
+	 */
+	public synchronized int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * Return the codec used by the connection, this can be used to obtain
+	 * the number of bytes transferred.
+	 * @return the codec
+	 */
+	public EV3Codec getCodec() {
+		return codec;
+	}
+
+	@Override
+	public synchronized boolean isConnected() {
+		return failure == null && !closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		fail(new IOException("Connection closed"));
+		in.close();
+		out.close();
+	}
+
+	@Override
+	protected void awaitReply(PendingReply p) throws InterruptedException {
+		p.waitDone();
+	}
+
+	private void checkOpen() {
+		if (failure != null)
+			throw new RemoteRequestException(failure);
+		if (closed)
+			throw new RemoteRequestException("Connection closed");
+	}
+
+	private void queue(Queued q) {
+		queues[q.stream].addLast(q);
+		queued++;
+		notifyAll();
+	}
+
+	/**
+	 * The connection has failed, fail all outstanding requests.
+	 */
+	private void fail(IOException e) {
+		PendingReply[] waiting;
+		synchronized(this) {
+			if (failure == null)
+				failure = e;
+			waiting = pending.values().toArray(new PendingReply[pending.size()]);
+			pending.clear();
+			subscriptions.clear();
+			for(ArrayDeque<Queued> q : queues)
+				q.clear();
+			queued = 0;
+			notifyAll();
+		}
+		for(PendingReply p : waiting)
+			p.complete(null, e);
+	}
+
+	/**
+	 * Writes queued requests, highest priority stream first.
+	 */
+	private class Writer extends Thread {
+		Writer() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			for(;;) {
+				Queued q = null;
+				synchronized(RemoteRequestMultiplexer.this) {
+					try {
+						while (queued == 0 && !closed && failure == null)
+							RemoteRequestMultiplexer.this.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (closed || failure != null)
+						return;
+					for(ArrayDeque<Queued> queue : queues)
+						if ((q = queue.pollFirst()) != null)
+							break;
+					queued--;
+				}
+				try {
+					codec.writeRequest(q.req, q.stream, q.seq);
+				} catch (IOException e) {
+					fail(e);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads replies and passes them to the waiting request.
+	 */
+	private class Reader extends Thread {
+		Reader() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			for(;;) {
+				EV3Reply reply;
+				PendingReply p;
+				ReplyListener l = null;
+				try {
+					reply = codec.readReply(null);
+				} catch (IOException e) {
+					fail(e);
+					return;
+				}
+				synchronized(RemoteRequestMultiplexer.this) {
+					int seq = codec.getSequence();
+					p = pending.remove(seq);
+					if (p == null)
+						l = subscriptions.get(seq);
+				}
+				if (p != null)
+					p.complete(reply, null);
+				else if (l != null)
+					l.replyReceived(reply);
+			}
+		}
+	}
+}
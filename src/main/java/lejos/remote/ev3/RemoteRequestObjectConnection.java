@@ -0,0 +1,202 @@
+package lejos.remote.ev3;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connection that sends requests using Java serialization over a pair of
+ * object streams. This is the protocol used by the standard EV3 server. The
+ * server executes requests one at a time and replies in order, so the
+ * streams are not used, but requests can still be pipelined: replies are
+ * matched to requests in the order the requests were sent. Replies are read
+ * by the thread that is waiting for them, until the first time a caller
+ * waits with a timeout. From then on a reader thread reads the replies, as
+ * a blocking read can not be abandoned when the time is up.
+ * <p>
+ * Proxies created from the same pair of streams must share one connection,
+ * otherwise each would match replies against its own list of requests. Use
+ * {@link #getConnection(ObjectInputStream, ObjectOutputStream)} to obtain it.
+ */
+public class RemoteRequestObjectConnection extends RemoteRequestConnection {
+	// connections in use, by output stream. The values are weak so that an
+	// entry does not keep its own key alive.
+	private static final WeakHashMap<ObjectOutputStream, WeakReference<RemoteRequestObjectConnection>> shared =
+			new WeakHashMap<ObjectOutputStream, WeakReference<RemoteRequestObjectConnection>>();
+
+	private final ObjectInputStream is;
+	private final ObjectOutputStream os;
+	private final ArrayDeque<PendingReply> inFlight = new ArrayDeque<PendingReply>();
+	private int nextSeq = 0;
+	private volatile boolean failed = false;
+	private volatile Reader reader;
+
+	public RemoteRequestObjectConnection(ObjectInputStream is, ObjectOutputStream os) {
+		this.is = is;
+		this.os = os;
+	}
+
+	/**
+	 * Return the connection that uses a pair of streams, creating it if it
+	 * does not already exist.
+	 * @param is the input stream
+	 * @param os the output stream
+	 * @return the shared connection
+	 */
+	public static synchronized RemoteRequestObjectConnection getConnection(ObjectInputStream is, ObjectOutputStream os) {
+		WeakReference<RemoteRequestObjectConnection> r = shared.get(os);
+		RemoteRequestObjectConnection c = (r == null ? null : r.get());
+		if (c == null || c.is != is) {
+			c = new RemoteRequestObjectConnection(is, os);
+			shared.put(os, new WeakReference<RemoteRequestObjectConnection>(c));
+		}
+		return c;
+	}
+
+	@Override
+	public Future<EV3Reply> submit(int stream, EV3Request req) {
+		req.replyRequired = true;
+		synchronized(os) {
+			PendingReply pending;
+			synchronized(this) {
+				pending = new PendingReply(stream, nextSeq++);
+				inFlight.addLast(pending);
+				notifyAll();
+			}
+			write(req);
+			return pending;
+		}
+	}
+
+	@Override
+	public void send(int stream, EV3Request req) {
+		req.replyRequired = false;
+		synchronized(os) {
+			write(req);
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return !failed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		failed = true;
+		synchronized(this) {
+			notifyAll();
+		}
+		try {
+			os.flush();
+		} finally {
+			is.close();
+			os.close();
+		}
+	}
+
+	/**
+	 * Read replies until the requested one has arrived. Replies for earlier
+	 * requests are stored in their own pending objects.
+	 */
+	@Override
+	protected void awaitReply(PendingReply target) throws InterruptedException {
+		if (reader != null) {
+			target.waitDone();
+			return;
+		}
+		synchronized(is) {
+			while (!target.isDone())
+				if (!readNext())
+					break;
+		}
+	}
+
+	/**
+	 * Wait for a reply for at most the given time, the reply is read by the
+	 * reader thread.
+	 */
+	@Override
+	protected void awaitReply(PendingReply target, long timeout) throws InterruptedException, TimeoutException {
+		synchronized(this) {
+			if (reader == null) {
+				reader = new Reader();
+				reader.start();
+			}
+		}
+		target.waitDone(timeout);
+	}
+
+	/**
+	 * Read the reply to the oldest request in flight. Must be called holding
+	 * the input stream lock.
+	 * @return false if there are no requests in flight
+	 */
+	private boolean readNext() {
+		PendingReply p;
+		synchronized(this) {
+			p = inFlight.pollFirst();
+		}
+		if (p == null)
+			return false;
+		try {
+			p.complete((EV3Reply) is.readObject(), null);
+		} catch (Exception e) {
+			// The stream can not be resynchronised after an error
+			failed = true;
+			p.complete(null, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Thread used to read replies once a timed wait has been used. When the
+	 * connection fails any requests still in flight are failed, so no caller
+	 * is left waiting.
+	 */
+	private class Reader extends Thread {
+		Reader() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!failed) {
+					synchronized(RemoteRequestObjectConnection.this) {
+						while (inFlight.isEmpty() && !failed)
+							RemoteRequestObjectConnection.this.wait();
+					}
+					synchronized(is) {
+						readNext();
+					}
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			}
+			synchronized(RemoteRequestObjectConnection.this) {
+				for(PendingReply p : inFlight)
+					p.complete(null, new RemoteRequestException("Connection failed"));
+				inFlight.clear();
+			}
+		}
+	}
+
+	private void write(EV3Request req) {
+		if (failed)
+			throw new RemoteRequestException("Connection failed");
+		try {
+			os.reset();
+			os.writeObject(req);
+			os.flush();
+		} catch (Exception e) {
+			failed = true;
+			throw new RemoteRequestException(e);
+		}
+	}
+}
@@ -8,12 +8,14 @@ import lejos.robotics.navigation.Move;
 import lejos.robotics.navigation.MoveListener;
 
 public class RemoteRequestPilot implements ArcRotateMoveController {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 
 	public RemoteRequestPilot(ObjectInputStream is, ObjectOutputStream os, String leftMotor, String rightMotor, double wheelDiameter, double trackWidth) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os), leftMotor, rightMotor, wheelDiameter, trackWidth);
+	}
+
+	public RemoteRequestPilot(RemoteRequestConnection conn, String leftMotor, String rightMotor, double wheelDiameter, double trackWidth) {
+		this.conn = conn;
 		
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.CREATE_REGULATED_MOTOR;
@@ -208,19 +210,7 @@ public class RemoteRequestPilot implements ArcRotateMoveController {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_MOTOR, req, replyRequired);
 	}
 
 	@Override
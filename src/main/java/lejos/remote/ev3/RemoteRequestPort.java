@@ -19,15 +19,17 @@ public class RemoteRequestPort implements Port {
     protected String name;
     protected int typ;
     protected int portNum;
-    protected ObjectInputStream is;
-    protected ObjectOutputStream os;
+    protected RemoteRequestConnection conn;
     
     public RemoteRequestPort(String name, int typ, int portNum, ObjectInputStream is, ObjectOutputStream os) {
+    	this(name, typ, portNum, RemoteRequestObjectConnection.getConnection(is, os));
+    }
+
+    public RemoteRequestPort(String name, int typ, int portNum, RemoteRequestConnection conn) {
     	this.name = name;
     	this.typ = typ;
     	this.portNum = portNum;
-    	this.is = is;
-    	this.os = os;
+    	this.conn = conn;
     }
 
 	@Override
@@ -42,17 +44,17 @@ public class RemoteRequestPort implements Port {
         {
         case SENSOR_PORT:
             if (portclass == RemoteRequestUARTPort.class || portclass == UARTPort.class)
-                p = new RemoteRequestUARTPort(is,os);
+                p = new RemoteRequestUARTPort(conn);
             if (portclass == RemoteRequestAnalogPort.class || portclass == AnalogPort.class)
-                p = new RemoteRequestAnalogPort(is, os);
+                p = new RemoteRequestAnalogPort(conn);
             else if (portclass == RemoteRequestI2CPort.class|| portclass == I2CPort.class)
-                p = new RemoteRequestI2CPort(is, os);
+                p = new RemoteRequestI2CPort(conn);
             break;
         case MOTOR_PORT:
             if (portclass == BasicMotorPort.class)
-                p = new RemoteRequestMotorPort(is, os);
+                p = new RemoteRequestMotorPort(conn);
             else if (portclass == TachoMotorPort.class)
-                p = new RemoteRequestMotorPort(is, os);
+                p = new RemoteRequestMotorPort(conn);
             // TODO: Should we also allow Encoder?
             break;
         }
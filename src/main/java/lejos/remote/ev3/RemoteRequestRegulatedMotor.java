@@ -2,19 +2,25 @@ package lejos.remote.ev3;
 
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.concurrent.Future;
 
 import lejos.robotics.RegulatedMotor;
 import lejos.robotics.RegulatedMotorListener;
+import lejos.utility.Delay;
 
 public class RemoteRequestRegulatedMotor implements RegulatedMotor {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestMotorChannel channel;
 	private int portNum;
+	private boolean async = false;
+	private StatePoller poller;
 
 	public RemoteRequestRegulatedMotor(ObjectInputStream is,
 			ObjectOutputStream os, String portName, char motorType) {
-		this.is = is;
-		this.os = os;
+		this(new RemoteRequestMotorChannel(is, os), portName, motorType);
+	}
+
+	public RemoteRequestRegulatedMotor(RemoteRequestMotorChannel channel, String portName, char motorType) {
+		this.channel = channel;
 		portNum = portName.charAt(0) - 'A';
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.CREATE_REGULATED_MOTOR;
@@ -27,14 +33,14 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 	public void forward() {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.MOTOR_FORWARD;
-		sendRequest(req, false);
+		sendRequest(req, false, RemoteRequestMotorChannel.SLOT_MOTION);
 	}
 
 	@Override
 	public void backward() {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.MOTOR_BACKWARD;
-		sendRequest(req, false);	
+		sendRequest(req, false, RemoteRequestMotorChannel.SLOT_MOTION);	
 	}
 
 	@Override
@@ -95,7 +101,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.MOTOR_STOP_IMMEDIATE;
 		req.flag = immediateReturn;
-		sendRequest(req, !immediateReturn);
+		sendRequest(req, !immediateReturn, RemoteRequestMotorChannel.SLOT_MOTION);
 	}
 
 	@Override
@@ -103,7 +109,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.MOTOR_FLT_IMMEDIATE;
 		req.flag = immediateReturn;
-		sendRequest(req, !immediateReturn);
+		sendRequest(req, !immediateReturn, RemoteRequestMotorChannel.SLOT_MOTION);
 	}
 
 	@Override
@@ -119,7 +125,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		req.request = EV3Request.Request.MOTOR_ROTATE_IMMEDIATE;
 		req.intValue2 = angle;
 		req.flag = immediateReturn;
-		sendRequest(req, !immediateReturn);	
+		sendRequest(req, !immediateReturn, RemoteRequestMotorChannel.SLOT_MOTION);	
 	}
 
 	@Override
@@ -144,7 +150,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		req.request = EV3Request.Request.MOTOR_ROTATE_TO_IMMEDIATE;
 		req.intValue2 = limitAngle;
 		req.flag = immediateReturn;
-		sendRequest(req, !immediateReturn);	
+		sendRequest(req, !immediateReturn, RemoteRequestMotorChannel.SLOT_MOTION);	
 	}
 
 	@Override
@@ -159,7 +165,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.MOTOR_SET_SPEED;
 		req.intValue2 = speed;
-		sendRequest(req, false);
+		sendRequest(req, false, RemoteRequestMotorChannel.SLOT_SPEED);
 	}
 
 	@Override
@@ -189,7 +195,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		req.request = EV3Request.Request.MOTOR_SET_STALL_THRESHOLD;
 		req.intValue2 = error;
 		req.intValue3 = time;
-		sendRequest(req, false);
+		sendRequest(req, false, RemoteRequestMotorChannel.SLOT_OTHER);
 	}
 
 	@Override
@@ -197,7 +203,7 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.MOTOR_SET_ACCELERATION;
 		req.intValue2 = acceleration;
-		sendRequest(req, false);
+		sendRequest(req, false, RemoteRequestMotorChannel.SLOT_ACCELERATION);
 	}
 
 	@Override
@@ -207,20 +213,97 @@ public class RemoteRequestRegulatedMotor implements RegulatedMotor {
 		sendRequest(req, true);
 	}
 	
+	/**
+	 * Enable or disable fire and forget mode. In this mode commands that do
+	 * not need a reply (setSpeed, forward, rotate with immediate return etc.)
+	 * are sent by a background thread and do not wait for the EV3. If a
+	 * command is replaced by a newer one of the same type (for instance a
+	 * new speed) before it has been sent, the older command is dropped.
+	 * @param async true to enable fire and forget mode
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * Receive the tacho count and rotation speed of this motor at a fixed
+	 * rate. The two values are read using a single pipelined exchange.
+	 * Only one listener can be active at a time. If the state can not be
+	 * read the updates stop and the listener is told of the error.
+	 * @param listener the listener to call, or null to stop the updates
+	 * @param period time between updates in ms
+	 */
+	public synchronized void subscribe(RemoteMotorStateListener listener, int period) {
+		if (poller != null) {
+			poller.running = false;
+			poller = null;
+		}
+		if (listener != null) {
+			poller = new StatePoller(listener, period);
+			poller.start();
+		}
+	}
+
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		req.intValue = portNum;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
+		return channel.send(portNum, req, replyRequired);
+	}
+
+	/**
+	 * Helper method, send a request that can be coalesced in fire and
+	 * forget mode.
+	 */
+	private EV3Reply sendRequest(EV3Request req, boolean replyRequired, int slot) {
+		if (async && !replyRequired) {
+			channel.post(portNum, slot, req);
+			return null;
+		}
+		return sendRequest(req, replyRequired);
+	}
+
+	/**
+	 * Thread used to deliver motor state updates
+	 */
+	private class StatePoller extends Thread {
+		final RemoteMotorStateListener listener;
+		final int period;
+		volatile boolean running = true;
+
+		StatePoller(RemoteMotorStateListener listener, int period) {
+			this.listener = listener;
+			this.period = period;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long next = System.currentTimeMillis();
+			try {
+				while (running) {
+					EV3Request req = new EV3Request();
+					req.request = EV3Request.Request.MOTOR_GET_TACHO_COUNT;
+					Future<EV3Reply> tacho = channel.submit(portNum, req);
+					req = new EV3Request();
+					req.request = EV3Request.Request.MOTOR_GET_ROTATION_SPEED;
+					Future<EV3Reply> speed = channel.submit(portNum, req);
+					int cnt = RemoteRequestMotorChannel.getReply(tacho).reply;
+					int spd = RemoteRequestMotorChannel.getReply(speed).reply;
+					if (running)
+						listener.stateUpdated(RemoteRequestRegulatedMotor.this, cnt, spd, System.currentTimeMillis());
+					next += period;
+					Delay.msDelay(next - System.currentTimeMillis());
+				}
+			} catch (RemoteRequestException e) {
+				// Stop polling, unless the subscription has already ended
+				synchronized(RemoteRequestRegulatedMotor.this) {
+					if (!running)
+						return;
+					running = false;
+					if (poller == this)
+						poller = null;
+				}
+				// Call the listener without the lock, it may subscribe again
+				listener.stateFailed(RemoteRequestRegulatedMotor.this, e);
 			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
 		}
 	}
 
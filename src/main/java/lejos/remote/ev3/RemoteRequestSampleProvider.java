@@ -2,18 +2,60 @@ package lejos.remote.ev3;
 
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
 
 import lejos.robotics.SampleProvider;
+import lejos.robotics.filter.FilterChain;
 
+/**
+ * Sample provider for a sensor on a remote EV3.
+ * <p>
+ * Normally each call to fetchSample sends a request to the EV3 and waits for
+ * the reply. Calling {@link #startStreaming(float, int)} switches to
+ * streaming mode: the EV3 samples the sensor at a fixed rate and pushes
+ * batches of time stamped samples to the PC, where they are held in a local
+ * buffer. fetchSample then returns the most recent sample without a round
+ * trip (until the first sample arrives it waits briefly for it, then asks the
+ * EV3 directly), and {@link #readSamples(float[], int, double[], int)} can be used to
+ * obtain every sample. If the connection does not support pushed replies the
+ * samples are obtained by a background thread using pipelined requests.
+ * <p>
+ * A {@link FilterChain} can be set using {@link #setFilterChain(FilterChain)},
+ * the filters then run on the EV3 and only the filtered (and decimated)
+ * samples are sent over the link.
+ */
 public class RemoteRequestSampleProvider implements SampleProvider {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	// Number of requests kept in flight when polling
+	private static final int PIPELINE = 4;
+	// Time (ms) allowed for the first streamed sample to arrive, on top of
+	// two sample periods, before fetchSample asks the EV3 directly
+	private static final int FIRST_SAMPLE_WAIT = 500;
+
+	private RemoteRequestConnection conn;
 	private int portNum;
+	private int sampleSize = -1;
+
+	// Streaming buffer
+	private float[] buffer;
+	private double[] times;
+	private int capacity;
+	private int head;
+	private int count;
+	private long received;
+	private long overruns;
+	private long firstSampleWait;
+	private volatile boolean streaming;
+	private RemoteRequestConnection.ReplyListener listener;
+	private Poller poller;
 
 	public RemoteRequestSampleProvider(ObjectInputStream is,
 			ObjectOutputStream os, String portName, String sensorName, String modeName) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os), portName, sensorName, modeName);
+	}
+
+	public RemoteRequestSampleProvider(RemoteRequestConnection conn, String portName, String sensorName, String modeName) {
+		this.conn = conn;
 		portNum = portName.charAt(1) - '1';
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.CREATE_SAMPLE_PROVIDER;
@@ -25,8 +67,11 @@ public class RemoteRequestSampleProvider implements SampleProvider {
 	
 	public RemoteRequestSampleProvider(ObjectInputStream is,
 			ObjectOutputStream os, String portName, String sensorName, String modeName, String topic, float frequency) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os), portName, sensorName, modeName, topic, frequency);
+	}
+
+	public RemoteRequestSampleProvider(RemoteRequestConnection conn, String portName, String sensorName, String modeName, String topic, float frequency) {
+		this.conn = conn;
 		portNum = portName.charAt(1) - '1';
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.CREATE_SAMPLE_PROVIDER_PUBLISH;
@@ -40,40 +85,249 @@ public class RemoteRequestSampleProvider implements SampleProvider {
 	
 	@Override
 	public int sampleSize() {
-		EV3Request req = new EV3Request();
-		req.request = EV3Request.Request.SAMPLE_SIZE;
-		return sendRequest(req, true).reply;
+		// The sample size does not change for a given mode, so only ask once
+		if (sampleSize < 0) {
+			EV3Request req = new EV3Request();
+			req.request = EV3Request.Request.SAMPLE_SIZE;
+			sampleSize = sendRequest(req, true).reply;
+		}
+		return sampleSize;
 	}
 
 	@Override
 	public void fetchSample(float[] sample, int offset) {
+		if (streaming) {
+			synchronized(this) {
+				// Wait for the first streamed sample, if it does not arrive
+				// in time fall back to fetching the sample directly
+				long end = System.currentTimeMillis() + firstSampleWait;
+				try {
+					while (count == 0 && received == 0 && streaming) {
+						long left = end - System.currentTimeMillis();
+						if (left <= 0)
+							break;
+						wait(left);
+					}
+				} catch (InterruptedException e) {
+					throw new RemoteRequestException(e);
+				}
+				if (received > 0) {
+					int last = (head + count - 1 + capacity) % capacity;
+					System.arraycopy(buffer, last*sampleSize, sample, offset, sampleSize);
+					return;
+				}
+			}
+		}
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.FETCH_SAMPLE;
 		req.replyRequired = true;
 		EV3Reply reply = sendRequest(req, true);
 		for(int i=0;i<reply.floats.length;i++) sample[offset+i] = reply.floats[i];
 	}
+
+	/**
+	 * Run a chain of filters next to the sensor on the EV3. All samples
+	 * returned after this call, including streamed samples, are the output of
+	 * the filters. If the chain has a sample rate, the rate of streamed
+	 * samples is set by the chain. Streaming is stopped by this call.
+	 * @param chain the filters or null to remove the filters
+	 */
+	public void setFilterChain(FilterChain chain) {
+		stopStreaming();
+		EV3Request req = new EV3Request();
+		req.request = EV3Request.Request.SET_FILTER_CHAIN;
+		req.byteData = (chain == null ? null : chain.toByteArray());
+		sendRequest(req, true);
+		sampleSize = -1;
+	}
+
+	/**
+	 * Start streaming samples from the EV3.
+	 * @param rate the number of samples per second
+	 * @param bufferSize the number of samples to hold locally, if the buffer
+	 * is full the oldest samples are discarded
+	 * @throws IllegalArgumentException if the rate or buffer size is not
+	 * positive
+	 */
+	public void startStreaming(float rate, int bufferSize) {
+		if (!(rate > 0))
+			throw new IllegalArgumentException("Invalid sample rate " + rate);
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("Invalid buffer size " + bufferSize);
+		stopStreaming();
+		sampleSize();
+		synchronized(this) {
+			capacity = bufferSize;
+			firstSampleWait = (long)(2000/rate) + FIRST_SAMPLE_WAIT;
+			buffer = new float[capacity*sampleSize];
+			times = new double[capacity];
+			head = count = 0;
+			received = overruns = 0;
+			streaming = true;
+		}
+		if (conn.isPushSupported()) {
+			EV3Request req = new EV3Request();
+			req.request = EV3Request.Request.SUBSCRIBE_SAMPLES;
+			req.intValue = portNum;
+			req.floatValue = rate;
+			listener = new RemoteRequestConnection.ReplyListener() {
+				@Override
+				public void replyReceived(EV3Reply reply) {
+					addSamples(reply.floats, reply.doubleReply, reply.floatReply);
+				}
+			};
+			try {
+				RemoteRequestConnection.getReply(conn.subscribe(RemoteRequestConnection.STREAM_SENSOR, req, listener));
+				return;
+			} catch (RemoteRequestException e) {
+				// Server can not push samples, fall back to polling
+				conn.unsubscribe(listener);
+				listener = null;
+			}
+		}
+		poller = new Poller(rate);
+		poller.start();
+	}
+
+	/**
+	 * Stop streaming samples, any samples that have been received can
+	 * still be read.
+	 */
+	public void stopStreaming() {
+		if (!streaming) return;
+		streaming = false;
+		if (listener != null) {
+			conn.unsubscribe(listener);
+			listener = null;
+			EV3Request req = new EV3Request();
+			req.request = EV3Request.Request.UNSUBSCRIBE_SAMPLES;
+			sendRequest(req, false);
+		}
+		if (poller != null) {
+			poller.interrupt();
+			poller = null;
+		}
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Return the number of streamed samples waiting to be read.
+	 * @return number of samples
+	 */
+	public synchronized int available() {
+		return count;
+	}
+
+	/**
+	 * Return the number of streamed samples that have been discarded because
+	 * the local buffer was full.
+	 * @return number of discarded samples
+	 */
+	public synchronized long getOverrunCount() {
+		return overruns;
+	}
+
+	/**
+	 * Read and remove the oldest streamed samples from the local buffer,
+	 * this method does not block.
+	 * @param samples array to hold the samples
+	 * @param offset offset of the first sample in the array
+	 * @param timeStamps array to hold the time of each sample (ms), or null
+	 * @param max the maximum number of samples to read
+	 * @return the number of samples read
+	 */
+	public synchronized int readSamples(float[] samples, int offset, double[] timeStamps, int max) {
+		int n = Math.min(max, count);
+		for(int i = 0; i < n; i++) {
+			System.arraycopy(buffer, head*sampleSize, samples, offset + i*sampleSize, sampleSize);
+			if (timeStamps != null)
+				timeStamps[i] = times[head];
+			head = (head + 1) % capacity;
+		}
+		count -= n;
+		return n;
+	}
+
+	/**
+	 * Add a batch of samples to the local buffer.
+	 * @param samples the sample values
+	 * @param first time of the first sample
+	 * @param interval time between samples
+	 */
+	private synchronized void addSamples(float[] samples, double first, double interval) {
+		if (!streaming || samples == null) return;
+		int n = samples.length/sampleSize;
+		for(int i = 0; i < n; i++) {
+			int pos;
+			if (count == capacity) {
+				pos = head;
+				head = (head + 1) % capacity;
+				overruns++;
+			} else
+				pos = (head + count++) % capacity;
+			System.arraycopy(samples, i*sampleSize, buffer, pos*sampleSize, sampleSize);
+			times[pos] = first + i*interval;
+		}
+		received += n;
+		notifyAll();
+	}
 	
 	public void close() {
+		stopStreaming();
 		EV3Request req = new EV3Request();
 		req.request = EV3Request.Request.CLOSE_SENSOR;
 		sendRequest(req, false);
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
 		req.intValue = portNum;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
+		return conn.sendRequest(RemoteRequestConnection.STREAM_SENSOR, req, replyRequired);
+	}
+
+	/**
+	 * Thread used to stream samples when the connection does not support
+	 * pushed replies. Several fetch requests are kept in flight to hide the
+	 * round trip time, the samples are time stamped when they arrive.
+	 */
+	private class Poller extends Thread {
+		final long period;
+
+		Poller(float rate) {
+			period = (long)(1000000000L/rate);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ArrayDeque<Future<EV3Reply>> inFlight = new ArrayDeque<Future<EV3Reply>>();
+			long next = System.nanoTime();
+			try {
+				while (streaming) {
+					while (inFlight.size() < PIPELINE) {
+						EV3Request req = new EV3Request();
+						req.request = EV3Request.Request.FETCH_SAMPLE;
+						req.intValue = portNum;
+						inFlight.addLast(conn.submit(RemoteRequestConnection.STREAM_SENSOR, req));
+					}
+					EV3Reply reply = RemoteRequestConnection.getReply(inFlight.removeFirst());
+					addSamples(reply.floats, System.currentTimeMillis(), 0);
+					next += period;
+					long wait = next - System.nanoTime();
+					if (wait > 0)
+						sleep(wait/1000000, (int)(wait%1000000));
+					else
+						next -= wait;
+				}
+				// Collect the outstanding replies so the connection stays in step
+				while (!inFlight.isEmpty())
+					RemoteRequestConnection.getReply(inFlight.removeFirst());
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (RemoteRequestException e) {
+				streaming = false;
 			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
 		}
 	}
 }
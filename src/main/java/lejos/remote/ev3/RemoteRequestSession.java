@@ -0,0 +1,500 @@
+package lejos.remote.ev3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Connection that keeps a small pool of connections to an EV3 and
+ * re-establishes them when the link fails.
+ * <p>
+ * The first connection in the pool carries the motor, sensor, control and
+ * event streams. Any further connections carry the bulk stream, so LCD,
+ * audio and other bulk requests do not delay motor commands even when the
+ * underlying connection executes requests one at a time. Bulk requests are
+ * assigned to a bulk connection by type, so requests of the same type are
+ * always executed in order.
+ * <p>
+ * The session records the requests that open resources on the EV3 (ports,
+ * sample providers, regulated motors, pilots and filter chains) and forgets
+ * them when the resource is closed. When a connection fails a new one is
+ * made, retrying with an increasing delay, and the recorded requests and
+ * any subscriptions are replayed on it, so the proxy objects continue to
+ * work without being recreated. Requests made while the connection is being
+ * re-established wait for it. Requests that were in flight when the link
+ * failed can not be recovered, they fail with a
+ * {@link RemoteRequestException}.
+ */
+public class RemoteRequestSession extends RemoteRequestConnection {
+	/**
+	 * Makes new connections to the EV3 for the session.
+	 */
+	public interface Connector {
+		/**
+		 * Connect to the EV3.
+		 * @return the new connection
+		 * @throws IOException if the EV3 can not be reached
+		 */
+		public RemoteRequestConnection connect() throws IOException;
+	}
+
+	private final Connector connector;
+	private final RemoteRequestConnection[] pool;
+	private final boolean[] reconnecting;
+	private final LinkedHashMap<String, Logged> resources = new LinkedHashMap<String, Logged>();
+	private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+	private int minDelay = 100;
+	private int maxDelay = 5000;
+	private int maxAttempts = 0;
+	private int reconnects = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * A request that opened a resource on the EV3.
+	 */
+	private static class Logged {
+		final int stream;
+		final EV3Request req;
+		final boolean replyRequired;
+
+		Logged(int stream, EV3Request req, boolean replyRequired) {
+			this.stream = stream;
+			this.req = req;
+			this.replyRequired = replyRequired;
+		}
+	}
+
+	/**
+	 * A subscription that must be renewed after a reconnect.
+	 */
+	private static class Subscription {
+		final int stream;
+		final EV3Request req;
+		final ReplyListener listener;
+
+		Subscription(int stream, EV3Request req, ReplyListener listener) {
+			this.stream = stream;
+			this.req = req;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Create a session and make its connections.
+	 * @param connector used to make the connections
+	 * @param bulkConnections the number of connections used for bulk
+	 * requests, if this is zero all requests use the same connection
+	 * @throws IOException if the EV3 can not be reached
+	 */
+	public RemoteRequestSession(Connector connector, int bulkConnections) throws IOException {
+		if (bulkConnections < 0)
+			throw new IllegalArgumentException("Invalid bulk connections " + bulkConnections);
+		this.connector = connector;
+		pool = new RemoteRequestConnection[1 + bulkConnections];
+		reconnecting = new boolean[pool.length];
+		try {
+			for(int i = 0; i < pool.length; i++)
+				pool[i] = connector.connect();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Set the policy used to re-establish a failed connection. The delay
+	 * between attempts starts at the minimum and is doubled after every
+	 * failed attempt up to the maximum.
+	 * @param minDelay the delay before the second attempt in milliseconds
+	 * @param maxDelay the largest delay between attempts in milliseconds
+	 * @param maxAttempts the number of attempts made before the request that
+	 * found the failure is failed, or 0 to keep trying until the session is
+	 * closed
+	 */
+	public synchronized void setReconnectPolicy(int minDelay, int maxDelay, int maxAttempts) {
+		if (minDelay <= 0 || maxDelay < minDelay || maxAttempts < 0)
+			throw new IllegalArgumentException("Invalid reconnect policy");
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Return the number of times a connection has been re-established.
+	 * @return reconnects
+	 */
+	public synchronized int getReconnects() {
+		return reconnects;
+	}
+
+	/**
+	 * Return the number of resource opening requests that will be replayed
+	 * when a connection is re-established.
+	 * @return open resources
+	 */
+	public synchronized int getOpenResources() {
+		return resources.size();
+	}
+
+	@Override
+	public Future<EV3Reply> submit(int stream, EV3Request req) {
+		int i = index(stream, req);
+		for(;;) {
+			RemoteRequestConnection c = connection(i);
+			try {
+				Future<EV3Reply> reply = c.submit(stream, req);
+				// record once sent, so a reconnect made while sending it
+				// does not replay it as well
+				record(stream, req, true);
+				return new SessionReply(i, c, reply);
+			} catch (RemoteRequestException e) {
+				// The request has not been sent if the connection had failed
+				if (c.isConnected())
+					throw e;
+				reconnect(i, c, e);
+			}
+		}
+	}
+
+	@Override
+	public void send(int stream, EV3Request req) {
+		int i = index(stream, req);
+		for(;;) {
+			RemoteRequestConnection c = connection(i);
+			try {
+				c.send(stream, req);
+				record(stream, req, false);
+				return;
+			} catch (RemoteRequestException e) {
+				if (c.isConnected())
+					throw e;
+				reconnect(i, c, e);
+			}
+		}
+	}
+
+	@Override
+	public boolean isPushSupported() {
+		return pool[0].isPushSupported();
+	}
+
+	@Override
+	public Future<EV3Reply> subscribe(int stream, EV3Request req, ReplyListener listener) {
+		int i = index(stream, req);
+		for(;;) {
+			RemoteRequestConnection c = connection(i);
+			try {
+				Future<EV3Reply> reply = c.subscribe(stream, req, listener);
+				synchronized(this) {
+					subscriptions.add(new Subscription(stream, req, listener));
+				}
+				return new SessionReply(i, c, reply);
+			} catch (RemoteRequestException e) {
+				if (c.isConnected())
+					throw e;
+				reconnect(i, c, e);
+			}
+		}
+	}
+
+	@Override
+	public void unsubscribe(ReplyListener listener) {
+		RemoteRequestConnection[] current;
+		synchronized(this) {
+			for(Iterator<Subscription> it = subscriptions.iterator(); it.hasNext();)
+				if (it.next().listener == listener)
+					it.remove();
+			current = pool.clone();
+		}
+		for(RemoteRequestConnection c : current)
+			if (c != null)
+				c.unsubscribe(listener);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return !closed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		RemoteRequestConnection[] current;
+		synchronized(this) {
+			closed = true;
+			notifyAll();
+			current = pool.clone();
+		}
+		IOException error = null;
+		for(RemoteRequestConnection c : current) {
+			if (c == null) continue;
+			try {
+				c.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	@Override
+	protected void awaitReply(PendingReply pending) throws InterruptedException {
+		// Replies are always obtained from the underlying connection
+		pending.waitDone();
+	}
+
+	/**
+	 * Return the connection in the pool used for a request.
+	 */
+	private int index(int stream, EV3Request req) {
+		if (stream != STREAM_BULK || pool.length == 1)
+			return 0;
+		String name = req.request.name();
+		int type;
+		if (name.startsWith("LCD_"))
+			type = 0;
+		else if (name.startsWith("PLAY_") || name.endsWith("_VOLUME") || name.equals("SYSTEM_SOUND"))
+			type = 1;
+		else
+			type = 2;
+		return 1 + type % (pool.length - 1);
+	}
+
+	/**
+	 * Return the connection at an index, waiting for it if it is being
+	 * re-established.
+	 */
+	private synchronized RemoteRequestConnection connection(int i) {
+		try {
+			while (reconnecting[i] && !closed)
+				wait();
+		} catch (InterruptedException e) {
+			throw new RemoteRequestException(e);
+		}
+		if (closed)
+			throw new RemoteRequestException("Session closed");
+		return pool[i];
+	}
+
+	/**
+	 * Record requests that open or close resources on the EV3.
+	 */
+	private synchronized void record(int stream, EV3Request req, boolean replyRequired) {
+		switch (req.request) {
+		case OPEN_ANALOG_PORT:
+		case OPEN_I2C_PORT:
+		case OPEN_UART_PORT:
+			resources.put("port:S" + req.intValue, new Logged(stream, req, replyRequired));
+			break;
+		case CLOSE_SENSOR_PORT:
+			resources.remove("port:S" + req.intValue);
+			break;
+		case OPEN_MOTOR_PORT:
+			resources.put("port:M" + req.intValue, new Logged(stream, req, replyRequired));
+			break;
+		case CLOSE_MOTOR_PORT:
+			resources.remove("port:M" + req.intValue);
+			break;
+		case CREATE_SAMPLE_PROVIDER:
+		case CREATE_SAMPLE_PROVIDER_PUBLISH:
+			resources.remove("filter:" + req.intValue);
+			resources.put("sensor:" + req.intValue, new Logged(stream, req, replyRequired));
+			break;
+		case SET_FILTER_CHAIN:
+			if (req.byteData == null)
+				resources.remove("filter:" + req.intValue);
+			else
+				resources.put("filter:" + req.intValue, new Logged(stream, req, replyRequired));
+			break;
+		case CLOSE_SENSOR:
+			resources.remove("filter:" + req.intValue);
+			resources.remove("sensor:" + req.intValue);
+			break;
+		case CREATE_REGULATED_MOTOR:
+			resources.put("motor:" + (req.str.charAt(0) - 'A'), new Logged(stream, req, replyRequired));
+			break;
+		case MOTOR_CLOSE:
+			resources.remove("motor:" + req.intValue);
+			break;
+		case CREATE_PILOT:
+			resources.put("pilot", new Logged(stream, req, replyRequired));
+			break;
+		case CLOSE_PILOT:
+			Logged pilot = resources.remove("pilot");
+			if (pilot != null) {
+				resources.remove("motor:" + (pilot.req.str.charAt(0) - 'A'));
+				resources.remove("motor:" + (pilot.req.str2.charAt(0) - 'A'));
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Replace a failed connection. Only one thread replaces a connection,
+	 * other threads that find the same failure wait for it to be replaced.
+	 * @param i the index of the connection
+	 * @param failed the connection that has failed
+	 * @param cause the error that showed the failure
+	 */
+	private void reconnect(int i, RemoteRequestConnection failed, RemoteRequestException cause) {
+		int min, max, attempts;
+		synchronized(this) {
+			if (pool[i] != failed)
+				return;
+			if (reconnecting[i]) {
+				connection(i);
+				return;
+			}
+			reconnecting[i] = true;
+			min = minDelay;
+			max = maxDelay;
+			attempts = maxAttempts;
+		}
+		try {
+			failed.close();
+		} catch (IOException e) {
+			// already broken
+		}
+		RemoteRequestConnection c = null;
+		long delay = min;
+		try {
+			for(int attempt = 1; c == null && !closed; attempt++) {
+				try {
+					c = connector.connect();
+					replay(i, c);
+				} catch (IOException e) {
+					c = discard(c);
+				} catch (RemoteRequestException e) {
+					c = discard(c);
+				}
+				if (c != null)
+					break;
+				if (attempts > 0 && attempt >= attempts)
+					throw cause;
+				synchronized(this) {
+					wait(delay);
+				}
+				delay = Math.min(delay*2, max);
+			}
+		} catch (InterruptedException e) {
+			throw new RemoteRequestException(e);
+		} finally {
+			synchronized(this) {
+				if (c != null) {
+					if (closed)
+						discard(c);
+					else {
+						pool[i] = c;
+						reconnects++;
+					}
+				}
+				reconnecting[i] = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Replay the recorded requests and subscriptions that belong to a
+	 * connection.
+	 */
+	private void replay(int i, RemoteRequestConnection c) {
+		ArrayList<Logged> logged;
+		ArrayList<Subscription> subs;
+		synchronized(this) {
+			logged = new ArrayList<Logged>(resources.values());
+			subs = new ArrayList<Subscription>(subscriptions);
+		}
+		for(Logged l : logged) {
+			if (index(l.stream, l.req) != i)
+				continue;
+			if (l.replyRequired)
+				getReply(c.submit(l.stream, l.req));
+			else
+				c.send(l.stream, l.req);
+		}
+		for(Subscription s : subs)
+			if (index(s.stream, s.req) == i)
+				getReply(c.subscribe(s.stream, s.req, s.listener));
+	}
+
+	private static RemoteRequestConnection discard(RemoteRequestConnection c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A reply from one of the connections in the pool. If the reply fails
+	 * because the link has failed the connection is replaced, so later
+	 * requests will succeed.
+	 */
+	private class SessionReply implements Future<EV3Reply> {
+		private final int index;
+		private final RemoteRequestConnection conn;
+		private final Future<EV3Reply> reply;
+
+		SessionReply(int index, RemoteRequestConnection conn, Future<EV3Reply> reply) {
+			this.index = index;
+			this.conn = conn;
+			this.reply = reply;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return reply.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return reply.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return reply.isDone();
+		}
+
+		@Override
+		public EV3Reply get() throws InterruptedException, ExecutionException {
+			try {
+				return reply.get();
+			} catch (ExecutionException e) {
+				checkLink(e);
+				throw e;
+			}
+		}
+
+		@Override
+		public EV3Reply get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			try {
+				return reply.get(timeout, unit);
+			} catch (ExecutionException e) {
+				checkLink(e);
+				throw e;
+			}
+		}
+
+		private void checkLink(ExecutionException e) {
+			if (!conn.isConnected() && !closed) {
+				try {
+					reconnect(index, conn, new RemoteRequestException(e.getCause()));
+				} catch (RemoteRequestException re) {
+					// reported by the next request
+				}
+			}
+		}
+	}
+}
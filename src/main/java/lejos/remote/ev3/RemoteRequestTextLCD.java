@@ -7,19 +7,24 @@ import lejos.hardware.lcd.Font;
 import lejos.hardware.lcd.TextLCD;
 
 public class RemoteRequestTextLCD implements TextLCD {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	private Font font;
 
 	public RemoteRequestTextLCD(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestTextLCD(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 
 	public RemoteRequestTextLCD(ObjectInputStream is, ObjectOutputStream os,
 			Font font) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os), font);
+	}
+
+	public RemoteRequestTextLCD(RemoteRequestConnection conn, Font font) {
+		this.conn = conn;
 		this.font = font;
 	}
 
@@ -222,18 +227,6 @@ public class RemoteRequestTextLCD implements TextLCD {
 	}
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_BULK, req, replyRequired);
 	}
 }
@@ -6,13 +6,15 @@ import java.io.ObjectOutputStream;
 import lejos.hardware.port.UARTPort;
 
 public class RemoteRequestUARTPort extends RemoteRequestIOPort implements UARTPort  {
-	private ObjectInputStream is;
-	private ObjectOutputStream os;
+	private RemoteRequestConnection conn;
 	private int portNum;
 	
 	public RemoteRequestUARTPort(ObjectInputStream is, ObjectOutputStream os) {
-		this.is = is;
-		this.os = os;
+		this(RemoteRequestObjectConnection.getConnection(is, os));
+	}
+
+	public RemoteRequestUARTPort(RemoteRequestConnection conn) {
+		this.conn = conn;
 	}
 	
 	@Override
@@ -113,20 +115,8 @@ public class RemoteRequestUARTPort extends RemoteRequestIOPort implements UARTPo
     }
 	
 	private EV3Reply sendRequest(EV3Request req, boolean replyRequired) {
-		EV3Reply reply = null;
-		req.replyRequired = replyRequired;
 		req.intValue = portNum;
-		try {
-			os.reset();
-			os.writeObject(req);
-			if (replyRequired) {
-				reply = (EV3Reply) is.readObject();
-				if (reply.e != null) throw new RemoteRequestException(reply.e);
-			}
-			return reply;
-		} catch (Exception e) {
-			throw new RemoteRequestException(e);
-		}
+		return conn.sendRequest(RemoteRequestConnection.STREAM_SENSOR, req, replyRequired);
 	}
 
     @Override
@@ -30,8 +30,8 @@ public class NXTComm implements NXTCommRequest {
 		return true;
 	}
 	
-	private void sendData(byte [] data) throws IOException {
-		if (con.write(data, data.length) < 0) throw new IOException();
+	private void sendData(byte [] data, int len) throws IOException {
+		if (con.write(data, len) < 0) throw new IOException();
 	}
 	
 	private byte[] readData() throws IOException {	
@@ -45,12 +45,20 @@ public class NXTComm implements NXTCommRequest {
 
 	}
 	
-	public byte[] sendRequest(byte [] message, int replyLen) throws IOException {
-		sendData(message);
+	public synchronized byte[] sendRequest(byte [] message, int replyLen) throws IOException {
+		sendData(message, message.length);
 		if (replyLen == 0) return new byte[0];
 		return readData();
 	}
 	
+	public synchronized void send(byte [] message, int len) throws IOException {
+		sendData(message, len);
+	}
+	
+	public synchronized byte[] receive() throws IOException {
+		return readData();
+	}
+	
 	public void close() throws IOException {
 		con.close();
 	}
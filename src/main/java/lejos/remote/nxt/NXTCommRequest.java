@@ -24,6 +24,26 @@ public interface NXTCommRequest {
 	 * @throws IOException
 	 */
 	public byte[] sendRequest(byte [] message, int replyLen) throws IOException;
+	
+	/**
+	 * Send an LCP message to the NXT without waiting for the reply. If the
+	 * message requests a reply it must be collected using {@link #receive()},
+	 * replies are received in the order the messages were sent.
+	 * 
+	 * @param message the buffer holding the LCP message
+	 * @param len the length of the message
+	 * @throws IOException
+	 */
+	public void send(byte [] message, int len) throws IOException;
+	
+	/**
+	 * Receive the reply to the oldest message sent using {@link #send(byte[], int)}
+	 * that requested a reply.
+	 * 
+	 * @return the reply
+	 * @throws IOException
+	 */
+	public byte[] receive() throws IOException;
 
 }
 
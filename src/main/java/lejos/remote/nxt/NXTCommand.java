@@ -2,6 +2,7 @@ package lejos.remote.nxt;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
@@ -20,6 +21,10 @@ public class NXTCommand implements NXTProtocol {
 	private boolean open;
 	private static final String hexChars = "01234567890abcdef";
 	private static final int MAX_BUFFER_SIZE = 58;
+	private int transferWindow = 1;
+	private byte[] writeBuf = new byte[MAX_BUFFER_SIZE + 3];
+	private long transferRate = 0;
+	private NXTPoller poller;
 	
 	//TODO checks whether open==true are missing all over the place
 
@@ -40,6 +45,74 @@ public class NXTCommand implements NXTProtocol {
 		verifyCommand = verify;
 	}
 
+	/**
+	 * Set the number of file chunks that may be in flight during a file
+	 * transfer. With a window of 1 (the default) every chunk read waits for
+	 * its reply, and writes wait for each reply if verify is set. With a
+	 * larger window readFile keeps this many read requests outstanding, and
+	 * writeFile only waits when this many acknowledged chunks are in flight.
+	 * Without verify, writeFile asks for a reply to every window'th chunk
+	 * only, so the transfer is paced without a round trip per chunk.
+	 * 
+	 * @param window the number of chunks in flight
+	 */
+	public void setTransferWindow(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("Invalid window " + window);
+		transferWindow = window;
+	}
+
+	public int getTransferWindow() {
+		return transferWindow;
+	}
+
+	/**
+	 * Return the throughput of the last call to uploadFile or downloadFile.
+	 * 
+	 * @return the rate in bytes per second
+	 */
+	public long getTransferRate() {
+		return transferRate;
+	}
+
+	/**
+	 * Send several requests back to back and then collect the replies, so
+	 * the whole batch costs a single round trip. No other request can be
+	 * sent on the connection until all of the replies have been received.
+	 * 
+	 * @param requests the LCP requests
+	 * @return the replies, the entry for a request that does not require a
+	 * reply is null
+	 * @throws IOException
+	 */
+	public byte[][] sendBatch(byte[][] requests) throws IOException {
+		if (!open)
+			throw new IOException("NXTCommand is closed");
+		byte[][] replies = new byte[requests.length][];
+		synchronized(nxtComm) {
+			for (byte[] request : requests)
+				nxtComm.send(request, request.length);
+			for (int i = 0; i < requests.length; i++)
+				if (requests[i][0] == DIRECT_COMMAND_REPLY || requests[i][0] == SYSTEM_COMMAND_REPLY)
+					replies[i] = nxtComm.receive();
+		}
+		return replies;
+	}
+
+	/**
+	 * Set the poller used by the remote ports to obtain cached sensor and
+	 * motor values.
+	 * 
+	 * @param poller the poller or null to read values directly
+	 */
+	public void setPoller(NXTPoller poller) {
+		this.poller = poller;
+	}
+
+	public NXTPoller getPoller() {
+		return poller;
+	}
+
 	/**
 	 * Small helper method to send DIRECT COMMAND request to NXT and return
 	 * verification result.
@@ -356,24 +429,59 @@ public class NXTCommand implements NXTProtocol {
      * @throws IOException
      */
 	public byte writeFile(byte handle, byte[] data, int offset, int length) throws IOException {
-		byte[] command = { SYSTEM_COMMAND_NOREPLY, WRITE, handle };
-		int remaining = length;
-		int chunkStart = offset;
-		while (remaining > 0) {
-			int chunkLen = MAX_BUFFER_SIZE;
-			if (remaining < chunkLen)
-				chunkLen = remaining;
-			byte [] request = new byte[chunkLen + 3];
-			System.arraycopy(command, 0, request, 0, command.length);
-			System.arraycopy(data, chunkStart, request, 3, chunkLen);
-
-			byte status = sendSystemRequest(request, 6);
-			if (status != 0)
-				return status;
-			remaining -= chunkLen;
-			chunkStart += chunkLen;
+		if (!open)
+			throw new IOException("NXTCommand is closed");
+		// keep other requests off the connection until all the replies are in
+		synchronized(nxtComm) {
+			byte[] request = writeBuf;
+			request[1] = WRITE;
+			request[2] = handle;
+			// With verify every chunk is acknowledged, otherwise with a window
+			// every window'th chunk (and the last) is acknowledged to pace the
+			// transfer.
+			int ackEvery = (verifyCommand ? 1 : (transferWindow > 1 ? transferWindow : 0));
+			int maxPending = (verifyCommand ? transferWindow - 1 : 1);
+			int pending = 0;
+			int chunks = 0;
+			byte status = 0;
+			int remaining = length;
+			int chunkStart = offset;
+			while (remaining > 0 && status == 0) {
+				int chunkLen = MAX_BUFFER_SIZE;
+				if (remaining < chunkLen)
+					chunkLen = remaining;
+				boolean ack = ackEvery > 0 && (++chunks % ackEvery == 0 || remaining == chunkLen);
+				request[0] = (ack ? SYSTEM_COMMAND_REPLY : SYSTEM_COMMAND_NOREPLY);
+				System.arraycopy(data, chunkStart, request, 3, chunkLen);
+				nxtComm.send(request, chunkLen + 3);
+				if (ack && ++pending > maxPending) {
+					status = receiveStatus(status);
+					pending--;
+				}
+				remaining -= chunkLen;
+				chunkStart += chunkLen;
+			}
+			// collect the outstanding replies so the connection stays in step
+			while (pending-- > 0)
+				status = receiveStatus(status);
+			return status;
 		}
-		return 0;
+	}
+	
+	/**
+	 * Receive the reply to a request sent using the split send and receive
+	 * calls.
+	 * 
+	 * @param status the status so far
+	 * @return the status so far if it is an error, or the status of the reply
+	 */
+	private byte receiveStatus(byte status) throws IOException {
+		byte[] reply = nxtComm.receive();
+		if (status != 0)
+			return status;
+		if (reply == null || reply.length < 3)
+			throw new IOException("Invalid reply");
+		return reply[2];
 	}
 	
 	/**
@@ -387,29 +495,81 @@ public class NXTCommand implements NXTProtocol {
 	 */
 	public String uploadFile(File file, String nxtFileName) throws IOException {
 	    long millis = System.currentTimeMillis();
+	    boolean verify = verifyCommand;
 	    FileInputStream in = new FileInputStream(file);
 	    try
 	    {
 			byte handle = openWrite(nxtFileName, (int) file.length());
-			byte[] data = new byte[MAX_BUFFER_SIZE];
+			byte[] data = new byte[MAX_BUFFER_SIZE*64];
 			int len;
-			while ((len = in.read(data)) > 0)
+			byte status = 0;
+			while (status == 0 && (len = in.read(data)) > 0)
 			{
-				writeFile(handle, data, 0, len);
+				status = writeFile(handle, data, 0, len);
 			}
+			// The whole transfer is verified by the reply to the close
 			setVerify(true);
-			closeFile(handle);
-			return "Upload successful in " + (System.currentTimeMillis() - millis) + " milliseconds";
+			byte closeStatus = closeFile(handle);
+			if (status == 0)
+				status = closeStatus;
+			if (status != 0)
+				throw new LCPException(status);
+			millis = System.currentTimeMillis() - millis;
+			setTransferRate(file.length(), millis);
+			return "Upload successful in " + millis + " milliseconds (" + transferRate + " bytes/sec)";
 	    }
 	    finally
 	    {
+	    	setVerify(verify);
 	    	in.close();
 	    }
 	}
 
+	/**
+	 * Download a file from the NXT
+	 * 
+	 * @param nxtFileName the name of the file on the NXT
+	 * @param file the file to write
+	 * @return a message saying how long it took to download the file
+	 * 
+	 * @throws IOException
+	 */
+	public String downloadFile(String nxtFileName, File file) throws IOException {
+	    long millis = System.currentTimeMillis();
+	    FileInfo info = openRead(nxtFileName);
+	    try
+	    {
+			byte[] data = new byte[info.fileSize];
+			int len = readFile(info.fileHandle, data, 0, data.length);
+			if (len != data.length)
+				throw new IOException("Failed to read " + nxtFileName);
+			FileOutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write(data);
+			}
+			finally
+			{
+				out.close();
+			}
+	    }
+	    finally
+	    {
+	    	closeFile(info.fileHandle);
+	    }
+		millis = System.currentTimeMillis() - millis;
+		setTransferRate(info.fileSize, millis);
+		return "Download successful in " + millis + " milliseconds (" + transferRate + " bytes/sec)";
+	}
+
+	private void setTransferRate(long bytes, long millis) {
+		transferRate = bytes*1000/Math.max(millis, 1);
+	}
+
 	/**
 	 * Returns requested number of bytes from a file. File must first be opened
-	 * using the openRead() command.
+	 * using the openRead() command. Up to the transfer window read requests
+	 * are kept in flight.
 	 * 
 	 * @param handle File handle number (from openRead method)
 	 * @param data Buffer to which data is written
@@ -418,21 +578,47 @@ public class NXTCommand implements NXTProtocol {
 	 * @return number of bytes read
 	 */
 	public int readFile(byte handle, byte[] data, int offset, int length) throws IOException {
-		int remaining = length;
-		int chunkStart = offset;
-		while (remaining > 0) {
-			int chunkLen = MAX_BUFFER_SIZE;
-			if (chunkLen > remaining)
-				chunkLen = remaining;
-			byte[] request = { SYSTEM_COMMAND_REPLY, READ, handle, (byte) chunkLen,
-					(byte) (chunkLen >>> 8) };
-			byte[] reply1 = nxtComm.sendRequest(request, chunkLen + 6);
-			int dataLen = (reply1[4] & 0xFF) + ((reply1[5] & 0xFF) << 8);
-			System.arraycopy(reply1, 6, data, chunkStart, dataLen);
-			chunkStart += chunkLen;
-			remaining -= chunkLen;
+		if (!open)
+			throw new IOException("NXTCommand is closed");
+		byte[] request = { SYSTEM_COMMAND_REPLY, READ, handle, 0, 0 };
+		// keep other requests off the connection until all the replies are in
+		synchronized(nxtComm) {
+			int requested = 0;
+			int received = 0;
+			int pending = 0;
+			boolean failed = false;
+			for (;;) {
+				if (requested < length && pending < transferWindow && !failed) {
+					int chunkLen = MAX_BUFFER_SIZE;
+					if (chunkLen > length - requested)
+						chunkLen = length - requested;
+					request[3] = (byte) chunkLen;
+					request[4] = (byte) (chunkLen >>> 8);
+					nxtComm.send(request, request.length);
+					requested += chunkLen;
+					pending++;
+					continue;
+				}
+				if (pending == 0)
+					break;
+				byte[] reply = nxtComm.receive();
+				pending--;
+				if (failed || reply.length < 6)
+				{
+					failed = true;
+					continue;
+				}
+				int dataLen = (reply[4] & 0xFF) + ((reply[5] & 0xFF) << 8);
+				if (dataLen > reply.length - 6)
+					dataLen = reply.length - 6;
+				System.arraycopy(reply, 6, data, offset + received, dataLen);
+				received += dataLen;
+				// stop at the end of the file or on error
+				if (reply[2] != ErrorMessages.SUCCESS)
+					failed = true;
+			}
+			return received;
 		}
-		return length;
 	}
 
 	/**
@@ -508,6 +694,15 @@ public class NXTCommand implements NXTProtocol {
 	public InputValues getInputValues(int port) throws IOException {
 		byte [] request = {DIRECT_COMMAND_REPLY, GET_INPUT_VALUES, (byte)port};
 		byte [] reply = nxtComm.sendRequest(request, 16);
+		return parseInputValues(reply);
+	}
+	
+	/**
+	 * Decode the reply to a GET_INPUT_VALUES request.
+	 * @param reply the reply
+	 * @return the input values
+	 */
+	static InputValues parseInputValues(byte[] reply) {
 		InputValues inputValues = new InputValues();
 		inputValues.inputPort = reply[3];
 		// 0 is false, 1 is true.
@@ -533,7 +728,16 @@ public class NXTCommand implements NXTProtocol {
 		// !! Needs to check port to verify they are correct ranges.
 		byte [] request = {DIRECT_COMMAND_REPLY, GET_OUTPUT_STATE, (byte)port};
 		byte [] reply = nxtComm.sendRequest(request,25);
-
+		return parseOutputState(port, reply);
+	}
+	
+	/**
+	 * Decode the reply to a GET_OUTPUT_STATE request.
+	 * @param port the port
+	 * @param reply the reply
+	 * @return the output state
+	 */
+	static OutputState parseOutputState(int port, byte[] reply) {
 		OutputState outputState = new OutputState(port);
 		outputState.status = reply[2];
 		outputState.outputPort = reply[3];
@@ -0,0 +1,288 @@
+package lejos.remote.nxt;
+
+import java.io.IOException;
+
+import lejos.hardware.sensor.EV3SensorConstants;
+
+/**
+ * Reads the state of the motors and sensors of a remote NXT at a fixed rate
+ * and caches the values for the remote port classes.<br>
+ * All the GET_OUTPUT_STATE and GET_INPUT_VALUES requests for one poll are
+ * written back to back and the replies collected afterwards, so reading
+ * three motors and four sensors costs one round trip rather than seven.
+ * A port is added to the poll the first time its value is requested, until
+ * the first poll that includes it has completed the caller reads the value
+ * directly.
+ *
+ * @see RemoteNXT#startPolling(int)
+ */
+public class NXTPoller implements NXTProtocol
+{
+    private static final int MOTORS = 3;
+
+    private final NXTCommand nxtCommand;
+    private final int period;
+    private final boolean[] motors = new boolean[MOTORS];
+    private final boolean[] sensors = new boolean[EV3SensorConstants.PORTS];
+    private final OutputState[] outputs = new OutputState[MOTORS];
+    private final InputValues[] inputs = new InputValues[EV3SensorConstants.PORTS];
+    // bumped whenever a cached value is discarded, so a poll that was in
+    // flight at the time does not store a stale value
+    private final int[] motorGen = new int[MOTORS];
+    private final int[] sensorGen = new int[EV3SensorConstants.PORTS];
+    private volatile boolean running = false;
+    private IOException failure;
+    private long polls = 0;
+    private int roundTrip = 0;
+    private volatile Reader reader;
+
+    /**
+     * Create a poller, the poller must be started to read values at a fixed
+     * rate.
+     * @param nxtCommand the NXTCommand object for the NXT
+     * @param period the time between polls in milliseconds
+     */
+    public NXTPoller(NXTCommand nxtCommand, int period)
+    {
+        if (period <= 0)
+            throw new IllegalArgumentException("Invalid period " + period);
+        this.nxtCommand = nxtCommand;
+        this.period = period;
+    }
+
+    /**
+     * Return the cached output state of a motor. The motor is added to the
+     * poll if it is not already included.
+     * @param port the motor port
+     * @return the state or null if it has not been read yet
+     */
+    public synchronized OutputState getOutputState(int port)
+    {
+        motors[port] = true;
+        return outputs[port];
+    }
+
+    /**
+     * Return the cached input values of a sensor. The sensor is added to the
+     * poll if it is not already included.
+     * @param port the sensor port
+     * @return the values or null if they have not been read yet
+     */
+    public synchronized InputValues getInputValues(int port)
+    {
+        sensors[port] = true;
+        return inputs[port];
+    }
+
+    /**
+     * Discard the cached state of a motor, for instance after the tacho
+     * count has been reset.
+     * @param port the motor port
+     */
+    public synchronized void invalidateMotor(int port)
+    {
+        outputs[port] = null;
+        motorGen[port]++;
+    }
+
+    /**
+     * Discard the cached values of a sensor, for instance after the sensor
+     * type has been changed.
+     * @param port the sensor port
+     */
+    public synchronized void invalidateSensor(int port)
+    {
+        inputs[port] = null;
+        sensorGen[port]++;
+    }
+
+    /**
+     * Remove all ports from the poll.
+     */
+    public synchronized void clear()
+    {
+        for (int i = 0; i < MOTORS; i++)
+        {
+            motors[i] = false;
+            outputs[i] = null;
+            motorGen[i]++;
+        }
+        for (int i = 0; i < inputs.length; i++)
+        {
+            sensors[i] = false;
+            inputs[i] = null;
+            sensorGen[i]++;
+        }
+    }
+
+    /**
+     * Read all of the ports included in the poll using a single batch of
+     * requests.
+     * @throws IOException
+     */
+    public void poll() throws IOException
+    {
+        int[] mPorts = new int[MOTORS];
+        int[] sPorts = new int[inputs.length];
+        int[] mGens = new int[MOTORS];
+        int[] sGens = new int[inputs.length];
+        int mCnt = 0, sCnt = 0;
+        synchronized (this)
+        {
+            for (int i = 0; i < MOTORS; i++)
+                if (motors[i])
+                {
+                    mGens[mCnt] = motorGen[i];
+                    mPorts[mCnt++] = i;
+                }
+            for (int i = 0; i < inputs.length; i++)
+                if (sensors[i])
+                {
+                    sGens[sCnt] = sensorGen[i];
+                    sPorts[sCnt++] = i;
+                }
+        }
+        if (mCnt + sCnt == 0)
+            return;
+        byte[][] requests = new byte[mCnt + sCnt][];
+        for (int i = 0; i < mCnt; i++)
+            requests[i] = new byte[] {DIRECT_COMMAND_REPLY, GET_OUTPUT_STATE, (byte)mPorts[i]};
+        for (int i = 0; i < sCnt; i++)
+            requests[mCnt + i] = new byte[] {DIRECT_COMMAND_REPLY, GET_INPUT_VALUES, (byte)sPorts[i]};
+        long start = System.currentTimeMillis();
+        byte[][] replies = nxtCommand.sendBatch(requests);
+        synchronized (this)
+        {
+            roundTrip = (int)(System.currentTimeMillis() - start);
+            // discard the replies for ports invalidated while the batch was
+            // in flight, the next poll will read them again
+            for (int i = 0; i < mCnt; i++)
+                if (motors[mPorts[i]] && motorGen[mPorts[i]] == mGens[i])
+                    outputs[mPorts[i]] = NXTCommand.parseOutputState(mPorts[i], replies[i]);
+            for (int i = 0; i < sCnt; i++)
+                if (sensors[sPorts[i]] && sensorGen[sPorts[i]] == sGens[i])
+                    inputs[sPorts[i]] = NXTCommand.parseInputValues(replies[mCnt + i]);
+            polls++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Start polling at the fixed rate.
+     */
+    public synchronized void start()
+    {
+        if (running) return;
+        failure = null;
+        running = true;
+        reader = new Reader();
+        reader.start();
+    }
+
+    /**
+     * Stop polling, the cached values are discarded.
+     */
+    public void close()
+    {
+        Reader r;
+        synchronized (this)
+        {
+            running = false;
+            r = reader;
+            reader = null;
+            notifyAll();
+        }
+        if (r != null)
+            r.interrupt();
+        clear();
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Wait for the next poll to complete.
+     * @throws InterruptedException
+     * @throws IOException if polling has failed
+     */
+    public synchronized void waitForPoll() throws InterruptedException, IOException
+    {
+        long cnt = polls;
+        while (cnt == polls && running)
+            wait();
+        if (cnt == polls)
+        {
+            if (failure != null)
+                throw failure;
+            throw new IllegalStateException("Poller has been stopped");
+        }
+    }
+
+    /**
+     * Return the number of polls completed.
+     * @return polls
+     */
+    public synchronized long getPolls()
+    {
+        return polls;
+    }
+
+    /**
+     * Return the time taken by the last poll.
+     * @return time in milliseconds
+     */
+    public synchronized int getRoundTripTime()
+    {
+        return roundTrip;
+    }
+
+    /**
+     * Thread used to poll at the fixed rate. If the connection fails the
+     * thread stops and the cached values are discarded, so the ports read
+     * directly and report the error.
+     */
+    private class Reader extends Thread
+    {
+        Reader()
+        {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            long next = System.currentTimeMillis();
+            try
+            {
+                while (running && reader == this)
+                {
+                    poll();
+                    next += period;
+                    long wait = next - System.currentTimeMillis();
+                    if (wait > 0)
+                        sleep(wait);
+                    else
+                        next -= wait;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // stopped
+            }
+            catch (IOException e)
+            {
+                synchronized (NXTPoller.this)
+                {
+                    if (reader != this)
+                        return;
+                    failure = e;
+                    running = false;
+                    NXTPoller.this.notifyAll();
+                }
+                clear();
+            }
+        }
+    }
+}
@@ -160,4 +160,30 @@ public class RemoteNXT implements NXT {
 	public NXTCommand getNXTCommand() {
 		return nxtCommand;
 	}
+	
+	/**
+	 * Start reading the motor tacho counts and sensor values at a fixed rate.
+	 * All the ports in use are read with a single batch of requests, and the
+	 * ports return the most recent values without a round trip to the NXT.
+	 * @param period the time between reads in milliseconds
+	 * @return the poller
+	 */
+	public NXTPoller startPolling(int period) {
+		stopPolling();
+		NXTPoller poller = new NXTPoller(nxtCommand, period);
+		nxtCommand.setPoller(poller);
+		poller.start();
+		return poller;
+	}
+	
+	/**
+	 * Stop reading values at a fixed rate, the ports read values directly.
+	 */
+	public void stopPolling() {
+		NXTPoller poller = nxtCommand.getPoller();
+		if (poller != null) {
+			nxtCommand.setPoller(null);
+			poller.close();
+		}
+	}
 }
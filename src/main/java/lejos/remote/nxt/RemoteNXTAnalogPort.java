@@ -41,6 +41,9 @@ public class RemoteNXTAnalogPort extends RemoteNXTIOPort implements AnalogPort
 		this.mode = mode;
 		try {
 			nxtCommand.setInputMode(id, type, mode);
+			NXTPoller poller = nxtCommand.getPoller();
+			if (poller != null)
+				poller.invalidateSensor(port);
 		} catch (IOException e) {
 			throw new PortException(e);
 		}
@@ -84,6 +87,12 @@ public class RemoteNXTAnalogPort extends RemoteNXTIOPort implements AnalogPort
 
     private int readRawValue()
     {
+        NXTPoller poller = nxtCommand.getPoller();
+        if (poller != null) {
+            InputValues vals = poller.getInputValues(port);
+            if (vals != null)
+                return vals.rawADValue;
+        }
         try {
             InputValues vals = nxtCommand.getInputValues(id);
             return vals.rawADValue;
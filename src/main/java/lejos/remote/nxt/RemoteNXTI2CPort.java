@@ -1,16 +1,29 @@
 package lejos.remote.nxt;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import lejos.hardware.port.I2CException;
 import lejos.hardware.port.I2CPort;
 import lejos.hardware.port.PortException;
 
-public class RemoteNXTI2CPort extends RemoteNXTIOPort implements I2CPort
+public class RemoteNXTI2CPort extends RemoteNXTIOPort implements I2CPort, NXTProtocol
 {
+    private static final int MAX_DELAY = 64;
     private int type;
     private int mode;
     private int id;
+    private final ArrayDeque<Transaction> queue = new ArrayDeque<Transaction>();
+    private Worker worker;
+    private int delay = 0;
+    private final byte[] statusRequest = {DIRECT_COMMAND_REPLY, LS_GET_STATUS, 0};
+    private final byte[] readRequest = {DIRECT_COMMAND_REPLY, LS_READ, 0};
+    private final byte[][] writeRequests = new byte[17][];
 	
     public RemoteNXTI2CPort(NXTCommand nxtCommand) {
 		super(nxtCommand);
@@ -60,7 +73,8 @@ public class RemoteNXTI2CPort extends RemoteNXTIOPort implements I2CPort
     /**
      * High level i2c interface. Perform a complete i2c transaction and return
      * the results. Writes the specified data to the device and then reads the
-     * requested bytes from it.
+     * requested bytes from it. The transaction is queued behind any
+     * transactions started with {@link #i2cTransactionAsync}.
      * @param deviceAddress The I2C device address.
      * @param writeBuf The buffer containing data to be written to the device.
      * @param writeOffset The offset of the data within the write buffer
@@ -69,44 +83,357 @@ public class RemoteNXTI2CPort extends RemoteNXTIOPort implements I2CPort
      * @param readOffset Location to write the results to
      * @param readLen The length of the read
      */
-    public synchronized void i2cTransaction(int deviceAddress, byte[]writeBuf,
+    public void i2cTransaction(int deviceAddress, byte[]writeBuf,
             int writeOffset, int writeLen, byte[] readBuf, int readOffset,
             int readLen)
     {
-    	System.out.println("Remote I2C transaction on port: " + port + " , address: " + deviceAddress);
-		byte [] txData = new byte[writeLen + 1];
-	    txData[0] =(byte) deviceAddress;
-	    System.arraycopy(writeBuf, writeOffset, txData, 1, writeLen);
-		int status;
-		try {
-			nxtCommand.LSWrite((byte) port, txData, (byte) readLen);
-		} catch (IOException e) {
-			throw new PortException(e);
-		}
-		
-		do {
-			try {
-				byte[] ret = nxtCommand.LSGetStatus((byte) port);
-				if (ret == null || ret.length < 1) throw new I2CException("Remote NXT I2C LSGetStatus error");
-				status = (int) ret[0];
-			} catch (IOException e) {
-				throw new PortException(e);
-			}
-			
-		} while (status == ErrorMessages.PENDING_COMMUNICATION_TRANSACTION_IN_PROGRESS || 
-				 status == ErrorMessages.SPECIFIED_CHANNEL_CONNECTION_NOT_CONFIGURED_OR_BUSY);
-
-		try {
-			byte [] ret = nxtCommand.LSRead((byte) port);
-            if (ret == null) throw new I2CException("Remote NXT I2C LSRead error");
-            if (readLen != ret.length) throw new I2CException("Remote NXT I2C wrong number of bytes read");
-            if (readLen > 0)
-                System.arraycopy(ret, 0, readBuf, readOffset, readLen);
-		} catch (IOException e) {
-			throw new PortException(e);
-		}
-    } 
-    
+        Transaction t = new Transaction(deviceAddress, writeBuf, writeOffset, writeLen, readBuf, readOffset, readLen);
+        queue(t);
+        try {
+            t.waitDone();
+        } catch (InterruptedException e) {
+            throw new PortException(e);
+        }
+        if (t.error != null)
+            throw t.error;
+    }
+
+    /**
+     * Start an i2c transaction without waiting for it to complete.
+     * Transactions on a port are performed in the order they are started.
+     * As soon as a transaction has been read the write of the next one is
+     * sent, without waiting for a reply, so a queue of transactions costs
+     * about one round trip each.
+     * @param deviceAddress The I2C device address.
+     * @param writeBuf The buffer containing data to be written to the device,
+     * the data is copied so the buffer may be reused straight away.
+     * @param writeOffset The offset of the data within the write buffer
+     * @param writeLen The number of bytes to write.
+     * @param readLen The length of the read
+     * @return Future that holds the bytes read
+     */
+    public Future<byte[]> i2cTransactionAsync(int deviceAddress, byte[] writeBuf,
+            int writeOffset, int writeLen, int readLen)
+    {
+        byte[] data = new byte[writeLen];
+        System.arraycopy(writeBuf, writeOffset, data, 0, writeLen);
+        Transaction t = new Transaction(deviceAddress, data, 0, writeLen, new byte[readLen], 0, readLen);
+        queue(t);
+        return t;
+    }
+
+    /**
+     * Return the delay the port currently waits after starting a
+     * transaction before asking for the result. The delay adapts to the
+     * time taken by the device.
+     * @return the delay in milliseconds
+     */
+    public synchronized int getPollDelay()
+    {
+        return delay;
+    }
+
+    @Override
+    public void close()
+    {
+        Worker w;
+        synchronized (this)
+        {
+            w = worker;
+            worker = null;
+            notifyAll();
+        }
+        if (w != null)
+        {
+            w.interrupt();
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                // give up waiting
+            }
+        }
+        Transaction t;
+        while ((t = nextQueued(true)) != null)
+            t.complete(new I2CException("Port closed"));
+        super.close();
+    }
+
+    private synchronized void queue(Transaction t)
+    {
+        if (port == -1)
+            throw new IllegalStateException("Port is not open");
+        queue.addLast(t);
+        if (worker == null)
+        {
+            worker = new Worker();
+            worker.start();
+        }
+        notifyAll();
+    }
+
+    private synchronized Transaction nextQueued(boolean remove)
+    {
+        return (remove ? queue.pollFirst() : queue.peekFirst());
+    }
+
+    /**
+     * Return a request to start a transaction, the requests are reused.
+     */
+    private byte[] writeRequest(Transaction t, boolean reply)
+    {
+        int txLen = t.writeLen + 1;
+        byte[] request = (txLen < writeRequests.length ? writeRequests[txLen] : null);
+        if (request == null)
+        {
+            request = new byte[txLen + 5];
+            if (txLen < writeRequests.length)
+                writeRequests[txLen] = request;
+        }
+        request[0] = (reply ? DIRECT_COMMAND_REPLY : DIRECT_COMMAND_NOREPLY);
+        request[1] = LS_WRITE;
+        request[2] = (byte) port;
+        request[3] = (byte) txLen;
+        request[4] = (byte) t.readLen;
+        request[5] = (byte) t.deviceAddress;
+        System.arraycopy(t.writeBuf, t.writeOffset, request, 6, t.writeLen);
+        return request;
+    }
+
+    private static boolean isBusy(byte status)
+    {
+        return status == ErrorMessages.PENDING_COMMUNICATION_TRANSACTION_IN_PROGRESS ||
+               status == ErrorMessages.SPECIFIED_CHANNEL_CONNECTION_NOT_CONFIGURED_OR_BUSY;
+    }
+
+    /**
+     * Perform the transaction at the head of the queue. The transaction is
+     * started unless the previous transaction has already started it. After
+     * the current delay the status and the data are requested in a single
+     * batch. If the transaction has not finished the delay is doubled and
+     * the poll repeated, if it finished at the first poll the delay is
+     * reduced. Once the status shows the channel is no longer busy the next
+     * queued transaction is started, it is never started earlier as that
+     * could overwrite the data of this one before it has been read.
+     * @param t the transaction
+     * @param started true if the transaction has already been started
+     * @return true if the next transaction has been started
+     */
+    private boolean perform(Transaction t, boolean started) throws IOException, InterruptedException
+    {
+        if (!started)
+            nxtCommand.sendBatch(new byte[][] {writeRequest(t, false)});
+        statusRequest[2] = (byte) port;
+        readRequest[2] = (byte) port;
+        byte[][] requests = (t.readLen > 0 ? new byte[][] {statusRequest, readRequest} : new byte[][] {statusRequest});
+        int polls = 0;
+        for (;;)
+        {
+            int wait;
+            synchronized (this)
+            {
+                wait = delay;
+            }
+            if (wait > 0)
+                Thread.sleep(wait);
+            byte[][] replies = nxtCommand.sendBatch(requests);
+            polls++;
+            byte status = replies[0][2];
+            if (isBusy(status))
+            {
+                synchronized (this)
+                {
+                    delay = Math.min(Math.max(delay*2, 1), MAX_DELAY);
+                }
+                continue;
+            }
+            if (polls == 1)
+            {
+                synchronized (this)
+                {
+                    delay -= (delay + 3)/4;
+                }
+            }
+            if (status != ErrorMessages.SUCCESS)
+                t.complete(new I2CException("Remote NXT I2C error: " + ErrorMessages.lcpErrorToString(status)));
+            else if (t.readLen > 0)
+            {
+                byte[] reply = replies[1];
+                if (reply[2] != ErrorMessages.SUCCESS)
+                    t.complete(new I2CException("Remote NXT I2C LSRead error"));
+                else if ((reply[3] & 0xFF) != t.readLen)
+                    t.complete(new I2CException("Remote NXT I2C wrong number of bytes read"));
+                else
+                {
+                    System.arraycopy(reply, 4, t.readBuf, t.readOffset, t.readLen);
+                    t.complete(null);
+                }
+            }
+            else
+                t.complete(null);
+            return startNext(t);
+        }
+    }
+
+    /**
+     * Start the transaction queued after t, the status is checked when the
+     * transaction is performed.
+     * @return true if the transaction has been started
+     */
+    private boolean startNext(Transaction t)
+    {
+        Transaction next = nextAfter(t);
+        if (next == null)
+            return false;
+        try {
+            nxtCommand.sendBatch(new byte[][] {writeRequest(next, false)});
+        } catch (IOException e) {
+            // report the failure against the next transaction
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized Transaction nextAfter(Transaction t)
+    {
+        Iterator<Transaction> it = queue.iterator();
+        while (it.hasNext())
+            if (it.next() == t)
+                return (it.hasNext() ? it.next() : null);
+        return null;
+    }
+
+    /**
+     * An i2c transaction waiting to be performed.
+     */
+    private static class Transaction implements Future<byte[]>
+    {
+        final int deviceAddress;
+        final byte[] writeBuf;
+        final int writeOffset;
+        final int writeLen;
+        final byte[] readBuf;
+        final int readOffset;
+        final int readLen;
+        private RuntimeException error;
+        private volatile boolean done = false;
+
+        Transaction(int deviceAddress, byte[] writeBuf, int writeOffset, int writeLen,
+                byte[] readBuf, int readOffset, int readLen)
+        {
+            this.deviceAddress = deviceAddress;
+            this.writeBuf = writeBuf;
+            this.writeOffset = writeOffset;
+            this.writeLen = writeLen;
+            this.readBuf = readBuf;
+            this.readOffset = readOffset;
+            this.readLen = readLen;
+        }
+
+        synchronized void complete(RuntimeException error)
+        {
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void waitDone() throws InterruptedException
+        {
+            while (!done)
+                wait();
+        }
+
+        synchronized void waitDone(long timeout) throws InterruptedException, TimeoutException
+        {
+            long end = System.nanoTime() + timeout;
+            while (!done)
+            {
+                long left = end - System.nanoTime();
+                if (left <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return done;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException
+        {
+            waitDone();
+            if (error != null)
+                throw new ExecutionException(error);
+            return readBuf;
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            waitDone(unit.toNanos(timeout));
+            if (error != null)
+                throw new ExecutionException(error);
+            return readBuf;
+        }
+    }
+
+    /**
+     * Thread that performs the queued transactions for the port.
+     */
+    private class Worker extends Thread
+    {
+        Worker()
+        {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            boolean started = false;
+            for (;;)
+            {
+                Transaction t;
+                synchronized (RemoteNXTI2CPort.this)
+                {
+                    try {
+                        while (worker == this && queue.isEmpty())
+                            RemoteNXTI2CPort.this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (worker != this)
+                        return;
+                    t = queue.peekFirst();
+                }
+                try {
+                    started = perform(t, started);
+                } catch (IOException e) {
+                    t.complete(new PortException(e));
+                    started = false;
+                } catch (InterruptedException e) {
+                    t.complete(new PortException(e));
+                    return;
+                }
+                nextQueued(true);
+            }
+        }
+    }
+
     /**
      * Set the sensor type and mode
      * @param type the sensor type
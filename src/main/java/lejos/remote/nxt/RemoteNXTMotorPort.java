@@ -62,6 +62,12 @@ public class RemoteNXTMotorPort extends RemoteNXTIOPort implements NXTProtocol,
      */
     public  int getTachoCount()
     {
+		NXTPoller poller = nxtCommand.getPoller();
+		if (poller != null) {
+			OutputState state = poller.getOutputState(port);
+			if (state != null)
+				return state.tachoCount;
+		}
 		try {
 			return nxtCommand.getTachoCount(port);
 		} catch (IOException e) {
@@ -76,6 +82,9 @@ public class RemoteNXTMotorPort extends RemoteNXTIOPort implements NXTProtocol,
     {
 		try {
 			nxtCommand.resetMotorPosition(port, false);
+			NXTPoller poller = nxtCommand.getPoller();
+			if (poller != null)
+				poller.invalidateMotor(port);
 		} catch (IOException e) {
 			throw new PortException(e);
 		}
@@ -0,0 +1,240 @@
+package lejos.robotics.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Describes a chain of filters so that it can be sent to a remote EV3 and
+ * built next to the sensor. This allows the sensor to be sampled and filtered
+ * at full rate on the EV3 while only the filtered output is sent over the
+ * link. <br>
+ * Filters are applied in the order they are added, for example:
+ *
+ * <pre>
+ * FilterChain chain = new FilterChain().rate(1000).median(5).mean(10).decimate(10);
+ * </pre>
+ *
+ * samples the sensor 1000 times a second on the EV3, passes the samples
+ * through a median and a mean filter, and makes 100 filtered samples a second
+ * available to the client.
+ *
+ * @see FilteredSampler
+ */
+public class FilterChain implements Serializable {
+  private static final long serialVersionUID = 4398361840734019442L;
+  private static final int  VERSION          = 1;
+
+  public static final int   MEAN             = 0;
+  public static final int   MEDIAN           = 1;
+  public static final int   LOW_PASS         = 2;
+  public static final int   INTEGRATE        = 3;
+  public static final int   SUM              = 4;
+  public static final int   MINIMUM          = 5;
+  public static final int   MAXIMUM          = 6;
+
+  private final ArrayList<int[]> stages = new ArrayList<int[]>();
+  private float             sampleRate       = 0;
+  private int               decimation       = 1;
+
+  /**
+   * Add a {@link MeanFilter} to the chain
+   */
+  public FilterChain mean(int length) {
+    return add(MEAN, length);
+  }
+
+  /**
+   * Add a {@link MedianFilter} to the chain
+   */
+  public FilterChain median(int length) {
+    return add(MEDIAN, length);
+  }
+
+  /**
+   * Add a {@link LowPassFilter} to the chain
+   */
+  public FilterChain lowPass(float timeConstant) {
+    return add(LOW_PASS, timeConstant);
+  }
+
+  /**
+   * Add an {@link IntegrationFilter} to the chain
+   */
+  public FilterChain integrate() {
+    return add(INTEGRATE, 0);
+  }
+
+  /**
+   * Add a {@link SumFilter} to the chain
+   */
+  public FilterChain sum(int length) {
+    return add(SUM, length);
+  }
+
+  /**
+   * Add a {@link MinimumFilter} to the chain
+   */
+  public FilterChain minimum(int length) {
+    return add(MINIMUM, length);
+  }
+
+  /**
+   * Add a {@link MaximumFilter} to the chain
+   */
+  public FilterChain maximum(int length) {
+    return add(MAXIMUM, length);
+  }
+
+  /**
+   * Add a filter to the chain.
+   *
+   * @param type
+   *          the filter type
+   * @param param
+   *          the filter parameter (length or time constant), ignored by
+   *          filters that do not have a parameter
+   */
+  public FilterChain add(int type, float param) {
+    if (type < MEAN || type > MAXIMUM)
+      throw new IllegalArgumentException("Invalid filter type " + type);
+    stages.add(new int[] { type, Float.floatToIntBits(param) });
+    return this;
+  }
+
+  /**
+   * Set the rate at which the sensor is sampled on the EV3. If the rate is
+   * zero (the default) the sensor is only sampled when a sample is fetched.
+   *
+   * @param rate
+   *          The sample rate expressed in Hertz (Samples / second)
+   */
+  public FilterChain rate(float rate) {
+    if (rate < 0)
+      throw new IllegalArgumentException("Invalid rate " + rate);
+    sampleRate = rate;
+    return this;
+  }
+
+  /**
+   * Set the decimation factor, one filtered sample is made available for
+   * every <code>factor</code> samples taken from the sensor. Only used when a
+   * sample rate has been set.
+   */
+  public FilterChain decimate(int factor) {
+    if (factor < 1)
+      throw new IllegalArgumentException("Invalid decimation " + factor);
+    decimation = factor;
+    return this;
+  }
+
+  /**
+   * @return rate in Hz
+   */
+  public float getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getDecimation() {
+    return decimation;
+  }
+
+  /**
+   * @return the rate at which filtered samples are produced in Hz
+   */
+  public float getOutputRate() {
+    return sampleRate / decimation;
+  }
+
+  public int size() {
+    return stages.size();
+  }
+
+  /**
+   * Create the filters described by this chain.
+   *
+   * @param source
+   *          the sensor
+   * @return the last filter in the chain, or the source if the chain is empty
+   */
+  public SampleProvider build(SampleProvider source) {
+    SampleProvider sp = source;
+    for (int[] stage : stages) {
+      float param = Float.intBitsToFloat(stage[1]);
+      switch (stage[0]) {
+      case MEAN:
+        sp = new MeanFilter(sp, (int) param);
+        break;
+      case MEDIAN:
+        sp = new MedianFilter(sp, (int) param);
+        break;
+      case LOW_PASS:
+        sp = new LowPassFilter(sp, param);
+        break;
+      case INTEGRATE:
+        sp = new IntegrationFilter(sp);
+        break;
+      case SUM:
+        sp = new SumFilter(sp, (int) param);
+        break;
+      case MINIMUM:
+        sp = new MinimumFilter(sp, (int) param);
+        break;
+      case MAXIMUM:
+        sp = new MaximumFilter(sp, (int) param);
+        break;
+      }
+    }
+    return sp;
+  }
+
+  /**
+   * Encode the chain in a compact form that can be sent in a request.
+   */
+  public byte[] toByteArray() {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(bos);
+    try {
+      dos.writeByte(VERSION);
+      dos.writeFloat(sampleRate);
+      dos.writeShort(decimation);
+      dos.writeByte(stages.size());
+      for (int[] stage : stages) {
+        dos.writeByte(stage[0]);
+        dos.writeInt(stage[1]);
+      }
+      dos.close();
+    } catch (IOException e) {
+      // Can not happen with a byte array
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * Decode a chain created by {@link #toByteArray()}.
+   */
+  public static FilterChain fromByteArray(byte[] data) {
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+    try {
+      if (dis.readByte() != VERSION)
+        throw new IllegalArgumentException("Unsupported filter chain version");
+      FilterChain chain = new FilterChain();
+      chain.rate(dis.readFloat());
+      chain.decimate(dis.readShort());
+      int cnt = dis.readUnsignedByte();
+      for (int i = 0; i < cnt; i++) {
+        int type = dis.readByte();
+        chain.add(type, Float.intBitsToFloat(dis.readInt()));
+      }
+      return chain;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Invalid filter chain", e);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package lejos.robotics.filter;
+
+import java.util.concurrent.locks.LockSupport;
+
+import lejos.robotics.SampleProvider;
+
+/**
+ * Runs a {@link FilterChain} next to a sensor. <br>
+ * If the chain has a sample rate a thread samples the sensor at that rate,
+ * passes every sample through the filters and makes every N<sup>th</sup>
+ * output available, where N is the decimation factor of the chain.
+ * fetchSample returns the most recent output. If the chain has no sample
+ * rate, fetchSample simply fetches a sample through the filters.
+ */
+public class FilteredSampler implements SampleProvider {
+  private final SampleProvider filters;
+  private final FilterChain    chain;
+  private final int            sampleSize;
+  private final float[]        latest;
+  private long                 outputs  = 0;
+  private volatile boolean     running  = false;
+  private Runner               runner;
+
+  public FilteredSampler(SampleProvider source, FilterChain chain) {
+    this.chain = chain;
+    filters = chain.build(source);
+    sampleSize = filters.sampleSize();
+    latest = new float[sampleSize];
+    if (chain.getSampleRate() > 0) {
+      running = true;
+      runner = new Runner();
+      runner.start();
+    }
+  }
+
+  @Override
+  public int sampleSize() {
+    return sampleSize;
+  }
+
+  @Override
+  public void fetchSample(float[] sample, int offset) {
+    if (runner == null) {
+      filters.fetchSample(sample, offset);
+      return;
+    }
+    synchronized (this) {
+      System.arraycopy(latest, 0, sample, offset, sampleSize);
+    }
+  }
+
+  /**
+   * Wait for the next filtered sample. If the chain has no sample rate a
+   * sample is fetched straight away.
+   *
+   * @return false if the sampler has been closed
+   */
+  public boolean waitSample(float[] sample, int offset) throws InterruptedException {
+    if (runner == null) {
+      filters.fetchSample(sample, offset);
+      return true;
+    }
+    synchronized (this) {
+      long cnt = outputs;
+      while (cnt == outputs && running)
+        wait();
+      System.arraycopy(latest, 0, sample, offset, sampleSize);
+      return running;
+    }
+  }
+
+  public FilterChain getChain() {
+    return chain;
+  }
+
+  /**
+   * Stop sampling the sensor.
+   */
+  public synchronized void close() {
+    running = false;
+    notifyAll();
+  }
+
+  /**
+   * Thread used to sample the sensor at the rate of the chain.
+   */
+  private class Runner extends Thread {
+    Runner() {
+      setDaemon(true);
+      setPriority(Thread.MAX_PRIORITY - 1);
+    }
+
+    @Override
+    public void run() {
+      float[] buf = new float[sampleSize];
+      long period = (long) (1000000000L / chain.getSampleRate());
+      int decimation = chain.getDecimation();
+      int cnt = 0;
+      long next = System.nanoTime();
+      while (running) {
+        long now = System.nanoTime();
+        if (now < next) {
+          LockSupport.parkNanos(next - now);
+          continue;
+        }
+        // If we have fallen behind don't try to catch up
+        next = (now - next > period ? now : next) + period;
+        try {
+          filters.fetchSample(buf, 0);
+        } catch (RuntimeException e) {
+          // sensor has been closed
+          close();
+          break;
+        }
+        if (++cnt >= decimation) {
+          cnt = 0;
+          synchronized (FilteredSampler.this) {
+            System.arraycopy(buf, 0, latest, 0, sampleSize);
+            outputs++;
+            FilteredSampler.this.notifyAll();
+          }
+        }
+      }
+    }
+  }
+}
@@ -20,6 +20,11 @@ package lejos.robotics.subsumption;
  * <br>    When the behavior should take control,  the <code> takeControl() </code> should continue to return <b> true </b>
  * <br>    until its action starts. 
  * <br> After your code instantiates the Arbitrator,  it should call <code>go() </code>to start it running.
+ * <br> By default the Monitor thread polls <code>takeControl()</code> continuously. If a poll period
+ * <br> is given the behaviors are polled at that period instead, and both threads sleep in between.
+ * <br> A behavior (or any other code, such as a sensor listener) can call <code>trigger()</code> when
+ * <br> the state that its <code>takeControl()</code> depends on changes, to have the behaviors polled
+ * <br> immediately, so a long period can be used without slowing the response to events.
  * <br>    
  * @see Behavior
  * @author Roger Glassey
@@ -30,10 +35,22 @@ public class Arbitrator
   private final int NONE = -1;
   private Behavior[] _behavior;
   // highest priority behavior that wants control ; set by start() used by monitor
-  private int _highestPriority = NONE;
-  private int _active = NONE; //  active behavior; set by monitor, used by start();
+  private volatile int _highestPriority = NONE;
+  private volatile int _active = NONE; //  active behavior; set by monitor, used by start();
   private boolean _returnWhenInactive;
-  public boolean keepRunning = true;
+  public volatile boolean keepRunning = true;
+  // time between polls in ms, 0 to poll continuously
+  private final int _pollPeriod;
+  // set by trigger(), cleared by the monitor when it polls
+  private boolean _triggered = false;
+  private long _triggerTime;
+  // time a higher priority behavior was found that has not yet started
+  private long _pendingTime = 0;
+  // latency metrics, times in ns
+  private long _pollCnt = 0;
+  private long _switchCnt = 0;
+  private long _latencyTotal = 0;
+  private long _latencyMax = 0;
   /**
    * Monitor is an inner class.  It polls the behavior array to find the behavior of hightst
    * priority.  If higher than the active behavior, it calls active.suppress()
@@ -50,16 +67,30 @@ public class Arbitrator
    * called to begin the arbitration.
    * @param behaviorList an array of Behavior objects.
    * @param returnWhenInactive if <B>true</B>, the <B>go()</B> method returns when no Behavior is active.
+   * @param pollPeriod time in ms between calls to <code>takeControl()</code>, 0 to poll continuously.
    */
-  public Arbitrator(Behavior[] behaviorList, boolean returnWhenInactive)
+  public Arbitrator(Behavior[] behaviorList, boolean returnWhenInactive, int pollPeriod)
   {
+    if (pollPeriod < 0)
+      throw new IllegalArgumentException("Invalid poll period " + pollPeriod);
     _behavior = behaviorList;
     _returnWhenInactive = returnWhenInactive;
+    _pollPeriod = pollPeriod;
     monitor = new Monitor();
     monitor.setDaemon(true);
 	System.out.println("Arbitrator created");
   }
 
+  /**
+   * Same as Arbitrator(behaviorList, returnWhenInactive, 0), the behaviors are polled continuously.
+   * @param behaviorList an array of Behavior objects.
+   * @param returnWhenInactive if <B>true</B>, the <B>go()</B> method returns when no Behavior is active.
+   */
+  public Arbitrator(Behavior[] behaviorList, boolean returnWhenInactive)
+  {
+    this(behaviorList, returnWhenInactive, 0);
+  }
+
   /**
    * Same as Arbitrator(behaviorList, false) Arbitrator start() never exits
    * @param behaviorList An array of Behavior objects.
@@ -78,7 +109,11 @@ public class Arbitrator
    */
   public void go()
   {
-
+    if (_pollPeriod > 0)
+    {
+      goPeriodic();
+      return;
+    }
     monitor.start();
     while (_highestPriority == NONE)
     {
@@ -91,6 +126,7 @@ public class Arbitrator
         if (_highestPriority > NONE)
         {
           _active = _highestPriority;
+          started();
         }
         else if (_returnWhenInactive)
         {// no behavior wants to run
@@ -107,10 +143,160 @@ public class Arbitrator
     }
   }
 
+  /**
+   * The go() method used when a poll period is set. Instead of spinning the
+   * main thread waits for the Monitor to find a behavior that wants control.
+   */
+  private void goPeriodic()
+  {
+    monitor.start();
+    try
+    {
+      while (keepRunning)
+      {
+        synchronized (monitor)
+        {
+          // wait for a poll made with no behavior active
+          long cnt = _pollCnt;
+          trigger();
+          while (_pollCnt == cnt || _highestPriority == NONE)
+          {
+            if (_pollCnt != cnt && _returnWhenInactive)
+            {// no behavior wants to run
+              monitor.more = false;
+              stop();
+              return;
+            }
+            if (!keepRunning)
+              return;
+            monitor.wait();
+          }
+          _active = _highestPriority;
+          started();
+        }// monitor released before action is called
+        _behavior[_active].action();
+        _active = NONE;  // no active behavior at the moment
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      stop();
+    }
+  }
+
+  /**
+   * Record the latency of a change of behavior, called as the action of the
+   * new behavior is about to start.
+   */
+  private void started()
+  {
+    synchronized (monitor)
+    {
+      if (_pendingTime == 0)
+        return;
+      long latency = System.nanoTime() - _pendingTime;
+      _pendingTime = 0;
+      _switchCnt++;
+      _latencyTotal += latency;
+      if (latency > _latencyMax)
+        _latencyMax = latency;
+    }
+  }
+
   public void stop() {
 	  keepRunning = false;
+	  synchronized (monitor) {
+		  monitor.notifyAll();
+	  }
   }
-  
+
+  /**
+   * Tell the arbitrator that the state a behavior uses to decide whether it
+   * wants control has changed, so the behaviors are polled as soon as
+   * possible rather than at the end of the poll period. It is safe to call
+   * this from any thread, including from the methods of a Behavior.
+   */
+  public void trigger()
+  {
+    synchronized (monitor)
+    {
+      if (!_triggered)
+      {
+        _triggered = true;
+        _triggerTime = System.nanoTime();
+      }
+      monitor.notifyAll();
+    }
+  }
+
+  /**
+   * Return the number of times the behaviors have been polled.
+   * @return poll count
+   */
+  public long getPollCount()
+  {
+    synchronized (monitor)
+    {
+      return _pollCnt;
+    }
+  }
+
+  /**
+   * Return the number of times a behavior has started because it was of a
+   * higher priority than the active one, or because none was active.
+   * @return switch count
+   */
+  public long getSwitchCount()
+  {
+    synchronized (monitor)
+    {
+      return _switchCnt;
+    }
+  }
+
+  /**
+   * Return the mean time from a change of priority to the action of the new
+   * behavior starting. The change is timed from the call to trigger() if
+   * there was one, otherwise from the poll that noticed it. This includes
+   * the time taken by the previous action to respond to suppress().
+   * @return latency in microseconds
+   */
+  public long getMeanLatency()
+  {
+    synchronized (monitor)
+    {
+      return _switchCnt == 0 ? 0 : _latencyTotal/_switchCnt/1000;
+    }
+  }
+
+  /**
+   * Return the longest time from a change of priority to the action of the
+   * new behavior starting.
+   * @return latency in microseconds
+   */
+  public long getMaxLatency()
+  {
+    synchronized (monitor)
+    {
+      return _latencyMax/1000;
+    }
+  }
+
+  /**
+   * Clear the poll count and latency metrics.
+   */
+  public void resetMetrics()
+  {
+    synchronized (monitor)
+    {
+      _pollCnt = 0;
+      _switchCnt = 0;
+      _latencyTotal = 0;
+      _latencyMax = 0;
+    }
+  }
+
   /**
    * Finds the highest priority behavior that returns <B>true </B> to <code> takeControl()</code>;
    * If this priority is higher than the active behavior, it calls active.suppress().
@@ -123,29 +309,72 @@ public class Arbitrator
 
     public void run()
     {
+      if (_pollPeriod > 0)
+      {
+        runPeriodic();
+        return;
+      }
       while (keepRunning)
       {
         //FIND HIGHEST PRIORITY BEHAVIOR THAT WANTS CONTROL
         synchronized (this)
         {
-           _highestPriority = NONE; // -1
-          for (int i = maxPriority; i > _active; i--) // only behaviors with higher priority are interesting
-          {
-            if (_behavior[i].takeControl())
-            {
-              _highestPriority = i;
-              break;
-            }
-          }
-          int active = _active; // local copy in case _active is set to NONE by the primary thread
-          if (_active != NONE && _highestPriority > _active)
-          {
-            _behavior[active].suppress();
-          }
+          poll();
         }// end synchronize block - main thread can run now
         Thread.yield();
       }
     }
+
+    /**
+     * Poll the behaviors at the poll period, or sooner if triggered. The main
+     * thread is notified after every poll.
+     */
+    private synchronized void runPeriodic()
+    {
+      try
+      {
+        while (keepRunning)
+        {
+          poll();
+          notifyAll();
+          if (!_triggered)
+            wait(_pollPeriod);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // stopped
+      }
+    }
+
+    /**
+     * Find the highest priority behavior that wants control and suppress the
+     * active behavior if it is of lower priority. Called with the monitor held.
+     */
+    private void poll()
+    {
+      long time = _triggered ? _triggerTime : System.nanoTime();
+      _triggered = false;
+      _highestPriority = NONE; // -1
+      int active = _active; // local copy in case _active is set to NONE by the primary thread
+      for (int i = maxPriority; i > active; i--) // only behaviors with higher priority are interesting
+      {
+        if (_behavior[i].takeControl())
+        {
+          _highestPriority = i;
+          break;
+        }
+      }
+      if (_highestPriority == NONE)
+        _pendingTime = 0; // the change went away before it was acted on
+      else if (_pendingTime == 0)
+        _pendingTime = time;
+      if (active != NONE && _highestPriority > active)
+      {
+        _behavior[active].suppress();
+      }
+      _pollCnt++;
+    }
   }
 }
   
@@ -0,0 +1,204 @@
+package lejos.hardware.motor;
+
+import static org.junit.Assert.*;
+
+import lejos.hardware.port.TachoMotorPort;
+import lejos.hardware.port.TachoMotorPortGroup;
+
+import org.junit.Test;
+
+/**
+ * Counts the port operations made by each tick of the regulator thread, using
+ * stub ports in place of the EV3 motor devices.
+ */
+public class JavaMotorRegulatorTest
+{
+    /**
+     * Stub port, counting each individual and group access. Ports are
+     * grouped when they share the same counters.
+     */
+    static class StubPort implements TachoMotorPortGroup
+    {
+        static class Counters
+        {
+            int reads, writes, groupReads, groupWrites;
+            final int maxGroup;
+
+            Counters(int maxGroup)
+            {
+                this.maxGroup = maxGroup;
+            }
+        }
+
+        final Counters counters;
+        int tachoCount;
+        int power;
+        int mode;
+
+        StubPort(Counters counters, int tachoCount)
+        {
+            this.counters = counters;
+            this.tachoCount = tachoCount;
+        }
+
+        public int getMaxGroupSize()
+        {
+            return counters.maxGroup;
+        }
+
+        public boolean isGroupedWith(TachoMotorPort port)
+        {
+            return port instanceof StubPort && ((StubPort)port).counters == counters;
+        }
+
+        public void getTachoCounts(TachoMotorPort[] ports, int[] counts)
+        {
+            counters.groupReads++;
+            for (int i = 0; i < ports.length; i++)
+                counts[i] = ((StubPort)ports[i]).tachoCount;
+        }
+
+        public void controlMotors(TachoMotorPort[] ports, int[] power, int[] mode)
+        {
+            counters.groupWrites++;
+            for (int i = 0; i < ports.length; i++)
+            {
+                ((StubPort)ports[i]).power = power[i];
+                ((StubPort)ports[i]).mode = mode[i];
+            }
+        }
+
+        public int getTachoCount()
+        {
+            counters.reads++;
+            return tachoCount;
+        }
+
+        public void controlMotor(int power, int mode)
+        {
+            counters.writes++;
+            this.power = power;
+            this.mode = mode;
+        }
+
+        public void resetTachoCount()
+        {
+            tachoCount = 0;
+        }
+
+        public void setPWMMode(int mode)
+        {
+        }
+
+        public MotorRegulator getRegulator()
+        {
+            return null;
+        }
+
+        public void close()
+        {
+        }
+
+        public String getName()
+        {
+            return "stub";
+        }
+
+        public boolean setPinMode(int mode)
+        {
+            return true;
+        }
+    }
+
+    static final int TICKS = 250;
+
+    private static JavaMotorRegulator[] run(JavaMotorRegulator.Controller cont, StubPort... ports)
+    {
+        JavaMotorRegulator[] regs = new JavaMotorRegulator[ports.length];
+        for (int i = 0; i < ports.length; i++)
+        {
+            regs[i] = new JavaMotorRegulator(ports[i]);
+            cont.addMotor(regs[i]);
+        }
+        for (StubPort p : ports)
+            p.counters.reads = p.counters.writes = p.counters.groupReads = p.counters.groupWrites = 0;
+        for (int t = 0; t < TICKS; t++)
+        {
+            // turn each motor away from the held position
+            for (StubPort p : ports)
+                p.tachoCount += 1;
+            cont.tick(JavaMotorRegulator.Controller.UPDATE_PERIOD);
+        }
+        return regs;
+    }
+
+    private static void checkState(JavaMotorRegulator[] regs, StubPort[] ports)
+    {
+        for (int i = 0; i < regs.length; i++)
+        {
+            assertEquals(ports[i].tachoCount - regs[i].zeroTachoCnt, regs[i].tachoCnt);
+            assertEquals(regs[i].power, ports[i].power);
+            assertEquals(regs[i].mode, ports[i].mode);
+            // holding against the drift needs some power
+            assertTrue(ports[i].power != 0);
+        }
+    }
+
+    @Test
+    public void groupUsesOneReadAndOneWritePerTick()
+    {
+        StubPort.Counters c = new StubPort.Counters(4);
+        StubPort[] ports = {new StubPort(c, 10), new StubPort(c, -20), new StubPort(c, 300)};
+        JavaMotorRegulator[] regs = run(new JavaMotorRegulator.Controller(), ports);
+        assertEquals(TICKS, c.groupReads);
+        assertEquals(TICKS, c.groupWrites);
+        assertEquals(0, c.reads);
+        assertEquals(0, c.writes);
+        checkState(regs, ports);
+    }
+
+    @Test
+    public void mixedPortsAreAccessedOneAtATime()
+    {
+        StubPort.Counters c1 = new StubPort.Counters(4);
+        StubPort.Counters c2 = new StubPort.Counters(4);
+        StubPort[] ports = {new StubPort(c1, 0), new StubPort(c2, 0)};
+        JavaMotorRegulator[] regs = run(new JavaMotorRegulator.Controller(), ports);
+        assertEquals(0, c1.groupReads + c2.groupReads);
+        assertEquals(0, c1.groupWrites + c2.groupWrites);
+        assertEquals(TICKS, c1.reads);
+        assertEquals(TICKS, c2.writes);
+        checkState(regs, ports);
+    }
+
+    @Test
+    public void oversizedGroupIsAccessedOneAtATime()
+    {
+        StubPort.Counters c = new StubPort.Counters(2);
+        StubPort[] ports = {new StubPort(c, 0), new StubPort(c, 0), new StubPort(c, 0)};
+        JavaMotorRegulator[] regs = run(new JavaMotorRegulator.Controller(), ports);
+        assertEquals(0, c.groupReads);
+        assertEquals(3*TICKS, c.reads);
+        assertEquals(3*TICKS, c.writes);
+        checkState(regs, ports);
+    }
+
+    @Test
+    public void groupFollowsActiveSet()
+    {
+        StubPort.Counters c = new StubPort.Counters(4);
+        StubPort[] ports = {new StubPort(c, 0), new StubPort(c, 0)};
+        JavaMotorRegulator.Controller cont = new JavaMotorRegulator.Controller();
+        JavaMotorRegulator[] regs = run(cont, ports);
+        cont.removeMotor(regs[0]);
+        assertEquals(TachoMotorPort.FLOAT, ports[0].mode);
+        c.groupReads = c.groupWrites = 0;
+        cont.tick(JavaMotorRegulator.Controller.UPDATE_PERIOD);
+        assertEquals(1, c.groupReads);
+        assertEquals(1, c.groupWrites);
+        cont.removeMotor(regs[1]);
+        c.groupReads = c.groupWrites = 0;
+        cont.tick(JavaMotorRegulator.Controller.UPDATE_PERIOD);
+        assertEquals(0, c.groupReads + c.reads);
+    }
+}
@@ -0,0 +1,221 @@
+package lejos.hardware.video;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the blob detector against a flood fill, at the 160x120 and 320x240
+ * frame sizes used on the EV3.
+ */
+public class BlobDetectorTest
+{
+    private final Random rnd = new Random(47);
+
+    static class Blob
+    {
+        int first, area, minX, minY, maxX, maxY;
+        long sumX, sumY;
+    }
+
+    /**
+     * Label the set pixels with an 8 connected flood fill. The blobs are
+     * returned largest first, blobs of the same size in the order of their
+     * first pixel.
+     */
+    static List<Blob> reference(boolean[][] img, int minArea)
+    {
+        int h = img.length, w = img[0].length;
+        boolean[][] seen = new boolean[h][w];
+        List<Blob> blobs = new ArrayList<Blob>();
+        int[] stack = new int[w*h];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+            {
+                if (!img[y][x] || seen[y][x])
+                    continue;
+                Blob b = new Blob();
+                b.first = y*w + x;
+                b.minX = b.maxX = x;
+                b.minY = b.maxY = y;
+                int sp = 0;
+                stack[sp++] = y*w + x;
+                seen[y][x] = true;
+                while (sp > 0)
+                {
+                    int p = stack[--sp];
+                    int px = p % w, py = p/w;
+                    b.area++;
+                    b.sumX += px;
+                    b.sumY += py;
+                    b.minX = Math.min(b.minX, px);
+                    b.maxX = Math.max(b.maxX, px);
+                    b.minY = Math.min(b.minY, py);
+                    b.maxY = Math.max(b.maxY, py);
+                    for (int dy = -1; dy <= 1; dy++)
+                        for (int dx = -1; dx <= 1; dx++)
+                        {
+                            int nx = px + dx, ny = py + dy;
+                            if (nx >= 0 && nx < w && ny >= 0 && ny < h && img[ny][nx] && !seen[ny][nx])
+                            {
+                                seen[ny][nx] = true;
+                                stack[sp++] = ny*w + nx;
+                            }
+                        }
+                }
+                if (b.area >= minArea)
+                    blobs.add(b);
+            }
+        Collections.sort(blobs, new Comparator<Blob>() {
+            public int compare(Blob a, Blob b)
+            {
+                return a.area != b.area ? b.area - a.area : a.first - b.first;
+            }
+        });
+        return blobs;
+    }
+
+    static byte[] pack(boolean[][] img)
+    {
+        int h = img.length, w = img[0].length;
+        int rowBytes = (w + 7)/8;
+        byte[] packed = new byte[rowBytes*h];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                if (img[y][x])
+                    packed[y*rowBytes + x/8] |= 1 << (x & 7);
+        return packed;
+    }
+
+    static void check(boolean[][] img, int maxBlobs, int minArea)
+    {
+        int h = img.length, w = img[0].length;
+        BlobDetector bd = new BlobDetector(w, h, maxBlobs);
+        bd.setMinArea(minArea);
+        List<Blob> expected = reference(img, minArea);
+        int n = Math.min(maxBlobs, expected.size());
+        assertEquals(n, bd.detect(pack(img)));
+        assertEquals(n, bd.getCount());
+        for (int i = 0; i < n; i++)
+        {
+            Blob b = expected.get(i);
+            String at = w + "x" + h + " blob " + i;
+            assertEquals(at, b.area, bd.getArea(i));
+            assertEquals(at, b.minX, bd.getMinX(i));
+            assertEquals(at, b.minY, bd.getMinY(i));
+            assertEquals(at, b.maxX, bd.getMaxX(i));
+            assertEquals(at, b.maxY, bd.getMaxY(i));
+            assertEquals(at, (float)b.sumX/b.area, bd.getCenterX(i), 0);
+            assertEquals(at, (float)b.sumY/b.area, bd.getCenterY(i), 0);
+        }
+    }
+
+    boolean[][] noise(int w, int h, double density)
+    {
+        boolean[][] img = new boolean[h][w];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                img[y][x] = rnd.nextDouble() < density;
+        return img;
+    }
+
+    boolean[][] shapes(int w, int h, int n)
+    {
+        boolean[][] img = new boolean[h][w];
+        for (int i = 0; i < n; i++)
+        {
+            int cx = rnd.nextInt(w), cy = rnd.nextInt(h);
+            int rx = 1 + rnd.nextInt(w/6), ry = 1 + rnd.nextInt(h/6);
+            boolean ring = rnd.nextBoolean();
+            for (int y = Math.max(0, cy - ry); y <= Math.min(h - 1, cy + ry); y++)
+                for (int x = Math.max(0, cx - rx); x <= Math.min(w - 1, cx + rx); x++)
+                {
+                    double d = (double)(x - cx)*(x - cx)/(rx*rx) + (double)(y - cy)*(y - cy)/(ry*ry);
+                    if (d <= 1 && (!ring || d >= 0.5))
+                        img[y][x] = true;
+                }
+        }
+        return img;
+    }
+
+    @Test
+    public void matchesFloodFill()
+    {
+        for (int[] s : YUYVUtilsTest.SIZES)
+        {
+            int w = s[0], h = s[1];
+            for (double density : new double[] {0.05, 0.3, 0.45, 0.6, 0.9})
+                check(noise(w, h, density), w*h, 1);
+            for (int i = 0; i < 10; i++)
+                check(shapes(w, h, 1 + rnd.nextInt(20)), w*h, 1);
+        }
+    }
+
+    @Test
+    public void keepsLargestBlobs()
+    {
+        for (int[] s : YUYVUtilsTest.SIZES)
+        {
+            int w = s[0], h = s[1];
+            for (int max : new int[] {1, 3, 10})
+            {
+                check(noise(w, h, 0.3), max, 1);
+                check(shapes(w, h, 20), max, 1);
+            }
+        }
+    }
+
+    @Test
+    public void minimumArea()
+    {
+        for (int[] s : YUYVUtilsTest.SIZES)
+        {
+            check(noise(s[0], s[1], 0.4), 8, 5);
+            check(shapes(s[0], s[1], 15), 100, 50);
+        }
+    }
+
+    @Test
+    public void edgeCases()
+    {
+        for (int[] s : YUYVUtilsTest.SIZES)
+        {
+            int w = s[0], h = s[1];
+            // empty, full, and a checkerboard which is one 8 connected blob
+            boolean[][] checker = new boolean[h][w];
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++)
+                    checker[y][x] = ((x + y) & 1) == 0;
+            check(noise(w, h, 0), 5, 1);
+            check(noise(w, h, 1), 5, 1);
+            check(checker, 5, 1);
+            // vertical stripes, one run per pixel pair on every row
+            boolean[][] stripes = new boolean[h][w];
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x += 2)
+                    stripes[y][x] = true;
+            check(stripes, w, 1);
+        }
+        // widths that are not a multiple of 8
+        for (int w : new int[] {1, 7, 13, 31})
+            check(noise(w, 17, 0.5), 50, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBlobLimit()
+    {
+        new BlobDetector(160, 120, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeBlobLimit()
+    {
+        new BlobDetector(160, 120, -1);
+    }
+}
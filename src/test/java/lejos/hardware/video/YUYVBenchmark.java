@@ -0,0 +1,118 @@
+package lejos.hardware.video;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the YUYV kernels and the blob detector at the frame
+ * sizes used on the EV3. Run with
+ * <pre>java -cp &lt;test classpath&gt; org.openjdk.jmh.Main YUYVBenchmark</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YUYVBenchmark
+{
+    @Param({"160x120", "320x240"})
+    public String size;
+
+    private int width;
+    private int height;
+    private byte[] frame;
+    private byte[] packed;
+    private byte[] luma;
+    private byte[] small;
+    private int[] hist;
+    private BlobDetector detector;
+
+    @Setup
+    public void setup()
+    {
+        int x = size.indexOf('x');
+        width = Integer.parseInt(size.substring(0, x));
+        height = Integer.parseInt(size.substring(x + 1));
+        // a light background with a few dark blobs and some noise
+        Random rnd = new Random(47);
+        frame = new byte[width*height*2];
+        for (int i = 0; i < frame.length; i += 2)
+        {
+            frame[i] = (byte)(160 + rnd.nextInt(80));
+            frame[i + 1] = (byte)(100 + rnd.nextInt(56));
+        }
+        for (int b = 0; b < 12; b++)
+        {
+            int cx = rnd.nextInt(width), cy = rnd.nextInt(height), r = 2 + rnd.nextInt(width/16);
+            for (int py = Math.max(0, cy - r); py < Math.min(height, cy + r); py++)
+                for (int px = Math.max(0, cx - r); px < Math.min(width, cx + r); px++)
+                    if ((px - cx)*(px - cx) + (py - cy)*(py - cy) < r*r)
+                        frame[(py*width + px)*2] = (byte)(20 + rnd.nextInt(40));
+        }
+        packed = new byte[YUYVUtils.packedSize(width, height)];
+        luma = new byte[width*height];
+        small = new byte[width*height/2];
+        hist = new int[256];
+        detector = new BlobDetector(width, height, 16);
+        YUYVUtils.threshold(frame, width, height, 100, packed);
+    }
+
+    @Benchmark
+    public int threshold()
+    {
+        return YUYVUtils.threshold(frame, width, height, 100, packed);
+    }
+
+    @Benchmark
+    public int colorMask()
+    {
+        return YUYVUtils.colorMask(frame, width, height, 0, 80, 100, 140, 100, 160, packed);
+    }
+
+    @Benchmark
+    public byte[] extractY()
+    {
+        YUYVUtils.extractY(frame, width, height, luma);
+        return luma;
+    }
+
+    @Benchmark
+    public byte[] downscaleY()
+    {
+        YUYVUtils.downscaleY(frame, width, height, 2, luma);
+        return luma;
+    }
+
+    @Benchmark
+    public byte[] downscale()
+    {
+        YUYVUtils.downscale(frame, width, height, 2, small);
+        return small;
+    }
+
+    @Benchmark
+    public int otsu()
+    {
+        YUYVUtils.histogramY(frame, width, height, hist);
+        return YUYVUtils.otsuThreshold(hist);
+    }
+
+    @Benchmark
+    public int detect()
+    {
+        return detector.detect(packed);
+    }
+}
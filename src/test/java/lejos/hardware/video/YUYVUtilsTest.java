@@ -0,0 +1,292 @@
+package lejos.hardware.video;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the YUYV kernels against simple per pixel implementations, at the
+ * 160x120 and 320x240 frame sizes used on the EV3.
+ */
+public class YUYVUtilsTest
+{
+    static final int[][] SIZES = {{160, 120}, {320, 240}};
+
+    private final Random rnd = new Random(47);
+
+    /**
+     * Create a frame of random noise over a smooth gradient, so both the
+     * thresholds and the averages see a spread of values.
+     */
+    static byte[] frame(Random rnd, int width, int height)
+    {
+        byte[] f = new byte[width*height*2];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+            {
+                int i = (y*width + x)*2;
+                f[i] = (byte)Math.min(255, x*200/width + rnd.nextInt(56));
+                f[i + 1] = (byte)((x & 1) == 0 ? y*255/height : rnd.nextInt(256));
+            }
+        return f;
+    }
+
+    static int luma(byte[] f, int width, int x, int y)
+    {
+        return f[(y*width + x)*2] & 0xff;
+    }
+
+    static int u(byte[] f, int width, int x, int y)
+    {
+        return f[(y*width + x)/2*4 + 1] & 0xff;
+    }
+
+    static int v(byte[] f, int width, int x, int y)
+    {
+        return f[(y*width + x)/2*4 + 3] & 0xff;
+    }
+
+    static boolean pixel(byte[] packed, int width, int x, int y)
+    {
+        return (packed[y*((width + 7)/8) + (x >> 3)] & (1 << (x & 7))) != 0;
+    }
+
+    @Test
+    public void threshold()
+    {
+        for (int[] s : SIZES)
+        {
+            int w = s[0], h = s[1];
+            byte[] f = frame(rnd, w, h);
+            byte[] packed = new byte[YUYVUtils.packedSize(w, h)];
+            for (int t : new int[] {0, 1, 100, 128, 255, 256})
+            {
+                int cnt = YUYVUtils.threshold(f, w, h, t, packed);
+                int expected = 0;
+                for (int y = 0; y < h; y++)
+                    for (int x = 0; x < w; x++)
+                    {
+                        boolean set = luma(f, w, x, y) < t;
+                        assertEquals(w + "x" + h + " t " + t + " at " + x + "," + y, set, pixel(packed, w, x, y));
+                        if (set)
+                            expected++;
+                    }
+                assertEquals(expected, cnt);
+            }
+        }
+    }
+
+    @Test
+    public void thresholdOddWidth()
+    {
+        int w = 13, h = 5;
+        byte[] f = frame(rnd, w, h);
+        byte[] packed = new byte[YUYVUtils.packedSize(w, h)];
+        YUYVUtils.threshold(f, w, h, 120, packed);
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                assertEquals(luma(f, w, x, y) < 120, pixel(packed, w, x, y));
+    }
+
+    @Test
+    public void colorMask()
+    {
+        for (int[] s : SIZES)
+        {
+            int w = s[0], h = s[1];
+            byte[] f = frame(rnd, w, h);
+            byte[] packed = new byte[YUYVUtils.packedSize(w, h)];
+            for (int i = 0; i < 5; i++)
+            {
+                int[] r = new int[6];
+                for (int j = 0; j < 6; j += 2)
+                {
+                    r[j] = rnd.nextInt(200);
+                    r[j + 1] = r[j] + rnd.nextInt(120);
+                }
+                int cnt = YUYVUtils.colorMask(f, w, h, r[0], r[1], r[2], r[3], r[4], r[5], packed);
+                int expected = 0;
+                for (int y = 0; y < h; y++)
+                    for (int x = 0; x < w; x++)
+                    {
+                        int l = luma(f, w, x, y), cu = u(f, w, x, y), cv = v(f, w, x, y);
+                        boolean set = l >= r[0] && l <= r[1] && cu >= r[2] && cu <= r[3] && cv >= r[4] && cv <= r[5];
+                        assertEquals(set, pixel(packed, w, x, y));
+                        if (set)
+                            expected++;
+                    }
+                assertEquals(expected, cnt);
+            }
+        }
+    }
+
+    @Test
+    public void downscaleY()
+    {
+        for (int[] s : SIZES)
+            for (int factor : new int[] {1, 2, 3, 4, 8})
+            {
+                int w = s[0], h = s[1];
+                byte[] f = frame(rnd, w, h);
+                int ow = w/factor, oh = h/factor;
+                byte[] out = new byte[ow*oh];
+                YUYVUtils.downscaleY(f, w, h, factor, out);
+                for (int oy = 0; oy < oh; oy++)
+                    for (int ox = 0; ox < ow; ox++)
+                    {
+                        int sum = 0;
+                        for (int y = 0; y < factor; y++)
+                            for (int x = 0; x < factor; x++)
+                                sum += luma(f, w, ox*factor + x, oy*factor + y);
+                        assertEquals(sum/(factor*factor), out[oy*ow + ox] & 0xff);
+                    }
+            }
+    }
+
+    @Test
+    public void downscale()
+    {
+        for (int[] s : SIZES)
+            for (int factor : new int[] {1, 2, 4, 5, 8})
+            {
+                int w = s[0], h = s[1];
+                byte[] f = frame(rnd, w, h);
+                int ow = w/factor, oh = h/factor;
+                byte[] out = new byte[ow*oh*2];
+                YUYVUtils.downscale(f, w, h, factor, out);
+                int area = factor*factor;
+                for (int oy = 0; oy < oh; oy++)
+                    for (int ox = 0; ox < ow; ox++)
+                    {
+                        // luma of the block, chroma of the pair of blocks
+                        int sum = 0, su = 0, sv = 0;
+                        int pair = ox & ~1;
+                        for (int y = 0; y < factor; y++)
+                        {
+                            for (int x = 0; x < factor; x++)
+                                sum += luma(f, w, ox*factor + x, oy*factor + y);
+                            for (int x = 0; x < 2*factor; x++)
+                            {
+                                su += u(f, w, pair*factor + x, oy*factor + y);
+                                sv += v(f, w, pair*factor + x, oy*factor + y);
+                            }
+                        }
+                        String at = w + "x" + h + "/" + factor + " at " + ox + "," + oy;
+                        assertEquals(at, sum/area, luma(out, ow, ox, oy));
+                        assertEquals(at, su/(2*area), u(out, ow, ox, oy));
+                        assertEquals(at, sv/(2*area), v(out, ow, ox, oy));
+                    }
+            }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void downscaleOddResult()
+    {
+        YUYVUtils.downscale(new byte[160*120*2], 160, 120, 32, new byte[10*3*2]);
+    }
+
+    @Test
+    public void histogramAndMean()
+    {
+        for (int[] s : SIZES)
+        {
+            int w = s[0], h = s[1];
+            byte[] f = frame(rnd, w, h);
+            int[] hist = new int[256];
+            hist[7] = 99;
+            YUYVUtils.histogramY(f, w, h, hist);
+            int[] expected = new int[256];
+            long total = 0;
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++)
+                {
+                    expected[luma(f, w, x, y)]++;
+                    total += luma(f, w, x, y);
+                }
+            assertArrayEquals(expected, hist);
+            assertEquals(total/(w*h), YUYVUtils.meanY(f, w, h));
+        }
+    }
+
+    /**
+     * Otsu's method by trying every threshold, pixels below the threshold
+     * form one class.
+     */
+    static int otsu(int[] hist)
+    {
+        double best = -1;
+        int threshold = 0;
+        for (int t = 1; t <= 256; t++)
+        {
+            long wB = 0, wF = 0, sB = 0, sF = 0;
+            for (int i = 0; i < 256; i++)
+                if (i < t)
+                {
+                    wB += hist[i];
+                    sB += (long)i*hist[i];
+                }
+                else
+                {
+                    wF += hist[i];
+                    sF += (long)i*hist[i];
+                }
+            if (wB == 0 || wF == 0)
+                continue;
+            double d = (double)sB/wB - (double)sF/wF;
+            double between = (double)wB*wF*d*d;
+            if (between > best)
+            {
+                best = between;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+
+    @Test
+    public void otsuThreshold()
+    {
+        for (int[] s : SIZES)
+        {
+            int w = s[0], h = s[1];
+            int[] hist = new int[256];
+            YUYVUtils.histogramY(frame(rnd, w, h), w, h, hist);
+            assertEquals(otsu(hist), YUYVUtils.otsuThreshold(hist));
+        }
+        for (int i = 0; i < 200; i++)
+        {
+            // two peaks of random size and position
+            int[] hist = new int[256];
+            for (int p = 0; p < 2; p++)
+            {
+                int c = rnd.nextInt(256), n = 1 + rnd.nextInt(5000), spread = 1 + rnd.nextInt(30);
+                for (int j = 0; j < n; j++)
+                    hist[Math.max(0, Math.min(255, c + (int)(rnd.nextGaussian()*spread)))]++;
+            }
+            int t = YUYVUtils.otsuThreshold(hist);
+            assertEquals(otsu(hist), t);
+        }
+        // a single value can not be split
+        int[] single = new int[256];
+        single[40] = 100;
+        assertEquals(0, YUYVUtils.otsuThreshold(single));
+    }
+
+    @Test
+    public void otsuSeparatesLine()
+    {
+        // dark line on a light background
+        int w = 160, h = 120;
+        byte[] f = new byte[w*h*2];
+        for (int y = 0; y < h; y++)
+            for (int x = 0; x < w; x++)
+                f[(y*w + x)*2] = (byte)(x >= 70 && x < 90 ? 30 + rnd.nextInt(20) : 180 + rnd.nextInt(40));
+        int[] hist = new int[256];
+        YUYVUtils.histogramY(f, w, h, hist);
+        int t = YUYVUtils.otsuThreshold(hist);
+        byte[] packed = new byte[YUYVUtils.packedSize(w, h)];
+        assertEquals(20*h, YUYVUtils.threshold(f, w, h, t, packed));
+    }
+}
@@ -0,0 +1,150 @@
+package lejos.internal.ev3;
+
+import static lejos.hardware.lcd.CommonLCD.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the byte at a time blitter against the bit at a time blitter it
+ * replaced, see {@link ReferenceBlit}. The old blitter did not handle an
+ * overlapping copy to the right (dx > sx) correctly, in that case the
+ * result is checked against a copy made from a separate source image.
+ */
+public class EV3LCDBitBltTest
+{
+    private static final int[] ROPS = {
+        ROP_CLEAR, ROP_AND, ROP_ANDREVERSE, ROP_COPY,
+        ROP_ANDINVERTED, ROP_NOOP, ROP_XOR, ROP_OR,
+        ROP_NOR, ROP_EQUIV, ROP_INVERT, ROP_ORREVERSE,
+        ROP_COPYINVERTED, ROP_ORINVERTED, ROP_NAND, ROP_SET
+    };
+    private static final int RUNS = 20000;
+
+    private final EV3LCD lcd = new EV3LCD();
+    private final Random rnd = new Random(43);
+
+    private static byte[] image(Random rnd, int w, int h)
+    {
+        byte[] img = new byte[((w + 7)/8)*h];
+        rnd.nextBytes(img);
+        return img;
+    }
+
+    private static String describe(int rop, int sw, int sh, int sx, int sy, int dw, int dh, int dx, int dy, int w, int h)
+    {
+        return "rop " + Integer.toHexString(rop) + " src " + sw + "x" + sh + " (" + sx + "," + sy + ") dst " +
+            dw + "x" + dh + " (" + dx + "," + dy + ") size " + w + "x" + h;
+    }
+
+    @Test
+    public void allRops()
+    {
+        for (int rop : ROPS)
+            for (int i = 0; i < RUNS/ROPS.length; i++)
+            {
+                int sw = 1 + rnd.nextInt(190), sh = 1 + rnd.nextInt(20);
+                int dw = 1 + rnd.nextInt(190), dh = 1 + rnd.nextInt(20);
+                int sx = rnd.nextInt(sw), sy = rnd.nextInt(sh);
+                int dx = rnd.nextInt(dw), dy = rnd.nextInt(dh);
+                int w = rnd.nextInt(sw - sx + 1), h = rnd.nextInt(sh - sy + 1);
+                checkSeparate(rop, sw, sh, sx, sy, dw, dh, dx, dy, w, h);
+            }
+    }
+
+    @Test
+    public void alignedRops()
+    {
+        for (int rop : ROPS)
+            for (int i = 0; i < RUNS/ROPS.length; i++)
+            {
+                int sw = 8*(1 + rnd.nextInt(24)), sh = 1 + rnd.nextInt(20);
+                int dw = 8*(1 + rnd.nextInt(24)), dh = 1 + rnd.nextInt(20);
+                checkSeparate(rop, sw, sh, 8*rnd.nextInt(sw/8), rnd.nextInt(sh), dw, dh,
+                    8*rnd.nextInt(dw/8), rnd.nextInt(dh), rnd.nextInt(200), rnd.nextInt(24));
+            }
+    }
+
+    @Test
+    public void clipping()
+    {
+        for (int i = 0; i < RUNS; i++)
+        {
+            int sw = 1 + rnd.nextInt(190), sh = 1 + rnd.nextInt(20);
+            int dw = 1 + rnd.nextInt(190), dh = 1 + rnd.nextInt(20);
+            checkSeparate(ROPS[rnd.nextInt(ROPS.length)], sw, sh,
+                rnd.nextInt(sw + 20) - 10, rnd.nextInt(sh + 10) - 5, dw, dh,
+                rnd.nextInt(dw + 40) - 20, rnd.nextInt(dh + 10) - 5,
+                rnd.nextInt(220) - 10, rnd.nextInt(30) - 5);
+        }
+    }
+
+    @Test
+    public void nullSourceFills()
+    {
+        int[] fills = {ROP_CLEAR, ROP_NOOP, ROP_INVERT, ROP_SET};
+        for (int i = 0; i < RUNS; i++)
+        {
+            int rop = fills[rnd.nextInt(fills.length)];
+            int dw = 1 + rnd.nextInt(190), dh = 1 + rnd.nextInt(20);
+            int x = rnd.nextInt(dw + 20) - 10, y = rnd.nextInt(dh + 10) - 5;
+            int w = rnd.nextInt(200), h = rnd.nextInt(25);
+            byte[] dst = image(rnd, dw, dh);
+            byte[] expected = dst.clone();
+            // the old blitter read the destination as the source
+            ReferenceBlit.bitBlt(null, dw, dh, 0, 0, expected, dw, dh, x, y, w, h, rop);
+            lcd.bitBlt(null, dw, dh, 0, 0, dst, dw, dh, x, y, w, h, rop);
+            assertArrayEquals(describe(rop, dw, dh, 0, 0, dw, dh, x, y, w, h), expected, dst);
+        }
+    }
+
+    @Test
+    public void overlap()
+    {
+        for (int i = 0; i < RUNS; i++)
+        {
+            int rop = ROPS[rnd.nextInt(ROPS.length)];
+            int dw = 1 + rnd.nextInt(190), dh = 1 + rnd.nextInt(20);
+            int sx = rnd.nextInt(dw), sy = rnd.nextInt(dh);
+            int dx = Math.max(0, Math.min(dw - 1, sx + rnd.nextInt(41) - 20));
+            int dy = (rnd.nextBoolean() ? sy : rnd.nextInt(dh));
+            int w = rnd.nextInt(dw + 1), h = rnd.nextInt(dh + 1);
+            String desc = describe(rop, dw, dh, sx, sy, dw, dh, dx, dy, w, h);
+            byte[] img = image(rnd, dw, dh);
+            // a true copy reads the source before any of it is overwritten
+            byte[] copy = img.clone();
+            ReferenceBlit.bitBlt(img.clone(), dw, dh, sx, sy, copy, dw, dh, dx, dy, w, h, rop);
+            byte[] actual = img.clone();
+            lcd.bitBlt(actual, dw, dh, sx, sy, actual, dw, dh, dx, dy, w, h, rop);
+            assertArrayEquals(desc, copy, actual);
+            if (dx <= sx)
+            {
+                byte[] old = img.clone();
+                ReferenceBlit.bitBlt(old, dw, dh, sx, sy, old, dw, dh, dx, dy, w, h, rop);
+                assertArrayEquals(desc, old, actual);
+            }
+        }
+    }
+
+    @Test
+    public void overlapRightMatchesCopy()
+    {
+        // shifting a row right within the same image, the old blitter got
+        // this wrong
+        byte[] img = {(byte)0xb5, 0x3c, (byte)0x81, 0x00};
+        lcd.bitBlt(img, 32, 1, 0, 0, img, 32, 1, 3, 0, 24, 1, ROP_COPY);
+        assertArrayEquals(new byte[] {(byte)0xad, (byte)0xe5, 0x09, 0x04}, img);
+    }
+
+    private void checkSeparate(int rop, int sw, int sh, int sx, int sy, int dw, int dh, int dx, int dy, int w, int h)
+    {
+        byte[] src = image(rnd, sw, sh);
+        byte[] dst = image(rnd, dw, dh);
+        byte[] expected = dst.clone();
+        ReferenceBlit.bitBlt(src.clone(), sw, sh, sx, sy, expected, dw, dh, dx, dy, w, h, rop);
+        lcd.bitBlt(src, sw, sh, sx, sy, dst, dw, dh, dx, dy, w, h, rop);
+        assertArrayEquals(describe(rop, sw, sh, sx, sy, dw, dh, dx, dy, w, h), expected, dst);
+    }
+}
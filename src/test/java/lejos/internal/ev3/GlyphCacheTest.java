@@ -0,0 +1,63 @@
+package lejos.internal.ev3;
+
+import static lejos.hardware.lcd.CommonLCD.*;
+import static org.junit.Assert.*;
+
+import java.lang.ref.WeakReference;
+import java.util.Random;
+
+import lejos.hardware.lcd.Font;
+
+import org.junit.Test;
+
+public class GlyphCacheTest
+{
+    private final EV3LCD lcd = new EV3LCD();
+
+    @Test
+    public void drawMatchesBitBlt()
+    {
+        Random rnd = new Random(44);
+        Font font = Font.getDefaultFont();
+        int[] rops = {ROP_COPY, ROP_OR, ROP_XOR, ROP_COPYINVERTED, ROP_ANDINVERTED};
+        char[] chars = "Hello, World! \u0001~".toCharArray();
+        int span = font.glyphWidth*font.glyphCount;
+        for (int i = 0; i < 2000; i++)
+        {
+            int dw = 1 + rnd.nextInt(178), dh = 1 + rnd.nextInt(40);
+            byte[] dst = new byte[((dw + 7)/8)*dh];
+            rnd.nextBytes(dst);
+            byte[] expected = dst.clone();
+            int rop = rops[rnd.nextInt(rops.length)];
+            int cell = font.glyphWidth + rnd.nextInt(3);
+            int x = rnd.nextInt(dw + 40) - 30, y = rnd.nextInt(dh + 20) - 15;
+            for (int c = 0; c < chars.length; c++)
+            {
+                int index = chars[c] - font.firstChar;
+                if (index >= 0 && index < font.glyphCount)
+                    lcd.bitBlt(font.glyphs, span, font.height, font.glyphWidth*index, 0,
+                        expected, dw, dh, x + c*cell, y, font.glyphWidth, font.height, rop);
+            }
+            GlyphCache.getCache(font).draw(font, chars, 0, chars.length, cell, dst, dw, dh, x, y, rop);
+            assertArrayEquals("rop " + Integer.toHexString(rop) + " at " + x + "," + y, expected, dst);
+        }
+    }
+
+    @Test
+    public void cacheDoesNotKeepFont() throws InterruptedException
+    {
+        Font font = new Font(Font.getDefaultFont().glyphs, 10, 16, 14, 10, 96, 32) {
+            private static final long serialVersionUID = 1L;
+        };
+        byte[] dst = new byte[23*16];
+        GlyphCache.getCache(font).draw(font, "abc".toCharArray(), 0, 3, 10, dst, 178, 16, 0, 0, ROP_OR);
+        WeakReference<Font> ref = new WeakReference<Font>(font);
+        font = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("font still reachable through its glyph cache", ref.get());
+    }
+}
@@ -0,0 +1,228 @@
+package lejos.remote.ev3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Compares the binary request protocol with Java serialization, as used by
+ * {@link RemoteRequestObjectConnection}. For a few typical calls it reports
+ * the bytes sent per request and reply, and the calls per second over a
+ * piped loopback connection, which measures the encoding and decoding cost
+ * without any network latency.
+ * <p>
+ * Run with: java lejos.remote.ev3.EV3CodecBenchmark [calls]
+ */
+public class EV3CodecBenchmark {
+
+	private interface Transport {
+		void call(EV3Request req) throws Exception;
+		void close() throws IOException;
+	}
+
+	private static final EV3RequestDispatcher.Handler HANDLER = new EV3RequestDispatcher.Handler() {
+		@Override
+		public void handleRequest(EV3Request req, EV3Reply reply) {
+			answer(req, reply);
+		}
+	};
+
+	/**
+	 * Fill in a reply of the shape a real handler would return.
+	 */
+	static void answer(EV3Request req, EV3Reply reply) {
+		switch (req.request) {
+		case FETCH_SAMPLE:
+			reply.floats = new float[] {0.25f, -3.5f, 120f};
+			break;
+		case MOTOR_GET_TACHO_COUNT:
+			reply.reply = 1234;
+			break;
+		default:
+			break;
+		}
+	}
+
+	static EV3Request[] workload() {
+		EV3Request tacho = new EV3Request();
+		tacho.request = EV3Request.Request.MOTOR_GET_TACHO_COUNT;
+		tacho.intValue = 1;
+		tacho.replyRequired = true;
+		EV3Request sample = new EV3Request();
+		sample.request = EV3Request.Request.FETCH_SAMPLE;
+		sample.intValue = 2;
+		sample.replyRequired = true;
+		EV3Request text = new EV3Request();
+		text.request = EV3Request.Request.LCD_G_DRAW_STRING;
+		text.str = "Distance 123";
+		text.intValue = 10;
+		text.intValue2 = 20;
+		text.intValue3 = 0;
+		text.replyRequired = true;
+		return new EV3Request[] {tacho, sample, text};
+	}
+
+	/**
+	 * Output stream that only counts the bytes written to it.
+	 */
+	private static class CountingStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	static long codecBytes(EV3Request req, int n) throws IOException {
+		CountingStream cnt = new CountingStream();
+		EV3Codec codec = new EV3Codec(null, cnt);
+		EV3Reply reply = new EV3Reply();
+		answer(req, reply);
+		for (int i = 0; i < n; i++) {
+			codec.writeRequest(req);
+			codec.writeReply(reply);
+		}
+		return cnt.count/n;
+	}
+
+	static long serialBytes(EV3Request req, int n) throws IOException {
+		// one stream per direction, reset before each object as the
+		// object connection does
+		CountingStream reqCnt = new CountingStream();
+		CountingStream repCnt = new CountingStream();
+		ObjectOutputStream reqOs = new ObjectOutputStream(reqCnt);
+		ObjectOutputStream repOs = new ObjectOutputStream(repCnt);
+		EV3Reply reply = new EV3Reply();
+		answer(req, reply);
+		reqOs.flush();
+		repOs.flush();
+		long start = reqCnt.count + repCnt.count;
+		for (int i = 0; i < n; i++) {
+			reqOs.reset();
+			reqOs.writeObject(req);
+			reqOs.flush();
+			repOs.reset();
+			repOs.writeObject(reply);
+			repOs.flush();
+		}
+		return (reqCnt.count + repCnt.count - start)/n;
+	}
+
+	static Transport codecLoopback() throws IOException {
+		PipedOutputStream toServer = new PipedOutputStream();
+		PipedInputStream serverIn = new PipedInputStream(toServer, 1 << 16);
+		PipedOutputStream toClient = new PipedOutputStream();
+		PipedInputStream clientIn = new PipedInputStream(toClient, 1 << 16);
+		final EV3RequestDispatcher dispatcher = new EV3RequestDispatcher(serverIn, toClient, HANDLER);
+		startServer(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					dispatcher.run();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+		final EV3Codec codec = new EV3Codec(clientIn, toServer);
+		final EV3Reply reply = new EV3Reply();
+		final OutputStream out = toServer;
+		return new Transport() {
+			@Override
+			public void call(EV3Request req) throws IOException {
+				codec.writeRequest(req);
+				codec.readReply(reply);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+		};
+	}
+
+	static Transport serialLoopback() throws IOException {
+		PipedOutputStream toServer = new PipedOutputStream();
+		final PipedInputStream serverIn = new PipedInputStream(toServer, 1 << 16);
+		final PipedOutputStream toClient = new PipedOutputStream();
+		PipedInputStream clientIn = new PipedInputStream(toClient, 1 << 16);
+		startServer(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ObjectOutputStream os = new ObjectOutputStream(toClient);
+					os.flush();
+					ObjectInputStream is = new ObjectInputStream(serverIn);
+					for (;;) {
+						EV3Request req = (EV3Request) is.readObject();
+						EV3Reply reply = new EV3Reply();
+						answer(req, reply);
+						os.reset();
+						os.writeObject(reply);
+						os.flush();
+					}
+				} catch (Exception e) {
+					// closed
+				}
+			}
+		});
+		final ObjectOutputStream os = new ObjectOutputStream(toServer);
+		os.flush();
+		final ObjectInputStream is = new ObjectInputStream(clientIn);
+		return new Transport() {
+			@Override
+			public void call(EV3Request req) throws Exception {
+				os.reset();
+				os.writeObject(req);
+				os.flush();
+				is.readObject();
+			}
+
+			@Override
+			public void close() throws IOException {
+				os.close();
+			}
+		};
+	}
+
+	private static void startServer(Runnable r) {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	static double callsPerSecond(Transport t, EV3Request[] reqs, int n) throws Exception {
+		// warm up
+		for (int i = 0; i < n/4; i++)
+			t.call(reqs[i % reqs.length]);
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			t.call(reqs[i % reqs.length]);
+		double rate = n*1e9/(System.nanoTime() - start);
+		t.close();
+		return rate;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int calls = (args.length > 0 ? Integer.parseInt(args[0]) : 50000);
+		EV3Request[] reqs = workload();
+		System.out.println("bytes per request and reply");
+		for (EV3Request req : reqs)
+			System.out.printf("  %-22s codec %5d  serialization %5d%n", req.request,
+					codecBytes(req, 100), serialBytes(req, 100));
+		System.out.println("calls per second over a piped loopback");
+		System.out.printf("  codec          %10.0f%n", callsPerSecond(codecLoopback(), reqs, calls));
+		System.out.printf("  serialization  %10.0f%n", callsPerSecond(serialLoopback(), reqs, calls));
+	}
+}
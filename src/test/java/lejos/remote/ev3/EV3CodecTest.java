@@ -0,0 +1,367 @@
+package lejos.remote.ev3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import lejos.hardware.lcd.Image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the binary request protocol. The loopback tests send requests
+ * through an EV3Codec to an EV3RequestDispatcher over piped streams and
+ * check that every field of every request and reply arrives unchanged. The
+ * fields are found by reflection, so a field added to EV3Request or
+ * EV3Reply without codec support makes the tests fail.
+ */
+public class EV3CodecTest {
+	private EV3Codec client;
+	private Thread server;
+	private EchoHandler handler;
+
+	/**
+	 * Handler that records each request and answers with a prepared reply.
+	 */
+	private static class EchoHandler implements EV3RequestDispatcher.Handler {
+		final List<EV3Request> received = new ArrayList<EV3Request>();
+		volatile EV3Reply answer = new EV3Reply();
+
+		@Override
+		public void handleRequest(EV3Request req, EV3Reply reply) throws Exception {
+			// the dispatcher reuses the request object
+			EV3Request copy = new EV3Request();
+			copyFields(EV3Request.class, req, copy);
+			synchronized (received) {
+				received.add(copy);
+			}
+			copyFields(EV3Reply.class, answer, reply);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		PipedOutputStream toServer = new PipedOutputStream();
+		PipedInputStream serverIn = new PipedInputStream(toServer, 1 << 16);
+		PipedOutputStream toClient = new PipedOutputStream();
+		PipedInputStream clientIn = new PipedInputStream(toClient, 1 << 16);
+		handler = new EchoHandler();
+		final EV3RequestDispatcher dispatcher = new EV3RequestDispatcher(serverIn, toClient, handler);
+		server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					dispatcher.run();
+				} catch (IOException e) {
+					// connection closed
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+		client = new EV3Codec(clientIn, toServer);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		server.interrupt();
+	}
+
+	private static List<Field> fields(Class<?> c) {
+		List<Field> res = new ArrayList<Field>();
+		for (Field f : c.getFields())
+			if (!Modifier.isStatic(f.getModifiers()))
+				res.add(f);
+		return res;
+	}
+
+	private static void copyFields(Class<?> c, Object from, Object to) throws IllegalAccessException {
+		for (Field f : fields(c))
+			f.set(to, f.get(from));
+	}
+
+	/**
+	 * Give every field a random value other than its default.
+	 */
+	private static void fill(Class<?> c, Object o, Random rnd) throws IllegalAccessException {
+		for (Field f : fields(c)) {
+			Class<?> t = f.getType();
+			Object v;
+			if (t == boolean.class)
+				v = true;
+			else if (t == int.class)
+				v = rnd.nextInt() | 1;
+			else if (t == char.class)
+				v = (char)(1 + rnd.nextInt(0xfffe));
+			else if (t == float.class)
+				v = rnd.nextFloat() + 1;
+			else if (t == double.class)
+				v = rnd.nextGaussian()*1e6 + 0.5;
+			else if (t == String.class)
+				v = "s\u00e9\u20ac" + rnd.nextInt();
+			else if (t == File.class)
+				v = new File("/home/lejos/f" + rnd.nextInt());
+			else if (t == byte[].class) {
+				byte[] b = new byte[rnd.nextInt(300)];
+				rnd.nextBytes(b);
+				v = b;
+			} else if (t == int[].class) {
+				int[] a = new int[rnd.nextInt(40)];
+				for (int i = 0; i < a.length; i++) a[i] = rnd.nextInt();
+				v = a;
+			} else if (t == char[].class)
+				v = ("chars" + rnd.nextInt()).toCharArray();
+			else if (t == float[].class) {
+				float[] a = new float[rnd.nextInt(40)];
+				for (int i = 0; i < a.length; i++) a[i] = rnd.nextFloat();
+				v = a;
+			} else if (t == short[].class) {
+				short[] a = new short[rnd.nextInt(40)];
+				for (int i = 0; i < a.length; i++) a[i] = (short)rnd.nextInt();
+				v = a;
+			} else if (t == String[].class)
+				v = new String[] {"", "name" + rnd.nextInt(), "\u00fc"};
+			else if (t == Image.class) {
+				int w = 1 + rnd.nextInt(40), h = 1 + rnd.nextInt(20);
+				byte[] b = new byte[(w + 7)/8*h];
+				rnd.nextBytes(b);
+				v = new Image(w, h, b);
+			} else if (t == Exception.class)
+				v = new RemoteRequestException("failed " + rnd.nextInt());
+			else if (t == EV3Request.Request.class)
+				v = EV3Request.Request.values()[rnd.nextInt(EV3Request.Request.values().length)];
+			else
+				throw new AssertionError("No test value for " + f);
+			f.set(o, v);
+		}
+	}
+
+	private static void assertFieldsEqual(Class<?> c, Object expected, Object actual) throws IllegalAccessException {
+		for (Field f : fields(c)) {
+			Object e = f.get(expected);
+			Object a = f.get(actual);
+			String msg = f.getName();
+			if (e instanceof Image) {
+				assertNotNull(msg, a);
+				assertEquals(msg, ((Image)e).getWidth(), ((Image)a).getWidth());
+				assertEquals(msg, ((Image)e).getHeight(), ((Image)a).getHeight());
+				assertArrayEquals(msg, ((Image)e).getData(), ((Image)a).getData());
+			} else if (e instanceof Exception) {
+				assertNotNull(msg, a);
+				assertEquals(msg, e.getClass(), a.getClass());
+				assertEquals(msg, ((Exception)e).getMessage(), ((Exception)a).getMessage());
+			} else if (e instanceof byte[])
+				assertArrayEquals(msg, (byte[])e, (byte[])a);
+			else if (e instanceof int[])
+				assertArrayEquals(msg, (int[])e, (int[])a);
+			else if (e instanceof char[])
+				assertArrayEquals(msg, (char[])e, (char[])a);
+			else if (e instanceof short[])
+				assertArrayEquals(msg, (short[])e, (short[])a);
+			else if (e instanceof float[])
+				assertArrayEquals(msg, (float[])e, (float[])a, 0f);
+			else if (e instanceof Object[])
+				assertArrayEquals(msg, (Object[])e, (Object[])a);
+			else
+				assertEquals(msg, e, a);
+		}
+	}
+
+	private EV3Request lastReceived() {
+		synchronized (handler.received) {
+			return handler.received.get(handler.received.size() - 1);
+		}
+	}
+
+	@Test
+	public void everyRequestRoundTrips() throws Exception {
+		Random rnd = new Random(31);
+		int seq = 0;
+		for (EV3Request.Request type : EV3Request.Request.values()) {
+			EV3Request req = new EV3Request();
+			fill(EV3Request.class, req, rnd);
+			req.request = type;
+			EV3Reply expected = new EV3Reply();
+			fill(EV3Reply.class, expected, rnd);
+			handler.answer = expected;
+			int stream = rnd.nextInt(RemoteRequestConnection.STREAMS);
+			client.writeRequest(req, stream, ++seq);
+			EV3Reply reply = client.readReply(null);
+			assertEquals(stream, client.getStream());
+			assertEquals(seq, client.getSequence());
+			assertFieldsEqual(EV3Request.class, req, lastReceived());
+			assertFieldsEqual(EV3Reply.class, expected, reply);
+		}
+	}
+
+	@Test
+	public void defaultFieldsRoundTrip() throws Exception {
+		Random rnd = new Random(32);
+		EV3Reply reused = new EV3Reply();
+		for (int i = 0; i < 3; i++) {
+			// a full request then an empty one, the reused objects must be reset
+			EV3Request full = new EV3Request();
+			fill(EV3Request.class, full, rnd);
+			full.replyRequired = true;
+			EV3Reply answer = new EV3Reply();
+			fill(EV3Reply.class, answer, rnd);
+			handler.answer = answer;
+			client.writeRequest(full);
+			client.readReply(reused);
+			assertFieldsEqual(EV3Reply.class, answer, reused);
+
+			EV3Request empty = new EV3Request();
+			empty.request = EV3Request.Request.GET_VOLTAGE;
+			empty.replyRequired = true;
+			handler.answer = new EV3Reply();
+			client.writeRequest(empty);
+			client.readReply(reused);
+			assertFieldsEqual(EV3Request.class, empty, lastReceived());
+			assertFieldsEqual(EV3Reply.class, new EV3Reply(), reused);
+		}
+	}
+
+	@Test
+	public void smallerThanSerialization() throws IOException {
+		for (EV3Request req : EV3CodecBenchmark.workload()) {
+			long codec = EV3CodecBenchmark.codecBytes(req, 10);
+			long serial = EV3CodecBenchmark.serialBytes(req, 10);
+			assertTrue(req.request + " codec " + codec + " serialization " + serial, codec*10 < serial);
+		}
+	}
+
+	@Test
+	public void requestsWithoutReply() throws Exception {
+		EV3Request req = new EV3Request();
+		req.request = EV3Request.Request.LCD_CLEAR;
+		for (int i = 0; i < 10; i++)
+			client.writeRequest(req);
+		req.request = EV3Request.Request.GET_NAME;
+		req.replyRequired = true;
+		EV3Reply answer = new EV3Reply();
+		answer.name = "EV3";
+		handler.answer = answer;
+		client.writeRequest(req);
+		assertEquals("EV3", client.readReply(null).name);
+		assertEquals(11, handler.received.size());
+	}
+
+	/**
+	 * Build a frame by hand, the fields are given as tag, length, data bytes.
+	 */
+	private static byte[] frame(int kind, int... body) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int len = 2 + (kind == EV3Codec.KIND_REQUEST ? 2 : 0) + body.length;
+		bos.write(len >> 24);
+		bos.write(len >> 16);
+		bos.write(len >> 8);
+		bos.write(len);
+		bos.write(EV3Codec.VERSION);
+		bos.write(kind);
+		if (kind == EV3Codec.KIND_REQUEST) {
+			bos.write(0);
+			bos.write(EV3Request.Request.PLAY_TONE.ordinal());
+		}
+		for(int b : body)
+			bos.write(b);
+		return bos.toByteArray();
+	}
+
+	private static EV3Codec reader(byte[] data) {
+		return new EV3Codec(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+	}
+
+	private static void assertBadRequest(int... body) {
+		try {
+			reader(frame(EV3Codec.KIND_REQUEST, body)).readRequest(null);
+			fail("frame accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void assertBadReply(int... body) {
+		try {
+			reader(frame(EV3Codec.KIND_REPLY, body)).readReply(null);
+			fail("frame accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void wellFormedFrames() throws IOException {
+		EV3Request req = reader(frame(EV3Codec.KIND_REQUEST,
+				EV3Codec.T_INT_VALUE, 4, 0, 0, 1, 2,
+				EV3Codec.T_FLAG, 1, 1,
+				EV3Codec.T_IMAGE, 10, 0, 0, 0, 9, 0, 0, 0, 1, 0x55, 0x01)).readRequest(null);
+		assertEquals(EV3Request.Request.PLAY_TONE, req.request);
+		assertEquals(258, req.intValue);
+		assertTrue(req.flag);
+		assertEquals(9, req.image.getWidth());
+		assertEquals(1, req.image.getHeight());
+		EV3Reply reply = reader(frame(EV3Codec.KIND_REPLY,
+				EV3Codec.T_NAMES, 9, 0, 0, 0, 1, 0, 0, 0, 1, 'a',
+				EV3Codec.T_REPLY, 4, 0, 0, 0, 7)).readReply(null);
+		assertArrayEquals(new String[] {"a"}, reply.names);
+		assertEquals(7, reply.reply);
+	}
+
+	@Test
+	public void fixedFieldsMustHaveTheirSize() {
+		// a 1 byte int would otherwise read into the next field
+		assertBadRequest(EV3Codec.T_INT_VALUE, 1, 5, EV3Codec.T_FLAG, 1, 1, 0, 0);
+		assertBadRequest(EV3Codec.T_INT_VALUE + 10, 8, 0, 0, 0, 1, 0, 0, 0, 2);
+		assertBadRequest(EV3Codec.T_FLOAT_VALUE, 2, 0, 0, 0, 0);
+		assertBadRequest(EV3Codec.T_DOUBLE_VALUE, 4, 0, 0, 0, 0, 0, 0, 0, 0);
+		assertBadRequest(EV3Codec.T_DOUBLE_VALUE2, 9, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+		assertBadRequest(EV3Codec.T_REPLY_REQUIRED, 0, EV3Codec.T_FLAG, 1, 1);
+		assertBadRequest(EV3Codec.T_FLAG, 2, 1, 1);
+		assertBadRequest(EV3Codec.T_CH, 1, 'a', 0);
+		assertBadRequest(EV3Codec.T_STREAM_ID, 2, 0, 1, 0, 0);
+		assertBadRequest(EV3Codec.T_SEQUENCE, 5, 0, 0, 0, 1, 0);
+		assertBadRequest(EV3Codec.T_INT_DATA, 6, 0, 0, 0, 1, 0, 0);
+		assertBadRequest(EV3Codec.T_CHARS, 3, 0, 'a', 0);
+		assertBadReply(EV3Codec.T_REPLY, 3, 0, 0, 1, 0);
+		assertBadReply(EV3Codec.T_FLOAT_REPLY, 1, 0, 0, 0, 0);
+		assertBadReply(EV3Codec.T_DOUBLE_REPLY, 7, 0, 0, 0, 0, 0, 0, 0, 0);
+		assertBadReply(EV3Codec.T_RESULT, 4, 1, 0, 0, 0);
+		assertBadReply(EV3Codec.T_REPLY_STREAM_ID, 1, 1);
+		assertBadReply(EV3Codec.T_REPLY_SEQUENCE, 8, 0, 0, 0, 0, 0, 0, 0, 1);
+		assertBadReply(EV3Codec.T_FLOATS, 5, 0, 0, 0, 0, 0);
+		assertBadReply(EV3Codec.T_SHORTS, 3, 0, 0, 0);
+	}
+
+	@Test
+	public void namesMustFillTheirField() {
+		// a name running past the end of the field
+		assertBadReply(EV3Codec.T_NAMES, 8, 0, 0, 0, 1, 0, 0, 0, 2, EV3Codec.T_REPLY, 4, 0, 0, 0, 1);
+		// trailing bytes in the field
+		assertBadReply(EV3Codec.T_NAMES, 10, 0, 0, 0, 1, 0, 0, 0, 1, 'a', 'b');
+	}
+
+	@Test
+	public void imageSizeMustMatchData() {
+		// shorter than the width and height
+		assertBadRequest(EV3Codec.T_IMAGE, 4, 0, 0, 0, 8, 0, 0, 0, 1);
+		// 9x2 needs 4 bytes of data
+		assertBadRequest(EV3Codec.T_IMAGE, 11, 0, 0, 0, 9, 0, 0, 0, 2, 1, 2, 3);
+		assertBadRequest(EV3Codec.T_IMAGE, 13, 0, 0, 0, 9, 0, 0, 0, 2, 1, 2, 3, 4, 5);
+		// negative sizes
+		assertBadRequest(EV3Codec.T_IMAGE, 9, 0xff, 0xff, 0xff, 0xf8, 0xff, 0xff, 0xff, 0xff, 0);
+		// width and height whose product overflows an int
+		assertBadRequest(EV3Codec.T_IMAGE, 8, 0x7f, 0xff, 0xff, 0xff, 0x7f, 0xff, 0xff, 0xff);
+	}
+}
@@ -0,0 +1,119 @@
+package lejos.remote.ev3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lejos.robotics.RegulatedMotor;
+
+import org.junit.Test;
+
+/**
+ * Tests of the motor state subscription using a connection that answers
+ * requests locally and can be made to fail.
+ */
+public class RemoteRequestRegulatedMotorTest {
+	/**
+	 * Connection that answers every motor request at once, until it is
+	 * broken.
+	 */
+	private static class StubConnection extends RemoteRequestConnection {
+		final AtomicInteger polls = new AtomicInteger();
+		volatile boolean broken;
+
+		@Override
+		public Future<EV3Reply> submit(int stream, EV3Request req) {
+			PendingReply pending = new PendingReply(stream, 0);
+			if (broken)
+				pending.complete(null, new IOException("link failed"));
+			else {
+				EV3Reply reply = new EV3Reply();
+				if (req.request == EV3Request.Request.MOTOR_GET_TACHO_COUNT)
+					reply.reply = polls.incrementAndGet();
+				pending.complete(reply, null);
+			}
+			return pending;
+		}
+
+		@Override
+		public void send(int stream, EV3Request req) {
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+
+		@Override
+		protected void awaitReply(PendingReply pending) throws InterruptedException {
+			pending.waitDone();
+		}
+	}
+
+	private static class Listener implements RemoteMotorStateListener {
+		int updates;
+		int failures;
+		RemoteRequestException error;
+
+		@Override
+		public synchronized void stateUpdated(RegulatedMotor motor, int tachoCount, int rotationSpeed, long timeStamp) {
+			updates++;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void stateFailed(RegulatedMotor motor, RemoteRequestException e) {
+			failures++;
+			error = e;
+			notifyAll();
+		}
+
+		synchronized void awaitUpdates(int n) throws InterruptedException {
+			while (updates < n)
+				wait();
+		}
+
+		synchronized void awaitFailure() throws InterruptedException {
+			while (failures == 0)
+				wait();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failureStopsPollerAndIsReported() throws InterruptedException {
+		StubConnection conn = new StubConnection();
+		RemoteRequestRegulatedMotor motor = new RemoteRequestRegulatedMotor(new RemoteRequestMotorChannel(conn), "A", 'L');
+		Listener listener = new Listener();
+		motor.subscribe(listener, 5);
+		listener.awaitUpdates(3);
+		conn.broken = true;
+		listener.awaitFailure();
+		assertNotNull(listener.error);
+		int polls = conn.polls.get();
+		Thread.sleep(50);
+		assertEquals(1, listener.failures);
+		assertEquals(polls, conn.polls.get());
+
+		// a new subscription works once the link is back
+		conn.broken = false;
+		Listener second = new Listener();
+		motor.subscribe(second, 5);
+		second.awaitUpdates(3);
+		motor.subscribe(null, 5);
+		assertEquals(0, second.failures);
+	}
+
+	@Test(timeout = 10000)
+	public void noReportAfterUnsubscribe() throws InterruptedException {
+		StubConnection conn = new StubConnection();
+		RemoteRequestRegulatedMotor motor = new RemoteRequestRegulatedMotor(new RemoteRequestMotorChannel(conn), "B", 'L');
+		Listener listener = new Listener();
+		motor.subscribe(listener, 5);
+		listener.awaitUpdates(1);
+		motor.subscribe(null, 5);
+		conn.broken = true;
+		Thread.sleep(50);
+		assertEquals(0, listener.failures);
+	}
+}
@@ -0,0 +1,147 @@
+package lejos.remote.ev3;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of sample streaming using a connection that answers requests
+ * locally and lets the test decide when samples are pushed.
+ */
+public class RemoteRequestSampleProviderTest {
+	static final float DIRECT = 42;
+
+	/**
+	 * Connection that answers every request at once. Subscriptions are
+	 * accepted but samples are only pushed by the test.
+	 */
+	private static class StubConnection extends RemoteRequestConnection {
+		volatile ReplyListener listener;
+		volatile int fetches;
+
+		private Future<EV3Reply> answer(EV3Request req) {
+			EV3Reply reply = new EV3Reply();
+			if (req.request == EV3Request.Request.SAMPLE_SIZE)
+				reply.reply = 1;
+			else if (req.request == EV3Request.Request.FETCH_SAMPLE) {
+				fetches++;
+				reply.floats = new float[] {DIRECT};
+			}
+			PendingReply pending = new PendingReply(STREAM_SENSOR, 0);
+			pending.complete(reply, null);
+			return pending;
+		}
+
+		@Override
+		public Future<EV3Reply> submit(int stream, EV3Request req) {
+			return answer(req);
+		}
+
+		@Override
+		public void send(int stream, EV3Request req) {
+		}
+
+		@Override
+		public boolean isPushSupported() {
+			return true;
+		}
+
+		@Override
+		public Future<EV3Reply> subscribe(int stream, EV3Request req, ReplyListener listener) {
+			this.listener = listener;
+			return answer(req);
+		}
+
+		@Override
+		public void unsubscribe(ReplyListener listener) {
+			this.listener = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+
+		@Override
+		protected void awaitReply(PendingReply pending) throws InterruptedException {
+			pending.waitDone();
+		}
+
+		void push(float value) {
+			EV3Reply reply = new EV3Reply();
+			reply.floats = new float[] {value};
+			reply.doubleReply = System.currentTimeMillis();
+			listener.replyReceived(reply);
+		}
+	}
+
+	private StubConnection conn;
+	private RemoteRequestSampleProvider provider;
+
+	@Before
+	public void setUp() {
+		conn = new StubConnection();
+		provider = new RemoteRequestSampleProvider(conn, "S1", "lejos.hardware.sensor.EV3TouchSensor", "Touch");
+	}
+
+	@Test(timeout = 10000)
+	public void stalledStreamFallsBackToDirectFetch() {
+		provider.startStreaming(100, 10);
+		float[] sample = new float[1];
+		long start = System.currentTimeMillis();
+		provider.fetchSample(sample, 0);
+		long elapsed = System.currentTimeMillis() - start;
+		assertEquals(DIRECT, sample[0], 0);
+		assertEquals(1, conn.fetches);
+		assertTrue("waited " + elapsed + "ms", elapsed < 2000);
+		provider.stopStreaming();
+	}
+
+	@Test(timeout = 10000)
+	public void streamedSampleIsReturned() throws InterruptedException {
+		provider.startStreaming(100, 10);
+		Thread pusher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					sleep(50);
+				} catch (InterruptedException e) {
+				}
+				conn.push(7);
+			}
+		};
+		pusher.start();
+		float[] sample = new float[1];
+		provider.fetchSample(sample, 0);
+		assertEquals(7, sample[0], 0);
+		conn.push(8);
+		provider.fetchSample(sample, 0);
+		assertEquals(8, sample[0], 0);
+		assertEquals(0, conn.fetches);
+		pusher.join();
+		provider.stopStreaming();
+	}
+
+	@Test
+	public void invalidStreamSettings() {
+		float[] rates = {0, -1, Float.NaN};
+		for (float rate : rates) {
+			try {
+				provider.startStreaming(rate, 10);
+				fail("rate " + rate);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		int[] sizes = {0, -5};
+		for (int size : sizes) {
+			try {
+				provider.startStreaming(10, size);
+				fail("buffer size " + size);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+}
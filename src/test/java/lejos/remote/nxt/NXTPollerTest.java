@@ -0,0 +1,132 @@
+package lejos.remote.nxt;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NXTPollerTest implements NXTProtocol
+{
+    private StubNXTCommRequest comm;
+    private NXTCommand nxtCommand;
+    private NXTPoller poller;
+
+    @Before
+    public void setUp()
+    {
+        comm = new StubNXTCommRequest();
+        nxtCommand = new NXTCommand(comm);
+        poller = new NXTPoller(nxtCommand, 10);
+    }
+
+    @Test
+    public void pollSendsOneBatch() throws Exception
+    {
+        assertNull(poller.getOutputState(0));
+        assertNull(poller.getOutputState(2));
+        assertNull(poller.getInputValues(1));
+        poller.poll();
+        List<byte[]> sent = comm.getSent();
+        assertEquals(3, sent.size());
+        assertEquals(3, comm.getMaxOutstanding());
+        assertEquals(GET_OUTPUT_STATE, sent.get(0)[1]);
+        assertEquals(GET_INPUT_VALUES, sent.get(2)[1]);
+        assertEquals(1, poller.getOutputState(0).tachoCount);
+        assertEquals(2, poller.getOutputState(2).tachoCount);
+        assertEquals(3, poller.getInputValues(1).scaledValue);
+        assertNull(poller.getOutputState(1));
+        assertEquals(1, poller.getPolls());
+    }
+
+    @Test
+    public void invalidateDuringPollDiscardsReply() throws Exception
+    {
+        poller.getOutputState(0);
+        poller.getInputValues(0);
+        poller.poll();
+        assertNotNull(poller.getOutputState(0));
+
+        Thread t = pollHeld();
+        poller.invalidateMotor(0);
+        poller.invalidateSensor(0);
+        comm.release();
+        t.join(5000);
+        assertFalse(t.isAlive());
+        // the replies were requested before the invalidation so are stale
+        assertNull(poller.getOutputState(0));
+        assertNull(poller.getInputValues(0));
+        assertEquals(2, poller.getPolls());
+
+        poller.poll();
+        assertEquals(5, poller.getOutputState(0).tachoCount);
+        assertEquals(6, poller.getInputValues(0).scaledValue);
+    }
+
+    @Test
+    public void clearDuringPollDiscardsReply() throws Exception
+    {
+        poller.getOutputState(1);
+        Thread t = pollHeld();
+        poller.clear();
+        poller.getOutputState(1);
+        comm.release();
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertNull(poller.getOutputState(1));
+    }
+
+    @Test
+    public void unchangedPortKeepsReply() throws Exception
+    {
+        poller.getOutputState(0);
+        poller.getOutputState(1);
+        Thread t = pollHeld();
+        poller.invalidateMotor(1);
+        comm.release();
+        t.join(5000);
+        assertEquals(1, poller.getOutputState(0).tachoCount);
+        assertNull(poller.getOutputState(1));
+    }
+
+    @Test
+    public void readFileKeepsWindowInFlight() throws Exception
+    {
+        nxtCommand.setTransferWindow(4);
+        // six chunks, each filled with the number of its reply
+        byte[] data = new byte[6*58];
+        int len = nxtCommand.readFile((byte)1, data, 0, data.length);
+        assertEquals(data.length, len);
+        assertEquals(4, comm.getMaxOutstanding());
+        assertEquals(1, data[0]);
+        assertEquals(6, data[data.length - 1]);
+    }
+
+    /**
+     * Start a poll on another thread and wait until it is blocked waiting
+     * for the replies.
+     */
+    private Thread pollHeld() throws InterruptedException
+    {
+        comm.hold();
+        Thread t = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    poller.poll();
+                }
+                catch (Exception e)
+                {
+                    fail(e.toString());
+                }
+            }
+        };
+        t.start();
+        comm.awaitReceiver();
+        return t;
+    }
+}
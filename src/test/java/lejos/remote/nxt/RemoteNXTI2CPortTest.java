@@ -0,0 +1,97 @@
+package lejos.remote.nxt;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteNXTI2CPortTest implements NXTProtocol
+{
+    private StubNXTCommRequest comm;
+    private RemoteNXTI2CPort port;
+
+    @Before
+    public void setUp()
+    {
+        comm = new StubNXTCommRequest();
+        port = new RemoteNXTI2CPort(new NXTCommand(comm));
+        assertTrue(port.open(RemoteNXTPort.SENSOR_PORT, 0, null));
+    }
+
+    @After
+    public void tearDown()
+    {
+        port.close();
+    }
+
+    @Test
+    public void queuedTransactionsNeverOverwrite() throws Exception
+    {
+        for (int busy = 0; busy < 3; busy++)
+        {
+            comm.setI2CBusyPolls(busy);
+            List<Future<byte[]>> replies = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 10; i++)
+                replies.add(port.i2cTransactionAsync(2, new byte[] {(byte)i, (byte)busy}, 0, 2, 2));
+            for (int i = 0; i < replies.size(); i++)
+            {
+                byte[] data = replies.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals((byte)~i, data[0]);
+                assertEquals((byte)~busy, data[1]);
+            }
+        }
+        assertEquals(0, comm.getI2COverwrites());
+    }
+
+    @Test
+    public void nextWriteFollowsCompletedRead() throws Exception
+    {
+        comm.setI2CBusyPolls(2);
+        Future<byte[]> first = port.i2cTransactionAsync(2, new byte[] {1}, 0, 1, 1);
+        Future<byte[]> second = port.i2cTransactionAsync(2, new byte[] {2}, 0, 1, 1);
+        assertEquals((byte)~1, first.get(5, TimeUnit.SECONDS)[0]);
+        assertEquals((byte)~2, second.get(5, TimeUnit.SECONDS)[0]);
+        // the second write is only sent once a status reply has shown the
+        // channel is free and the data of the first has been read
+        int reads = 0;
+        for (byte[] msg : comm.getSent())
+        {
+            if (msg[1] == LS_READ)
+                reads++;
+            else if (msg[1] == LS_WRITE && reads > 0)
+            {
+                assertEquals(3, reads);
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void synchronousTransaction()
+    {
+        byte[] buf = new byte[3];
+        port.i2cTransaction(2, new byte[] {5, 6, 7}, 0, 3, buf, 0, 3);
+        assertArrayEquals(new byte[] {~5, ~6, ~7}, buf);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void timedGetTimesOut() throws Exception
+    {
+        comm.hold();
+        try
+        {
+            port.i2cTransactionAsync(2, new byte[] {1}, 0, 1, 1).get(50, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            comm.release();
+        }
+    }
+}
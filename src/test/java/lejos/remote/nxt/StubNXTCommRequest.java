@@ -0,0 +1,214 @@
+package lejos.remote.nxt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In memory NXTCommRequest used to test the classes that talk to a remote
+ * NXT. It answers GET_OUTPUT_STATE, GET_INPUT_VALUES and READ requests,
+ * the tacho count and scaled value of each reply are taken from a counter
+ * that is incremented for every reply, so a test can tell which request a
+ * cached value came from. Receiving can be held to simulate a slow link.
+ * LS_WRITE, LS_GET_STATUS and LS_READ are answered by a simulated I2C
+ * channel that echoes the data written back, inverted, and stays busy for
+ * a set number of status requests.
+ */
+class StubNXTCommRequest implements NXTCommRequest, NXTProtocol
+{
+    private final ArrayDeque<byte[]> replies = new ArrayDeque<byte[]>();
+    private final List<byte[]> sent = new ArrayList<byte[]>();
+    private int counter = 0;
+    private int outstanding = 0;
+    private int maxOutstanding = 0;
+    private boolean held = false;
+    private boolean waiting = false;
+    private int i2cBusyPolls = 0;
+    private int i2cBusy = 0;
+    private boolean i2cReported = false;
+    private byte[] i2cData = null;
+    private int i2cOverwrites = 0;
+
+    @Override
+    public void close() throws IOException
+    {
+    }
+
+    @Override
+    public synchronized byte[] sendRequest(byte[] message, int replyLen) throws IOException
+    {
+        send(message, message.length);
+        if (message[0] == DIRECT_COMMAND_REPLY || message[0] == SYSTEM_COMMAND_REPLY)
+            return receive();
+        return null;
+    }
+
+    @Override
+    public synchronized void send(byte[] message, int len) throws IOException
+    {
+        byte[] msg = new byte[len];
+        System.arraycopy(message, 0, msg, 0, len);
+        sent.add(msg);
+        byte[] reply = reply(msg);
+        if (msg[0] != DIRECT_COMMAND_REPLY && msg[0] != SYSTEM_COMMAND_REPLY)
+            return;
+        replies.add(reply);
+        maxOutstanding = Math.max(maxOutstanding, ++outstanding);
+    }
+
+    @Override
+    public synchronized byte[] receive() throws IOException
+    {
+        waiting = true;
+        notifyAll();
+        try
+        {
+            while (held)
+                wait();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted");
+        }
+        finally
+        {
+            waiting = false;
+        }
+        if (replies.isEmpty())
+            throw new IOException("No reply pending");
+        outstanding--;
+        return replies.removeFirst();
+    }
+
+    private byte[] reply(byte[] msg)
+    {
+        byte[] reply;
+        int value = ++counter;
+        switch (msg[1])
+        {
+        case GET_OUTPUT_STATE:
+            reply = new byte[25];
+            reply[3] = msg[2];
+            putInt(reply, 13, value);
+            break;
+        case GET_INPUT_VALUES:
+            reply = new byte[16];
+            reply[3] = msg[2];
+            reply[4] = 1;
+            reply[12] = (byte)value;
+            reply[13] = (byte)(value >> 8);
+            break;
+        case READ:
+            int len = (msg[3] & 0xFF) | ((msg[4] & 0xFF) << 8);
+            reply = new byte[6 + len];
+            reply[3] = msg[2];
+            reply[4] = msg[3];
+            reply[5] = msg[4];
+            for (int i = 0; i < len; i++)
+                reply[6 + i] = (byte)value;
+            break;
+        case LS_WRITE:
+            reply = new byte[3];
+            if (i2cBusy > 0)
+                reply[2] = ErrorMessages.PENDING_COMMUNICATION_TRANSACTION_IN_PROGRESS;
+            else
+            {
+                if (i2cData != null)
+                    i2cOverwrites++;
+                i2cData = (msg[4] > 0 ? new byte[msg[4]] : null);
+                for (int i = 0; i2cData != null && i < i2cData.length && 6 + i < msg.length; i++)
+                    i2cData[i] = (byte)~msg[6 + i];
+                i2cBusy = i2cBusyPolls;
+            }
+            break;
+        case LS_GET_STATUS:
+            reply = new byte[4];
+            i2cReported = (i2cBusy > 0);
+            if (i2cBusy > 0)
+            {
+                i2cBusy--;
+                reply[2] = ErrorMessages.PENDING_COMMUNICATION_TRANSACTION_IN_PROGRESS;
+            }
+            else if (i2cData != null)
+                reply[3] = (byte)i2cData.length;
+            break;
+        case LS_READ:
+            reply = new byte[20];
+            // the transaction completes after the status reports busy
+            if (i2cReported || i2cData == null)
+                reply[2] = ErrorMessages.PENDING_COMMUNICATION_TRANSACTION_IN_PROGRESS;
+            else
+            {
+                reply[3] = (byte)i2cData.length;
+                System.arraycopy(i2cData, 0, reply, 4, i2cData.length);
+                i2cData = null;
+            }
+            break;
+        default:
+            reply = new byte[3];
+        }
+        reply[0] = REPLY_COMMAND;
+        reply[1] = msg[1];
+        return reply;
+    }
+
+    private static void putInt(byte[] buf, int offset, int value)
+    {
+        for (int i = 0; i < 4; i++)
+            buf[offset + i] = (byte)(value >> (i*8));
+    }
+
+    /**
+     * Block receive until {@link #release()} is called.
+     */
+    synchronized void hold()
+    {
+        held = true;
+    }
+
+    synchronized void release()
+    {
+        held = false;
+        notifyAll();
+    }
+
+    /**
+     * Wait until a thread is blocked in receive.
+     */
+    synchronized void awaitReceiver() throws InterruptedException
+    {
+        while (!waiting)
+            wait();
+    }
+
+    /**
+     * Set the number of status requests an I2C transaction stays busy for.
+     */
+    synchronized void setI2CBusyPolls(int polls)
+    {
+        i2cBusyPolls = polls;
+    }
+
+    /**
+     * Return the number of I2C transactions started before the data of the
+     * previous one had been read.
+     */
+    synchronized int getI2COverwrites()
+    {
+        return i2cOverwrites;
+    }
+
+    synchronized List<byte[]> getSent()
+    {
+        return new ArrayList<byte[]>(sent);
+    }
+
+    /**
+     * Return the largest number of replies that were pending at once.
+     */
+    synchronized int getMaxOutstanding()
+    {
+        return maxOutstanding;
+    }
+}
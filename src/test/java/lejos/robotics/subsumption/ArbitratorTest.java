@@ -0,0 +1,165 @@
+package lejos.robotics.subsumption;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Test;
+
+/**
+ * Runs ten behaviors, the lowest always wants control and each of the
+ * others in turn is made to want control for a short time. Compares the
+ * CPU used and the time taken for the new behavior to start when polling
+ * continuously and when polling at a long period with trigger().
+ */
+public class ArbitratorTest
+{
+  private static final int BEHAVIORS = 10;
+  private static final int SWITCHES = 18;
+  // bound on the time from a change to the new action starting, well
+  // below the poll period used
+  private static final long MAX_LATENCY = 100000000L;
+
+  private volatile int _want;
+  private volatile boolean _finished;
+
+  private class TestBehavior implements Behavior
+  {
+    final int id;
+    volatile boolean suppressed;
+    volatile long started;
+
+    TestBehavior(int id)
+    {
+      this.id = id;
+    }
+
+    public boolean takeControl()
+    {
+      return (_want & (1 << id)) != 0;
+    }
+
+    public void action()
+    {
+      suppressed = false;
+      started = System.nanoTime();
+      while (!suppressed && takeControl())
+      {
+        if (_finished)
+          throw new Finished();
+        try
+        {
+          Thread.sleep(1);
+        }
+        catch (InterruptedException e)
+        {
+          return;
+        }
+      }
+    }
+
+    public void suppress()
+    {
+      suppressed = true;
+    }
+  }
+
+  private static class Finished extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static class Result
+  {
+    double cpu;
+    long maxLatency;
+  }
+
+  private Result run(int period, boolean trigger) throws InterruptedException
+  {
+    _want = 1;
+    _finished = false;
+    TestBehavior[] behaviors = new TestBehavior[BEHAVIORS];
+    for (int i = 0; i < BEHAVIORS; i++)
+      behaviors[i] = new TestBehavior(i);
+    final Arbitrator arb = new Arbitrator(behaviors, false, period);
+    Thread t = new Thread()
+    {
+      public void run()
+      {
+        try
+        {
+          arb.go();
+        }
+        catch (Finished e)
+        {
+          // stopped by the test
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    Thread.sleep(200);
+    arb.resetMetrics();
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    long cpu0 = totalCpu(mx);
+    long start = System.nanoTime();
+    Result res = new Result();
+    for (int k = 0; k < SWITCHES; k++)
+    {
+      int hi = 1 + k % (BEHAVIORS - 1);
+      Thread.sleep(40);
+      long t0 = System.nanoTime();
+      _want = 1 | (1 << hi);
+      if (trigger)
+        arb.trigger();
+      while (behaviors[hi].started < t0 && System.nanoTime() - t0 < 10*MAX_LATENCY)
+        Thread.sleep(0, 100000);
+      res.maxLatency = Math.max(res.maxLatency, behaviors[hi].started - t0);
+      Thread.sleep(20);
+      _want = 1;
+      if (trigger)
+        arb.trigger();
+    }
+    res.cpu = (double)(totalCpu(mx) - cpu0)/(System.nanoTime() - start);
+    assertTrue("switches " + arb.getSwitchCount(), arb.getSwitchCount() >= SWITCHES);
+    assertTrue("arbitrator max latency " + arb.getMaxLatency() + "us",
+        arb.getMaxLatency() > 0 && arb.getMaxLatency() <= MAX_LATENCY/1000);
+    // stop the main thread by having the lowest behavior's action throw
+    _finished = true;
+    if (trigger)
+      arb.trigger();
+    t.join(2000);
+    arb.stop();
+    assertFalse("arbitrator did not stop", t.isAlive());
+    return res;
+  }
+
+  private static long totalCpu(ThreadMXBean mx)
+  {
+    long total = 0;
+    for (long id : mx.getAllThreadIds())
+    {
+      long cpu = mx.getThreadCpuTime(id);
+      if (cpu > 0)
+        total += cpu;
+    }
+    return total;
+  }
+
+  @Test
+  public void triggeredPollingUsesLessCpu() throws InterruptedException
+  {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!mx.isThreadCpuTimeSupported())
+      return;
+    mx.setThreadCpuTimeEnabled(true);
+    Result periodic = run(500, true);
+    Result continuous = run(0, false);
+    assertTrue("periodic latency " + periodic.maxLatency/1000 + "us", periodic.maxLatency < MAX_LATENCY);
+    assertTrue("continuous latency " + continuous.maxLatency/1000 + "us", continuous.maxLatency < MAX_LATENCY);
+    assertTrue("cpu periodic " + periodic.cpu + " continuous " + continuous.cpu,
+        periodic.cpu*4 < continuous.cpu);
+  }
+}